@@ -11,20 +11,25 @@ import java.util.Date;
 
 import kommet.data.KID;
 
+/**
+ * OAuth2 access token. Only hashes of the token strings are kept, so that tokens cannot be read from the token store
+ * or its backing table.
+ */
 public class AccessToken
 {
-	private String token;
-	private String refreshToken;
+	private String tokenHash;
+	private String refreshTokenHash;
 	private Date expirationDate;
 	private KID userId;
+	private KID envId;
 	
-	public void setToken(String token)
+	public void setTokenHash(String tokenHash)
 	{
-		this.token = token;
+		this.tokenHash = tokenHash;
 	}
-	public String getToken()
+	public String getTokenHash()
 	{
-		return token;
+		return tokenHash;
 	}
 	public void setExpirationDate(Date expirationDate)
 	{
@@ -42,12 +47,20 @@ public class AccessToken
 	{
 		return userId;
 	}
-	public void setRefreshToken(String refreshToken)
+	public void setRefreshTokenHash(String refreshTokenHash)
+	{
+		this.refreshTokenHash = refreshTokenHash;
+	}
+	public String getRefreshTokenHash()
+	{
+		return refreshTokenHash;
+	}
+	public void setEnvId(KID envId)
 	{
-		this.refreshToken = refreshToken;
+		this.envId = envId;
 	}
-	public String getRefreshToken()
+	public KID getEnvId()
 	{
-		return refreshToken;
+		return envId;
 	}
 }
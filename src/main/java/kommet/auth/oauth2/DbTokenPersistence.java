@@ -0,0 +1,81 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.auth.oauth2;
+
+import java.sql.Timestamp;
+import java.util.Date;
+
+import javax.inject.Inject;
+
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+import org.springframework.stereotype.Repository;
+
+import kommet.dao.EnvTableInitializer;
+import kommet.data.KID;
+import kommet.data.KommetException;
+import kommet.env.EnvData;
+import kommet.env.EnvService;
+
+/**
+ * Keeps access tokens in a table in the environment's database.
+ *
+ * @author Radek Krawiec
+ */
+@Repository
+public class DbTokenPersistence implements TokenPersistence
+{
+	private static final String TABLE_NAME = "oauthtokens";
+	
+	@Inject
+	EnvTableInitializer tableInitializer;
+	
+	@Inject
+	EnvService envService;
+	
+	@Override
+	public void save (AccessToken token, EnvData env) throws KommetException
+	{
+		tableInitializer.initTables(env);
+		env.getJdbcTemplate().update("INSERT INTO " + TABLE_NAME + " (tokenhash, refreshtokenhash, userid, expirationdate) VALUES (?, ?, ?, ?)", token.getTokenHash(), token.getRefreshTokenHash(), token.getUserId().getId(), new Timestamp(token.getExpirationDate().getTime()));
+	}
+	
+	@Override
+	public AccessToken get (String tokenHash, KID envId) throws KommetException
+	{
+		// the token is checked before the request is authenticated, so the environment is only connected to, not initialized
+		EnvData env = envService.getConnected(envId);
+		if (env == null)
+		{
+			return null;
+		}
+		
+		tableInitializer.initTables(env);
+		
+		SqlRowSet rowSet = env.getJdbcTemplate().queryForRowSet("SELECT tokenhash, refreshtokenhash, userid, expirationdate FROM " + TABLE_NAME + " WHERE tokenhash = ?", tokenHash);
+		
+		if (!rowSet.next())
+		{
+			return null;
+		}
+		
+		AccessToken token = new AccessToken();
+		token.setTokenHash(rowSet.getString("tokenhash"));
+		token.setRefreshTokenHash(rowSet.getString("refreshtokenhash"));
+		token.setUserId(KID.get(rowSet.getString("userid")));
+		token.setExpirationDate(new Date(rowSet.getTimestamp("expirationdate").getTime()));
+		token.setEnvId(envId);
+		return token;
+	}
+	
+	@Override
+	public void deleteExpired (Date date, EnvData env) throws KommetException
+	{
+		tableInitializer.initTables(env);
+		env.getJdbcTemplate().update("DELETE FROM " + TABLE_NAME + " WHERE expirationdate <= ?", new Timestamp(date.getTime()));
+	}
+}
\ No newline at end of file
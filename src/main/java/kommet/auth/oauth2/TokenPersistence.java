@@ -0,0 +1,54 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.auth.oauth2;
+
+import java.util.Date;
+
+import kommet.data.KID;
+import kommet.data.KommetException;
+import kommet.env.EnvData;
+
+/**
+ * Backing store for access tokens kept by {@link TokenStore}.
+ *
+ * Tokens are saved in the backing store so that they survive restarts and can be validated by all nodes
+ * serving the same environment, while {@link TokenStore} keeps recently used tokens in memory.
+ *
+ * @author Radek Krawiec
+ */
+public interface TokenPersistence
+{
+	/**
+	 * Saves a new access token.
+	 * @param token
+	 * @param env
+	 * @throws KommetException
+	 */
+	public void save (AccessToken token, EnvData env) throws KommetException;
+	
+	/**
+	 * Returns the access token with the given token hash issued in the given environment, or null if it does not exist.
+	 * Expired tokens can be returned as well.
+	 * <p>
+	 * Tokens are looked up before the environment is initialized, so implementations must not initialize it.
+	 * </p>
+	 * @param tokenHash
+	 * @param envId
+	 * @return
+	 * @throws KommetException
+	 */
+	public AccessToken get (String tokenHash, KID envId) throws KommetException;
+	
+	/**
+	 * Removes tokens that expired before the given date.
+	 * @param date
+	 * @param env
+	 * @throws KommetException
+	 */
+	public void deleteExpired (Date date, EnvData env) throws KommetException;
+}
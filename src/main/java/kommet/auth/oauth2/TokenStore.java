@@ -2,40 +2,115 @@
  * Copyright 2022, Radosław Krawiec
  * Licensed under the GNU Affera General Public License (the "License");
  * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html 
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
  */
 
 package kommet.auth.oauth2;
 
+import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import javax.inject.Inject;
 
 import org.apache.commons.lang.time.DateUtils;
 import org.springframework.stereotype.Service;
 
 import kommet.data.KID;
+import kommet.data.KommetException;
+import kommet.env.EnvData;
+import kommet.utils.AppConfig;
+import kommet.utils.MiscUtils;
 
+/**
+ * Stores OAuth2 access tokens.
+ *
+ * Tokens are saved in a {@link TokenPersistence} backing store, so that they survive restarts and can be validated
+ * on all nodes, and recently used tokens are kept in an in-memory cache, so that validating a token is usually
+ * a lookup in a concurrent map. Cached tokens are also kept ordered by expiration date, so that expired tokens can be
+ * removed from the cache without scanning it, and the size of the cache is limited.
+ *
+ * Neither the cache nor the backing store keep token strings, only their SHA-256 hashes.
+ */
 @Service
 public class TokenStore
 {
-	private Map<String, AccessToken> tokens = new HashMap<String, AccessToken>();
+	@Inject
+	TokenPersistence persistence;
+	
+	@Inject
+	AppConfig appConfig;
+	
+	// how often expired tokens are removed from the backing store of each env
+	private static final long PERSISTENCE_SWEEP_INTERVAL = 60000;
+	
+	private static final Comparator<AccessToken> EXPIRATION_ORDER = new Comparator<AccessToken>()
+	{
+		@Override
+		public int compare(AccessToken t1, AccessToken t2)
+		{
+			int result = t1.getExpirationDate().compareTo(t2.getExpirationDate());
+			return result != 0 ? result : t1.getTokenHash().compareTo(t2.getTokenHash());
+		}
+	};
+	
+	// cached tokens by token hash
+	private ConcurrentHashMap<String, AccessToken> tokens = new ConcurrentHashMap<String, AccessToken>();
 	
-	public void store (String tokenString, String refreshToken, int expiresIn, KID userId)
+	// cached tokens ordered by expiration date
+	private ConcurrentSkipListSet<AccessToken> tokensByExpiration = new ConcurrentSkipListSet<AccessToken>(EXPIRATION_ORDER);
+	
+	// time when expired tokens were last removed from the backing store, by env ID
+	private ConcurrentHashMap<KID, Long> lastPersistenceSweeps = new ConcurrentHashMap<KID, Long>();
+	
+	public void store (String tokenString, String refreshToken, int expiresIn, KID userId, EnvData env) throws KommetException
 	{
 		AccessToken token = new AccessToken();
-		token.setToken(tokenString);
+		token.setTokenHash(MiscUtils.getSHA256Hash(tokenString));
 		token.setUserId(userId);
-		token.setRefreshToken(refreshToken);
+		token.setRefreshTokenHash(refreshToken != null ? MiscUtils.getSHA256Hash(refreshToken) : null);
 		token.setExpirationDate(DateUtils.addMilliseconds(new Date(), expiresIn * 1000));
-		tokens.put(tokenString, token);
+		token.setEnvId(env.getId());
+		
+		if (appConfig.isPersistOAuthTokens())
+		{
+			persistence.save(token, env);
+			sweepPersistence(env);
+		}
+		
+		cache(token);
 	}
 	
-	public AccessToken getToken (String tokenString)
+	/**
+	 * Returns a valid access token issued in the given environment, or null if the token does not exist,
+	 * has expired, or has been issued in another environment.
+	 * <p>
+	 * This method does not initialize the environment, so it can be called before the request is authenticated.
+	 * </p>
+	 * @param tokenString
+	 * @param envId
+	 * @return
+	 * @throws KommetException
+	 */
+	public AccessToken getToken (String tokenString, KID envId) throws KommetException
 	{
-		AccessToken token = this.tokens.get(tokenString);
+		String tokenHash = MiscUtils.getSHA256Hash(tokenString);
+		AccessToken token = this.tokens.get(tokenHash);
 		
-		if (token == null)
+		if (token == null && appConfig.isPersistOAuthTokens())
+		{
+			// the token may have been issued before a restart, on another node, or removed from the cache
+			token = persistence.get(tokenHash, envId);
+			
+			if (token != null && token.getExpirationDate().after(new Date()))
+			{
+				token = cache(token);
+			}
+		}
+		
+		if (token == null || !envId.equals(token.getEnvId()))
 		{
 			return null;
 		}
@@ -47,8 +122,69 @@ public class TokenStore
 		else
 		{
 			// remove expired token
-			this.tokens.remove(tokenString);
+			if (this.tokens.remove(tokenHash, token))
+			{
+				this.tokensByExpiration.remove(token);
+			}
 			return null;
 		}
 	}
+	
+	/**
+	 * Removes all tokens from the in-memory cache. Tokens saved in the backing store can still be retrieved.
+	 */
+	public void clearCache()
+	{
+		this.tokens.clear();
+		this.tokensByExpiration.clear();
+	}
+	
+	/**
+	 * Adds the token to the cache, removing expired tokens and tokens that expire first if the cache is full.
+	 * @param token
+	 * @return the cached token, which is a previously cached instance if the token was already in the cache
+	 * @throws KommetException
+	 */
+	private AccessToken cache (AccessToken token) throws KommetException
+	{
+		AccessToken existingToken = this.tokens.putIfAbsent(token.getTokenHash(), token);
+		if (existingToken != null)
+		{
+			return existingToken;
+		}
+		
+		this.tokensByExpiration.add(token);
+		
+		Date now = new Date();
+		int maxSize = appConfig.getOAuthTokenCacheSize();
+		
+		Iterator<AccessToken> iterator = this.tokensByExpiration.iterator();
+		while (iterator.hasNext())
+		{
+			AccessToken oldestToken = iterator.next();
+			
+			// stop at the first token that has not expired, unless the cache is too large
+			if (oldestToken.getExpirationDate().after(now) && this.tokens.size() <= maxSize)
+			{
+				break;
+			}
+			
+			iterator.remove();
+			this.tokens.remove(oldestToken.getTokenHash(), oldestToken);
+		}
+		
+		return token;
+	}
+	
+	private void sweepPersistence (EnvData env) throws KommetException
+	{
+		long now = System.currentTimeMillis();
+		Long lastSweep = this.lastPersistenceSweeps.get(env.getId());
+		
+		if (lastSweep == null || now - lastSweep >= PERSISTENCE_SWEEP_INTERVAL)
+		{
+			this.lastPersistenceSweeps.put(env.getId(), now);
+			persistence.deleteExpired(new Date(now), env);
+		}
+	}
 }
@@ -97,6 +97,7 @@ import kommet.basic.types.ViewResourceKType;
 import kommet.basic.types.WebResourceKType;
 import kommet.businessprocess.BusinessProcessService;
 import kommet.config.Constants;
+import kommet.dao.EnvTableInitializer;
 import kommet.data.DataService;
 import kommet.data.Field;
 import kommet.data.GlobalSettings;
@@ -136,6 +137,9 @@ public class BasicSetupService
 	@Inject
 	AppConfig appConfig;
 	
+	@Inject
+	EnvTableInitializer envTableInitializer;
+	
 	@Inject
 	ViewService viewService;
 	
@@ -1408,6 +1412,7 @@ public class BasicSetupService
 		createUserRecordSharing(env);
 		createGetUserGroupsFunction(env);
 		createGetParentGroupsFunction(env);
+		envTableInitializer.createTables(env);
 	}
 	
 	private void createGetUserGroupsFunction (EnvData env) throws KommetException
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.basic;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import kommet.data.KommetException;
+import kommet.persistence.Entity;
+import kommet.persistence.Property;
+import kommet.persistence.Transient;
+import kommet.utils.MiscUtils;
+
+/**
+ * Table of getter and setter handles of the properties of a record proxy class.
+ *
+ * Scanning the methods of a proxy class and validating their annotations is done once per class, instead of
+ * once per converted record. Tables are stored in a {@link ClassValue}, so they are attached to the proxy class itself
+ * and are discarded together with it when a new class loader generation replaces the environment's classes.
+ *
+ * @author Radek Krawiec
+ */
+public class RecordProxyAccessors
+{
+	private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, RecordProxy.class);
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, RecordProxy.class, Object.class);
+
+	private static final ClassValue<RecordProxyAccessors> accessors = new ClassValue<RecordProxyAccessors>()
+	{
+		@Override
+		protected RecordProxyAccessors computeValue(java.lang.Class<?> proxyClass)
+		{
+			return new RecordProxyAccessors(proxyClass);
+		}
+	};
+
+	// all properties annotated with @Property, read when records are generated from proxies
+	private final List<PropertyAccessor> properties;
+
+	// properties initialized from records, i.e. non-transient getters declared in the proxy class or its standard superclasses
+	private final List<PropertyAccessor> initializedProperties;
+
+	// error found while scanning the class, reported when the proxy is initialized from a record
+	private String initError;
+
+	private RecordProxyAccessors (java.lang.Class<?> proxyClass)
+	{
+		List<PropertyAccessor> properties = new ArrayList<PropertyAccessor>();
+		List<PropertyAccessor> initializedProperties = new ArrayList<PropertyAccessor>();
+
+		// Be sure to use getMethods, not getDeclaredMethod, because some methods can be
+		// declared in the superclass RecordProxy
+		for (Method method : proxyClass.getMethods())
+		{
+			Property propertyAnnotation = method.getAnnotation(Property.class);
+
+			// The method has to be a getter declared either in the proxy class or the supertype RecordProxy.
+			// This way we will avoid checking methods from classes higher in the hierarchy, e.g. Object.
+			boolean isInitialized = MiscUtils.isGetter(method) && !method.isAnnotationPresent(Transient.class) && (method.getDeclaringClass().equals(proxyClass) || method.getDeclaringClass().equals(RecordProxy.class) || method.getDeclaringClass().equals(StandardTypeRecordProxy.class));
+
+			if (isInitialized && propertyAnnotation == null && this.initError == null)
+			{
+				this.initError = "Method " + proxyClass.getName() + "." + method.getName() + " is a getter but is not annotated with either @" + Entity.class.getSimpleName() + " or @" + Transient.class.getSimpleName();
+			}
+
+			if (propertyAnnotation == null)
+			{
+				continue;
+			}
+
+			PropertyAccessor accessor = new PropertyAccessor(propertyAnnotation.field(), method);
+			properties.add(accessor);
+
+			if (isInitialized)
+			{
+				initializedProperties.add(accessor);
+			}
+		}
+
+		this.properties = Collections.unmodifiableList(properties);
+		this.initializedProperties = Collections.unmodifiableList(initializedProperties);
+	}
+
+	/**
+	 * Returns the accessor table for the given proxy class, creating it on first use.
+	 * @param proxyClass
+	 * @return
+	 */
+	public static RecordProxyAccessors get (java.lang.Class<? extends RecordProxy> proxyClass)
+	{
+		return accessors.get(proxyClass);
+	}
+
+	/**
+	 * Returns accessors of all properties annotated with @{@link Property}.
+	 * @return
+	 */
+	public List<PropertyAccessor> getProperties()
+	{
+		return properties;
+	}
+
+	/**
+	 * Returns accessors of properties that are initialized when a proxy is generated from a record.
+	 * @return
+	 * @throws RecordProxyException if the proxy class is not a valid record proxy
+	 */
+	public List<PropertyAccessor> getInitializedProperties() throws RecordProxyException
+	{
+		if (this.initError != null)
+		{
+			throw new RecordProxyException(this.initError);
+		}
+
+		return initializedProperties;
+	}
+
+	/**
+	 * Getter and setter of a single proxy property.
+	 */
+	public static class PropertyAccessor
+	{
+		private final String field;
+		private final Method getterMethod;
+		private final MethodHandle getter;
+		private MethodHandle setter;
+		private String setterName;
+		private String setterError;
+		private String accessError;
+
+		private PropertyAccessor (String field, Method getterMethod)
+		{
+			this.field = field;
+			this.getterMethod = getterMethod;
+
+			MethodHandle getter = null;
+			try
+			{
+				getter = MethodHandles.publicLookup().unreflect(getterMethod).asType(GETTER_TYPE);
+			}
+			catch (IllegalAccessException e)
+			{
+				this.accessError = "Cannot access getter " + getterMethod.getName() + ": " + e.getMessage();
+			}
+			this.getter = getter;
+
+			// setters are only needed for initialized properties, so errors are reported when they are used
+			try
+			{
+				Method setterMethod = MiscUtils.getSetter(getterMethod);
+				this.setterName = setterMethod.getName();
+				this.setter = MethodHandles.publicLookup().unreflect(setterMethod).asType(SETTER_TYPE);
+			}
+			catch (KommetException e)
+			{
+				this.setterError = "Error getting setter for getter method: " + getterMethod.getName() + ": " + e.getMessage();
+			}
+			catch (IllegalAccessException e)
+			{
+				this.setterError = "Error getting setter for getter method: " + getterMethod.getName() + ": " + e.getMessage();
+			}
+		}
+
+		public Object get (RecordProxy proxy) throws RecordProxyException
+		{
+			if (this.getter == null)
+			{
+				throw new RecordProxyException(this.accessError);
+			}
+
+			try
+			{
+				return (Object)this.getter.invokeExact(proxy);
+			}
+			catch (Throwable e)
+			{
+				throw new RecordProxyException("Error calling getter " + getterMethod.getName() + ". Nested: " + e.getMessage());
+			}
+		}
+
+		public void set (RecordProxy proxy, Object value) throws RecordProxyException
+		{
+			checkSetter();
+
+			try
+			{
+				this.setter.invokeExact(proxy, value);
+			}
+			catch (Throwable e)
+			{
+				throw new RecordProxyException("Error calling setter " + setterName + " with value " + value + ". Nested: " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Makes sure the property has a public setter.
+		 * @throws RecordProxyException
+		 */
+		public void checkSetter() throws RecordProxyException
+		{
+			if (this.setter == null)
+			{
+				throw new RecordProxyException(this.setterError);
+			}
+		}
+
+		public String getField()
+		{
+			return field;
+		}
+
+		public String getName()
+		{
+			return getterMethod.getName();
+		}
+
+		public java.lang.Class<?> getType()
+		{
+			return getterMethod.getReturnType();
+		}
+	}
+}
@@ -8,14 +8,16 @@
 package kommet.basic;
 
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.beanutils.PropertyUtils;
 
+import kommet.basic.RecordProxyAccessors.PropertyAccessor;
+import kommet.dao.ColumnMapping;
 import kommet.dao.KommetPersistenceException;
 import kommet.dao.RecordProxyMapping;
 import kommet.data.Env;
@@ -34,7 +36,6 @@ import kommet.koll.compiler.KommetClassLoader;
 import kommet.koll.compiler.KommetCompiler;
 import kommet.persistence.Entity;
 import kommet.persistence.Property;
-import kommet.persistence.Transient;
 import kommet.utils.MiscUtils;
 
 public class RecordProxyUtil
@@ -50,15 +51,9 @@ public class RecordProxyUtil
 		
 		try
 		{
-			// Be sure to use getMethods, not getDeclaredMethod, because some methods can be
-			// declared in the superclass ObjectProxy
-			for (Method method : obj.getClass().getMethods())
+			for (PropertyAccessor accessor : RecordProxyAccessors.get(obj.getClass()).getProperties())
 			{
-				if (method.isAnnotationPresent(Property.class))
-				{
-					Property propertyAnnotation = method.getAnnotation(Property.class);
-					properties.put(propertyAnnotation.field(), method.invoke(obj));
-				}
+				properties.put(accessor.getField(), accessor.get(obj));
 			}
 			
 			return properties;
@@ -390,40 +385,12 @@ public class RecordProxyUtil
 			throw new RecordProxyException("Proxy class " + proxyClass.getName() + " is not annotated with @" + Entity.class.getSimpleName());
 		}
 		
-		// iterate through proxy's methods
-		for (Method method : proxyClass.getMethods())
+		// iterate through proxy's properties - the accessor table is built once per proxy class
+		for (PropertyAccessor accessor : RecordProxyAccessors.get(proxyClass).getInitializedProperties())
 		{
-			// The method has to be a getter declared either in the proxy class or the supertype RecordProxy.
-			// This way we will avoid checking methods from classes higher in the hierarchy, e.g. Object.
-			if (!MiscUtils.isGetter(method) || !(method.getDeclaringClass().equals(proxyClass) || method.getDeclaringClass().equals(RecordProxy.class) || method.getDeclaringClass().equals(StandardTypeRecordProxy.class)))
-			{
-				// if not a getter, skip it
-				continue;
-			}
-			else
-			{
-				// skip getters annotated with @Transient
-				if (method.isAnnotationPresent(Transient.class))
-				{
-					continue;
-				}
-				else if (!method.isAnnotationPresent(Property.class))
-				{
-					throw new RecordProxyException("Method " + proxyClass.getName() + "." + method.getName() + " is a getter but is not annotated with either @" + Entity.class.getSimpleName() + " or @" + Transient.class.getSimpleName());
-				}
-			}
-			
-			Method setter = null;
-			try
-			{
-				setter = MiscUtils.getSetter(method);
-			}
-			catch (KommetException e)
-			{
-				throw new RecordProxyException("Error getting setter for getter method: " + method.getName() + ": " + e.getMessage());
-			}
+			accessor.checkSetter();
 			
-			String fieldName = method.getAnnotation(Property.class).field();
+			String fieldName = accessor.getField();
 			Object propertyValue = null;
 			DataType dataType = null;
 			try
@@ -446,12 +413,12 @@ public class RecordProxyUtil
 			{
 				if (dataType instanceof TypeReference)
 				{
-					if (!RecordProxy.class.isAssignableFrom(method.getReturnType()))
+					if (!RecordProxy.class.isAssignableFrom(accessor.getType()))
 					{
-						throw new RecordProxyException("Method " + method.getName() + " represents type reference property, but its return type is " + method.getReturnType().getName() + " which does not extend " + RecordProxy.class.getSimpleName());
+						throw new RecordProxyException("Method " + accessor.getName() + " represents type reference property, but its return type is " + accessor.getType().getName() + " which does not extend " + RecordProxy.class.getSimpleName());
 					}
 					
-					java.lang.Class<? extends RecordProxy> propertyProxyClass = (java.lang.Class<? extends RecordProxy>)method.getReturnType();
+					java.lang.Class<? extends RecordProxy> propertyProxyClass = (java.lang.Class<? extends RecordProxy>)accessor.getType();
 					
 					// Properties createdBy and lastModifiedBy are treated in a special way, because they are declared as RecordProxy, not as User, in the
 					// StandardTypeRecordProxy class. This is why their type has to be determined manually for standard type proxies.
@@ -466,9 +433,9 @@ public class RecordProxyUtil
 				else if (dataType instanceof InverseCollectionDataType)
 				{
 					// TODO test this case
-					if (!ArrayList.class.isAssignableFrom(method.getReturnType()))
+					if (!ArrayList.class.isAssignableFrom(accessor.getType()))
 					{
-						throw new RecordProxyException("Method " + method.getName() + " represents collection property, but its return type is " + method.getReturnType().getName() + " which does not extend " + ArrayList.class.getSimpleName());
+						throw new RecordProxyException("Method " + accessor.getName() + " represents collection property, but its return type is " + accessor.getType().getName() + " which does not extend " + ArrayList.class.getSimpleName());
 					}
 					
 					if (propertyValue != null)
@@ -515,9 +482,9 @@ public class RecordProxyUtil
 				else if (dataType instanceof AssociationDataType)
 				{
 					// TODO test this case
-					if (!ArrayList.class.isAssignableFrom(method.getReturnType()))
+					if (!ArrayList.class.isAssignableFrom(accessor.getType()))
 					{
-						throw new RecordProxyException("Method " + method.getName() + " represents collection property, but its return type is " + method.getReturnType().getName() + " which does not extend " + ArrayList.class.getSimpleName());
+						throw new RecordProxyException("Method " + accessor.getName() + " represents collection property, but its return type is " + accessor.getType().getName() + " which does not extend " + ArrayList.class.getSimpleName());
 					}
 					
 					if (propertyValue != null)
@@ -569,14 +536,7 @@ public class RecordProxyUtil
 			// this method as it is only called for uninitialized proxies.
 			if (propertyValue != null)
 			{
-				try
-				{
-					setter.invoke(proxy, propertyValue);
-				}
-				catch (Exception e)
-				{
-					throw new RecordProxyException("Error calling setter " + setter.getName() + " with value " + propertyValue + ". Nested: " + e.getMessage());
-				}
+				accessor.set(proxy, propertyValue);
 			}
 		}
 		
@@ -636,7 +596,6 @@ public class RecordProxyUtil
 		return mapping.getProxyClass();
 	}
 	
-	@SuppressWarnings("unchecked")
 	private static RecordProxy generateProxy (Record record, boolean ignoreUninitializedFields, RecordProxyType proxyType, Map<Integer, RecordProxy> proxyCache, EnvData env, KommetCompiler compiler) throws KommetException
 	{	
 		Type type = record.getType();
@@ -679,105 +638,153 @@ public class RecordProxyUtil
 			}
 			
 			String fieldName = mapping.getPropertyMappings().get(property).getColumn();
-			Object value = record.getField(fieldName, !ignoreUninitializedFields);
+			setProxyProperty(proxy, property, fieldName, record, ignoreUninitializedFields, proxyType, proxyCache, env, compiler);
+		}
+		
+		return proxy;
+	}
+	
+	/**
+	 * Updates the given fields of an existing custom proxy with their values from the record.
+	 * <p>
+	 * This lets a proxy that has already been generated for a record be reused after some fields of the record
+	 * have changed, e.g. after the record has been inserted and got its ID, instead of generating a new proxy.
+	 * Fields that are not set on the record are left unchanged on the proxy.
+	 * </p>
+	 * @param proxy The proxy to update
+	 * @param record The record from which field values are read
+	 * @param fieldNames API names of the fields to update
+	 * @param env Current environment
+	 * @param compiler
+	 * @throws KommetException
+	 */
+	public static void updateCustomTypeProxy (RecordProxy proxy, Record record, Collection<String> fieldNames, EnvData env, KommetCompiler compiler) throws KommetException
+	{
+		RecordProxyMapping mapping = env.getCustomTypeProxyMapping(record.getType().getKID());
+		if (mapping == null)
+		{
+			throw new KommetPersistenceException("No record proxy mapping found for type " + record.getType().getQualifiedName());
+		}
+		
+		Map<Integer, RecordProxy> proxyCache = new HashMap<Integer, RecordProxy>();
+		proxyCache.put(System.identityHashCode(record), proxy);
+		
+		for (String fieldName : fieldNames)
+		{
+			ColumnMapping colMapping = mapping.getColumnMappings().get(fieldName);
+			if (colMapping == null || !record.isSet(fieldName))
+			{
+				continue;
+			}
 			
-			if (value != null)
+			setProxyProperty(proxy, colMapping.getProperty(), fieldName, record, true, RecordProxyType.CUSTOM, proxyCache, env, compiler);
+		}
+	}
+	
+	/**
+	 * Sets a single property of the proxy to the value of the corresponding field of the record, converting
+	 * type references and collections into proxies.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void setProxyProperty (RecordProxy proxy, String property, String fieldName, Record record, boolean ignoreUninitializedFields, RecordProxyType proxyType, Map<Integer, RecordProxy> proxyCache, EnvData env, KommetCompiler compiler) throws KommetException
+	{
+		Type type = record.getType();
+		Object value = record.getField(fieldName, !ignoreUninitializedFields);
+		
+		if (value != null)
+		{
+			// if the field represents a field reference, it has to be turned into a proxy before it can be assigned
+			if (type.getField(fieldName).getDataTypeId().equals(DataType.TYPE_REFERENCE))
 			{
-				// if the field represents a field reference, it has to be turned into a proxy before it can be assigned
-				if (type.getField(fieldName).getDataTypeId().equals(DataType.TYPE_REFERENCE))
+				if (!(value instanceof NullifiedRecord))
 				{
-					if (!(value instanceof NullifiedRecord))
+					if (proxyCache.containsKey(System.identityHashCode(value)))
 					{
-						if (proxyCache.containsKey(System.identityHashCode(value)))
-						{
-							value = proxyCache.get(System.identityHashCode(value));
-						}
-						else
-						{
-							// ignore uninitialized fields on a nested type reference, because
-							// they may not have been included in the query
-							RecordProxy generatedProxy = generateProxy((Record)value, true, proxyType, proxyCache, env, compiler);
-							proxyCache.put(System.identityHashCode(value), generatedProxy);
-							value = generatedProxy;
-						}
+						value = proxyCache.get(System.identityHashCode(value));
 					}
 					else
 					{
-						// the record representing the type reference is in fact special value null,
-						// so we nullify it on the proxy as well
-						proxy.nullify(fieldName);
-						value = null;
+						// ignore uninitialized fields on a nested type reference, because
+						// they may not have been included in the query
+						RecordProxy generatedProxy = generateProxy((Record)value, true, proxyType, proxyCache, env, compiler);
+						proxyCache.put(System.identityHashCode(value), generatedProxy);
+						value = generatedProxy;
 					}
 				}
-				// if the field is a collection (inverse collection or association)
-				// it needs to be converted into a list of object proxies
-				else if (type.getField(fieldName).getDataTypeId().equals(DataType.INVERSE_COLLECTION) || type.getField(fieldName).getDataTypeId().equals(DataType.ASSOCIATION))
+				else
 				{
-					List<Record> collectionRecords = (List<Record>)value;
-					List<RecordProxy> collectionProxies = new ArrayList<RecordProxy>();
-					
-					if (collectionRecords != null)
+					// the record representing the type reference is in fact special value null,
+					// so we nullify it on the proxy as well
+					proxy.nullify(fieldName);
+					value = null;
+				}
+			}
+			// if the field is a collection (inverse collection or association)
+			// it needs to be converted into a list of object proxies
+			else if (type.getField(fieldName).getDataTypeId().equals(DataType.INVERSE_COLLECTION) || type.getField(fieldName).getDataTypeId().equals(DataType.ASSOCIATION))
+			{
+				List<Record> collectionRecords = (List<Record>)value;
+				List<RecordProxy> collectionProxies = new ArrayList<RecordProxy>();
+				
+				if (collectionRecords != null)
+				{
+					for (Record rec : collectionRecords)
 					{
-						for (Record rec : collectionRecords)
+						if (rec == null)
 						{
-							if (rec == null)
-							{
-								throw new RecordProxyException("Null value in collection field " + type.getQualifiedName() + "." + fieldName);
-							}
-							// this check is a bit superfluous, because records in a collection
-							// should never be a NullifiedRecord
-							else if (!(rec instanceof NullifiedRecord))
+							throw new RecordProxyException("Null value in collection field " + type.getQualifiedName() + "." + fieldName);
+						}
+						// this check is a bit superfluous, because records in a collection
+						// should never be a NullifiedRecord
+						else if (!(rec instanceof NullifiedRecord))
+						{
+							if (proxyCache.containsKey(System.identityHashCode(rec)))
 							{
-								if (proxyCache.containsKey(System.identityHashCode(rec)))
-								{
-									collectionProxies.add(proxyCache.get(System.identityHashCode(rec)));
-								}
-								else
-								{
-									// convert each record in the collection into a proxy
-									RecordProxy generatedProxy = generateProxy(rec, true, proxyType, proxyCache, env, compiler);
-									proxyCache.put(System.identityHashCode(rec), generatedProxy);
-									collectionProxies.add(generatedProxy);
-								}
+								collectionProxies.add(proxyCache.get(System.identityHashCode(rec)));
 							}
 							else
 							{
-								throw new RecordProxyException("Item in collection " + fieldName + " is an instance of NullifiedRecord, which is not allowed");
+								// convert each record in the collection into a proxy
+								RecordProxy generatedProxy = generateProxy(rec, true, proxyType, proxyCache, env, compiler);
+								proxyCache.put(System.identityHashCode(rec), generatedProxy);
+								collectionProxies.add(generatedProxy);
 							}
 						}
+						else
+						{
+							throw new RecordProxyException("Item in collection " + fieldName + " is an instance of NullifiedRecord, which is not allowed");
+						}
 					}
-					
-					value = collectionProxies;
 				}
-			}
-			
-			if (SpecialValue.isNull(value))
-			{
-				// if the value on the record is SpecialValue.NULL, it will be represented on the object proxy
-				// by a combination of two settings - the value of the property will be null, and it will be
-				// additionally marked as nullified.
-				proxy.nullify(fieldName);
-				value = null;
-			}
-			
-			try
-			{
-				PropertyUtils.setProperty(proxy, property, value);
-			}
-			catch (IllegalAccessException e)
-			{
-				throw new KommetPersistenceException("Error setting property " + property + ": " + e.getMessage(), e);
-			}
-			catch (InvocationTargetException e)
-			{
-				throw new KommetPersistenceException("Error setting property " + property + ": " + e.getMessage(), e);
-			}
-			catch (NoSuchMethodException e)
-			{
-				throw new KommetPersistenceException("Error setting property " + property + ": " + e.getMessage(), e);
+				
+				value = collectionProxies;
 			}
 		}
 		
-		return proxy;
+		if (SpecialValue.isNull(value))
+		{
+			// if the value on the record is SpecialValue.NULL, it will be represented on the object proxy
+			// by a combination of two settings - the value of the property will be null, and it will be
+			// additionally marked as nullified.
+			proxy.nullify(fieldName);
+			value = null;
+		}
+		
+		try
+		{
+			PropertyUtils.setProperty(proxy, property, value);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new KommetPersistenceException("Error setting property " + property + ": " + e.getMessage(), e);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw new KommetPersistenceException("Error setting property " + property + ": " + e.getMessage(), e);
+		}
+		catch (NoSuchMethodException e)
+		{
+			throw new KommetPersistenceException("Error setting property " + property + ": " + e.getMessage(), e);
+		}
 	}
 }
\ No newline at end of file
@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.URLEncoder;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -86,6 +87,7 @@ import kommet.utils.MiscUtils;
 import kommet.utils.PropertyUtilException;
 import kommet.utils.UrlUtil;
 import kommet.web.RequestAttributes;
+import kommet.web.actions.ActionRouter;
 import kommet.web.actions.ActionUtil;
 import kommet.web.actions.ParsedURL;
 import kommet.web.kmparams.KmParamException;
@@ -293,6 +295,9 @@ public class RequestFilter extends OncePerRequestFilter
 		EnvData env = null;
 		String sEnvId = null;
 		
+		// access token passed with a REST request
+		AccessToken restToken = null;
+		
 		String domain = stripServerName(request.getServerName());
 		
 		if (request.getParameter(RequestAttributes.ENV_ID_ATTR_NAME) != null)
@@ -353,6 +358,27 @@ public class RequestFilter extends OncePerRequestFilter
 				throw new ServletException("Invalid environment ID '" + sEnvId + "'");
 			}
 			
+			// an access token passed with the request is validated before the env is initialized,
+			// so that requests with invalid tokens do not cause env initialization
+			if (request.getParameter("access_token") != null && request.getParameter(RequestAttributes.ENV_ID_ATTR_NAME) != null && AuthUtil.getAuthData(request.getSession()) == null)
+			{
+				try
+				{
+					restToken = tokenStore.getToken(request.getParameter("access_token"), envId);
+					
+					if (restToken == null)
+					{
+						response.getWriter().write(RestUtil.getRestErrorResponse("Invalid access token"));
+						response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+						return;
+					}
+				}
+				catch (KommetException e)
+				{
+					throw new ServletException("Error validating access token: " + e.getMessage());
+				}
+			}
+			
 			try
 			{
 				env = envService.get(envId);
@@ -368,11 +394,12 @@ public class RequestFilter extends OncePerRequestFilter
 		
 		AuthData authData = AuthUtil.getAuthData(request.getSession());
 		
-		if (authData == null)
+		if (authData == null && restToken != null)
 		{
 			try
 			{
-				authData = getRestAuthData(request);
+				// TODO is it not too time consuming to fetch user auth data each time they make an API call?
+				authData = userService.getAuthData(userService.getUser(restToken.getUserId(), env), env);
 			}
 			catch (KommetException e)
 			{
@@ -531,12 +558,14 @@ public class RequestFilter extends OncePerRequestFilter
 		}
 		
 		Action action = null;
+		ActionRouter.Match actionMatch = null;
 		
 		if (StringUtils.hasText(requestedUrl) && env != null)
 		{
 			try
 			{
-				action = env.getActionForUrl(requestedUrl);
+				actionMatch = env.getActionMatchForUrl(requestedUrl);
+				action = actionMatch != null ? actionMatch.getAction() : null;
 			}
 			catch (KommetException e)
 			{
@@ -965,10 +994,10 @@ public class RequestFilter extends OncePerRequestFilter
 			
 			if (!Boolean.TRUE.equals(action.getIsSystem()))
 			{
-				// read URL params from action URL
+				// read URL params from action URL, unless they have already been extracted when the action was matched
 				try
 				{
-					urlParams = new ParsedURL(action.getUrl()).getParamValues(requestedUrl, !isStandardAction);
+					urlParams = !isStandardAction && actionMatch != null && actionMatch.getAction() == action ? new HashMap<String, String>(actionMatch.getParams()) : new ParsedURL(action.getUrl()).getParamValues(requestedUrl, !isStandardAction);
 				}
 				catch (KommetException e)
 				{
@@ -1553,40 +1582,6 @@ public class RequestFilter extends OncePerRequestFilter
 		return serverName != null && serverName.startsWith("www.") ? serverName.substring(4) : serverName;
 	}
 	
-	/**
-	 * Attemps to get REST user's auth data from the request. Auth data can be retrieved if user passed
-	 * <tt>access_token</tt> and <tt>env</tt> parameters. In such case, if the access token is valid,
-	 * this method returns the <tt>AuthData</tt> object. Otherwise it returns null. 
-	 * @param request
-	 * @return
-	 * @throws KommetException
-	 */
-	private AuthData getRestAuthData(HttpServletRequest request) throws KommetException
-	{
-		if (request.getParameter("access_token") != null && request.getParameter("env") != null)
-		{
-			// try to get auth data from access_token
-			AccessToken apiToken = tokenStore.getToken(request.getParameter("access_token"));
-			KID envId = KID.get(request.getParameter("env"));
-			
-			if (apiToken != null)
-			{	
-				EnvData env = envService.get(envId);
-				
-				// TODO is it not too time consuming to fetch user auth data each time they make an API call?
-				return userService.getAuthData(userService.getUser(apiToken.getUserId(), env), env);
-			}
-			else
-			{
-				return null;
-			}
-		}
-		else
-		{
-			return null;
-		}
-	}
-
 	/**
 	 * Returns the ID of the layout to be used. The layout is determined basing on view, profile and environment
 	 * settings.
@@ -7,8 +7,10 @@
 
 package kommet.basic.keetle.tags.objectlist;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -18,6 +20,7 @@ import java.util.Set;
 
 import javax.servlet.jsp.PageContext;
 
+import org.apache.commons.lang3.StringEscapeUtils;
 import org.springframework.util.StringUtils;
 
 import kommet.auth.AuthData;
@@ -29,13 +32,16 @@ import kommet.basic.keetle.tags.buttons.ButtonFactory;
 import kommet.basic.keetle.tags.buttons.ButtonPanel;
 import kommet.basic.keetle.tags.buttons.ButtonPrototype;
 import kommet.basic.keetle.tags.buttons.ButtonType;
-import kommet.dao.queries.QueryResult;
+import kommet.dao.queries.Criteria;
 import kommet.data.Field;
+import kommet.data.KID;
 import kommet.data.KeyPrefix;
 import kommet.data.KommetException;
 import kommet.data.NoSuchFieldException;
 import kommet.data.Record;
 import kommet.data.Type;
+import kommet.data.datatypes.DataType;
+import kommet.data.datatypes.SpecialValue;
 import kommet.env.EnvData;
 import kommet.i18n.I18nDictionary;
 import kommet.koll.compiler.KommetCompiler;
@@ -105,6 +111,20 @@ public class ObjectListConfig
 	
 	private Map<String, String> newObjectPassedParams;
 	
+	private ObjectListPagingMode pagingMode = ObjectListPagingMode.OFFSET;
+	
+	// Position from which the current page is read in keyset paging mode - the sort clause for which the
+	// position is valid, and the sort value and ID of the last record on the previous page (or the first record on the next
+	// page if the list is paged backwards).
+	private String seekSortBy;
+	private String seekValue;
+	private KID seekId;
+	private boolean seekBackward;
+	
+	// tell whether there are more records in keyset paging mode, determined while the page is read
+	private boolean hasNextPage;
+	private boolean hasPreviousPage;
+	
 	public ObjectListConfig (ObjectListSource recordSource, ObjectListItemType itemType)
 	{
 		this.recordSource = recordSource;
@@ -161,7 +181,16 @@ public class ObjectListConfig
 		{	
 			try
 			{
-				String queriedFields = MiscUtils.implode(ObjectListConfig.extractFields(config.getColumns(), config.getItemVar()), ", ");
+				Set<String> fields = ObjectListConfig.extractFields(config.getColumns(), config.getItemVar());
+				
+				if (config.isKeysetPagingOn())
+				{
+					// the sort field and ID of the first and last record are needed to read the adjacent pages
+					fields.add(Field.ID_FIELD_NAME);
+					fields.add(config.getSingleSortField());
+				}
+				
+				String queriedFields = MiscUtils.implode(fields, ", ");
 				if (!defaultFieldDisplayed)
 				{
 					// always query the default field
@@ -176,29 +205,35 @@ public class ObjectListConfig
 					dalQuery += " WHERE " + config.getDalFilter();
 				}
 				
-				// add order clause if sort conditions were specified
-				if (StringUtils.hasText(config.getSortBy()))
+				if (config.isKeysetPagingOn())
 				{
-					dalQuery += " ORDER BY " + config.getSortBy();
+					config.setItems(getKeysetPage(config, dalQuery, authData));
 				}
-				
-				if (config.isPagingOn())
+				else
 				{
-					String countQuery = "SELECT COUNT(id) FROM " + config.getType().getQualifiedName();
-					// if additional DAL conditions were specified for the tag, apply them to the search
-					if (StringUtils.hasText(config.getDalFilter()))
+					// add order clause if sort conditions were specified
+					if (StringUtils.hasText(config.getSortBy()))
+					{
+						dalQuery += " ORDER BY " + config.getSortBy();
+					}
+					
+					if (config.isPagingOn())
 					{
-						countQuery += " WHERE " + config.getDalFilter();
+						String countQuery = "SELECT COUNT(id) FROM " + config.getType().getQualifiedName();
+						// if additional DAL conditions were specified for the tag, apply them to the search
+						if (StringUtils.hasText(config.getDalFilter()))
+						{
+							countQuery += " WHERE " + config.getDalFilter();
+						}
+						
+						// count entities
+						totalCount = config.getEnv().getSelectCriteriaFromDAL(countQuery, authData).count();
+						dalQuery += " LIMIT " + config.getPageSize() + " OFFSET " + (config.getPageNo() - 1) * config.getPageSize();
 					}
 					
-					// count entities
-					List<Record> countResult = config.getEnv().getSelectCriteriaFromDAL(countQuery, authData).list();
-					totalCount = (Long)((QueryResult)countResult.get(0)).getAggregateValue("count(id)");
-					dalQuery += " LIMIT " + config.getPageSize() + " OFFSET " + (config.getPageNo() - 1) * config.getPageSize();
+					// search records according to DAL criteria
+					config.setItems(config.getEnv().getSelectCriteriaFromDAL(dalQuery, authData).list());
 				}
-				
-				// search records according to DAL criteria
-				config.setItems(config.getEnv().getSelectCriteriaFromDAL(dalQuery, authData).list());
 			}
 			catch (KommetException e)
 			{
@@ -313,7 +348,11 @@ public class ObjectListConfig
 		code.append("</tbody>");
 		code.append("</table>");
 		
-		if (config.isPagingOn())
+		if (config.isKeysetPagingOn())
+		{
+			code.append(getKeysetPagingPanel(config, sortField, sortOrder.toLowerCase().equals("asc") ? "desc" : "asc", config.getI18n()));
+		}
+		else if (config.isPagingOn())
 		{
 			code.append(getPagingPanel(config, totalCount.intValue(), sortField, sortOrder.toLowerCase().equals("asc") ? "desc" : "asc", config.getI18n(), authData));
 		}
@@ -569,6 +608,202 @@ public class ObjectListConfig
 		return code.toString();
 	}
 	
+	/**
+	 * Reads the current page of the list in keyset paging mode.
+	 * <p>
+	 * The page is read starting from the position stored in the config, i.e. from the sort value and ID of the last record
+	 * on the previous page. Records are not counted. Instead, one record more than the page size is read to find out
+	 * whether there are more records in the direction of paging.
+	 * </p>
+	 * @param config
+	 * @param dalQuery query without the ORDER BY clause
+	 * @param authData
+	 * @return
+	 * @throws KommetException
+	 */
+	private static List<Record> getKeysetPage (ObjectListConfig config, String dalQuery, AuthData authData) throws KommetException
+	{
+		String sortField = config.getSingleSortField();
+		String sortOrder = config.getSingleSortOrder();
+		
+		// order by ID as well, so that the order of records with the same sort value is always the same
+		Criteria c = config.getEnv().getSelectCriteriaFromDAL(dalQuery + " ORDER BY " + sortField + " " + sortOrder + ", " + Field.ID_FIELD_NAME + " " + sortOrder, authData);
+		
+		// the stored position is only valid for the sort order for which it was read
+		boolean isSeek = config.getSeekId() != null && getSeekSortBy(config).equals(config.getSeekSortBy());
+		boolean isBackward = isSeek && config.isSeekBackward();
+		
+		if (isSeek)
+		{
+			Object sortValue = parseSeekValue(config.getSeekValue(), config.getType().getField(sortField, config.getEnv()));
+			
+			if (isBackward)
+			{
+				c.seekBefore(sortValue, config.getSeekId());
+			}
+			else
+			{
+				c.seekAfter(sortValue, config.getSeekId());
+			}
+		}
+		else
+		{
+			config.setPageNo(1);
+		}
+		
+		c.setLimit(config.getPageSize() + 1);
+		List<Record> records = c.list();
+		
+		boolean hasMore = records.size() > config.getPageSize();
+		if (hasMore)
+		{
+			// the additional record is the farthest one in the direction of paging
+			records.remove(isBackward ? 0 : records.size() - 1);
+		}
+		
+		if (isBackward)
+		{
+			config.hasNextPage = true;
+			config.hasPreviousPage = hasMore;
+			
+			if (!hasMore)
+			{
+				// we have reached the beginning of the list
+				config.setPageNo(1);
+			}
+		}
+		else
+		{
+			config.hasNextPage = hasMore;
+			config.hasPreviousPage = isSeek && config.getPageNo() > 1;
+		}
+		
+		return records;
+	}
+	
+	private static String getKeysetPagingPanel(ObjectListConfig config, String sortField, String sortOrder, I18nDictionary i18n) throws KommetException
+	{
+		StringBuilder code = new StringBuilder();
+		
+		code.append("<div class=\"paging-panel\">");
+		
+		Integer initialPageNo = config.getPageNo();
+		String initialSeekSortBy = config.getSeekSortBy();
+		String initialSeekValue = config.getSeekValue();
+		KID initialSeekId = config.getSeekId();
+		boolean initialSeekBackward = config.isSeekBackward();
+		
+		List<?> items = config.getItems();
+		
+		if (initialPageNo > 1)
+		{
+			config.setPageNo(1);
+			config.clearSeek();
+			code.append("<a class=\"page-no\" href=\"javascript:;\" onclick=\"").append(getObjectListFunctionCall(config, sortOrder, sortField)).append("\"><< ").append(i18n.get("list.first")).append("</a>");
+		}
+		else
+		{
+			code.append("<a class=\"page-no page-no-inactive\"><< ").append(i18n.get("list.first")).append("</a>");
+		}
+		
+		if (config.hasPreviousPage && !items.isEmpty())
+		{
+			Record firstRecord = (Record)items.get(0);
+			config.setPageNo(initialPageNo > 1 ? initialPageNo - 1 : 1);
+			config.setSeek(getSeekSortBy(config), formatSeekValue(firstRecord.attemptGetField(sortField)), firstRecord.getKID(), true);
+			code.append("<a class=\"page-no\" href=\"javascript:;\" onclick=\"").append(getObjectListFunctionCall(config, sortOrder, sortField)).append("\">< ").append(i18n.get("list.prev")).append("</a>");
+		}
+		else
+		{
+			code.append("<a class=\"page-no page-no-inactive\">< ").append(i18n.get("list.prev")).append("</a>");
+		}
+		
+		// the number of pages is not known, so only the current page is displayed
+		code.append("<span class=\"pages\">").append(initialPageNo).append("</span>");
+		
+		if (config.hasNextPage && !items.isEmpty())
+		{
+			Record lastRecord = (Record)items.get(items.size() - 1);
+			config.setPageNo(initialPageNo + 1);
+			config.setSeek(getSeekSortBy(config), formatSeekValue(lastRecord.attemptGetField(sortField)), lastRecord.getKID(), false);
+			code.append("<a class=\"page-no\" href=\"javascript:;\" onclick=\"").append(getObjectListFunctionCall(config, sortOrder, sortField)).append("\">").append(i18n.get("list.next")).append(" ></a>");
+		}
+		else
+		{
+			code.append("<a class=\"page-no page-no-inactive\">").append(i18n.get("list.next")).append(" ></a>");
+		}
+		
+		code.append("</div>");
+		config.setPageNo(initialPageNo);
+		config.setSeek(initialSeekSortBy, initialSeekValue, initialSeekId, initialSeekBackward);
+		
+		return code.toString();
+	}
+	
+	/**
+	 * Returns the normalized sort clause, e.g. "name asc", for which a keyset paging position is stored.
+	 * @param config
+	 * @return
+	 * @throws KommetException
+	 */
+	private static String getSeekSortBy (ObjectListConfig config) throws KommetException
+	{
+		return (config.getSingleSortField() + " " + config.getSingleSortOrder()).toLowerCase();
+	}
+	
+	/**
+	 * Converts the value of the sort field to a string that can be stored in the serialized config.
+	 * @param value
+	 * @return
+	 */
+	private static String formatSeekValue (Object value)
+	{
+		if (value == null || SpecialValue.isNull(value))
+		{
+			return null;
+		}
+		else if (value instanceof Date)
+		{
+			return String.valueOf(((Date)value).getTime());
+		}
+		else if (value instanceof KID)
+		{
+			return ((KID)value).getId();
+		}
+		else if (value instanceof BigDecimal)
+		{
+			return ((BigDecimal)value).toPlainString();
+		}
+		else
+		{
+			return value.toString();
+		}
+	}
+	
+	private static Object parseSeekValue (String value, Field sortField) throws KommetException
+	{
+		if (value == null)
+		{
+			return null;
+		}
+		
+		if (sortField == null)
+		{
+			throw new KommetException("Sort field of the object list not found");
+		}
+		
+		Integer dataTypeId = sortField.getDataTypeId();
+		
+		if (dataTypeId.equals(DataType.DATETIME) || dataTypeId.equals(DataType.DATE))
+		{
+			return new Date(Long.valueOf(value));
+		}
+		else
+		{
+			return sortField.getDataType().getJavaValue(value);
+		}
+	}
+	
 	private static String getObjectListFunctionCall (ObjectListConfig config, String sortOrder, String sortField) throws KommetException
 	{
 		StringBuilder code = new StringBuilder();
@@ -618,6 +853,16 @@ public class ObjectListConfig
 		json.append("\"id\": \"").append(this.getId()).append("\", ");
 		json.append("\"lookupId\": \"").append(MiscUtils.nullAsBlank(this.lookupId)).append("\", ");
 		json.append("\"sortBy\": \"").append(MiscUtils.nullAsBlank(this.getSortBy())).append("\", ");
+		json.append("\"pagingMode\": \"").append(this.pagingMode.name()).append("\", ");
+		
+		if (this.seekId != null)
+		{
+			json.append("\"seekSortBy\": \"").append(MiscUtils.nullAsBlank(this.seekSortBy)).append("\", ");
+			json.append("\"seekValue\": ").append(this.seekValue != null ? "\"" + StringEscapeUtils.escapeJson(this.seekValue) + "\"" : "null").append(", ");
+			json.append("\"seekId\": \"").append(this.seekId.getId()).append("\", ");
+			json.append("\"seekBackward\": \"").append(this.seekBackward).append("\", ");
+		}
+		
 		json.append("\"contextPath\": \"").append(getServletHost()).append("\", ");
 		json.append("\"sysContextPath\": \"").append(getServletHost()).append("/").append(UrlUtil.SYSTEM_ACTION_URL_PREFIX).append("\", ");
 		
@@ -891,6 +1136,69 @@ public class ObjectListConfig
 	{
 		return this.pageNo != null && this.pageSize != null;
 	}
+	
+	/**
+	 * Tells whether records are read using keyset paging. Keyset paging is used only for lists whose records
+	 * are queried (not passed to the list) and sorted by a single field.
+	 * @return
+	 */
+	public boolean isKeysetPagingOn()
+	{
+		return isPagingOn() && ObjectListPagingMode.KEYSET.equals(this.pagingMode) && ObjectListSource.QUERY.equals(this.recordSource) && isSingleSort();
+	}
+	
+	public void setPagingMode(ObjectListPagingMode pagingMode)
+	{
+		this.pagingMode = pagingMode;
+	}
+	
+	public ObjectListPagingMode getPagingMode()
+	{
+		return pagingMode;
+	}
+	
+	/**
+	 * Sets the position from which the page is read in keyset paging mode.
+	 * @param sortBy sort clause for which the position is valid
+	 * @param sortValue value of the sort field of the record at the position
+	 * @param id ID of the record at the position
+	 * @param isBackward whether records preceding the position should be read
+	 */
+	public void setSeek(String sortBy, String sortValue, KID id, boolean isBackward)
+	{
+		this.seekSortBy = sortBy;
+		this.seekValue = sortValue;
+		this.seekId = id;
+		this.seekBackward = isBackward;
+	}
+	
+	/**
+	 * Clears the position from which the page is read in keyset paging mode, so that the first page is displayed.
+	 */
+	public void clearSeek()
+	{
+		setSeek(null, null, null, false);
+	}
+	
+	public String getSeekSortBy()
+	{
+		return seekSortBy;
+	}
+	
+	public String getSeekValue()
+	{
+		return seekValue;
+	}
+	
+	public KID getSeekId()
+	{
+		return seekId;
+	}
+	
+	public boolean isSeekBackward()
+	{
+		return seekBackward;
+	}
 
 	public void setTitle(String title)
 	{
@@ -1093,6 +1401,15 @@ public class ObjectListConfig
 		String sPageSize = (String)params.get("pageSize");
 		config.setPageSize(sPageSize != null ? Integer.valueOf(sPageSize) : null);
 		
+		String sPagingMode = MiscUtils.blankAsNull((String)params.get("pagingMode"));
+		config.setPagingMode(sPagingMode != null ? ObjectListPagingMode.valueOf(sPagingMode.toUpperCase()) : ObjectListPagingMode.OFFSET);
+		
+		String sSeekId = MiscUtils.blankAsNull((String)params.get("seekId"));
+		if (sSeekId != null)
+		{
+			config.setSeek((String)params.get("seekSortBy"), (String)params.get("seekValue"), KID.get(sSeekId), "true".equals(params.get("seekBackward")));
+		}
+		
 		Map<Integer, ListColumn> columnsByOrder = new HashMap<Integer, ListColumn>();
 		Map<Integer, ButtonPrototype> buttonsByOrder = new HashMap<Integer, ButtonPrototype>();
 		
@@ -0,0 +1,22 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.basic.keetle.tags.objectlist;
+
+/**
+ * Tells how pages of an object list are retrieved.
+ * <p>
+ * In OFFSET mode pages are read with LIMIT and OFFSET and the total number of records is counted, so that
+ * links to all pages can be displayed. In KEYSET mode the next and previous pages are read starting from the sort value
+ * and ID of the first or last record on the current page, and records are not counted, so deep pages are as cheap as the first one.
+ * </p>
+ */
+public enum ObjectListPagingMode
+{
+	OFFSET,
+	KEYSET
+}
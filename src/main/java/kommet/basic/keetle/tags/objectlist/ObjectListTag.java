@@ -64,6 +64,7 @@ public class ObjectListTag extends KommetTag implements ListDisplay
 	
 	// Number of records on a single page.
 	private Integer pageSize;
+	private String pagingMode;
 	
 	private ViewTag parentView;
 	private String listFilterCode;
@@ -192,6 +193,19 @@ public class ObjectListTag extends KommetTag implements ListDisplay
 			this.config.setIdField(this.idField);
 			this.config.setPageNo(pageNo != null ? pageNo : 1);
 			this.config.setPageSize(pageSize != null ? pageSize : ObjectListConfig.DEFAULT_PAGE_SIZE);
+			
+			if (StringUtils.hasText(this.pagingMode))
+			{
+				if ("keyset".equals(this.pagingMode.toLowerCase()))
+				{
+					this.config.setPagingMode(ObjectListPagingMode.KEYSET);
+				}
+				else if (!"offset".equals(this.pagingMode.toLowerCase()))
+				{
+					this.isError = true;
+					return exitWithTagError("Invalid paging mode " + this.pagingMode + ". Allowed values are keyset and offset");
+				}
+			}
 			this.config.setSortBy(this.sortBy != null ? this.sortBy : "");
 			this.config.setTitle(this.title);
 			this.config.setI18n(this.parentView.getAuthData().getI18n());
@@ -475,6 +489,16 @@ public class ObjectListTag extends KommetTag implements ListDisplay
 		return pageSize;
 	}
 
+	public void setPagingMode(String pagingMode)
+	{
+		this.pagingMode = pagingMode;
+	}
+
+	public String getPagingMode()
+	{
+		return pagingMode;
+	}
+
 	public void setListFilterCode(String listFilterCode)
 	{
 		this.listFilterCode = listFilterCode;
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.businessprocess;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import kommet.basic.BusinessAction;
+import kommet.businessprocess.annotations.Execute;
+import kommet.businessprocess.annotations.Input;
+import kommet.businessprocess.annotations.Output;
+
+/**
+ * Compiled class of a business action together with its execute method, input setters and output getters,
+ * found once when the binding is created. Bindings are immutable and can be used by many executions at once.
+ * @author Radek Krawiec
+ */
+class ActionBinding
+{
+	private final Class<?> actionClass;
+	private final Method executeMethod;
+	private final Map<String, Method> inputSetters;
+	private final Map<String, Method> outputGetters;
+	
+	public ActionBinding (BusinessAction action, Class<?> actionClass) throws BusinessProcessExecutionException
+	{
+		this.actionClass = actionClass;
+		
+		Method executeMethod = null;
+		Map<String, Method> inputSetters = new HashMap<String, Method>();
+		Map<String, Method> outputGetters = new HashMap<String, Method>();
+		
+		for (Method m : actionClass.getDeclaredMethods())
+		{
+			if (m.isAnnotationPresent(Execute.class))
+			{
+				if (executeMethod == null)
+				{
+					executeMethod = m;
+				}
+			}
+			else if (m.isAnnotationPresent(Input.class))
+			{
+				inputSetters.put(m.getAnnotation(Input.class).name(), m);
+			}
+			else if (m.isAnnotationPresent(Output.class))
+			{
+				outputGetters.put(m.getAnnotation(Output.class).name(), m);
+			}
+		}
+		
+		if (executeMethod == null)
+		{
+			throw new BusinessProcessExecutionException("Class for action " + action.getName() + " has no method annotated with @" + Execute.class.getSimpleName());
+		}
+		
+		this.executeMethod = executeMethod;
+		this.inputSetters = Collections.unmodifiableMap(inputSetters);
+		this.outputGetters = Collections.unmodifiableMap(outputGetters);
+	}
+	
+	public Object newInstance (BusinessAction action) throws BusinessProcessExecutionException
+	{
+		try
+		{
+			return actionClass.newInstance();
+		}
+		catch (Exception e)
+		{
+			throw new BusinessProcessExecutionException("Could not instantiate action class for action " + action.getName() + ": " + e.getMessage());
+		}
+	}
+	
+	public Class<?> getActionClass()
+	{
+		return actionClass;
+	}
+	
+	public Method getExecuteMethod()
+	{
+		return executeMethod;
+	}
+	
+	public Method getInputSetter (String inputName)
+	{
+		return inputSetters.get(inputName);
+	}
+	
+	public Method getOutputGetter (String outputName)
+	{
+		return outputGetters.get(outputName);
+	}
+}
@@ -13,9 +13,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,31 +61,14 @@ import kommet.utils.MiscUtils;
  */
 public class BusinessProcessExecutor
 {
-	private List<BusinessActionInvocation> startingPoints = new ArrayList<BusinessActionInvocation>();
-	private BusinessActionInvocation entryPoint;
-	private Map<KID, List<BusinessActionTransition>> transitionsByNextAction = new HashMap<KID, List<BusinessActionTransition>>();
-	private Map<KID, List<BusinessActionTransition>> transitionsByPrevAction = new HashMap<KID, List<BusinessActionTransition>>();
-	private Map<KID, Map<String, Object>> actionExecutionResults = new HashMap<KID, Map<String,Object>>();
-	private Map<KID, Class<?>> actionClasses = new HashMap<KID, Class<?>>();
-	private Map<KID, Map<String, Method>> actionInputSetters = new HashMap<KID, Map<String,Method>>();
-	private Map<KID, Map<String, Method>> actionOutputGetters = new HashMap<KID, Map<String,Method>>();
-	private Map<KID, Method> executeMethodsByActionId = new HashMap<KID, Method>();
-	private Map<KID, BusinessActionInvocation> invocationsById = new HashMap<KID, BusinessActionInvocation>();
-	
-	// map of blocked invocations - the key is the blocked invocation, the value - the missing (blocking) one
-	private Map<KID, MissingInvocations> blockedInvocations = new HashMap<KID, MissingInvocations>();
-	private Map<KID, BusinessProcessExecutor> processExecutors = new HashMap<KID, BusinessProcessExecutor>();
-	
-	private Map<String, Object> processInputValues;
-	
 	private KommetCompiler compiler;
 	private ErrorLogService logService;
 	private ClassService classService;
 	private DataService dataService;
 	private EnvData env;
-	private BusinessProcess process;
-	private boolean isPrepared;
-	private Long processLastModifiedTimestamp;
+	
+	// process prepared for execution, shared by all executions
+	private volatile BusinessProcessPlan plan;
 	
 	private static final Logger log = LoggerFactory.getLogger(BusinessProcessExecutor.class);
 	
@@ -105,32 +91,18 @@ public class BusinessProcessExecutor
 	 */
 	public ProcessResult execute (BusinessProcess process, Map<String, Object> inputs, AuthData authData) throws BusinessProcessException
 	{
-		if (isPrepared)
-		{
-			throw new BusinessProcessExecutionException("Cannot prepare the process twice on the same executor instance. Use method execute(inputs) instead to invoke a prepared executor");
-		}
-		
-		// make sure that the time stamp of the process for which the executor was prepared is the same as the timestamp of the current process
-		if (this.processLastModifiedTimestamp != null && this.processLastModifiedTimestamp != process.getLastModifiedDate().getTime())
+		synchronized (this)
 		{
-			throw new BusinessProcessExecutionException("Process executor was prepared for an older version of the process, but is called with a newer one");
+			if (this.plan != null)
+			{
+				throw new BusinessProcessExecutionException("Cannot prepare the process twice on the same executor instance. Use method execute(inputs) instead to invoke a prepared executor");
+			}
+			
+			prepare(process);
 		}
 		
-		this.processInputValues = inputs;
-		
-		prepare(process);
-		
 		return execute(inputs, authData);
 	}
-
-	/**
-	 * Clean up the state of the executor related to one specific execution. Leave just the state related to the
-	 * business process itself.
-	 */
-	private void cleanExecutionData()
-	{
-		this.actionExecutionResults = new HashMap<KID, Map<String,Object>>();
-	}
 	
 	public ProcessResult execute(Map<String, Object> inputs, AuthData authData) throws BusinessProcessException
 	{
@@ -138,79 +110,132 @@ public class BusinessProcessExecutor
 	}
 
 	/**
-	 * Execute a process on a prepared executor.
+	 * Execute a process on a prepared executor. The executor keeps no state of the execution, so it can be
+	 * called by many threads at the same time.
 	 * @param inputs
+	 * @param authData
+	 * @param cleanClassCache If true, action classes are read anew from the compiler instead of using the ones resolved by previous executions.
+	 * When executors are cached on the environment, the cached action classes may have been loaded with a different class loader
+	 * than the one with which the process is called, since class loaders are destroyed and recreated over and over again.
 	 * @return
 	 * @throws KommetException
 	 */
 	public ProcessResult execute(Map<String, Object> inputs, AuthData authData, boolean cleanClassCache) throws BusinessProcessException
 	{
-		log.debug("Running process " + this.process.getName());
+		return execute(inputs, authData, cleanClassCache, null);
+	}
+	
+	/**
+	 * Execute a process on a prepared executor, running independent branches of the process concurrently on the given executor.
+	 * <p>
+	 * Branches are forked where more than one transition goes out of an invocation, and where the process has more than one starting point.
+	 * An invocation whose inputs come from several branches is started by the last of these branches that reaches it. The calling thread
+	 * executes one of the branches and then waits until all branches are finished.
+	 * </p>
+	 * <p>
+	 * Errors in one branch do not stop the other branches. Instead, the returned result is not successful and contains errors of all
+	 * failed branches, ordered by the position of the failed invocation in the process.
+	 * </p>
+	 * <p>
+	 * Branches executed on other threads do not take part in the transaction of the caller, so this mode should not be used for processes
+	 * that are called while a record is being saved.
+	 * </p>
+	 * @param inputs
+	 * @param authData
+	 * @param cleanClassCache
+	 * @param branchExecutor Executor on which branches are executed, or null if the process should be executed on the calling thread only
+	 * @return
+	 * @throws BusinessProcessException
+	 */
+	public ProcessResult execute(Map<String, Object> inputs, AuthData authData, boolean cleanClassCache, ExecutorService branchExecutor) throws BusinessProcessException
+	{
+		BusinessProcessPlan plan = this.plan;
 		
-		if (!isPrepared)
+		if (plan == null)
 		{
 			throw new BusinessProcessDeclarationException("Executor not prepared");
 		}
 		
-		cleanExecutionData();
+		return execute(new ProcessExecutionContext(plan, inputs, authData, cleanClassCache, branchExecutor));
+	}
+	
+	private ProcessResult execute(ProcessExecutionContext ctx) throws BusinessProcessException
+	{
+		BusinessProcessPlan plan = ctx.getPlan();
+		BusinessProcess process = plan.getProcess();
+		AuthData authData = ctx.getAuthData();
 		
-		if (cleanClassCache)
-		{
-			// when executors are cached on the environment, the cached instances of action classes may have been created with a different class loader
-			// then the one with which the process is called (since classloaders are destroyed and recreated over and over again)
-			// this is why we don't want to keep the cached action classes in some cases
-			actionClasses = new HashMap<KID, Class<?>>();
-			actionInputSetters = new HashMap<KID, Map<String,Method>>();
-			actionOutputGetters = new HashMap<KID, Map<String,Method>>();
-		}
+		log.debug("Running process " + process.getName());
 		
 		// assign input parameters to the entry point and call it
-		boolean entryPointResult = executeEntryPoint(inputs);
+		boolean entryPointResult = executeEntryPoint(ctx);
 		
 		if (!entryPointResult)
 		{
 			// exit the process, returning empty values
-			return getProcessOutput(process, true, false);
+			return getProcessOutput(ctx, true, false);
 		}
 		
-		for (BusinessActionTransition t : this.process.getTransitions())
+		for (BusinessActionTransition t : process.getTransitions())
 		{
 			log.debug("Transition from {" + t.getPreviousAction().getName() + "} to {" + t.getNextAction().getName() + "}");
 		}
 		
 		// execute all branches starting at the starting points
-		for (BusinessActionInvocation startingPoint : this.startingPoints)
+		// in parallel mode, the first branch is executed on the current thread after the other ones have been forked
+		List<BusinessActionInvocation> startingPoints = plan.getStartingPoints();
+		if (ctx.isParallel())
 		{
-			// execute the starting point, but not if it is an entry point, because entry points have custom logic
-			// and are called earlier using the executeEntryPoint() method
-			if (!startingPoint.getId().equals(this.entryPoint.getId()))
+			for (int i = 1; i < startingPoints.size(); i++)
 			{
-				// execute just the starting action
-				executeInvocation(startingPoint, authData);
+				forkBranch(startingPoints.get(i), true, ctx);
 			}
 			
-			log.debug("Executing invocations starting from starting point {" + startingPoint.getName() + "}");
-			
-			// execute all subsequent actions in this branch, until the branch is finished or blocked
-			executeUntilBlocked(process, startingPoint, null, authData);
-			
-			log.debug("Invocations from starting point {" + startingPoint.getName() + "} completed");
+			executeBranch(startingPoints.get(0), true, ctx);
+		}
+		else
+		{
+			for (BusinessActionInvocation startingPoint : startingPoints)
+			{
+				executeBranch(startingPoint, true, ctx);
+			}
 		}
 		
 		while (true)
 		{
+			// wait until branches executed in parallel are finished or blocked
+			ctx.awaitBranches();
+			
+			if (ctx.hasBranchErrors())
+			{
+				return getFailedProcessOutput(ctx);
+			}
+			
+			if (ctx.isParallel())
+			{
+				// a branch may have marked an invocation as blocked after another branch joining at this invocation started it
+				Iterator<KID> blockedInvocationIds = ctx.getBlockedInvocations().keySet().iterator();
+				while (blockedInvocationIds.hasNext())
+				{
+					if (ctx.isStarted(blockedInvocationIds.next()))
+					{
+						blockedInvocationIds.remove();
+					}
+				}
+			}
+			
 			// check if any of the blocked branches have been released
-			if (this.blockedInvocations.isEmpty())
+			if (ctx.getBlockedInvocations().isEmpty())
 			{
-				return getProcessOutput(process, true, true);
+				return getProcessOutput(ctx, true, true);
 			}
 			
 			// branches to resume
 			Set<KID> invocationsToResume = new HashSet<KID>();
 			
-			for (KID blockedInvocation : this.blockedInvocations.keySet())
+			for (KID blockedInvocation : ctx.getBlockedInvocations().keySet())
 			{
-				MissingInvocations missingInvocations = this.blockedInvocations.get(blockedInvocation);
+				MissingInvocations missingInvocations = ctx.getBlockedInvocations().get(blockedInvocation);
 				Set<String> unblockedInputs = new HashSet<String>();
 				
 				for (String inputName : missingInvocations.getInvocationsByParamName().keySet())
@@ -222,7 +247,7 @@ public class BusinessProcessExecutor
 					for (KID missingInvocation : missingInvocationIds)
 					{
 						// check if this invocation is still missing
-						if (!this.actionExecutionResults.containsKey(missingInvocation))
+						if (!ctx.getActionExecutionResults().containsKey(missingInvocation))
 						{
 							newMissingInvocationIds.add(missingInvocation);
 						}
@@ -263,9 +288,9 @@ public class BusinessProcessExecutor
 			if (invocationsToResume.isEmpty())
 			{
 				List<String> blockedActions = new ArrayList<String>();
-				for (KID invId : this.blockedInvocations.keySet())
+				for (KID invId : ctx.getBlockedInvocations().keySet())
 				{
-					BusinessActionInvocation blockedInv = this.invocationsById.get(invId);
+					BusinessActionInvocation blockedInv = plan.getInvocation(invId);
 					
 					if (blockedInv == null)
 					{
@@ -273,11 +298,11 @@ public class BusinessProcessExecutor
 					}
 					
 					List<String> missingInvocations = new ArrayList<String>();
-					for (Set<KID> missingInvIds : this.blockedInvocations.get(invId).invocationsByParamName.values())
+					for (Set<KID> missingInvIds : ctx.getBlockedInvocations().get(invId).invocationsByParamName.values())
 					{
 						for (KID missingInvId : missingInvIds)
 						{
-							missingInvocations.add(this.invocationsById.get(missingInvId).getName());
+							missingInvocations.add(plan.getInvocation(missingInvId).getName());
 						}
 					}
 					
@@ -290,13 +315,147 @@ public class BusinessProcessExecutor
 			// execute the branches that can be resumed
 			for (KID blockedInvocationId : invocationsToResume)
 			{
-				log.debug("Resuming unblocked invocation {" + this.invocationsById.get(blockedInvocationId).getName() + "} (of " + invocationsToResume.size() + ")");
-				executeInvocation(this.invocationsById.get(blockedInvocationId), authData);
-				//executeUntilBlocked(process, this.invocationsById.get(blockedInvocationId), null, authData);
-				log.debug("Finished resumed invocation {" + this.invocationsById.get(blockedInvocationId).getName() + "}");
+				// the invocation may have already been executed by a branch resumed earlier in this loop
+				if (!ctx.getBlockedInvocations().containsKey(blockedInvocationId))
+				{
+					continue;
+				}
+				
+				BusinessActionInvocation blockedInvocation = plan.getInvocation(blockedInvocationId);
+				log.debug("Resuming unblocked invocation {" + blockedInvocation.getName() + "} (of " + invocationsToResume.size() + ")");
+				
+				if (ctx.isParallel())
+				{
+					forkBranch(blockedInvocation, false, ctx);
+				}
+				else
+				{
+					executeBranch(blockedInvocation, false, ctx);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Executes a branch of the process on the branch executor.
+	 * @param firstInvocation
+	 * @param isStartingPoint
+	 * @param ctx
+	 */
+	private void forkBranch(final BusinessActionInvocation firstInvocation, final boolean isStartingPoint, final ProcessExecutionContext ctx) throws BusinessProcessException
+	{
+		log.debug("Forking branch at {" + firstInvocation.getName() + "}");
+		
+		try
+		{
+			ctx.addPendingBranch(ctx.getBranchExecutor().submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						executeBranch(firstInvocation, isStartingPoint, ctx);
+					}
+					catch (BusinessProcessException e)
+					{
+						// in parallel mode branches record their errors instead of throwing them
+						ctx.addBranchError(firstInvocation, e.getMessage());
+					}
+				}
+			}));
+		}
+		catch (RejectedExecutionException e)
+		{
+			// the branch executor is shut down or saturated, so the branch is executed on the current thread
+			executeBranch(firstInvocation, isStartingPoint, ctx);
+		}
+	}
+	
+	/**
+	 * Executes a branch of the process, starting either at a starting point or at a given invocation, until the branch
+	 * is finished or blocked.
+	 * <p>
+	 * In parallel mode errors are not thrown, but recorded on the context, so that other branches can complete and all errors can be reported.
+	 * </p>
+	 * @param firstInvocation
+	 * @param isStartingPoint
+	 * @param ctx
+	 * @throws BusinessProcessException
+	 */
+	private void executeBranch(BusinessActionInvocation firstInvocation, boolean isStartingPoint, ProcessExecutionContext ctx) throws BusinessProcessException
+	{
+		try
+		{
+			if (isStartingPoint)
+			{
+				// execute the starting point, but not if it is an entry point, because entry points have custom logic
+				// and are called earlier using the executeEntryPoint() method
+				if (!firstInvocation.getId().equals(ctx.getPlan().getEntryPoint().getId()))
+				{
+					try
+					{
+						// execute just the starting action
+						executeInvocation(firstInvocation, ctx);
+					}
+					catch (BusinessProcessException e)
+					{
+						if (!ctx.isParallel())
+						{
+							throw e;
+						}
+						
+						ctx.addBranchError(firstInvocation, e.getMessage());
+						return;
+					}
+				}
+				
+				log.debug("Executing invocations starting from starting point {" + firstInvocation.getName() + "}");
+				
+				// execute all subsequent actions in this branch, until the branch is finished or blocked
+				executeUntilBlocked(firstInvocation, null, ctx);
+				
+				log.debug("Invocations from starting point {" + firstInvocation.getName() + "} completed");
+			}
+			else
+			{
+				executeFrom(firstInvocation, ctx);
+			}
+		}
+		catch (BusinessProcessException e)
+		{
+			if (!ctx.isParallel())
+			{
+				throw e;
+			}
+			
+			ctx.addBranchError(firstInvocation, e.getMessage());
+		}
+		catch (RuntimeException e)
+		{
+			if (!ctx.isParallel())
+			{
+				throw e;
 			}
+			
+			log.error("Error executing branch starting at {" + firstInvocation.getName() + "}", e);
+			ctx.addBranchError(firstInvocation, e.getMessage());
 		}
 	}
+	
+	/**
+	 * Creates the result of a process in which some branches failed.
+	 * @param ctx
+	 * @return
+	 */
+	private ProcessResult getFailedProcessOutput(ProcessExecutionContext ctx)
+	{
+		ProcessResult result = new ProcessResult();
+		result.setSuccess(false);
+		result.setPassedEntryPoint(true);
+		result.setErrors(ctx.getBranchErrors());
+		return result;
+	}
 
 	/**
 	 * Create a map of process output values from invocation results, basing on parameter mapping.
@@ -304,8 +463,10 @@ public class BusinessProcessExecutor
 	 * @return
 	 * @throws KommetException
 	 */
-	private ProcessResult getProcessOutput(BusinessProcess process, boolean isSuccess, boolean isPassedEntryPoint) throws BusinessProcessException
+	private ProcessResult getProcessOutput(ProcessExecutionContext ctx, boolean isSuccess, boolean isPassedEntryPoint) throws BusinessProcessException
 	{
+		BusinessProcess process = ctx.getPlan().getProcess();
+		
 		// output values mapped by process output name
 		Map<String, Object> outputs = new HashMap<String, Object>();
 		
@@ -344,7 +505,7 @@ public class BusinessProcessExecutor
 					
 					outputFound = true;
 					
-					Object outputValue = this.actionExecutionResults.get(a.getSourceInvocation().getId()).get(a.getSourceParam().getName());
+					Object outputValue = ctx.getActionExecutionResults().get(a.getSourceInvocation().getId()).get(a.getSourceParam().getName());
 					outputs.put(processOutput.getName(), outputValue);
 				}
 			}
@@ -366,14 +527,15 @@ public class BusinessProcessExecutor
 	/**
 	 * Execute subsequent invocation in the current branch until the branch reaches its end, or until it is blocked by some invocation that is
 	 * awaiting input from another branch.
-	 * @param process
 	 * @param lastExecutedInvocation
+	 * @param filteredNextInvocations
+	 * @param ctx
 	 * @throws KommetException
 	 */
-	private void executeUntilBlocked(BusinessProcess process, BusinessActionInvocation lastExecutedInvocation, Set<KID> filteredNextInvocations, AuthData authData) throws BusinessProcessException
+	private void executeUntilBlocked(BusinessActionInvocation lastExecutedInvocation, Set<KID> filteredNextInvocations, ProcessExecutionContext ctx) throws BusinessProcessException
 	{
 		// find next invocation
-		List<BusinessActionTransition> transitions = this.transitionsByPrevAction.get(lastExecutedInvocation.getId());
+		List<BusinessActionTransition> transitions = ctx.getPlan().getTransitionsByPrevAction(lastExecutedInvocation.getId());
 		
 		log.debug("Invocation {" + lastExecutedInvocation.getName() + "} has " + (transitions != null ? transitions.size() : 0) + " outgoing transitions");
 		
@@ -383,6 +545,8 @@ public class BusinessProcessExecutor
 			return;
 		}
 		
+		List<BusinessActionInvocation> nextInvocations = new ArrayList<BusinessActionInvocation>();
+		
 		// follow every transition that goes out of this invocation
 		for (BusinessActionTransition transition : transitions)
 		{	
@@ -398,17 +562,55 @@ public class BusinessProcessExecutor
 				log.debug("Skipping filtered invocation {" + nextInvocation.getName() + "}");
 				continue;
 			}
-		
-			MissingInvocations missingInvocations = null;
 			
-			Set<KID> selectedNextInvocations = new HashSet<KID>();
+			if (!ctx.isParallel())
+			{
+				executeFrom(nextInvocation, ctx);
+			}
+			else
+			{
+				nextInvocations.add(nextInvocation);
+			}
+		}
+		
+		if (!nextInvocations.isEmpty())
+		{
+			// in parallel mode, the first branch is followed on the current thread after the other ones have been forked
+			for (int i = 1; i < nextInvocations.size(); i++)
+			{
+				forkBranch(nextInvocations.get(i), false, ctx);
+			}
 			
+			executeFrom(nextInvocations.get(0), ctx);
+		}
+	}
+	
+	/**
+	 * Executes the given invocation and then all subsequent invocations in its branch, until the branch reaches its end,
+	 * or until it is blocked by some invocation that is awaiting input from another branch.
+	 * @param invocation
+	 * @param ctx
+	 * @throws BusinessProcessException
+	 */
+	private void executeFrom(BusinessActionInvocation invocation, ProcessExecutionContext ctx) throws BusinessProcessException
+	{
+		MissingInvocations missingInvocations = null;
+		
+		Set<KID> selectedNextInvocations = new HashSet<KID>();
+		
+		try
+		{
 			// handle if-condition
-			if (nextInvocation.getInvokedAction() != null && nextInvocation.getInvokedAction().getType().equals("If"))
+			if (invocation.getInvokedAction() != null && invocation.getInvokedAction().getType().equals("If"))
 			{
-				IfActionResult ifResult = executeIfAction(nextInvocation, authData);
+				IfActionResult ifResult = executeIfAction(invocation, ctx);
 				
-				if (ifResult.getMissingInvocation() != null)
+				if (ifResult == null)
+				{
+					log.debug("IF-condition {" + invocation.getName() + "} has already been evaluated by another branch");
+					return;
+				}
+				else if (ifResult.getMissingInvocation() != null)
 				{
 					missingInvocations = ifResult.getMissingInvocation();
 				}
@@ -426,56 +628,108 @@ public class BusinessProcessExecutor
 							winningInvNames.add("{" + inv.getName() + "}");
 						}
 						
-						log.debug("IF-condition {" + nextInvocation.getName() + "} passes control to: " + MiscUtils.implode(winningInvNames, ", "));
+						log.debug("IF-condition {" + invocation.getName() + "} passes control to: " + MiscUtils.implode(winningInvNames, ", "));
 					}
 					else
 					{
 						// the if-condition executed successfully, but the winning invocation can be null, if there was no transition specified
-						// for this case - in this case we just stop the execution and skip to the next invocation
-						log.debug("IF-condition {" + nextInvocation.getName() + "} has no winning invocations");
-						continue;
+						// for this case - in this case we just stop the execution of this branch
+						log.debug("IF-condition {" + invocation.getName() + "} has no winning invocations");
+						ctx.getBlockedInvocations().remove(invocation.getId());
+						return;
 					}
 				}
 			}
 			else
 			{
 				// execute the next action
-				missingInvocations = executeInvocation(nextInvocation, authData);
+				missingInvocations = executeInvocation(invocation, ctx);
+				
+				if (missingInvocations == null)
+				{
+					log.debug("Invocation {" + invocation.getName() + "} has already been started by another branch");
+					return;
+				}
+			}
+		}
+		catch (BusinessProcessException e)
+		{
+			if (!ctx.isParallel())
+			{
+				throw e;
 			}
 			
-			// if the action could not be executed because it is waiting for some invocation that has not been called yet, stop this branch
-			if (missingInvocations != null && !missingInvocations.getInvocationsByParamName().isEmpty())
+			// record the error at the invocation that failed and stop this branch
+			ctx.addBranchError(invocation, e.getMessage());
+			return;
+		}
+		
+		// if the action could not be executed because it is waiting for some invocation that has not been called yet, stop this branch
+		if (missingInvocations != null && !missingInvocations.getInvocationsByParamName().isEmpty())
+		{
+			// this is a superfluous check, but we want to have it
+			for (Set<KID> missingInvIds : missingInvocations.getInvocationsByParamName().values())
 			{
-				// this is a superfluous check, but we want to have it
-				for (Set<KID> missingInvIds : missingInvocations.getInvocationsByParamName().values())
+				for (KID missingInvId : missingInvIds)
 				{
-					for (KID missingInvId : missingInvIds)
+					if (missingInvId.equals(invocation.getId()))
 					{
-						if (missingInvId.equals(nextInvocation.getId()))
-						{
-							throw new BusinessProcessExecutionException("Invocation {" + nextInvocation.getName() + "} is blocked by itself");
-						}
+						throw new BusinessProcessExecutionException("Invocation {" + invocation.getName() + "} is blocked by itself");
 					}
 				}
-				
-				this.blockedInvocations.put(nextInvocation.getId(), missingInvocations);
-			}
-			else
-			{
-				log.debug("Passing to {" + nextInvocation.getName() + "}");
-				executeUntilBlocked(process, nextInvocation, selectedNextInvocations, authData);
 			}
+			
+			ctx.getBlockedInvocations().put(invocation.getId(), missingInvocations);
+		}
+		else
+		{
+			// the invocation may have been blocked and resumed
+			ctx.getBlockedInvocations().remove(invocation.getId());
+			
+			log.debug("Passing to {" + invocation.getName() + "}");
+			executeUntilBlocked(invocation, selectedNextInvocations, ctx);
 		}
 	}
 
-	private IfActionResult executeIfAction(BusinessActionInvocation ifInvocation, AuthData authData) throws BusinessProcessExecutionException, BusinessProcessDeclarationException
+	/**
+	 * Evaluates the if-condition and finds the invocations to which it passes control.
+	 * In parallel mode, returns null if the condition has already been evaluated by another branch.
+	 * @param ifInvocation
+	 * @param ctx
+	 * @return
+	 * @throws BusinessProcessExecutionException
+	 * @throws BusinessProcessDeclarationException
+	 */
+	private IfActionResult executeIfAction(BusinessActionInvocation ifInvocation, ProcessExecutionContext ctx) throws BusinessProcessExecutionException, BusinessProcessDeclarationException
 	{	
+		BusinessProcess process = ctx.getPlan().getProcess();
 		MissingInvocations missingInvocations = new MissingInvocations();
 		
 		boolean conditionTrue;
 		try
 		{
-			conditionTrue = evaluateREL(ifInvocation, missingInvocations, authData, env);
+			if (ctx.isParallel())
+			{
+				// branches joining at this condition must not evaluate it more than once
+				synchronized (ctx.getInvocationLock(ifInvocation.getId()))
+				{
+					if (ctx.isStarted(ifInvocation.getId()))
+					{
+						return null;
+					}
+					
+					conditionTrue = evaluateREL(ifInvocation, missingInvocations, ctx);
+					
+					if (missingInvocations.getInvocationsByParamName().isEmpty())
+					{
+						ctx.startInvocation(ifInvocation.getId());
+					}
+				}
+			}
+			else
+			{
+				conditionTrue = evaluateREL(ifInvocation, missingInvocations, ctx);
+			}
 		}
 		catch (KommetException e)
 		{
@@ -486,10 +740,10 @@ public class BusinessProcessExecutor
 		
 		if (!missingInvocations.getInvocationsByParamName().isEmpty())
 		{
+			// the condition cannot be evaluated until the missing invocations are executed
 			IfActionResult result = new IfActionResult();
-			
-			// get the first missing invocation
 			result.setMissingInvocations(missingInvocations);
+			return result;
 		}
 		
 		List<BusinessActionInvocation> winningInvocations = new ArrayList<BusinessActionInvocation>();
@@ -538,9 +792,9 @@ public class BusinessProcessExecutor
 	{
 		Map<String, Map<String, Object>> recordsByInvocationName = new HashMap<String, Map<String, Object>>();
 		
-		for (KID invId : this.actionExecutionResults.keySet())
+		for (KID invId : ctx.getActionExecutionResults().keySet())
 		{
-			Map<String, Object> actionOutputs = this.actionExecutionResults.get(invId);
+			Map<String, Object> actionOutputs = ctx.getActionExecutionResults().get(invId);
 			Map<String, Object> outputValues = new HashMap<String, Object>();
 			
 			if (actionOutputs != null)
@@ -574,7 +828,7 @@ public class BusinessProcessExecutor
 		return recordsByInvocationName;
 	}*/
 
-	private boolean evaluateREL(BusinessActionInvocation ifInvocation, MissingInvocations missingInvocations, AuthData authData, EnvData env) throws KIDException, KommetException
+	private boolean evaluateREL(BusinessActionInvocation ifInvocation, MissingInvocations missingInvocations, ProcessExecutionContext ctx) throws KIDException, KommetException
 	{	
 		List<BusinessActionInvocationAttribute> relConditionAttrs = ifInvocation.getAttribute("evaluatorClassId");
 		if (relConditionAttrs.isEmpty())
@@ -632,14 +886,14 @@ public class BusinessProcessExecutor
 				KID invocationId = KID.get(invWithOutputId.get(0));
 				String outputName = invWithOutputId.get(1);
 				
-				if (!this.actionExecutionResults.containsKey(invocationId))
+				if (!ctx.getActionExecutionResults().containsKey(invocationId))
 				{
 					// if it's an if-condition, all missing invocations are for the same input parameter - "condition"
 					missingInvocations.addMissingInvocation("condition", invocationId);
 					continue;
 				}
 				
-				injectedValues.put("invocation_" + invocationId + "_" + outputName, this.actionExecutionResults.get(invocationId).get(outputName));
+				injectedValues.put("invocation_" + invocationId + "_" + outputName, ctx.getActionExecutionResults().get(invocationId).get(outputName));
 			}
 		}
 		
@@ -667,12 +921,16 @@ public class BusinessProcessExecutor
 	/**
 	 * Executes an entry point. Entry point actions are usually stub actions that just rewrite input parameters to output. Sometimes they perform some custom
 	 * logic, but this logic is hardcoded here, not declared in any code class.
-	 * @param inputs
+	 * @param ctx
 	 * @throws KommetException
 	 */
-	private boolean executeEntryPoint(Map<String, Object> inputs) throws BusinessProcessException
+	private boolean executeEntryPoint(ProcessExecutionContext ctx) throws BusinessProcessException
 	{
-		if (this.entryPoint.getInvokedAction() == null)
+		BusinessProcess process = ctx.getPlan().getProcess();
+		BusinessActionInvocation entryPoint = ctx.getPlan().getEntryPoint();
+		Map<String, Object> inputs = ctx.getProcessInputValues();
+		
+		if (entryPoint.getInvokedAction() == null)
 		{
 			throw new BusinessProcessException("Invalid entry point - is an execution of a process, not an action");
 		}
@@ -681,11 +939,11 @@ public class BusinessProcessExecutor
 		Object inputVal = null;
 		String processInputName = null;
 		
-		if (this.entryPoint.getInvokedAction().getType().equals("RecordCreate") || this.entryPoint.getInvokedAction().getType().equals("RecordUpdate") || this.entryPoint.getInvokedAction().getType().equals("RecordSave"))
+		if (entryPoint.getInvokedAction().getType().equals("RecordCreate") || entryPoint.getInvokedAction().getType().equals("RecordUpdate") || entryPoint.getInvokedAction().getType().equals("RecordSave"))
 		{	
 			for (BusinessProcessParamAssignment a : process.getParamAssignments())
 			{
-				if (a.getTargetInvocation() != null && a.getTargetInvocation().getName().equals(this.entryPoint.getName()))
+				if (a.getTargetInvocation() != null && a.getTargetInvocation().getName().equals(entryPoint.getName()))
 				{
 					if ("record".equals(a.getTargetParam().getName()))
 					{
@@ -704,30 +962,30 @@ public class BusinessProcessExecutor
 						else
 						{
 							String assignmentSource = a.getSourceInvocation() != null ? "{" + a.getSourceInvocation().getName() + "}." + (a.getSourceParam() != null ? a.getSourceParam().getName() : "null") : "unknown";
-							throw new BusinessProcessDeclarationException("Invalid parameter assignment to process entry point {" + this.entryPoint.getName() + "}. The source of such assignment should be a process input param, but is " + assignmentSource);
+							throw new BusinessProcessDeclarationException("Invalid parameter assignment to process entry point {" + entryPoint.getName() + "}. The source of such assignment should be a process input param, but is " + assignmentSource);
 						}
 					}
 					else
 					{
-						throw new BusinessProcessExecutionException("Parameter assignment to entry point {" + this.entryPoint.getName() + "} has invalid target parameter. Expected 'record', but was '" + a.getTargetParam().getName() + "'");
+						throw new BusinessProcessExecutionException("Parameter assignment to entry point {" + entryPoint.getName() + "} has invalid target parameter. Expected 'record', but was '" + a.getTargetParam().getName() + "'");
 					}
 				}
 			}
 			
-			if (this.actionExecutionResults.containsKey(this.entryPoint.getId()))
+			if (ctx.getActionExecutionResults().containsKey(entryPoint.getId()))
 			{
-				throw new BusinessProcessException("Entry point " + this.entryPoint.getName() + " called more than once");
+				throw new BusinessProcessException("Entry point " + entryPoint.getName() + " called more than once");
 			}
 			
-			if (this.entryPoint.isAttributeSet("acceptedTypes"))
+			if (entryPoint.isAttributeSet("acceptedTypes"))
 			{
-				List<String> acceptedTypesIds = MiscUtils.splitAndTrim(this.entryPoint.getSingleAttribute("acceptedTypes").getValue(), ",");
+				List<String> acceptedTypesIds = MiscUtils.splitAndTrim(entryPoint.getSingleAttribute("acceptedTypes").getValue(), ",");
 				Set<String> typeIdSet = new HashSet<String>();
 				typeIdSet.addAll(acceptedTypesIds);
 				
 				if (!(inputVal instanceof RecordProxy))
 				{
-					throw new BusinessProcessException("Entry point of process " + this.process.getLabel() + " should be provided with a record proxy as parameter, but was " + inputVal.getClass().getName());
+					throw new BusinessProcessException("Entry point of process " + process.getLabel() + " should be provided with a record proxy as parameter, but was " + inputVal.getClass().getName());
 				}
 				else if (inputVal != null)
 				{
@@ -752,32 +1010,126 @@ public class BusinessProcessExecutor
 			}
 			
 			// for standard entry points, we just rewrite the input record to the output parameter with the same name ("record")
-			this.actionExecutionResults.put(this.entryPoint.getId(), new HashMap<String, Object>());
-			this.actionExecutionResults.get(this.entryPoint.getId()).put("record", inputVal);
+			ctx.getActionExecutionResults().put(entryPoint.getId(), new HashMap<String, Object>());
+			ctx.getActionExecutionResults().get(entryPoint.getId()).put("record", inputVal);
 			return true;
 		}
 		else
 		{
-			throw new BusinessProcessException("Unsupported entry point type " + this.entryPoint.getInvokedAction().getType());
+			throw new BusinessProcessException("Unsupported entry point type " + entryPoint.getInvokedAction().getType());
 		}
 	}
 	
 	/**
-	 * Execute an action or a subprocess. Returns null if execution was successful, or BusinessActionInvocation if it was blocked. The returned invocation is such case it the one that should
-	 * have been called and from which results are needed.
+	 * Execute an action or a subprocess. Returns empty missing invocations if execution was successful, or the invocations from which results are needed
+	 * if it was blocked. In parallel mode, returns null if the invocation has already been started by another branch.
 	 * @param inv
 	 * @return
 	 * @throws KommetException
 	 */
-	private MissingInvocations executeInvocation(BusinessActionInvocation inv, AuthData authData) throws BusinessProcessException
+	private MissingInvocations executeInvocation(BusinessActionInvocation inv, ProcessExecutionContext ctx) throws BusinessProcessException
 	{	
+		AuthData authData = ctx.getAuthData();
+		
 		log.debug("Starting invocation {" + inv.getName() + "}");
 		
+		MissingInvocations missingInvocations = null;
+		Map<String, Object> inputs = new HashMap<String, Object>();
+		
+		if (ctx.isParallel())
+		{
+			// branches joining at this invocation check its inputs one at a time, so that the invocation is started
+			// by exactly one of them
+			synchronized (ctx.getInvocationLock(inv.getId()))
+			{
+				if (ctx.isStarted(inv.getId()))
+				{
+					return null;
+				}
+				
+				missingInvocations = getInvocationInputs(inv, inputs, ctx);
+				
+				if (missingInvocations.getInvocationsByParamName().isEmpty())
+				{
+					ctx.startInvocation(inv.getId());
+				}
+			}
+		}
+		else
+		{
+			missingInvocations = getInvocationInputs(inv, inputs, ctx);
+		}
+		
+		// if there are still missing invocations for this invocation, mark it as blocked
+		if (!missingInvocations.getInvocationsByParamName().isEmpty())
+		{
+			return missingInvocations;
+		}
+		
+		// invoke the associated action or process
+		if (inv.getInvokedAction() != null)
+		{
+			// handle built-in FieldUpdate action
+			if ("FieldUpdate".equals(inv.getInvokedAction().getType()))
+			{
+				callFieldUpdateAction(inv, inputs, authData, env);
+			}
+			// handle built-in FieldUpdate action
+			else if ("FieldValue".equals(inv.getInvokedAction().getType()))
+			{
+				callFieldValueAction(inv, inputs, ctx);
+			}
+			else
+			{
+				ActionBinding binding = getActionBinding(inv.getInvokedAction(), ctx);
+				
+				// call action
+				Object actionInstance = binding.newInstance(inv.getInvokedAction());
+				
+				// assign input values to the action that is about to be called
+				setActionInputs(inputs, actionInstance, inv.getInvokedAction(), binding);
+				
+				// call the actual Java executor method for this action
+				callActionMethod(actionInstance, inv, binding, ctx);
+			}
+		}
+		else if (inv.getInvokedProcess() != null)
+		{
+			// call process in a separate context, because its invocation results must not be mixed with the results of this process
+			// subprocesses are always executed on the current thread, so that branches never wait for other branches on the branch executor
+			BusinessProcessPlan subprocessPlan = ctx.getPlan().getSubprocessPlan(inv.getInvokedProcess());
+			ProcessResult subprocessResult = execute(new ProcessExecutionContext(subprocessPlan, inputs, authData, ctx.isReloadActionClasses()));
+			
+			ctx.getActionExecutionResults().put(inv.getId(), subprocessResult.getOutputValues());
+		}
+		else
+		{
+			// neither action nor process set on invocation - this should never happen due to earlier validation
+			throw new BusinessProcessException("Neither process nor action set on invocation " + inv.getName());
+		}
+		
+		// if this action was successfully called, we want to remove it from the list of blocked calls
+		// this call may have been blocked by another branch, waiting for the current branch, and the current branch unblocked it
+		// when it provided the missing invocations
+		ctx.getBlockedInvocations().remove(inv.getId());
+		
+		return missingInvocations;
+	}
+	
+	/**
+	 * Finds input values for the invocation, assigned from process inputs, from outputs of other invocations or from invocation attributes.
+	 * @param inv
+	 * @param inputs Map to which the found input values are added
+	 * @param ctx
+	 * @return invocations whose outputs are assigned to the invocation's inputs, but which have not been executed yet
+	 * @throws BusinessProcessException
+	 */
+	private MissingInvocations getInvocationInputs(BusinessActionInvocation inv, Map<String, Object> inputs, ProcessExecutionContext ctx) throws BusinessProcessException
+	{
+		BusinessProcess process = ctx.getPlan().getProcess();
 		MissingInvocations missingInvocations = new MissingInvocations();
 		
 		// find inputs for this action
-		
-		Map<String, Object> inputs = new HashMap<String, Object>();
 		for (BusinessProcessParamAssignment a : process.getParamAssignments())
 		{
 			// target invocation may be null if param assignment assigns the value to the process output, not to any invocation
@@ -791,7 +1143,7 @@ public class BusinessProcessExecutor
 			// the source param for this invocation can come either from another invocation, or from the process input param
 			if (a.getSourceInvocation() != null)
 			{
-				Map<String, Object> result = this.actionExecutionResults.get(a.getSourceInvocation().getId());
+				Map<String, Object> result = ctx.getActionExecutionResults().get(a.getSourceInvocation().getId());
 				if (result == null)
 				{
 					// mark that an invocation is missing for this input param
@@ -810,17 +1162,17 @@ public class BusinessProcessExecutor
 			}
 			else if (a.getProcessInput() != null)
 			{
-				if (!this.processInputValues.containsKey(a.getProcessInput().getName()))
+				if (!ctx.getProcessInputValues().containsKey(a.getProcessInput().getName()))
 				{
 					throw new BusinessProcessException("Process input values are missing input value for parameter " + a.getProcessInput().getName());
 				}
 				
-				if (!this.processInputValues.containsKey(a.getProcessInput().getName()))
+				if (!ctx.getProcessInputValues().containsKey(a.getProcessInput().getName()))
 				{
 					throw new BusinessProcessException("Missing input value for parameter " + a.getProcessInput().getName());
 				}
 				
-				inputValue = this.processInputValues.get(a.getProcessInput().getName());
+				inputValue = ctx.getProcessInputValues().get(a.getProcessInput().getName());
 			}
 			else
 			{
@@ -861,56 +1213,6 @@ public class BusinessProcessExecutor
 			}
 		}
 		
-		// if there are still missing invocations for this invocation, mark it as blocked
-		if (!missingInvocations.getInvocationsByParamName().isEmpty())
-		{
-			return missingInvocations;
-		}
-		
-		// invoke the associated action or process
-		if (inv.getInvokedAction() != null)
-		{
-			// handle built-in FieldUpdate action
-			if ("FieldUpdate".equals(inv.getInvokedAction().getType()))
-			{
-				callFieldUpdateAction(inv, inputs, authData, env);
-			}
-			// handle built-in FieldUpdate action
-			else if ("FieldValue".equals(inv.getInvokedAction().getType()))
-			{
-				callFieldValueAction(inv, inputs, authData, env);
-			}
-			else
-			{
-				// call action
-				Object actionInstance = getActionInstance(inv.getInvokedAction());
-				
-				// assign input values to the action that is about to be called
-				setActionInputs(inputs, actionInstance, inv.getInvokedAction());
-				
-				// call the actual Java executor method for this action
-				callActionMethod(actionInstance, inv, authData);
-			}
-		}
-		else if (inv.getInvokedProcess() != null)
-		{
-			// call process
-			BusinessProcessExecutor executor = getProcessExecutor(inv.getInvokedProcess().getId());
-			ProcessResult subprocessResult = executor.execute(inv.getInvokedProcess(), inputs, authData);
-			
-			this.actionExecutionResults.put(inv.getId(), subprocessResult.getOutputValues());
-		}
-		else
-		{
-			// neither action nor process set on invocation - this should never happen due to earlier validation
-			throw new BusinessProcessException("Neither process nor action set on invocation " + inv.getName());
-		}
-		
-		// if this action was successfully called, we want to remove it from the list of blocked calls
-		// this call may have been blocked by another branch, waiting for the current branch, and the current branch unblocked it
-		// when it provided the missing invocations
-		this.blockedInvocations.remove(inv.getId());
-		
 		return missingInvocations;
 	}
 
@@ -978,8 +1280,10 @@ public class BusinessProcessExecutor
 		}
 	}
 	
-	private void callFieldValueAction(BusinessActionInvocation inv, Map<String, Object> inputs, AuthData authData, EnvData env) throws BusinessProcessExecutionException, BusinessProcessDeclarationException
+	private void callFieldValueAction(BusinessActionInvocation inv, Map<String, Object> inputs, ProcessExecutionContext ctx) throws BusinessProcessExecutionException, BusinessProcessDeclarationException
 	{
+		AuthData authData = ctx.getAuthData();
+		
 		log.debug("Running field value action {" + inv.getName() + "}");
 		
 		Object recordProxy = inputs.get("record");
@@ -1085,7 +1389,7 @@ public class BusinessProcessExecutor
 			}
 			
 			actionOutput.put(BusinessAction.FIELD_VALUE_ACTION_OUTPUT, fieldValue);
-			this.actionExecutionResults.put(inv.getId(), actionOutput);
+			ctx.getActionExecutionResults().put(inv.getId(), actionOutput);
 			log.debug("Completed field value action {" + inv.getName() + "}");
 		}
 		catch (KommetException e)
@@ -1095,23 +1399,16 @@ public class BusinessProcessExecutor
 		}
 	}
 
-	private BusinessProcessExecutor getProcessExecutor(KID processId)
-	{
-		if (!this.processExecutors.containsKey(process.getId()))
-		{
-			this.processExecutors.put(processId, new BusinessProcessExecutor(compiler, logService, classService, dataService, env));
-		}
-		return this.processExecutors.get(processId);
-	}
-
 	/**
 	 * Calls the action method in the action's source class.
 	 * @param actionInstance
 	 * @param inv
+	 * @param binding
+	 * @param ctx
 	 * @return
 	 * @throws KommetException
 	 */
-	private Map<String, Object> callActionMethod(Object actionInstance, BusinessActionInvocation inv, AuthData authData) throws BusinessProcessException
+	private Map<String, Object> callActionMethod(Object actionInstance, BusinessActionInvocation inv, ActionBinding binding, ProcessExecutionContext ctx) throws BusinessProcessException
 	{
 		BusinessAction action = inv.getInvokedAction();
 		
@@ -1121,12 +1418,13 @@ public class BusinessProcessExecutor
 		}
 		
 		// add auth data to the thread so that classes are invoked in this context
-		this.env.addAuthData(authData);
+		// and remember the auth data previously set on the thread, because the process may be called e.g. from a trigger
+		AuthData previousAuthData = this.env.currentAuthData();
+		this.env.addAuthData(ctx.getAuthData());
 		
-		Method method = getExecuteMethod(action.getId());
 		try
 		{
-			method.invoke(actionInstance);
+			binding.getExecuteMethod().invoke(actionInstance);
 		}
 		catch (Exception e)
 		{
@@ -1136,26 +1434,37 @@ public class BusinessProcessExecutor
 		}
 		finally
 		{
-			// remove the auth data from the thread
-			this.env.clearAuthData();
+			// restore the auth data of the thread
+			if (previousAuthData != null)
+			{
+				this.env.addAuthData(previousAuthData);
+			}
+			else
+			{
+				this.env.clearAuthData();
+			}
 		}
 		
 		// read output values
-		Map<String, Object> actionOutput = readActionOutput(actionInstance, action);
+		Map<String, Object> actionOutput = readActionOutput(actionInstance, action, binding);
 		
 		// remember the output of this call
-		this.actionExecutionResults.put(inv.getId(), actionOutput);
+		ctx.getActionExecutionResults().put(inv.getId(), actionOutput);
 		
 		return actionOutput;
 	}
 
-	private Map<String, Object> readActionOutput(Object actionInstance, BusinessAction action) throws BusinessProcessException
+	private Map<String, Object> readActionOutput(Object actionInstance, BusinessAction action, ActionBinding binding) throws BusinessProcessException
 	{
 		Map<String, Object> outputValues = new HashMap<String, Object>();
 		
 		for (BusinessProcessOutput outputParam : action.getOutputs())
 		{
-			Method getter = getOutputGetter(outputParam.getName(), action);
+			Method getter = binding.getOutputGetter(outputParam.getName());
+			if (getter == null)
+			{
+				throw new BusinessProcessExecutionException("Getter for output " + outputParam.getName() + " not found on class of action " + action.getName());
+			}
 			
 			// call the getter
 			try
@@ -1171,28 +1480,15 @@ public class BusinessProcessExecutor
 		return outputValues;
 	}
 
-	private Method getExecuteMethod(KID actionId)
+	private void setActionInputs(Map<String, Object> inputs, Object actionInstance, BusinessAction action, ActionBinding binding) throws BusinessProcessException
 	{
-		if (!this.executeMethodsByActionId.containsKey(actionId))
+		for (BusinessProcessInput input : action.getInputs())
 		{
-			for (Method m : actionClasses.get(actionId).getDeclaredMethods())
+			Method setter = binding.getInputSetter(input.getName());
+			if (setter == null)
 			{
-				if (m.isAnnotationPresent(Execute.class))
-				{
-					this.executeMethodsByActionId.put(actionId, m);
-					break;
-				}
+				throw new BusinessProcessExecutionException("Setter for input " + input.getName() + " not found on class of action " + action.getName());
 			}
-		}
-		
-		return this.executeMethodsByActionId.get(actionId);
-	}
-
-	private void setActionInputs(Map<String, Object> inputs, Object actionInstance, BusinessAction action) throws BusinessProcessException
-	{
-		for (BusinessProcessInput input : action.getInputs())
-		{
-			Method setter = getInputSetter(input.getName(), action);
 			
 			try
 			{
@@ -1207,206 +1503,47 @@ public class BusinessProcessExecutor
 	}
 	
 	/**
-	 * Gets a method that is a getter of the given output property of the action's compiled class.
-	 * @param outputName The name of the output property of the action
-	 * @param actionId The ID of the action
+	 * Returns the binding of the action's compiled class. Bindings are resolved once per plan, or once per execution
+	 * if the execution reloads action classes.
+	 * @param action
+	 * @param ctx
 	 * @return
-	 * @throws BusinessProcessExecutionException 
+	 * @throws BusinessProcessExecutionException
 	 */
-	private Method getOutputGetter(String outputName, BusinessAction action) throws BusinessProcessExecutionException
+	private ActionBinding getActionBinding(BusinessAction action, ProcessExecutionContext ctx) throws BusinessProcessExecutionException
 	{
-		KID actionId = action.getId();
+		ActionBinding binding = ctx.getActionBindings().get(action.getId());
 		
-		if (!this.actionOutputGetters.containsKey(actionId))
+		if (binding == null)
 		{
-			this.actionOutputGetters.put(actionId, new HashMap<String, Method>());
+			binding = ctx.getPlan().getActionBinding(action, ctx.isReloadActionClasses(), compiler, env);
+			ctx.getActionBindings().put(action.getId(), binding);
 		}
 		
-		if (!this.actionOutputGetters.get(actionId).containsKey(outputName))
-		{	
-			for (Method m : getActionClass(action).getDeclaredMethods())
-			{
-				if (m.isAnnotationPresent(Output.class))
-				{
-					Output outputAnnot = m.getAnnotation(Output.class);
-					
-					if (outputAnnot.name().equals(outputName))
-					{
-						this.actionOutputGetters.get(actionId).put(outputName, m);
-					}
-				}
-			}
-		}
-		
-		return this.actionOutputGetters.get(actionId).get(outputName);
+		return binding;
 	}
 
 	/**
-	 * Gets a method that is a setter of the given input property of the action's compiled class.
-	 * @param inputName The name of the input property of the action
-	 * @param action The action for which input setter is searched
-	 * @return
+	 * Prepares this executor for executing the given process.
+	 * @param process
+	 * @throws BusinessProcessDeclarationException
 	 */
-	private Method getInputSetter(String inputName, BusinessAction action) throws BusinessProcessException
+	public synchronized void prepare(BusinessProcess process) throws BusinessProcessException
 	{
-		if (!this.actionInputSetters.containsKey(action.getId()))
-		{
-			this.actionInputSetters.put(action.getId(), new HashMap<String, Method>());
-		}
-		
-		if (!this.actionInputSetters.get(action.getId()).containsKey(inputName))
-		{
-			for (Method m : getActionClass(action).getDeclaredMethods())
-			{
-				if (m.isAnnotationPresent(Input.class))
-				{
-					Input inputAnnot = m.getAnnotation(Input.class);
-					
-					if (inputAnnot.name().equals(inputName))
-					{
-						this.actionInputSetters.get(action.getId()).put(inputName, m);
-					}
-				}
-			}
-		}
-		
-		return this.actionInputSetters.get(action.getId()).get(inputName);
-	}
-
-	/**
-	 * Returns an instance of the action's executor class.
-	 * @param action
-	 * @return
-	 * @throws KommetException
-	 */
-	private Object getActionInstance(BusinessAction action) throws BusinessProcessException
-	{	
-		try
-		{
-			return getActionClass(action).newInstance();
-		}
-		catch (Exception e)
-		{
-			throw new BusinessProcessExecutionException("Could not instantiate action class for action " + action.getName() + ": " + e.getMessage());
-		}
+		log.debug("Preparing process " + process.getName());
+		this.plan = new BusinessProcessPlan(process);
 	}
 	
-	private Class<?> getActionClass(BusinessAction action) throws BusinessProcessExecutionException
-	{
-		if (!actionClasses.containsKey(action.getId()))
-		{
-			try
-			{
-				actionClasses.put(action.getId(), compiler.getClass(action.getFile(), false, env));
-			}
-			catch (ClassNotFoundException e1)
-			{
-				throw new BusinessProcessExecutionException("Class for action " + action.getName() + " not found");
-			}
-			catch (Exception e)
-			{
-				throw new BusinessProcessExecutionException("Could not get action class for action " + action.getName() + ": " + e.getMessage());
-			}
-		}
-		
-		return actionClasses.get(action.getId());
-	}
-
 	/**
-	 * Prepares this executor for executing the given process.
-	 * @param process
-	 * @throws BusinessProcessDeclarationException
+	 * Returns the prepared process, or null if the executor has not been prepared.
+	 * @return
 	 */
-	public void prepare(BusinessProcess process) throws BusinessProcessException
+	public BusinessProcessPlan getPlan()
 	{
-		log.debug("Preparing process " + process.getName());
-		
-		if (process.getInvocations() == null || process.getInvocations().isEmpty())
-		{
-			throw new BusinessProcessException("Business process contains no invocations");
-		}
-		
-		for (BusinessActionInvocation inv : process.getInvocations())
-		{
-			invocationsById.put(inv.getId(), inv);
-		}
-		
-		if (process.getTransitions() != null && !process.getTransitions().isEmpty())
-		{	
-			for (BusinessActionTransition t : process.getTransitions())
-			{
-				t.setNextAction(invocationsById.get(t.getNextAction().getId()));
-				t.setPreviousAction(invocationsById.get(t.getPreviousAction().getId()));
-				
-				if (!this.transitionsByNextAction.containsKey(t.getNextAction().getId()))
-				{
-					this.transitionsByNextAction.put(t.getNextAction().getId(), new ArrayList<BusinessActionTransition>());
-				}
-				transitionsByNextAction.get(t.getNextAction().getId()).add(t);
-				
-				if (!this.transitionsByPrevAction.containsKey(t.getPreviousAction().getId()))
-				{
-					this.transitionsByPrevAction.put(t.getPreviousAction().getId(), new ArrayList<BusinessActionTransition>());
-				}
-				transitionsByPrevAction.get(t.getPreviousAction().getId()).add(t);
-			}
-			
-			// find entry points - action invocations, that have no incoming transition
-			for (BusinessActionInvocation inv : process.getInvocations())
-			{	
-				if (!transitionsByNextAction.containsKey(inv.getId()))
-				{
-					startingPoints.add(inv);
-					
-					if (inv.getInvokedAction() != null && Boolean.TRUE.equals(inv.getInvokedAction().getIsEntryPoint()))
-					{
-						if (this.entryPoint == null)
-						{
-							this.entryPoint = inv;
-						}
-						else
-						{
-							throw new BusinessProcessDeclarationException("Process contains more than one entry point");
-						}
-					}
-				}
-			}
-		}
-		else
-		{
-			// this is a border case in which the process contains no transitions
-			
-			for (BusinessActionInvocation inv : process.getInvocations())
-			{
-				invocationsById.put(inv.getId(), inv);
-				
-				startingPoints.add(inv);
-					
-				if (inv.getInvokedAction() != null && Boolean.TRUE.equals(inv.getInvokedAction().getIsEntryPoint()))
-				{
-					if (this.entryPoint == null)
-					{
-						this.entryPoint = inv;
-					}
-					else
-					{
-						throw new BusinessProcessDeclarationException("Process contains more than one entry point");
-					}
-				}
-			}
-		}
-		
-		if (this.entryPoint == null)
-		{
-			throw new BusinessProcessDeclarationException("Process contains no entry point");
-		}
-		
-		this.isPrepared = true;
-		this.process = process;
-		this.processLastModifiedTimestamp = this.process.getLastModifiedDate() != null ? this.process.getLastModifiedDate().getTime() : null;
+		return this.plan;
 	}
 	
-	class MissingInvocations
+	static class MissingInvocations
 	{
 		private Map<String, Set<KID>> invocationsByParamName = new HashMap<String, Set<KID>>();
 
@@ -1425,7 +1562,7 @@ public class BusinessProcessExecutor
 		}
 	}
 	
-	class IfActionResult
+	static class IfActionResult
 	{
 		private MissingInvocations missingInvocations;
 		private List<BusinessActionInvocation> winningInvocations;
@@ -1461,6 +1598,6 @@ public class BusinessProcessExecutor
 	
 	public BusinessActionInvocation getEntryPoint()
 	{
-		return this.entryPoint;
+		return this.plan != null ? this.plan.getEntryPoint() : null;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,250 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.businessprocess;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import kommet.basic.BusinessAction;
+import kommet.basic.BusinessActionInvocation;
+import kommet.basic.BusinessActionTransition;
+import kommet.basic.BusinessProcess;
+import kommet.data.KID;
+import kommet.env.EnvData;
+import kommet.koll.compiler.KommetCompiler;
+
+/**
+ * A business process prepared for execution: its invocations and transitions indexed for walking the process graph,
+ * its starting points and entry point.
+ * <p>
+ * The plan is not modified after it has been created, so any number of executions can use it at the same time.
+ * The only mutable parts are the caches of action bindings and subprocess plans, which are concurrent maps
+ * holding immutable values.
+ * </p>
+ * @author Radek Krawiec
+ */
+public class BusinessProcessPlan
+{
+	private final BusinessProcess process;
+	private final BusinessActionInvocation entryPoint;
+	private final List<BusinessActionInvocation> startingPoints;
+	private final Map<KID, List<BusinessActionTransition>> transitionsByPrevAction;
+	private final Map<KID, BusinessActionInvocation> invocationsById;
+	
+	// positions of invocations in the process, used to order errors of branches executed in parallel
+	private final Map<KID, Integer> invocationPositions;
+	private final Long processLastModifiedTimestamp;
+	
+	// resolved action classes and their methods, by action ID
+	private final Map<KID, ActionBinding> actionBindings = new ConcurrentHashMap<KID, ActionBinding>();
+	
+	// plans of processes called from this process, by process ID
+	private final Map<KID, BusinessProcessPlan> subprocessPlans = new ConcurrentHashMap<KID, BusinessProcessPlan>();
+	
+	/**
+	 * Prepares the given process for execution.
+	 * @param process
+	 * @throws BusinessProcessException
+	 */
+	public BusinessProcessPlan (BusinessProcess process) throws BusinessProcessException
+	{
+		if (process.getInvocations() == null || process.getInvocations().isEmpty())
+		{
+			throw new BusinessProcessException("Business process contains no invocations");
+		}
+		
+		Map<KID, BusinessActionInvocation> invocationsById = new HashMap<KID, BusinessActionInvocation>();
+		Map<KID, Integer> invocationPositions = new HashMap<KID, Integer>();
+		Map<KID, List<BusinessActionTransition>> transitionsByNextAction = new HashMap<KID, List<BusinessActionTransition>>();
+		Map<KID, List<BusinessActionTransition>> transitionsByPrevAction = new HashMap<KID, List<BusinessActionTransition>>();
+		List<BusinessActionInvocation> startingPoints = new ArrayList<BusinessActionInvocation>();
+		BusinessActionInvocation entryPoint = null;
+		
+		for (BusinessActionInvocation inv : process.getInvocations())
+		{
+			invocationPositions.put(inv.getId(), invocationsById.size());
+			invocationsById.put(inv.getId(), inv);
+		}
+		
+		if (process.getTransitions() != null)
+		{	
+			for (BusinessActionTransition t : process.getTransitions())
+			{
+				t.setNextAction(invocationsById.get(t.getNextAction().getId()));
+				t.setPreviousAction(invocationsById.get(t.getPreviousAction().getId()));
+				
+				if (!transitionsByNextAction.containsKey(t.getNextAction().getId()))
+				{
+					transitionsByNextAction.put(t.getNextAction().getId(), new ArrayList<BusinessActionTransition>());
+				}
+				transitionsByNextAction.get(t.getNextAction().getId()).add(t);
+				
+				if (!transitionsByPrevAction.containsKey(t.getPreviousAction().getId()))
+				{
+					transitionsByPrevAction.put(t.getPreviousAction().getId(), new ArrayList<BusinessActionTransition>());
+				}
+				transitionsByPrevAction.get(t.getPreviousAction().getId()).add(t);
+			}
+		}
+		
+		// find starting points - action invocations that have no incoming transition
+		// if the process contains no transitions, all invocations are starting points
+		for (BusinessActionInvocation inv : process.getInvocations())
+		{	
+			if (!transitionsByNextAction.containsKey(inv.getId()))
+			{
+				startingPoints.add(inv);
+				
+				if (inv.getInvokedAction() != null && Boolean.TRUE.equals(inv.getInvokedAction().getIsEntryPoint()))
+				{
+					if (entryPoint == null)
+					{
+						entryPoint = inv;
+					}
+					else
+					{
+						throw new BusinessProcessDeclarationException("Process contains more than one entry point");
+					}
+				}
+			}
+		}
+		
+		if (entryPoint == null)
+		{
+			throw new BusinessProcessDeclarationException("Process contains no entry point");
+		}
+		
+		for (KID invocationId : transitionsByPrevAction.keySet())
+		{
+			transitionsByPrevAction.put(invocationId, Collections.unmodifiableList(transitionsByPrevAction.get(invocationId)));
+		}
+		
+		this.process = process;
+		this.entryPoint = entryPoint;
+		this.startingPoints = Collections.unmodifiableList(startingPoints);
+		this.transitionsByPrevAction = Collections.unmodifiableMap(transitionsByPrevAction);
+		this.invocationsById = Collections.unmodifiableMap(invocationsById);
+		this.invocationPositions = Collections.unmodifiableMap(invocationPositions);
+		this.processLastModifiedTimestamp = process.getLastModifiedDate() != null ? process.getLastModifiedDate().getTime() : null;
+	}
+	
+	/**
+	 * Returns the binding of the action's compiled class.
+	 * @param action
+	 * @param reloadClass If true, the action class is read from the compiler and the cached binding is only used if it
+	 * was created for the same class. This is needed when classes may have been reloaded by a new class loader.
+	 * @param compiler
+	 * @param env
+	 * @return
+	 * @throws BusinessProcessExecutionException
+	 */
+	ActionBinding getActionBinding (BusinessAction action, boolean reloadClass, KommetCompiler compiler, EnvData env) throws BusinessProcessExecutionException
+	{
+		ActionBinding binding = actionBindings.get(action.getId());
+		if (binding != null && !reloadClass)
+		{
+			return binding;
+		}
+		
+		Class<?> actionClass = null;
+		try
+		{
+			actionClass = compiler.getClass(action.getFile(), false, env);
+		}
+		catch (ClassNotFoundException e1)
+		{
+			throw new BusinessProcessExecutionException("Class for action " + action.getName() + " not found");
+		}
+		catch (Exception e)
+		{
+			throw new BusinessProcessExecutionException("Could not get action class for action " + action.getName() + ": " + e.getMessage());
+		}
+		
+		if (binding != null && binding.getActionClass() == actionClass)
+		{
+			return binding;
+		}
+		
+		binding = new ActionBinding(action, actionClass);
+		actionBindings.put(action.getId(), binding);
+		return binding;
+	}
+	
+	/**
+	 * Returns a plan for a process called from this process, preparing it if it has not been prepared yet
+	 * or if the process has been modified since.
+	 * @param subprocess
+	 * @return
+	 * @throws BusinessProcessException
+	 */
+	BusinessProcessPlan getSubprocessPlan (BusinessProcess subprocess) throws BusinessProcessException
+	{
+		BusinessProcessPlan plan = subprocessPlans.get(subprocess.getId());
+		if (plan == null || !plan.isPreparedFor(subprocess))
+		{
+			plan = new BusinessProcessPlan(subprocess);
+			subprocessPlans.put(subprocess.getId(), plan);
+		}
+		return plan;
+	}
+	
+	/**
+	 * Tells whether this plan has been prepared for the current version of the process.
+	 * @param process
+	 * @return
+	 */
+	public boolean isPreparedFor (BusinessProcess process)
+	{
+		return this.processLastModifiedTimestamp == null || process.getLastModifiedDate() == null || this.processLastModifiedTimestamp == process.getLastModifiedDate().getTime();
+	}
+	
+	public BusinessProcess getProcess()
+	{
+		return process;
+	}
+	
+	public BusinessActionInvocation getEntryPoint()
+	{
+		return entryPoint;
+	}
+	
+	public List<BusinessActionInvocation> getStartingPoints()
+	{
+		return startingPoints;
+	}
+	
+	/**
+	 * Returns transitions going out of the invocation with the given ID, or null if there are none.
+	 * @param invocationId
+	 * @return
+	 */
+	public List<BusinessActionTransition> getTransitionsByPrevAction (KID invocationId)
+	{
+		return transitionsByPrevAction.get(invocationId);
+	}
+	
+	public BusinessActionInvocation getInvocation (KID invocationId)
+	{
+		return invocationsById.get(invocationId);
+	}
+	
+	/**
+	 * Returns the position of the invocation in the process.
+	 * @param invocationId
+	 * @return
+	 */
+	public int getInvocationPosition (KID invocationId)
+	{
+		Integer position = invocationPositions.get(invocationId);
+		return position != null ? position : Integer.MAX_VALUE;
+	}
+}
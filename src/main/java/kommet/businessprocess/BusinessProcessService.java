@@ -16,9 +16,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 
 import org.springframework.stereotype.Service;
@@ -64,7 +67,9 @@ import kommet.env.EnvData;
 import kommet.koll.ClassService;
 import kommet.koll.compiler.KommetCompiler;
 import kommet.rel.RELParser;
+import kommet.utils.AppConfig;
 import kommet.utils.MiscUtils;
+import kommet.utils.NamedDaemonThreadFactory;
 import kommet.utils.ValidationUtil;
 
 @Service
@@ -97,6 +102,12 @@ public class BusinessProcessService
 	@Inject
 	KommetCompiler compiler;
 	
+	@Inject
+	AppConfig appConfig;
+	
+	// executor shared by all processes executed with parallel branches
+	private ExecutorService branchExecutor;
+	
 	private static Set<String> allowedParamTypes;
 	
 	private static final Pattern INVOCATION_NAME_PATTERN = Pattern.compile("(\\{([^\\}\\{]+)\\}(\\.[a-z][a-zA-Z0-9]*)*)");
@@ -2232,6 +2243,39 @@ public class BusinessProcessService
 		transitionDao.delete(transitions, authData, env);
 	}
 	
+	/**
+	 * Returns the executor on which branches of business processes are executed in parallel mode,
+	 * see {@link BusinessProcessExecutor#execute(Map, AuthData, boolean, ExecutorService)}. It is used for
+	 * asynchronous processes that opt in with entry point attribute {@link ProcessQueueService#PARALLEL_BRANCHES_ATTRIBUTE}.
+	 * <p>
+	 * The number of threads is limited by the <tt>kommet.bp.branch.threads</tt> setting. Branches that cannot be started
+	 * immediately wait in the executor's queue.
+	 * </p>
+	 * @return
+	 * @throws KommetException
+	 */
+	public synchronized ExecutorService getBranchExecutor() throws KommetException
+	{
+		if (this.branchExecutor == null)
+		{
+			this.branchExecutor = Executors.newFixedThreadPool(appConfig.getBusinessProcessBranchThreads(), new NamedDaemonThreadFactory("bp-branch"));
+		}
+		return this.branchExecutor;
+	}
+	
+	/**
+	 * Stops branch threads when the application is shut down.
+	 */
+	@PreDestroy
+	public synchronized void shutdown()
+	{
+		if (this.branchExecutor != null)
+		{
+			this.branchExecutor.shutdownNow();
+			this.branchExecutor = null;
+		}
+	}
+	
 	@Transactional(readOnly = true)
 	public BusinessProcess getBusinessProcess(KID id, AuthData authData, EnvData env) throws KommetException
 	{
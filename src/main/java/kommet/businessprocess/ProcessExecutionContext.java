@@ -0,0 +1,225 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.businessprocess;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import kommet.auth.AuthData;
+import kommet.basic.BusinessActionInvocation;
+import kommet.businessprocess.BusinessProcessExecutor.MissingInvocations;
+import kommet.data.KID;
+
+/**
+ * State of a single execution of a business process. A new context is created for every execution, while the
+ * {@link BusinessProcessPlan} it executes is shared.
+ * <p>
+ * If the execution is given a branch executor, independent branches of the process are executed concurrently
+ * and share this context, which is why its state is kept in concurrent collections.
+ * </p>
+ * @author Radek Krawiec
+ */
+class ProcessExecutionContext
+{
+	private final BusinessProcessPlan plan;
+	private final Map<String, Object> processInputValues;
+	private final AuthData authData;
+	private final boolean reloadActionClasses;
+	
+	// executor on which branches are run, or null if the process is executed on the calling thread only
+	private final ExecutorService branchExecutor;
+	
+	// output values of executed invocations, by invocation ID
+	private final Map<KID, Map<String, Object>> actionExecutionResults = new ConcurrentHashMap<KID, Map<String,Object>>();
+	
+	// map of blocked invocations - the key is the blocked invocation, the value - the missing (blocking) one
+	private final Map<KID, MissingInvocations> blockedInvocations = new ConcurrentHashMap<KID, MissingInvocations>();
+	
+	// action bindings used in this execution, by action ID
+	private final Map<KID, ActionBinding> actionBindings = new ConcurrentHashMap<KID, ActionBinding>();
+	
+	// invocations started by one of the branches, so that other branches joining at them do not start them again
+	private final Set<KID> startedInvocations = Collections.newSetFromMap(new ConcurrentHashMap<KID, Boolean>());
+	
+	// locks held while branches check whether a joining invocation can be started
+	private final ConcurrentHashMap<KID, Object> invocationLocks = new ConcurrentHashMap<KID, Object>();
+	
+	// branches submitted to the branch executor and not yet awaited
+	private final ConcurrentLinkedQueue<Future<?>> pendingBranches = new ConcurrentLinkedQueue<Future<?>>();
+	
+	// errors of failed branches, by the position of the failed invocation in the process
+	private final ConcurrentSkipListMap<Integer, String> branchErrors = new ConcurrentSkipListMap<Integer, String>();
+	
+	public ProcessExecutionContext (BusinessProcessPlan plan, Map<String, Object> processInputValues, AuthData authData, boolean reloadActionClasses)
+	{
+		this(plan, processInputValues, authData, reloadActionClasses, null);
+	}
+	
+	public ProcessExecutionContext (BusinessProcessPlan plan, Map<String, Object> processInputValues, AuthData authData, boolean reloadActionClasses, ExecutorService branchExecutor)
+	{
+		this.plan = plan;
+		this.processInputValues = processInputValues;
+		this.authData = authData;
+		this.reloadActionClasses = reloadActionClasses;
+		this.branchExecutor = branchExecutor;
+	}
+	
+	public BusinessProcessPlan getPlan()
+	{
+		return plan;
+	}
+	
+	public Map<String, Object> getProcessInputValues()
+	{
+		return processInputValues;
+	}
+	
+	public AuthData getAuthData()
+	{
+		return authData;
+	}
+	
+	/**
+	 * Tells whether action classes should be read anew from the compiler in this execution, instead of using classes cached on the plan.
+	 * @return
+	 */
+	public boolean isReloadActionClasses()
+	{
+		return reloadActionClasses;
+	}
+	
+	public Map<KID, Map<String, Object>> getActionExecutionResults()
+	{
+		return actionExecutionResults;
+	}
+	
+	public Map<KID, MissingInvocations> getBlockedInvocations()
+	{
+		return blockedInvocations;
+	}
+	
+	public Map<KID, ActionBinding> getActionBindings()
+	{
+		return actionBindings;
+	}
+
+	/**
+	 * Tells whether independent branches are executed concurrently in this execution.
+	 * @return
+	 */
+	public boolean isParallel()
+	{
+		return branchExecutor != null;
+	}
+
+	public ExecutorService getBranchExecutor()
+	{
+		return branchExecutor;
+	}
+	
+	/**
+	 * Returns the lock that must be held while checking whether the invocation can be started.
+	 * @param invocationId
+	 * @return
+	 */
+	public Object getInvocationLock (KID invocationId)
+	{
+		Object lock = invocationLocks.get(invocationId);
+		if (lock == null)
+		{
+			Object newLock = new Object();
+			lock = invocationLocks.putIfAbsent(invocationId, newLock);
+			if (lock == null)
+			{
+				lock = newLock;
+			}
+		}
+		return lock;
+	}
+	
+	/**
+	 * Marks the invocation as started.
+	 * @param invocationId
+	 * @return false if the invocation has already been started by another branch
+	 */
+	public boolean startInvocation (KID invocationId)
+	{
+		return startedInvocations.add(invocationId);
+	}
+	
+	public boolean isStarted (KID invocationId)
+	{
+		return startedInvocations.contains(invocationId);
+	}
+	
+	public void addPendingBranch (Future<?> branch)
+	{
+		pendingBranches.add(branch);
+	}
+	
+	/**
+	 * Waits until all branches submitted to the branch executor have finished, including branches submitted
+	 * by other branches while waiting.
+	 * @throws BusinessProcessExecutionException
+	 */
+	public void awaitBranches() throws BusinessProcessExecutionException
+	{
+		Future<?> branch;
+		while ((branch = pendingBranches.poll()) != null)
+		{
+			try
+			{
+				branch.get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new BusinessProcessExecutionException("Interrupted while waiting for process branches to complete");
+			}
+			catch (ExecutionException e)
+			{
+				// branches record their own errors, so this only happens if the branch could not be run at all
+				throw new BusinessProcessExecutionException("Error executing process branch: " + e.getCause().getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Records the error of a failed branch.
+	 * @param failedInvocation Invocation at which the branch failed
+	 * @param error
+	 */
+	public void addBranchError (BusinessActionInvocation failedInvocation, String error)
+	{
+		branchErrors.putIfAbsent(plan.getInvocationPosition(failedInvocation.getId()), "{" + failedInvocation.getName() + "}: " + error);
+	}
+	
+	public boolean hasBranchErrors()
+	{
+		return !branchErrors.isEmpty();
+	}
+	
+	/**
+	 * Returns errors of failed branches, in the order in which the failed invocations appear in the process,
+	 * so that the errors do not depend on the order in which the branches happened to fail.
+	 * @return
+	 */
+	public List<String> getBranchErrors()
+	{
+		return new ArrayList<String>(branchErrors.values());
+	}
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.businessprocess;
+
+import org.quartz.DisallowConcurrentExecution;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import kommet.data.KommetException;
+
+/**
+ * Executes business processes queued for asynchronous execution.
+ * @author Radek Krawiec
+ */
+@DisallowConcurrentExecution
+public class ProcessQueueJob implements Job
+{
+	private static final Logger log = LoggerFactory.getLogger(ProcessQueueJob.class);
+
+	public ProcessQueueJob()
+	{
+		// empty
+	}
+
+	public void execute(JobExecutionContext ctx) throws JobExecutionException
+	{
+		ProcessQueueJobDetail detail = (ProcessQueueJobDetail)ctx.getJobDetail();
+
+		try
+		{
+			int executions = detail.getProcessQueueService().drain(detail.getEnv());
+			if (executions > 0)
+			{
+				log.debug("[Process queue] Attempted " + executions + " executions");
+			}
+		}
+		catch (KommetException e)
+		{
+			e.printStackTrace();
+			throw new JobExecutionException("Error executing queued processes: " + e.getMessage(), e);
+		}
+	}
+}
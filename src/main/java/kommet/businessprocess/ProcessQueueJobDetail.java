@@ -0,0 +1,36 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.businessprocess;
+
+import org.quartz.impl.JobDetailImpl;
+
+import kommet.env.EnvData;
+
+public class ProcessQueueJobDetail extends JobDetailImpl
+{
+	private static final long serialVersionUID = 3841250917446120875L;
+	private EnvData env;
+	private ProcessQueueService processQueueService;
+
+	public ProcessQueueJobDetail(ProcessQueueService processQueueService, EnvData env)
+	{
+		super();
+		this.env = env;
+		this.processQueueService = processQueueService;
+	}
+
+	public ProcessQueueService getProcessQueueService()
+	{
+		return processQueueService;
+	}
+
+	public EnvData getEnv()
+	{
+		return env;
+	}
+}
@@ -0,0 +1,582 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.businessprocess;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.quartz.CronScheduleBuilder;
+import org.quartz.CronTrigger;
+import org.quartz.JobDetail;
+import org.quartz.JobKey;
+import org.quartz.SchedulerException;
+import org.quartz.TriggerBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.quartz.SchedulerFactoryBean;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import kommet.auth.AuthData;
+import kommet.auth.UserService;
+import kommet.basic.BusinessActionInvocation;
+import kommet.basic.BusinessProcess;
+import kommet.basic.RecordProxyUtil;
+import kommet.basic.User;
+import kommet.dao.ProcessQueueDao;
+import kommet.data.DataAccessUtil;
+import kommet.data.DataService;
+import kommet.data.KID;
+import kommet.data.KommetException;
+import kommet.data.Record;
+import kommet.data.Type;
+import kommet.env.EnvData;
+import kommet.errorlog.ErrorLogService;
+import kommet.koll.ClassService;
+import kommet.koll.compiler.KommetCompiler;
+import kommet.utils.AppConfig;
+import kommet.utils.MiscUtils;
+import kommet.utils.NamedDaemonThreadFactory;
+
+/**
+ * Executes triggerable business processes asynchronously, outside of the save of the record that triggers them.
+ * <p>
+ * A process is executed asynchronously if attribute <tt>async</tt> of its entry point is set to <tt>true</tt>.
+ * When a record that triggers such process is saved, an execution is added to a queue kept in the environment's
+ * database, in the same transaction as the save, so that the execution is neither lost nor run for a save that
+ * has been rolled back. The queue is drained by a worker job scheduled for each environment, which is also triggered
+ * whenever a save that queued an execution is committed.
+ * </p>
+ * <p>
+ * Each execution runs in its own transaction, in the name of the user who saved the record, with the current state
+ * of the record. Failed executions are retried with exponential backoff, and after the last allowed attempt they
+ * are moved to a dead-letter list, from which they can be retried or deleted manually.
+ * </p>
+ * <p>
+ * If attribute <tt>parallelBranches</tt> of the entry point is also set to <tt>true</tt>, independent branches of the process
+ * are executed in parallel on the executor returned by {@link BusinessProcessService#getBranchExecutor()}. Branches other
+ * than the first one then run outside of the execution's transaction, so their changes are not rolled back if the execution
+ * fails and is retried. This should only be enabled for processes whose actions can safely be repeated.
+ * </p>
+ * @author Radek Krawiec
+ */
+@Service
+public class ProcessQueueService
+{
+	@Inject
+	ProcessQueueDao dao;
+
+	@Inject
+	DataService dataService;
+
+	@Inject
+	UserService userService;
+
+	@Inject
+	ClassService classService;
+
+	@Inject
+	ErrorLogService logService;
+
+	@Inject
+	KommetCompiler compiler;
+
+	@Inject
+	AppConfig appConfig;
+
+	@Inject
+	SchedulerFactoryBean schedulerFactory;
+
+	@Inject
+	PlatformTransactionManager txManager;
+
+	@Inject
+	BusinessProcessService bpService;
+
+	private static final Logger log = LoggerFactory.getLogger(ProcessQueueService.class);
+
+	public static final String PROCESS_QUEUE_WORKER_JOB_PREFIX = "process-queue-worker";
+
+	/**
+	 * Name of the entry point attribute that makes the process execute asynchronously.
+	 */
+	public static final String ASYNC_ATTRIBUTE = "async";
+
+	/**
+	 * Name of the entry point attribute that makes independent branches of an asynchronous process execute in parallel.
+	 */
+	public static final String PARALLEL_BRANCHES_ATTRIBUTE = "parallelBranches";
+
+	// retry delays grow exponentially, but not above this value
+	private static final long MAX_RETRY_DELAY_SECONDS = 3600;
+
+	// execution statistics, by env ID and process ID
+	private final Map<String, ProcessQueueStats> stats = new ConcurrentHashMap<String, ProcessQueueStats>();
+
+	private ExecutorService workerExecutor;
+
+	/**
+	 * Tells whether the process with the given entry point should be executed asynchronously.
+	 * @param entryPoint
+	 * @return
+	 */
+	public static boolean isAsync (BusinessActionInvocation entryPoint)
+	{
+		return entryPoint.isAttributeSet(ASYNC_ATTRIBUTE) && "true".equals(entryPoint.getSingleAttributeValue(ASYNC_ATTRIBUTE));
+	}
+
+	/**
+	 * Tells whether independent branches of the process with the given entry point should be executed in parallel
+	 * when the process is executed from the queue.
+	 * @param entryPoint
+	 * @return
+	 */
+	public static boolean isParallelBranches (BusinessActionInvocation entryPoint)
+	{
+		return entryPoint.isAttributeSet(PARALLEL_BRANCHES_ATTRIBUTE) && "true".equals(entryPoint.getSingleAttributeValue(PARALLEL_BRANCHES_ATTRIBUTE));
+	}
+
+	/**
+	 * Queues an execution of the process triggered by the save of the given record.
+	 * @param process
+	 * @param recordId
+	 * @param authData User who saved the record
+	 * @param env
+	 * @throws KommetException
+	 */
+	public void enqueue (BusinessProcess process, KID recordId, AuthData authData, final EnvData env) throws KommetException
+	{
+		dao.insert(process.getId(), recordId, authData.getUserId(), env);
+
+		final ProcessQueueStats processStats = getStats(process.getId(), env);
+
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+		{
+			// the execution can only be picked up by a worker when the save is committed
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter()
+			{
+				@Override
+				public void afterCommit()
+				{
+					processStats.executionEnqueued();
+					triggerWorker(env);
+				}
+			});
+		}
+		else
+		{
+			processStats.executionEnqueued();
+			triggerWorker(env);
+		}
+	}
+
+	/**
+	 * Starts the worker job on the given env, so that queued executions do not wait for its next scheduled run.
+	 * @param env
+	 */
+	private void triggerWorker (EnvData env)
+	{
+		try
+		{
+			JobKey jobKey = getWorkerJobKey(env);
+			if (schedulerFactory.getScheduler().checkExists(jobKey))
+			{
+				schedulerFactory.getScheduler().triggerJob(jobKey);
+			}
+		}
+		catch (Exception e)
+		{
+			// the execution will be picked up by the next scheduled run of the job
+			log.warn("Could not trigger process queue worker: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Executes all queued executions that are due on the given env, using a pool of worker threads.
+	 * Each execution runs in its own transaction on a worker thread, so this method must not be called
+	 * within a transaction, which would keep the claimed executions locked until it is completed.
+	 * <p>
+	 * While executions are running, their leases are renewed every half of the lease time, so that executions
+	 * taking longer than the lease are not claimed again by other workers.
+	 * </p>
+	 * @param env
+	 * @return the number of executions that have been attempted
+	 * @throws KommetException
+	 */
+	public int drain (final EnvData env) throws KommetException
+	{
+		if (TransactionSynchronizationManager.isActualTransactionActive())
+		{
+			throw new KommetException("Process queue cannot be drained within a transaction");
+		}
+
+		int workers = appConfig.getBusinessProcessQueueWorkers();
+		int leaseSeconds = appConfig.getBusinessProcessQueueLeaseSeconds();
+		int maxAttempts = appConfig.getBusinessProcessQueueMaxAttempts();
+		int attempted = 0;
+
+		// auth data is created once for each user whose saves queued executions
+		final Map<KID, AuthData> authDataByUser = new ConcurrentHashMap<KID, AuthData>();
+
+		List<QueuedProcessExecution> batch;
+		while (!(batch = dao.claimDue(workers * 10, leaseSeconds, maxAttempts, env)).isEmpty())
+		{
+			Map<Long, Future<?>> results = new LinkedHashMap<Long, Future<?>>();
+
+			for (final QueuedProcessExecution execution : batch)
+			{
+				if (QueuedProcessExecution.STATUS_DEAD.equals(execution.getStatus()))
+				{
+					// the last attempt has not been completed within its lease, so the claim moved the execution to dead letters
+					log.warn("Queued execution " + execution.getId() + " of process " + execution.getProcessId() + " has been moved to dead letters: " + execution.getLastError());
+					getStats(execution.getProcessId(), env).attemptFailed(true);
+					continue;
+				}
+
+				results.put(execution.getId(), getWorkerExecutor().submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						execute(execution, authDataByUser, env);
+					}
+				}));
+			}
+
+			for (Future<?> result : results.values())
+			{
+				while (true)
+				{
+					try
+					{
+						result.get(leaseSeconds / 2, TimeUnit.SECONDS);
+						break;
+					}
+					catch (TimeoutException e)
+					{
+						dao.renewLease(getRunningExecutionIds(results), leaseSeconds, env);
+					}
+					catch (InterruptedException e)
+					{
+						// executions that have not been completed will be claimed again when their lease expires
+						Thread.currentThread().interrupt();
+						return attempted;
+					}
+					catch (ExecutionException e)
+					{
+						log.error("Error executing queued process", e.getCause());
+						break;
+					}
+				}
+			}
+
+			attempted += results.size();
+		}
+
+		return attempted;
+	}
+
+	private static List<Long> getRunningExecutionIds (Map<Long, Future<?>> results)
+	{
+		List<Long> ids = new ArrayList<Long>();
+		for (Map.Entry<Long, Future<?>> result : results.entrySet())
+		{
+			if (!result.getValue().isDone())
+			{
+				ids.add(result.getKey());
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Executes a queued process and removes it from the queue in one transaction, or records the failed attempt.
+	 * @param execution
+	 * @param authDataByUser
+	 * @param env
+	 */
+	private void execute (QueuedProcessExecution execution, Map<KID, AuthData> authDataByUser, EnvData env)
+	{
+		ProcessQueueStats processStats = getStats(execution.getProcessId(), env);
+		long startTime = System.currentTimeMillis();
+
+		try
+		{
+			BusinessProcess process = getTriggerableProcess(execution.getProcessId(), env);
+			if (process == null)
+			{
+				// the process has been deleted or is no longer triggerable since the execution was queued
+				log.warn("Removing queued execution of process " + execution.getProcessId() + " because the process is no longer triggerable");
+				dao.delete(execution.getId(), env);
+				return;
+			}
+
+			AuthData authData = authDataByUser.get(execution.getUserId());
+			if (authData == null)
+			{
+				User user = userService.getUser(execution.getUserId(), env);
+				if (user == null)
+				{
+					throw new BusinessProcessExecutionException("User " + execution.getUserId() + " who triggered the process does not exist");
+				}
+
+				authData = userService.getAuthData(user, env);
+				authDataByUser.put(execution.getUserId(), authData);
+			}
+
+			TransactionStatus tx = txManager.getTransaction(new DefaultTransactionDefinition(TransactionDefinition.PROPAGATION_REQUIRES_NEW));
+			try
+			{
+				execute(process, execution.getRecordId(), authData, env);
+
+				// the execution is removed from the queue only if the process has been committed
+				dao.delete(execution.getId(), env);
+				txManager.commit(tx);
+			}
+			catch (Exception e)
+			{
+				if (!tx.isCompleted())
+				{
+					txManager.rollback(tx);
+				}
+				throw e;
+			}
+
+			long endTime = System.currentTimeMillis();
+			processStats.executionCompleted(endTime - execution.getCreatedDate().getTime(), endTime - startTime);
+		}
+		catch (Exception e)
+		{
+			handleFailure(execution, e.getMessage() != null ? e.getMessage() : e.getClass().getName(), processStats, env);
+		}
+	}
+
+	/**
+	 * Executes the process with the current state of the record that triggered it.
+	 * @param process
+	 * @param recordId
+	 * @param authData
+	 * @param env
+	 * @throws KommetException
+	 */
+	private void execute (BusinessProcess process, KID recordId, AuthData authData, EnvData env) throws KommetException
+	{
+		BusinessProcessExecutor executor = env.getProcessExecutor(process, compiler, logService, classService, dataService);
+
+		Type type = env.getTypeByRecordId(recordId);
+		List<Record> records = dataService.getRecords(Arrays.asList(recordId), type, DataAccessUtil.getReadableFieldApiNamesForQuery(type, authData, env, false), authData, env);
+		if (records.isEmpty())
+		{
+			throw new BusinessProcessExecutionException("Record " + recordId + " that triggered the process does not exist");
+		}
+
+		Map<String, Object> processInputs = new HashMap<String, Object>();
+		processInputs.put(process.getSingleInput().getName(), RecordProxyUtil.generateCustomTypeProxy(records.get(0), true, env, compiler));
+
+		// branches executed on other threads do not take part in the transaction of the execution, so they are only executed
+		// in parallel if the process opts in
+		ExecutorService branchExecutor = isParallelBranches(executor.getEntryPoint()) ? bpService.getBranchExecutor() : null;
+
+		ProcessResult result = executor.execute(processInputs, authData, true, branchExecutor);
+		if (!result.isSuccess())
+		{
+			throw new BusinessProcessExecutionException("Process failed: " + MiscUtils.implode(result.getErrors(), "; "));
+		}
+	}
+
+	private void handleFailure (QueuedProcessExecution execution, String error, ProcessQueueStats processStats, EnvData env)
+	{
+		// the attempt has been counted when the execution was claimed
+		int attempts = execution.getAttempts();
+
+		try
+		{
+			if (attempts >= appConfig.getBusinessProcessQueueMaxAttempts())
+			{
+				log.warn("Queued execution " + execution.getId() + " of process " + execution.getProcessId() + " failed " + attempts + " times and has been moved to dead letters: " + error);
+				dao.markDead(execution.getId(), attempts, error, env);
+				processStats.attemptFailed(true);
+			}
+			else
+			{
+				// each retry waits twice as long as the previous one
+				long delay = Math.min(appConfig.getBusinessProcessQueueRetryDelay() * (1L << Math.min(attempts - 1, 20)), MAX_RETRY_DELAY_SECONDS);
+				log.debug("Queued execution " + execution.getId() + " of process " + execution.getProcessId() + " failed, retrying in " + delay + " seconds: " + error);
+				dao.reschedule(execution.getId(), attempts, delay, error, env);
+				processStats.attemptFailed(false);
+			}
+		}
+		catch (KommetException e)
+		{
+			// the execution will be claimed again when its lease expires
+			log.error("Could not record failed attempt of queued execution " + execution.getId() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Finds the process among processes triggerable on the given env.
+	 * @param processId
+	 * @param env
+	 * @return the process, or null if it is not triggerable
+	 */
+	private static BusinessProcess getTriggerableProcess (KID processId, EnvData env)
+	{
+		for (List<BusinessProcess> processes : env.getTriggerableBusinessProcesses().values())
+		{
+			for (BusinessProcess process : processes)
+			{
+				if (process.getId().equals(processId))
+				{
+					return process;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns executions of the process that failed all attempts, most recent first.
+	 * @param processId
+	 * @param limit
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	public List<QueuedProcessExecution> getDeadLetters (KID processId, int limit, EnvData env) throws KommetException
+	{
+		return dao.getDead(processId, limit, env);
+	}
+
+	/**
+	 * Returns the number of executions of the process waiting in the queue or being executed.
+	 * @param processId
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	public int getQueuedCount (KID processId, EnvData env) throws KommetException
+	{
+		return dao.getQueuedCount(processId, env);
+	}
+
+	/**
+	 * Moves an execution from the dead-letter list back to the queue.
+	 * @param id
+	 * @param env
+	 * @return false if there is no such dead execution
+	 * @throws KommetException
+	 */
+	public boolean retryDeadLetter (Long id, EnvData env) throws KommetException
+	{
+		boolean isRequeued = dao.requeueDead(id, env);
+		if (isRequeued)
+		{
+			triggerWorker(env);
+		}
+		return isRequeued;
+	}
+
+	public boolean deleteDeadLetter (Long id, EnvData env) throws KommetException
+	{
+		return dao.deleteDead(id, env);
+	}
+
+	/**
+	 * Returns statistics of asynchronous executions of the process on this node.
+	 * @param processId
+	 * @param env
+	 * @return
+	 */
+	public ProcessQueueStats getStats (KID processId, EnvData env)
+	{
+		String key = env.getId() + ":" + processId;
+		ProcessQueueStats processStats = stats.get(key);
+		if (processStats == null)
+		{
+			stats.putIfAbsent(key, new ProcessQueueStats());
+			processStats = stats.get(key);
+		}
+		return processStats;
+	}
+
+	private synchronized ExecutorService getWorkerExecutor() throws KommetException
+	{
+		if (this.workerExecutor == null)
+		{
+			this.workerExecutor = Executors.newFixedThreadPool(appConfig.getBusinessProcessQueueWorkers(), new NamedDaemonThreadFactory("process-queue-worker"));
+		}
+		return this.workerExecutor;
+	}
+
+	/**
+	 * Stops queue workers when the application is shut down. Executions interrupted by the shutdown stay in the queue
+	 * and are claimed again when their lease expires.
+	 */
+	@PreDestroy
+	public synchronized void shutdown()
+	{
+		if (this.workerExecutor != null)
+		{
+			this.workerExecutor.shutdownNow();
+			this.workerExecutor = null;
+		}
+	}
+
+	/**
+	 * Schedules the job that drains the process queue on the given env.
+	 * @param env
+	 * @throws KommetException
+	 * @throws SchedulerException
+	 */
+	public void scheduleQueueWorker (EnvData env) throws KommetException, SchedulerException
+	{
+		JobKey jobKey = getWorkerJobKey(env);
+
+		// check if a job for this task does not already exist
+		JobDetail jobDetail = schedulerFactory.getScheduler().getJobDetail(jobKey);
+
+		if (jobDetail != null)
+		{
+			// be sure to use method deleteJob instead of unscheduleJob
+			schedulerFactory.getScheduler().deleteJob(jobKey);
+		}
+
+		ProcessQueueJobDetail job = new ProcessQueueJobDetail(this, env);
+		job.setName(jobKey.getName());
+		job.setGroup(jobKey.getGroup());
+		job.setJobClass(ProcessQueueJob.class);
+
+		// the job is also triggered when executions are queued, so the schedule is only needed for retries and for executions queued on other nodes
+		CronTrigger trigger = TriggerBuilder.newTrigger().withIdentity(jobKey.getName() + "-trigger", jobKey.getGroup()).withSchedule(CronScheduleBuilder.cronSchedule("*/" + appConfig.getBusinessProcessQueuePollInterval() + " * * * * ?")).build();
+		schedulerFactory.getScheduler().scheduleJob(job, trigger);
+	}
+
+	private static JobKey getWorkerJobKey (EnvData env)
+	{
+		return JobKey.jobKey(PROCESS_QUEUE_WORKER_JOB_PREFIX + "-" + env.getId(), "process-queue-workers-" + env.getId());
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.businessprocess;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts asynchronous executions of one business process on this node, together with the time they spent
+ * waiting in the queue and being executed.
+ *
+ * @author Radek Krawiec
+ */
+public class ProcessQueueStats
+{
+	private final long startTime = System.currentTimeMillis();
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failedAttempts = new AtomicLong();
+	private final AtomicLong dead = new AtomicLong();
+	private final AtomicLong totalLatencyMillis = new AtomicLong();
+	private final AtomicLong maxLatencyMillis = new AtomicLong();
+	private final AtomicLong totalExecutionMillis = new AtomicLong();
+
+	void executionEnqueued()
+	{
+		enqueued.incrementAndGet();
+	}
+
+	void executionCompleted (long latencyMillis, long executionMillis)
+	{
+		completed.incrementAndGet();
+		totalLatencyMillis.addAndGet(latencyMillis);
+		totalExecutionMillis.addAndGet(executionMillis);
+
+		long max = maxLatencyMillis.get();
+		while (latencyMillis > max && !maxLatencyMillis.compareAndSet(max, latencyMillis))
+		{
+			max = maxLatencyMillis.get();
+		}
+	}
+
+	void attemptFailed (boolean isDead)
+	{
+		failedAttempts.incrementAndGet();
+		if (isDead)
+		{
+			dead.incrementAndGet();
+		}
+	}
+
+	public long getEnqueued()
+	{
+		return enqueued.get();
+	}
+
+	public long getCompleted()
+	{
+		return completed.get();
+	}
+
+	public long getFailedAttempts()
+	{
+		return failedAttempts.get();
+	}
+
+	/**
+	 * Returns the number of executions moved to the dead-letter list after their last attempt failed.
+	 * @return
+	 */
+	public long getDead()
+	{
+		return dead.get();
+	}
+
+	/**
+	 * Returns the number of completed executions per minute since the statistics have been collected.
+	 * @return
+	 */
+	public double getThroughputPerMinute()
+	{
+		long minutes = Math.max(1, (System.currentTimeMillis() - startTime) / 60000);
+		return (double)completed.get() / minutes;
+	}
+
+	/**
+	 * Returns the average time between the save of the record that triggered the process and the completion of the process.
+	 * @return
+	 */
+	public long getAverageLatencyMillis()
+	{
+		long count = completed.get();
+		return count > 0 ? totalLatencyMillis.get() / count : 0;
+	}
+
+	public long getMaxLatencyMillis()
+	{
+		return maxLatencyMillis.get();
+	}
+
+	public long getAverageExecutionMillis()
+	{
+		long count = completed.get();
+		return count > 0 ? totalExecutionMillis.get() / count : 0;
+	}
+}
@@ -7,7 +7,9 @@
 
 package kommet.businessprocess;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class ProcessResult
@@ -15,6 +17,9 @@ public class ProcessResult
 	private Map<String, Object> outputValues = new HashMap<String, Object>();
 	private boolean isSuccess;
 	private boolean isPassedEntryPoint;
+	
+	// errors of branches that failed when the process was executed in parallel
+	private List<String> errors = new ArrayList<String>();
 
 	public Map<String, Object> getOutputValues()
 	{
@@ -45,4 +50,14 @@ public class ProcessResult
 	{
 		this.isPassedEntryPoint = isPassedEntryPoint;
 	}
+
+	public List<String> getErrors()
+	{
+		return errors;
+	}
+
+	public void setErrors(List<String> errors)
+	{
+		this.errors = errors;
+	}
 }
\ No newline at end of file
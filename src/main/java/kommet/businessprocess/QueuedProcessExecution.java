@@ -0,0 +1,135 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.businessprocess;
+
+import java.util.Date;
+
+import kommet.data.KID;
+
+/**
+ * Execution of a triggerable business process waiting in the asynchronous process queue.
+ * @author Radek Krawiec
+ */
+public class QueuedProcessExecution
+{
+	public static final String STATUS_PENDING = "pending";
+	public static final String STATUS_RUNNING = "running";
+	public static final String STATUS_DEAD = "dead";
+
+	private Long id;
+	private KID processId;
+	private KID recordId;
+	private KID userId;
+	private String status;
+	private int attempts;
+	private Date nextAttemptDate;
+	private Date createdDate;
+	private String lastError;
+
+	public Long getId()
+	{
+		return id;
+	}
+
+	public void setId(Long id)
+	{
+		this.id = id;
+	}
+
+	public KID getProcessId()
+	{
+		return processId;
+	}
+
+	public void setProcessId(KID processId)
+	{
+		this.processId = processId;
+	}
+
+	/**
+	 * Returns the ID of the record whose save triggered the process.
+	 * @return
+	 */
+	public KID getRecordId()
+	{
+		return recordId;
+	}
+
+	public void setRecordId(KID recordId)
+	{
+		this.recordId = recordId;
+	}
+
+	/**
+	 * Returns the ID of the user who saved the record. The process is executed in the name of this user.
+	 * @return
+	 */
+	public KID getUserId()
+	{
+		return userId;
+	}
+
+	public void setUserId(KID userId)
+	{
+		this.userId = userId;
+	}
+
+	public String getStatus()
+	{
+		return status;
+	}
+
+	public void setStatus(String status)
+	{
+		this.status = status;
+	}
+
+	/**
+	 * Returns the number of failed attempts to execute the process.
+	 * @return
+	 */
+	public int getAttempts()
+	{
+		return attempts;
+	}
+
+	public void setAttempts(int attempts)
+	{
+		this.attempts = attempts;
+	}
+
+	public Date getNextAttemptDate()
+	{
+		return nextAttemptDate;
+	}
+
+	public void setNextAttemptDate(Date nextAttemptDate)
+	{
+		this.nextAttemptDate = nextAttemptDate;
+	}
+
+	public Date getCreatedDate()
+	{
+		return createdDate;
+	}
+
+	public void setCreatedDate(Date createdDate)
+	{
+		this.createdDate = createdDate;
+	}
+
+	public String getLastError()
+	{
+		return lastError;
+	}
+
+	public void setLastError(String lastError)
+	{
+		this.lastError = lastError;
+	}
+}
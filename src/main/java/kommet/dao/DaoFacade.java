@@ -19,7 +19,6 @@ import kommet.basic.RecordProxy;
 import kommet.dao.queries.Criteria;
 import kommet.dao.queries.DeleteQuery;
 import kommet.dao.queries.InsertQuery;
-import kommet.dao.queries.Restriction;
 import kommet.dao.queries.SelectQuery;
 import kommet.dao.queries.UpdateQuery;
 import kommet.data.KID;
@@ -43,18 +42,31 @@ public class DaoFacade
 		}
 		else
 		{
-			// in this special case we want to pass null auth data to the criteria object
-			// because this criteria is not really for querying objects, it's used to construct conditions
-			// for the update query
-			Criteria criteria = new Criteria(record.getType(), null, env, false);
-			criteria.add(Restriction.eq("id", record.getKID()));
 			UpdateQuery query = env.getTypeMapping(record.getType().getKID()).createUpdateQuery(env);
-			query.execute(record, criteria, authData, forceAllowEdit);
+			query.execute(record, authData, forceAllowEdit);
 		}
 		
 		return record;
 	}
 	
+	/**
+	 * Inserts new records of the same type using bulk insert queries.
+	 * @param records
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	public List<Record> insert (List<Record> records, EnvData env) throws KommetException
+	{
+		if (records.isEmpty())
+		{
+			return records;
+		}
+		
+		InsertQuery query = env.getTypeMapping(records.get(0).getType().getKID()).createInsertQuery(env);
+		return query.execute(records);
+	}
+	
 	public void delete (Record record, AuthData authData, EnvData envData) throws KommetException
 	{	
 		DeleteQuery query = envData.getTypeMapping(record.getType().getKID()).createDeleteQuery(envData);
@@ -7,6 +7,8 @@
 
 package kommet.dao;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import org.springframework.jdbc.InvalidResultSetAccessException;
@@ -52,6 +54,25 @@ public class DomainMappingDao
 		return result;
 	}
 	
+	/**
+	 * Returns all domain mappings defined on the shared server.
+	 * @param sharedEnv
+	 * @return
+	 * @throws KommetException
+	 */
+	public List<DomainMapping> getAll (EnvData sharedEnv) throws KommetException
+	{
+		SqlRowSet rowSet = sharedEnv.getJdbcTemplate().queryForRowSet("SELECT id, url, envid FROM domainmappings");
+		List<DomainMapping> mappings = new ArrayList<DomainMapping>();
+		
+		while (rowSet.next())
+		{
+			mappings.add(getDomainMappingFromRowSet(rowSet));
+		}
+		
+		return mappings;
+	}
+	
 	/**
 	 * Saves a domain mapping on a shared server.
 	 * @param mapping
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.dao;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import kommet.data.KID;
+import kommet.data.KommetException;
+import kommet.env.EnvData;
+
+/**
+ * Creates tables that are accessed with plain JDBC rather than as types, e.g. queues and schedules used by system services.
+ * <p>
+ * The tables are defined in the <tt>env-tables.sql</tt> script, which is run during the basic setup of a new environment.
+ * Environments set up before a table was added to the script get it when it is first used. The script is then run in its own
+ * transaction, so that a rollback of the transaction in which the table was first used does not remove the table, and the
+ * environment is remembered as initialized only if this transaction is committed.
+ * </p>
+ * @author Radek Krawiec
+ */
+@Repository
+public class EnvTableInitializer
+{
+	private static final String SCRIPT_FILE = "env-tables.sql";
+
+	@Inject
+	PlatformTransactionManager txManager;
+
+	// IDs of environments in which the tables are known to exist
+	private Set<KID> initializedEnvs = Collections.newSetFromMap(new ConcurrentHashMap<KID, Boolean>());
+
+	private String script;
+
+	/**
+	 * Creates the tables within the current transaction. Used when a new environment is set up.
+	 * The environment is remembered as initialized unless the transaction is rolled back.
+	 * @param env
+	 * @throws KommetException
+	 */
+	public void createTables (EnvData env) throws KommetException
+	{
+		env.getJdbcTemplate().execute(getScript());
+
+		// the tables are used in the rest of the current transaction without being created again in a separate one,
+		// which would wait for the current transaction to complete
+		final KID envId = env.getId();
+		initializedEnvs.add(envId);
+
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+		{
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter()
+			{
+				@Override
+				public void afterCompletion(int status)
+				{
+					if (status != STATUS_COMMITTED)
+					{
+						initializedEnvs.remove(envId);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Makes sure the tables exist in the given environment. This method should be called before the tables are accessed.
+	 * @param env
+	 * @throws KommetException
+	 */
+	public void initTables (EnvData env) throws KommetException
+	{
+		if (initializedEnvs.contains(env.getId()))
+		{
+			return;
+		}
+
+		// only one thread runs the script, because concurrent CREATE TABLE IF NOT EXISTS statements can still collide
+		synchronized (this)
+		{
+			if (initializedEnvs.contains(env.getId()))
+			{
+				return;
+			}
+
+			TransactionStatus tx = txManager.getTransaction(new DefaultTransactionDefinition(TransactionDefinition.PROPAGATION_REQUIRES_NEW));
+			try
+			{
+				createTables(env);
+				txManager.commit(tx);
+			}
+			catch (RuntimeException e)
+			{
+				if (!tx.isCompleted())
+				{
+					txManager.rollback(tx);
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Forgets that the tables exist in the given environment, e.g. because its database has been dropped.
+	 * @param envId
+	 */
+	public void clear (KID envId)
+	{
+		initializedEnvs.remove(envId);
+	}
+
+	private synchronized String getScript() throws KommetException
+	{
+		if (script != null)
+		{
+			return script;
+		}
+
+		InputStream is = this.getClass().getClassLoader().getResourceAsStream(SCRIPT_FILE);
+		if (is == null)
+		{
+			throw new KommetException("SQL script " + SCRIPT_FILE + " not found");
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+		StringBuilder query = new StringBuilder();
+		String line = null;
+
+		try
+		{
+			while ((line = reader.readLine()) != null)
+			{
+				query.append(line).append("\n");
+			}
+			reader.close();
+		}
+		catch (IOException e)
+		{
+			throw new KommetException("Error reading SQL script " + SCRIPT_FILE + ": " + e.getMessage());
+		}
+
+		script = query.toString();
+		return script;
+	}
+}
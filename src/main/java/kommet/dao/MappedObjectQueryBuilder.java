@@ -35,30 +35,6 @@ import kommet.utils.MiscUtils;
 
 public class MappedObjectQueryBuilder
 {	
-	public static String getDeleteQuery (TypePersistenceMapping mapping, KID recordId, AuthData authData, EnvData env, boolean forceAllowDelete) throws KommetException
-	{
-		StringBuilder query = new StringBuilder();
-		query.append("UPDATE " + mapping.getTable() + " SET " + Field.LAST_MODIFIED_BY_FIELD_DB_COLUMN + " = '" + authData.getUserId() + "'");
-		
-		// We want to let the check_edit_permissions method know that editAll is set
-		// so we do this by using the special field "triggerflag"
-		// It will be read by the check_edit_permissions and tell it not to check edit permissions.
-		if (forceAllowDelete || authData.canDeleteAllType(mapping.getType().getKID(), true, env))
-		{
-			query.append(", ").append(Field.TRIGGER_FLAG_DB_COLUMN + " = 'EDITDELETEALL'");
-		}
-		
-		query.append(" WHERE + " + Field.ID_FIELD_DB_COLUMN + " = '" + recordId.getId() + "'; ");
-		query.append("DELETE FROM " + mapping.getTable() + " WHERE " + Field.ID_FIELD_DB_COLUMN + " = '" + recordId.getId() + "'");
-		
-		// Wrap query in procedure execute_update().
-		// The only reason why we do this is that we want to intercept the exception thrown by
-		// the edit_permissions_check() trigger and return a custom error, instead of propagating
-		// the SQL error, because that would cause the whole Spring transaction to stop.
-		// Instead of stopping the transaction, we just want to catch the error and handle it in Java code.
-		return "SELECT execute_update('" + query.toString().replace("'", "''") + "')";
-	}
-	
 	public static <T extends Record> String getBulkDeleteQuery (TypePersistenceMapping mapping, Collection<T> objs, AuthData authData, EnvData env, boolean forceAllowDelete) throws KommetException
 	{
 		List<KID> ids = MiscUtils.getKIDList(objs);
@@ -126,15 +102,169 @@ public class MappedObjectQueryBuilder
 		return sb.toString();
 	}
 	
-	public static String getInsertQuery (TypePersistenceMapping mapping, Record record) throws KommetException
+	/**
+	 * Returns an insert statement with bind parameters for all non-transient fields set on the record.
+	 * The statement returns the ID of the inserted record.
+	 * @param mapping
+	 * @param record
+	 * @return
+	 * @throws KommetException
+	 */
+	public static StatementTemplate getInsertTemplate (TypePersistenceMapping mapping, Record record) throws KommetException
 	{
-		StringBuilder sb = new StringBuilder("INSERT INTO " + mapping.getTable() + "(");
+		final List<ColumnMapping> columns = getSetColumns(mapping, record);
 		
-		List<String> columnNames = new ArrayList<String>();
-		List<String> columnValues = new ArrayList<String>();
+		return mapping.getStatementTemplate("insert:" + getColumnKey(columns), key -> {
+			
+			List<String> columnNames = new ArrayList<String>();
+			List<String> params = new ArrayList<String>();
+			for (ColumnMapping colMapping : columns)
+			{
+				columnNames.add(colMapping.getColumn());
+				params.add("?");
+			}
+			
+			StringBuilder sb = new StringBuilder("INSERT INTO " + mapping.getTable());
+			if (columns.isEmpty())
+			{
+				sb.append(" DEFAULT VALUES");
+			}
+			else
+			{
+				sb.append(" (").append(MiscUtils.implode(columnNames, ", ", null)).append(") VALUES (");
+				sb.append(MiscUtils.implode(params, ", ", null)).append(")");
+			}
+			sb.append(" RETURNING ").append(Field.ID_FIELD_DB_COLUMN);
+			
+			return new StatementTemplate(sb.toString(), columns);
+		});
+	}
+	
+	/**
+	 * Returns an update statement with bind parameters for all non-transient fields set on the record.
+	 * The ID of the updated record is the last bind parameter of the statement.
+	 * @param mapping
+	 * @param record
+	 * @param authData
+	 * @param env
+	 * @param forceAllowEdit
+	 * @return
+	 * @throws KommetException
+	 */
+	public static StatementTemplate getUpdateByIdTemplate (TypePersistenceMapping mapping, Record record, AuthData authData, EnvData env, boolean forceAllowEdit) throws KommetException
+	{
+		final List<ColumnMapping> columns = getSetColumns(mapping, record);
+		final boolean isEditAll = forceAllowEdit || authData.canEditAllType(mapping.getType().getKID(), true, env);
+		
+		return mapping.getStatementTemplate("update:" + isEditAll + ":" + getColumnKey(columns), key -> {
+			
+			List<String> setClauses = new ArrayList<String>();
+			for (ColumnMapping colMapping : columns)
+			{
+				setClauses.add(colMapping.getColumn() + " = ?");
+			}
+			
+			// let the check_edit_permissions trigger know that it should not check edit permissions
+			if (isEditAll)
+			{
+				setClauses.add(Field.TRIGGER_FLAG_DB_COLUMN + " = 'EDITALL'");
+			}
+			
+			return new StatementTemplate("UPDATE " + mapping.getTable() + " SET " + MiscUtils.implode(setClauses, ", ", null) + " WHERE " + Field.ID_FIELD_DB_COLUMN + " = ?", columns);
+		});
+	}
+	
+	/**
+	 * Returns a delete statement with bind parameters. The statement takes three parameters: the ID of the user
+	 * deleting the record and twice the ID of the deleted record.
+	 * @param mapping
+	 * @param authData
+	 * @param env
+	 * @param forceAllowDelete
+	 * @return
+	 * @throws KommetException
+	 */
+	public static StatementTemplate getDeleteTemplate (TypePersistenceMapping mapping, AuthData authData, EnvData env, boolean forceAllowDelete) throws KommetException
+	{
+		final boolean isEditDeleteAll = forceAllowDelete || authData.canDeleteAllType(mapping.getType().getKID(), true, env);
+		
+		return mapping.getStatementTemplate("delete:" + isEditDeleteAll, key -> {
+			
+			// the record is updated before being deleted so that the permission triggers know who deletes it
+			StringBuilder query = new StringBuilder();
+			query.append("UPDATE " + mapping.getTable() + " SET " + Field.LAST_MODIFIED_BY_FIELD_DB_COLUMN + " = ?");
+			
+			if (isEditDeleteAll)
+			{
+				query.append(", ").append(Field.TRIGGER_FLAG_DB_COLUMN + " = 'EDITDELETEALL'");
+			}
+			
+			query.append(" WHERE " + Field.ID_FIELD_DB_COLUMN + " = ?; ");
+			query.append("DELETE FROM " + mapping.getTable() + " WHERE " + Field.ID_FIELD_DB_COLUMN + " = ?");
+			
+			return new StatementTemplate(query.toString(), new ArrayList<ColumnMapping>());
+		});
+	}
+	
+	/**
+	 * Returns mappings of all non-transient columns whose values are set on the record.
+	 * @param mapping
+	 * @param record
+	 * @return
+	 * @throws KommetException
+	 */
+	private static List<ColumnMapping> getSetColumns (TypePersistenceMapping mapping, Record record) throws KommetException
+	{
+		List<ColumnMapping> columns = new ArrayList<ColumnMapping>();
+		Type type = mapping.getType();
 		
+		for (ColumnMapping colMapping : mapping.getColumnMappings().values())
+		{
+			// null values are skipped
+			// if we want to nullify a column, we need to use SpecialValue.NULL
+			if (type.getField(colMapping.getProperty()).getDataType().isTransient() || record.attemptGetField(colMapping.getProperty()) == null)
+			{
+				continue;
+			}
+			
+			columns.add(colMapping);
+		}
+		
+		return columns;
+	}
+	
+	private static String getColumnKey (List<ColumnMapping> columns)
+	{
+		List<String> columnNames = new ArrayList<String>();
+		for (ColumnMapping colMapping : columns)
+		{
+			columnNames.add(colMapping.getColumn());
+		}
+		return MiscUtils.implode(columnNames, ",");
+	}
+	
+	/**
+	 * Builds a single multi-row insert statement with bind parameters for all records. All records must be of the same type
+	 * and must already have their IDs assigned.
+	 * 
+	 * The column list is the union of columns set on any of the records. Records on which some of these
+	 * columns are not set get the column's default value, exactly as they would in a single-row insert,
+	 * so the statement takes no bind parameters for them (see {@link StatementTemplate#getParameters(List)}).
+	 * 
+	 * The statement depends on which fields are set on which records, so unlike single-row templates
+	 * it is not cached on the mapping.
+	 * 
+	 * @param mapping
+	 * @param records
+	 * @return
+	 * @throws KommetException
+	 */
+	public static StatementTemplate getBulkInsertTemplate (TypePersistenceMapping mapping, List<Record> records) throws KommetException
+	{
 		Type type = mapping.getType();
 		
+		// find columns set on any of the inserted records
+		List<ColumnMapping> insertedColumns = new ArrayList<ColumnMapping>();
 		for (ColumnMapping colMapping : mapping.getColumnMappings().values())
 		{
 			// set the field, unless its data type is transient
@@ -143,28 +273,53 @@ public class MappedObjectQueryBuilder
 				continue;
 			}
 			
-			// null values are skipped
-			// if we want to nullify a column, we need to use SpecialValue.NULL
-			if (record.attemptGetField(colMapping.getProperty()) != null)
+			for (Record record : records)
 			{
-				columnNames.add(colMapping.getColumn());
-				
-				try
+				if (record.attemptGetField(colMapping.getProperty()) != null)
 				{
-					columnValues.add((record.getFieldValueForPostgres(colMapping.getProperty())));
-				}
-				catch (Exception e)
-				{
-					throw new KommetException("Error reading value for property '" + colMapping.getProperty() + "'. Nested: " + e.getMessage());
+					insertedColumns.add(colMapping);
+					break;
 				}
 			}
 		}
 		
-		sb.append(MiscUtils.implode(columnNames, ", ", null) + ") VALUES (");
-		sb.append(MiscUtils.implode(columnValues, ", ", null));
-		sb.append(") RETURNING kid");
+		List<String> columnNames = new ArrayList<String>();
+		for (ColumnMapping colMapping : insertedColumns)
+		{
+			columnNames.add(colMapping.getColumn());
+		}
+		
+		List<String> rows = new ArrayList<String>();
+		for (Record record : records)
+		{
+			List<String> columnValues = new ArrayList<String>();
+			
+			for (ColumnMapping colMapping : insertedColumns)
+			{
+				// null values are skipped, so the column gets its default value
+				columnValues.add(record.attemptGetField(colMapping.getProperty()) != null ? "?" : "DEFAULT");
+			}
+			
+			rows.add("(" + MiscUtils.implode(columnValues, ", ", null) + ")");
+		}
+		
+		StringBuilder sb = new StringBuilder("INSERT INTO " + mapping.getTable() + " (");
+		sb.append(MiscUtils.implode(columnNames, ", ", null) + ") VALUES ");
+		sb.append(MiscUtils.implode(rows, ", ", null));
 		
-		return "SELECT execute_insert('" + sb.toString().replace("'", "''") + "')";
+		return new StatementTemplate(sb.toString(), insertedColumns);
+	}
+	
+	/**
+	 * Builds a query that generates the given number of new record IDs for the type, using the same
+	 * sequence as the default value of the ID column.
+	 * @param type
+	 * @param count
+	 * @return
+	 */
+	public static String getNewKIDsQuery (Type type, int count)
+	{
+		return "SELECT next_kolmu_id('" + type.getKeyPrefix() + "', nextval('" + type.getKIDSeqName() + "'::regclass)) FROM generate_series(1, " + count + ")";
 	}
 	
 	public static <T extends BasicModel<Long>> String getUpdateQuery (TypePersistenceMapping mapping, Record record, Criteria criteria, AuthData authData, boolean forceAllowEdit) throws KommetException
@@ -0,0 +1,233 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+import org.springframework.stereotype.Repository;
+
+import kommet.businessprocess.QueuedProcessExecution;
+import kommet.data.KID;
+import kommet.data.KommetException;
+import kommet.env.EnvData;
+import kommet.utils.MiscUtils;
+
+/**
+ * Keeps the queue of asynchronous business process executions in a table in the environment's database.
+ *
+ * Executions are claimed with <tt>FOR UPDATE SKIP LOCKED</tt>, so that many workers, also on different nodes,
+ * can drain the same queue without taking the same execution twice. A claimed execution is leased until a given
+ * time, after which it can be claimed again if the worker that claimed it did not complete it. Workers renew
+ * the lease of executions that are still running, so that long executions are not claimed again.
+ *
+ * @author Radek Krawiec
+ */
+@Repository
+public class ProcessQueueDao
+{
+	private static final String TABLE_NAME = "bpqueue";
+
+	private static final String COLUMNS = "id, processid, recordid, userid, status, attempts, nextattempt, createddate, lasterror";
+
+	@Inject
+	EnvTableInitializer tableInitializer;
+
+	/**
+	 * Adds an execution to the queue. If called within a transaction, the execution becomes visible to workers
+	 * only when the transaction is committed.
+	 * @param processId
+	 * @param recordId
+	 * @param userId
+	 * @param env
+	 * @throws KommetException
+	 */
+	public void insert (KID processId, KID recordId, KID userId, EnvData env) throws KommetException
+	{
+		tableInitializer.initTables(env);
+		env.getJdbcTemplate().update("INSERT INTO " + TABLE_NAME + " (processid, recordid, userid, status, attempts, nextattempt, createddate) VALUES (?, ?, ?, ?, 0, now(), now())", processId.getId(), recordId.getId(), userId.getId(), QueuedProcessExecution.STATUS_PENDING);
+	}
+
+	/**
+	 * Claims executions that are due, or whose lease has expired, and leases them for the given time.
+	 * <p>
+	 * Each claim counts as an attempt, so an execution whose worker crashed or did not complete it within its lease
+	 * has the attempt counted as well. An execution whose lease has expired after its last allowed attempt is not claimed,
+	 * but moved to the dead-letter list by the same statement. Such executions are returned with status
+	 * {@link QueuedProcessExecution#STATUS_DEAD} and must not be executed.
+	 * </p>
+	 * @param limit Maximum number of claimed executions
+	 * @param leaseSeconds
+	 * @param maxAttempts
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	public List<QueuedProcessExecution> claimDue (int limit, int leaseSeconds, int maxAttempts, EnvData env) throws KommetException
+	{
+		tableInitializer.initTables(env);
+
+		// an execution is dead if it has been claimed with the last attempt, but has not been completed
+		String isExpiredLastAttempt = "(status = ? AND attempts >= ?)";
+
+		StringBuilder sql = new StringBuilder();
+		sql.append("UPDATE ").append(TABLE_NAME).append(" SET ");
+		sql.append("status = CASE WHEN ").append(isExpiredLastAttempt).append(" THEN ? ELSE ? END, ");
+		sql.append("lasterror = CASE WHEN ").append(isExpiredLastAttempt).append(" THEN ? ELSE lasterror END, ");
+		sql.append("attempts = CASE WHEN ").append(isExpiredLastAttempt).append(" THEN attempts ELSE attempts + 1 END, ");
+		sql.append("nextattempt = now() + ? * interval '1 second' ");
+		sql.append("WHERE id IN (SELECT id FROM ").append(TABLE_NAME).append(" WHERE status IN (?, ?) AND nextattempt <= now() ");
+		sql.append("ORDER BY nextattempt LIMIT ? FOR UPDATE SKIP LOCKED) ");
+		sql.append("RETURNING ").append(COLUMNS);
+
+		return getExecutions(env.getJdbcTemplate().queryForRowSet(sql.toString(),
+				QueuedProcessExecution.STATUS_RUNNING, maxAttempts, QueuedProcessExecution.STATUS_DEAD, QueuedProcessExecution.STATUS_RUNNING,
+				QueuedProcessExecution.STATUS_RUNNING, maxAttempts, "Execution was not completed within " + leaseSeconds + " seconds",
+				QueuedProcessExecution.STATUS_RUNNING, maxAttempts,
+				leaseSeconds, QueuedProcessExecution.STATUS_PENDING, QueuedProcessExecution.STATUS_RUNNING, limit));
+	}
+
+	/**
+	 * Extends the lease of executions that are still being executed, so that they are not claimed again by other workers.
+	 * @param ids
+	 * @param leaseSeconds
+	 * @param env
+	 * @throws KommetException
+	 */
+	public void renewLease (Collection<Long> ids, int leaseSeconds, EnvData env) throws KommetException
+	{
+		if (ids.isEmpty())
+		{
+			return;
+		}
+
+		tableInitializer.initTables(env);
+		env.getJdbcTemplate().update("UPDATE " + TABLE_NAME + " SET nextattempt = now() + ? * interval '1 second' WHERE id IN (" + MiscUtils.implode(ids, ", ") + ") AND status = ?", leaseSeconds, QueuedProcessExecution.STATUS_RUNNING);
+	}
+
+	/**
+	 * Removes a completed execution from the queue.
+	 * @param id
+	 * @param env
+	 * @throws KommetException
+	 */
+	public void delete (Long id, EnvData env) throws KommetException
+	{
+		tableInitializer.initTables(env);
+		env.getJdbcTemplate().update("DELETE FROM " + TABLE_NAME + " WHERE id = ?", id);
+	}
+
+	/**
+	 * Records a failed attempt and schedules the next one.
+	 * @param id
+	 * @param attempts
+	 * @param delaySeconds Time after which the next attempt is made, counted using the database clock like all times in the queue
+	 * @param error
+	 * @param env
+	 * @throws KommetException
+	 */
+	public void reschedule (Long id, int attempts, long delaySeconds, String error, EnvData env) throws KommetException
+	{
+		tableInitializer.initTables(env);
+		env.getJdbcTemplate().update("UPDATE " + TABLE_NAME + " SET status = ?, attempts = ?, nextattempt = now() + ? * interval '1 second', lasterror = ? WHERE id = ?", QueuedProcessExecution.STATUS_PENDING, attempts, delaySeconds, error, id);
+	}
+
+	/**
+	 * Moves a failed execution to the dead-letter list, where it stays until it is retried or deleted manually.
+	 * @param id
+	 * @param attempts
+	 * @param error
+	 * @param env
+	 * @throws KommetException
+	 */
+	public void markDead (Long id, int attempts, String error, EnvData env) throws KommetException
+	{
+		tableInitializer.initTables(env);
+		env.getJdbcTemplate().update("UPDATE " + TABLE_NAME + " SET status = ?, attempts = ?, lasterror = ? WHERE id = ?", QueuedProcessExecution.STATUS_DEAD, attempts, error, id);
+	}
+
+	/**
+	 * Moves an execution from the dead-letter list back to the queue.
+	 * @param id
+	 * @param env
+	 * @return false if there is no such dead execution
+	 * @throws KommetException
+	 */
+	public boolean requeueDead (Long id, EnvData env) throws KommetException
+	{
+		tableInitializer.initTables(env);
+		return env.getJdbcTemplate().update("UPDATE " + TABLE_NAME + " SET status = ?, attempts = 0, nextattempt = now() WHERE id = ? AND status = ?", QueuedProcessExecution.STATUS_PENDING, id, QueuedProcessExecution.STATUS_DEAD) > 0;
+	}
+
+	/**
+	 * Deletes an execution from the dead-letter list.
+	 * @param id
+	 * @param env
+	 * @return false if there is no such dead execution
+	 * @throws KommetException
+	 */
+	public boolean deleteDead (Long id, EnvData env) throws KommetException
+	{
+		tableInitializer.initTables(env);
+		return env.getJdbcTemplate().update("DELETE FROM " + TABLE_NAME + " WHERE id = ? AND status = ?", id, QueuedProcessExecution.STATUS_DEAD) > 0;
+	}
+
+	/**
+	 * Returns executions of the given process in the dead-letter list, most recent first.
+	 * @param processId
+	 * @param limit
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	public List<QueuedProcessExecution> getDead (KID processId, int limit, EnvData env) throws KommetException
+	{
+		tableInitializer.initTables(env);
+		return getExecutions(env.getJdbcTemplate().queryForRowSet("SELECT " + COLUMNS + " FROM " + TABLE_NAME + " WHERE processid = ? AND status = ? ORDER BY createddate DESC LIMIT ?", processId.getId(), QueuedProcessExecution.STATUS_DEAD, limit));
+	}
+
+	/**
+	 * Returns the number of executions of the given process waiting in the queue or being executed.
+	 * @param processId
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	public int getQueuedCount (KID processId, EnvData env) throws KommetException
+	{
+		tableInitializer.initTables(env);
+		return env.getJdbcTemplate().queryForObject("SELECT count(id) FROM " + TABLE_NAME + " WHERE processid = ? AND status IN (?, ?)", Integer.class, processId.getId(), QueuedProcessExecution.STATUS_PENDING, QueuedProcessExecution.STATUS_RUNNING);
+	}
+
+	private static List<QueuedProcessExecution> getExecutions (SqlRowSet rowSet) throws KommetException
+	{
+		List<QueuedProcessExecution> executions = new ArrayList<QueuedProcessExecution>();
+
+		while (rowSet.next())
+		{
+			QueuedProcessExecution execution = new QueuedProcessExecution();
+			execution.setId(rowSet.getLong("id"));
+			execution.setProcessId(KID.get(rowSet.getString("processid")));
+			execution.setRecordId(KID.get(rowSet.getString("recordid")));
+			execution.setUserId(KID.get(rowSet.getString("userid")));
+			execution.setStatus(rowSet.getString("status"));
+			execution.setAttempts(rowSet.getInt("attempts"));
+			execution.setNextAttemptDate(new Date(rowSet.getTimestamp("nextattempt").getTime()));
+			execution.setCreatedDate(new Date(rowSet.getTimestamp("createddate").getTime()));
+			execution.setLastError(rowSet.getString("lasterror"));
+			executions.add(execution);
+		}
+
+		return executions;
+	}
+}
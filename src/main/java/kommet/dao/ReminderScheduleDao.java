@@ -0,0 +1,144 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.dao;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+import org.springframework.stereotype.Repository;
+
+import kommet.data.KID;
+import kommet.data.KommetException;
+import kommet.env.EnvData;
+import kommet.reminders.ScheduledReminder;
+import kommet.utils.MiscUtils;
+
+/**
+ * Keeps the time when each reminder that has not been sent yet is due, in a table indexed by this time,
+ * so that reminders can be found by their due time without evaluating every reminder.
+ *
+ * @author Radek Krawiec
+ */
+@Repository
+public class ReminderScheduleDao
+{
+	private static final String TABLE_NAME = "reminderschedule";
+
+	private static final String COLUMNS = "reminderid, recordid, referencedfield, intervalunit, intervalvalue, nextfire";
+
+	@Inject
+	EnvTableInitializer tableInitializer;
+
+	/**
+	 * Inserts the schedule entry, or updates it if an entry for the reminder already exists.
+	 * @param entry
+	 * @param env
+	 * @throws KommetException
+	 */
+	public void save (ScheduledReminder entry, EnvData env) throws KommetException
+	{
+		tableInitializer.initTables(env);
+
+		StringBuilder sql = new StringBuilder();
+		sql.append("INSERT INTO ").append(TABLE_NAME).append(" (").append(COLUMNS).append(") VALUES (?, ?, ?, ?, ?, ?) ");
+		sql.append("ON CONFLICT (reminderid) DO UPDATE SET recordid = excluded.recordid, referencedfield = excluded.referencedfield, ");
+		sql.append("intervalunit = excluded.intervalunit, intervalvalue = excluded.intervalvalue, nextfire = excluded.nextfire");
+
+		env.getJdbcTemplate().update(sql.toString(), entry.getReminderId().getId(), entry.getRecordId().getId(), entry.getReferencedField().getId(), entry.getIntervalUnit(), entry.getIntervalValue(), toTimestamp(entry.getNextFire()));
+	}
+
+	public void updateNextFire (KID reminderId, Date nextFire, EnvData env) throws KommetException
+	{
+		tableInitializer.initTables(env);
+		env.getJdbcTemplate().update("UPDATE " + TABLE_NAME + " SET nextfire = ? WHERE reminderid = ?", toTimestamp(nextFire), reminderId.getId());
+	}
+
+	public void delete (Collection<KID> reminderIds, EnvData env) throws KommetException
+	{
+		if (reminderIds.isEmpty())
+		{
+			return;
+		}
+
+		tableInitializer.initTables(env);
+
+		List<String> ids = new ArrayList<String>();
+		List<String> placeholders = new ArrayList<String>();
+		for (KID id : reminderIds)
+		{
+			ids.add(id.getId());
+			placeholders.add("?");
+		}
+
+		env.getJdbcTemplate().update("DELETE FROM " + TABLE_NAME + " WHERE reminderid IN (" + MiscUtils.implode(placeholders, ", ") + ")", ids.toArray());
+	}
+
+	public void deleteAll (EnvData env) throws KommetException
+	{
+		tableInitializer.initTables(env);
+		env.getJdbcTemplate().update("DELETE FROM " + TABLE_NAME);
+	}
+
+	/**
+	 * Returns reminders due before the given time, including reminders whose due time has already passed.
+	 * @param until
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	public List<ScheduledReminder> getDue (Date until, EnvData env) throws KommetException
+	{
+		tableInitializer.initTables(env);
+		return getEntries(env.getJdbcTemplate().queryForRowSet("SELECT " + COLUMNS + " FROM " + TABLE_NAME + " WHERE nextfire < ? ORDER BY nextfire", toTimestamp(until)));
+	}
+
+	/**
+	 * Returns schedule entries of reminders referencing the given record.
+	 * @param recordId
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	public List<ScheduledReminder> getByRecord (KID recordId, EnvData env) throws KommetException
+	{
+		tableInitializer.initTables(env);
+		return getEntries(env.getJdbcTemplate().queryForRowSet("SELECT " + COLUMNS + " FROM " + TABLE_NAME + " WHERE recordid = ?", recordId.getId()));
+	}
+
+	private static Timestamp toTimestamp (Date date)
+	{
+		return date != null ? new Timestamp(date.getTime()) : null;
+	}
+
+	private static List<ScheduledReminder> getEntries (SqlRowSet rowSet) throws KommetException
+	{
+		List<ScheduledReminder> entries = new ArrayList<ScheduledReminder>();
+
+		while (rowSet.next())
+		{
+			ScheduledReminder entry = new ScheduledReminder();
+			entry.setReminderId(KID.get(rowSet.getString("reminderid")));
+			entry.setRecordId(KID.get(rowSet.getString("recordid")));
+			entry.setReferencedField(KID.get(rowSet.getString("referencedfield")));
+			entry.setIntervalUnit(rowSet.getString("intervalunit"));
+			entry.setIntervalValue(rowSet.getInt("intervalvalue"));
+
+			Timestamp nextFire = rowSet.getTimestamp("nextfire");
+			entry.setNextFire(nextFire != null ? new Date(nextFire.getTime()) : null);
+			entries.add(entry);
+		}
+
+		return entries;
+	}
+}
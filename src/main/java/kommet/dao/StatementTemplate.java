@@ -0,0 +1,116 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import kommet.data.Field;
+import kommet.data.KommetException;
+import kommet.data.Record;
+import kommet.data.Type;
+
+/**
+ * An insert/update/delete statement with bind parameters generated for a given type and set of columns.
+ *
+ * The first bind parameters of the statement correspond to the columns of the template, in the order
+ * in which they are returned by {@link #getColumns()}. Additional parameters (e.g. record ID in the where clause)
+ * follow them and are passed by the query that executes the statement.
+ *
+ * Templates do not depend on the values of the record, so they are cached on the {@link TypePersistenceMapping}
+ * and the same SQL is sent to the database each time a record of the given type is saved.
+ *
+ * @author Radek Krawiec
+ */
+public class StatementTemplate
+{
+	private final String sql;
+	private final List<ColumnMapping> columns;
+
+	public StatementTemplate (String sql, List<ColumnMapping> columns)
+	{
+		this.sql = sql;
+		this.columns = Collections.unmodifiableList(new ArrayList<ColumnMapping>(columns));
+	}
+
+	/**
+	 * Returns the values of the template's columns read from the given record and converted to bind values.
+	 * @param record
+	 * @return
+	 * @throws KommetException
+	 */
+	public List<Object> getParameters (Record record) throws KommetException
+	{
+		List<Object> params = new ArrayList<Object>();
+		Type type = record.getType();
+
+		for (ColumnMapping colMapping : this.columns)
+		{
+			Field field = type.getField(colMapping.getProperty());
+
+			try
+			{
+				params.add(field.getDataType().getPostgresBindValue(record.getField(colMapping.getProperty(), true)));
+			}
+			catch (Exception e)
+			{
+				throw new KommetException("Error reading value for property '" + colMapping.getProperty() + "'. Nested: " + e.getMessage());
+			}
+		}
+
+		return params;
+	}
+
+	/**
+	 * Returns bind values of a multi-row statement, record after record. Columns not set on a record
+	 * are skipped, because the statement inserts the column's default value for them instead of a bind parameter.
+	 * @param records
+	 * @return
+	 * @throws KommetException
+	 */
+	public List<Object> getParameters (List<Record> records) throws KommetException
+	{
+		List<Object> params = new ArrayList<Object>();
+
+		for (Record record : records)
+		{
+			Type type = record.getType();
+
+			for (ColumnMapping colMapping : this.columns)
+			{
+				Object value = record.attemptGetField(colMapping.getProperty());
+				if (value == null)
+				{
+					continue;
+				}
+
+				try
+				{
+					params.add(type.getField(colMapping.getProperty()).getDataType().getPostgresBindValue(value));
+				}
+				catch (Exception e)
+				{
+					throw new KommetException("Error reading value for property '" + colMapping.getProperty() + "'. Nested: " + e.getMessage());
+				}
+			}
+		}
+
+		return params;
+	}
+
+	public String getSql()
+	{
+		return sql;
+	}
+
+	public List<ColumnMapping> getColumns()
+	{
+		return columns;
+	}
+}
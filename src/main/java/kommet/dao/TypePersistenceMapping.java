@@ -14,6 +14,8 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 import javax.sql.rowset.serial.SerialArray;
 import javax.sql.rowset.serial.SerialException;
@@ -51,6 +53,11 @@ public class TypePersistenceMapping extends PersistenceMapping
 	protected EnvData envData;
 	protected Type type;
 	
+	/**
+	 * Insert/update/delete statement templates for this type, keyed by operation and column set
+	 */
+	private final ConcurrentHashMap<String, StatementTemplate> statementTemplates = new ConcurrentHashMap<String, StatementTemplate>();
+	
 	// private static final Logger log = LoggerFactory.getLogger(TypePersistenceMapping.class);
 	
 	public TypePersistenceMapping (Type type, EnvData env) throws KommetException
@@ -396,6 +403,18 @@ public class TypePersistenceMapping extends PersistenceMapping
 		return this.type;
 	}
 	
+	/**
+	 * Returns the statement template stored under the given key, creating it with the given function
+	 * if it has not been generated before.
+	 * @param key
+	 * @param generator
+	 * @return
+	 */
+	public StatementTemplate getStatementTemplate (String key, Function<String, StatementTemplate> generator)
+	{
+		return this.statementTemplates.computeIfAbsent(key, generator);
+	}
+	
 	public InsertQuery createInsertQuery(EnvData env)
 	{
 		return new InsertQuery(this, env);
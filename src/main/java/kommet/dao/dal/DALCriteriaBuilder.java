@@ -24,6 +24,7 @@ import kommet.dao.queries.Restriction;
 import kommet.dao.queries.RestrictionOperator;
 import kommet.dao.queries.SortDirection;
 import kommet.data.Field;
+import kommet.data.KID;
 import kommet.data.NoSuchFieldException;
 import kommet.data.KommetException;
 import kommet.data.datatypes.DataType;
@@ -63,86 +64,29 @@ public class DALCriteriaBuilder
 	 */
 	public static Criteria getSelectCriteriaFromDAL (String dalQuery, AuthData authData, EnvData env) throws KommetException
 	{
-		// copy instance of the query
-		String dal = new String(dalQuery).trim();
-		
-		// normalize commas and brackets
-		dal = DALCriteriaBuilder.format(dal);
-		
-		// split into tokens: words, quoted strings and brackets are treated as separate tokens
-		List<String> tokens = DALCriteriaBuilder.tokenize(dal);
+		return getSelectCriteriaFromDAL(DALTokenizedQuery.tokenize(dalQuery), authData, env);
+	}
+	
+	/**
+	 * Create a criteria from a tokenized DAL query.
+	 * 
+	 * @param query - the tokenized DAL query
+	 * @param env - the environment in which the DAL query is executed
+	 * @return
+	 * @throws KommetException
+	 */
+	public static Criteria getSelectCriteriaFromDAL (DALTokenizedQuery query, AuthData authData, EnvData env) throws KommetException
+	{
+		List<String> tokens = query.getTokens();
+		String dalQuery = query.getQuery();
 		
 		// Build criteria analyzing the DAL from the beginning until the start of the WHERE clause
 		// The returned criteria has the object and select fields set.
-		Criteria c = DALCriteriaBuilder.getCriteriaForSelectClause(tokens, authData, env, dalQuery);
-		
-		// find the position of the WHERE keyword
-		Integer whereKeywordPos = null;
+		Criteria c = DALCriteriaBuilder.getCriteriaForSelectClause(tokens, query.getTypeId(), authData, env, dalQuery);
 		
-		for (int i = 0; i < tokens.size(); i++)
+		if (query.getWhereKeywordPos() == null)
 		{
-			if (tokens.get(i).toLowerCase().equals("where"))
-			{
-				whereKeywordPos = i;
-				break;
-			}
-		}
-		
-		Integer limitKeywordPos = null;
-		Integer offsetKeywordPos = null;
-		Integer orderByKeywordPos = null;
-		Integer whereClauseEnd = null;
-		Integer groupByKeywordPos = null;
-		
-		// find limit, offset, group by and order by keywords
-		for (int i = (whereKeywordPos != null ? whereKeywordPos + 1 : 0); i < tokens.size(); i++)
-		{
-			String token = tokens.get(i).toLowerCase();
-			if (token.equals("limit"))
-			{
-				limitKeywordPos = i;
-				whereClauseEnd = whereClauseEnd == null ? i - 1 : whereClauseEnd;
-			}
-			else if (token.equals("offset"))
-			{
-				offsetKeywordPos = i;
-				
-				// set the whereClauseEnd position only if not already set
-				whereClauseEnd = whereClauseEnd == null ? i - 1 : whereClauseEnd; 
-			}
-			else if (token.equals("order"))
-			{
-				if ((i + 1) >= tokens.size())
-				{
-					throw new DALSyntaxException("Last token in query is ORDER");
-				}
-				else if (tokens.get(i + 1).toLowerCase().equals("by"))
-				{
-					orderByKeywordPos = i;
-					
-					// set the whereClauseEnd position only if not already set
-					whereClauseEnd = whereClauseEnd == null ? i - 1 : whereClauseEnd;
-				}
-			}
-			else if (token.equals("group"))
-			{
-				if ((i + 1) >= tokens.size())
-				{
-					throw new DALSyntaxException("Last token in query is GROUP");
-				}
-				else if (tokens.get(i + 1).toLowerCase().equals("by"))
-				{
-					groupByKeywordPos = i;
-					
-					// set the whereClauseEnd position only if not already set
-					whereClauseEnd = whereClauseEnd == null ? i - 1 : whereClauseEnd;
-				}
-			}
-		}
-		
-		if (whereKeywordPos == null)
-		{
-			if (limitKeywordPos == null && orderByKeywordPos == null && offsetKeywordPos == null && groupByKeywordPos == null)
+			if (!query.hasClauses())
 			{	
 				checkSelectFieldsAgainstAggregationAndGrouping(c);
 				
@@ -154,15 +98,13 @@ public class DALCriteriaBuilder
 		else
 		{	
 			// analyze the where clause and add conditions to criteria
-			c = DALCriteriaBuilder.addCriteriaConditionsFromDAL (c, tokens, whereKeywordPos, whereClauseEnd != null ? whereClauseEnd : tokens.size() - 1, dalQuery, authData, env);
+			c = DALCriteriaBuilder.addCriteriaConditionsFromDAL (c, tokens, query.getWhereKeywordPos(), query.getWhereClauseEnd(), dalQuery, authData, env);
 		}
 		
-		checkKeywordOrder(tokens, whereKeywordPos, orderByKeywordPos, limitKeywordPos, offsetKeywordPos, groupByKeywordPos);
-		
 		// handle GROUP BY keyword
-		if (groupByKeywordPos != null)
+		if (query.getGroupByKeywordPos() != null)
 		{		
-			parseGroupByClause(c, tokens, groupByKeywordPos, orderByKeywordPos != null ? orderByKeywordPos : (limitKeywordPos != null ? limitKeywordPos : offsetKeywordPos));
+			parseGroupByClause(c, tokens, query.getGroupByKeywordPos(), query.getGroupByClauseEnd());
 		}
 		
 		// after group by clauses have been processed, we can check whether all properties
@@ -170,98 +112,23 @@ public class DALCriteriaBuilder
 		checkSelectFieldsAgainstAggregationAndGrouping(c);
 		
 		// handle ORDER BY keyword
-		if (orderByKeywordPos != null)
+		if (query.getOrderByKeywordPos() != null)
 		{		
-			parseOrderByClause(c, tokens, orderByKeywordPos, limitKeywordPos != null ? limitKeywordPos : offsetKeywordPos);
+			parseOrderByClause(c, tokens, query.getOrderByKeywordPos(), query.getOrderByClauseEnd());
 		}
 		
-		// handle LIMIT keyword
-		if (limitKeywordPos != null)
+		if (query.getLimit() != null)
 		{
-			if (tokens.size() >= limitKeywordPos)
-			{
-				try
-				{
-					Integer limit = Integer.parseInt(tokens.get(limitKeywordPos + 1));
-					c.setLimit(limit);
-				}
-				catch (NumberFormatException e)
-				{
-					throw new DALSyntaxException("Expected an integer after the LIMIT keyword, encountered '" + tokens.get(limitKeywordPos + 1));
-				}
-			}
-			else
-			{
-				throw new DALSyntaxException("Row limit expected after the LIMIT keyword");
-			}
+			c.setLimit(query.getLimit());
 		}
 		
-		// handle OFFSET keyword
-		if (offsetKeywordPos != null)
+		if (query.getOffset() != null)
 		{
-			if (tokens.size() >= offsetKeywordPos)
-			{
-				try
-				{
-					Integer offset = Integer.parseInt(tokens.get(offsetKeywordPos + 1));
-					c.setOffset(offset);
-				}
-				catch (NumberFormatException e)
-				{
-					throw new DALSyntaxException("Expected an integer after the OFFSET keyword, encountered '" + tokens.get(limitKeywordPos + 1));
-				}
-			}
-			else
-			{
-				throw new DALSyntaxException("Row offset expected after the OFFSET keyword");
-			}
+			c.setOffset(query.getOffset());
 		}
 		
 		return c;
 	}
-	
-	/**
-	 * Makes sure keywords are in correct order
-	 * @param whereKeywordPos
-	 * @param orderByKeywordPos
-	 * @param limitKeywordPos
-	 * @param offsetKeywordPos
-	 * @param offsetKeywordPos2 
-	 * @throws DALSyntaxException 
-	 */
-	private static void checkKeywordOrder(List<String> tokens, Integer whereKeywordPos, Integer orderByKeywordPos, Integer limitKeywordPos, Integer offsetKeywordPos, Integer groupByKeywordPos) throws DALSyntaxException
-	{
-		List<Integer> positions = new ArrayList<Integer>();
-		positions.add(whereKeywordPos);
-		positions.add(groupByKeywordPos);
-		positions.add(orderByKeywordPos);
-		positions.add(limitKeywordPos);
-		positions.add(offsetKeywordPos);
-		
-		int max = -1;
-		for (Integer pos : positions)
-		{
-			if (pos == null)
-			{
-				continue;
-			}
-			
-			if (max == -1)
-			{
-				max = pos;
-			}
-			else
-			{
-				if (max >= pos)
-				{
-					throw new DALSyntaxException("Misplaced token " + tokens.get(pos) + ". Clauses in query should appear in the following order: WHERE, GROUP BY, ORDER BY, LIMIT, OFFSET");
-				}
-				
-				max = pos;
-			}
-				
-		}
-	}
 
 	/**
 	 * If aggregate functions are used, this method checks if all fields in the SELECT clause are either
@@ -423,7 +290,44 @@ public class DALCriteriaBuilder
 		return results;
 	}
 	
-	private static Criteria getCriteriaForSelectClause(List<String> tokens, AuthData authData, EnvData env, String dalQuery) throws KommetException
+	/**
+	 * Tells whether the character is an operator that is always tokenized separately from other characters.
+	 * @param c
+	 * @return
+	 */
+	static boolean isOperator (char c)
+	{
+		return operators.contains(c);
+	}
+	
+	/**
+	 * Finds the type referenced in the FROM clause of a DAL query. Types must be referenced by their qualified names
+	 * unless they are placed in the base package of the env or in the base package of system types.
+	 * @param typeName
+	 * @param env
+	 * @return the type's mapping, or null if no type with the given name exists
+	 * @throws KommetException
+	 */
+	static TypePersistenceMapping getTypeMappingByName (String typeName, EnvData env) throws KommetException
+	{
+		TypePersistenceMapping typeMapping = env.getTypeMappingByApiName(typeName);
+		
+		// if not found, try with base package
+		if (typeMapping == null && !typeName.contains("."))
+		{
+			typeMapping = env.getTypeMappingByApiName(env.getEnv().getBasePackage() + "." + typeName);
+			
+			if (typeMapping == null)
+			{
+				// try with base package for system types
+				typeMapping = env.getTypeMappingByApiName(AppConfig.BASE_TYPE_PACKAGE + "." + typeName);
+			}
+		}
+		
+		return typeMapping;
+	}
+	
+	private static Criteria getCriteriaForSelectClause(List<String> tokens, KID typeId, AuthData authData, EnvData env, String dalQuery) throws KommetException
 	{
 		// make sure the query starts with a SELECT keyword
 		if (!tokens.get(0).toLowerCase().equals("select"))
@@ -539,9 +443,13 @@ public class DALCriteriaBuilder
 		// the next word after the WHERE keyword should be the main entities API name
 		String mainTypeApiName = tokens.get(fromKeywordPos + 1).trim();
 		
-		// in DAL queries, types must be referenced by their full qualified user specific names
-		// unless they are placed in the base package of the env
-		TypePersistenceMapping mainQueryTypeMapping = env.getTypeMappingByApiName(mainTypeApiName);
+		// use the type resolved when the query was compiled, if it still exists
+		TypePersistenceMapping mainQueryTypeMapping = typeId != null ? env.getTypeMapping(typeId) : null;
+		
+		if (mainQueryTypeMapping == null)
+		{
+			mainQueryTypeMapping = getTypeMappingByName(mainTypeApiName, env);
+		}
 		
 		// check all aggregate function properties if they are not collections
 		for (AggregateFunctionCall aggr : aggregateFunctions)
@@ -552,20 +460,6 @@ public class DALCriteriaBuilder
 			}
 		}
 		
-		// if not found, try with base package
-		if (mainQueryTypeMapping == null && !mainTypeApiName.contains("."))
-		{
-			String basePackageName = env.getEnv().getBasePackage() + "." + mainTypeApiName;
-			mainQueryTypeMapping = env.getTypeMappingByApiName(basePackageName);
-			
-			if (mainQueryTypeMapping == null)
-			{
-				// try with base package for system types
-				basePackageName = AppConfig.BASE_TYPE_PACKAGE + "." + mainTypeApiName;
-				mainQueryTypeMapping = env.getTypeMappingByApiName(basePackageName);
-			}
-		}
-		
 		if (mainQueryTypeMapping == null)
 		{
 			throw new DALSyntaxException("No type found with API name " + mainTypeApiName + " in query: " + dalQuery + ". Remember API names are case-sensitive");
@@ -745,7 +639,7 @@ public class DALCriteriaBuilder
 					
 					if (isSubqueryInBracket)
 					{
-						Criteria subcriteria = DALCriteriaBuilder.getSelectCriteriaFromDAL(subquery.toString().trim(), authData, env);
+						Criteria subcriteria = env.getSelectCriteriaFromDAL(subquery.toString().trim(), authData);
 						subcriteria.setSubquery(true);
 						r.setValue(subcriteria);
 					}
@@ -0,0 +1,486 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.dao.dal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import kommet.dao.TypePersistenceMapping;
+import kommet.data.KID;
+import kommet.data.KommetException;
+import kommet.env.EnvData;
+
+/**
+ * Tokenized DAL query - its tokens, the positions of its clauses, its limit and offset and, if it has been
+ * compiled by {@link DALTokenizedQueryCache}, the type it selects from.
+ *
+ * A query compiled from a query shape - the text of the query with its string and number literals replaced
+ * with placeholders - is a template that can be bound to the literals of any query with the same shape.
+ * Because the type of the template is resolved when it is compiled, templates must be discarded when types change.
+ * Everything else - resolving fields, building criteria and generating SQL - is done each time criteria are built
+ * by {@link DALCriteriaBuilder#getSelectCriteriaFromDAL(DALTokenizedQuery, kommet.auth.AuthData, kommet.env.EnvData)}.
+ *
+ * @author Radek Krawiec
+ */
+public class DALTokenizedQuery
+{
+	private static final String STRING_PLACEHOLDER = "'?'";
+	private static final String NUMBER_PLACEHOLDER = "?";
+
+	private final String query;
+	private final List<String> tokens;
+	private Integer whereKeywordPos;
+	private Integer whereClauseEnd;
+	private Integer groupByKeywordPos;
+	private Integer orderByKeywordPos;
+	private Integer limitKeywordPos;
+	private Integer offsetKeywordPos;
+	private Integer limit;
+	private Integer offset;
+
+	// positions of placeholder tokens, set only on templates
+	private List<Integer> placeholderPositions;
+
+	// ID of the type the query selects from, set only on templates
+	private KID typeId;
+
+	private DALTokenizedQuery (String query, List<String> tokens)
+	{
+		this.query = query;
+		this.tokens = Collections.unmodifiableList(tokens);
+	}
+
+	/**
+	 * Tokenizes the DAL query and finds the positions of its clauses.
+	 * @param dalQuery
+	 * @return
+	 * @throws KommetException
+	 */
+	public static DALTokenizedQuery tokenize (String dalQuery) throws KommetException
+	{
+		// normalize commas and brackets
+		String dal = DALCriteriaBuilder.format(dalQuery.trim());
+
+		// split into tokens: words, quoted strings and brackets are treated as separate tokens
+		DALTokenizedQuery query = new DALTokenizedQuery(dalQuery, DALCriteriaBuilder.tokenize(dal));
+		query.findClauses();
+		query.parseLimitAndOffset();
+		return query;
+	}
+
+	/**
+	 * Returns the shape of the DAL query - its text with string literals replaced with '?' and number literals
+	 * replaced with ?, together with the replaced literals in the order in which they appear in the query.
+	 *
+	 * Returns null if the query cannot be reliably split into a shape and literals, e.g. when it contains
+	 * an unterminated string or a question mark outside of a string.
+	 * @param dalQuery
+	 * @return
+	 */
+	public static Shape getShape (String dalQuery)
+	{
+		String dal = DALCriteriaBuilder.format(dalQuery.trim());
+		StringBuilder shape = new StringBuilder(dal.length());
+		List<String> literals = new ArrayList<String>();
+
+		int i = 0;
+		while (i < dal.length())
+		{
+			char c = dal.charAt(i);
+
+			// quotes are recognized the same way as by the tokenizer - a quote preceded by a backslash does not start or end a string
+			if (c == '\'' && (i == 0 || dal.charAt(i - 1) != '\\'))
+			{
+				int end = i + 1;
+				while (end < dal.length() && (dal.charAt(end) != '\'' || dal.charAt(end - 1) == '\\'))
+				{
+					end++;
+				}
+
+				if (end >= dal.length())
+				{
+					return null;
+				}
+
+				literals.add(dal.substring(i, end + 1));
+				shape.append(STRING_PLACEHOLDER);
+				i = end + 1;
+			}
+			else if (c == '?')
+			{
+				return null;
+			}
+			else if (Character.isDigit(c) && (i == 0 || isTokenBreak(dal.charAt(i - 1))))
+			{
+				int end = i;
+				while (end < dal.length() && (Character.isDigit(dal.charAt(end)) || dal.charAt(end) == '.'))
+				{
+					end++;
+				}
+
+				// digits that are part of a word, e.g. a property name, are not a literal
+				if (end < dal.length() && !isTokenBreak(dal.charAt(end)))
+				{
+					shape.append(dal, i, end);
+				}
+				else
+				{
+					literals.add(dal.substring(i, end));
+					shape.append(NUMBER_PLACEHOLDER);
+				}
+				i = end;
+			}
+			else
+			{
+				shape.append(c);
+				i++;
+			}
+		}
+
+		return new Shape(shape.toString(), literals);
+	}
+
+	/**
+	 * Tells whether the character always ends a token that precedes it and starts a new one.
+	 */
+	private static boolean isTokenBreak (char c)
+	{
+		return Character.isWhitespace(c) || c == '(' || c == ')' || c == ',' || DALCriteriaBuilder.isOperator(c);
+	}
+
+	/**
+	 * Compiles a template from a query shape. The type the query selects from is resolved, so the template
+	 * is valid only until types in the environment change.
+	 *
+	 * Returns null if placeholders in the shape do not correspond to its literals, in which case
+	 * the query should be tokenized without a template.
+	 * @param shape
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	public static DALTokenizedQuery compile (Shape shape, EnvData env) throws KommetException
+	{
+		DALTokenizedQuery template = new DALTokenizedQuery(shape.getText(), DALCriteriaBuilder.tokenize(shape.getText()));
+		template.findClauses();
+
+		template.placeholderPositions = new ArrayList<Integer>();
+		for (int i = 0; i < template.tokens.size(); i++)
+		{
+			String token = template.tokens.get(i);
+			if (token.equals(STRING_PLACEHOLDER) || token.equals(NUMBER_PLACEHOLDER))
+			{
+				template.placeholderPositions.add(i);
+			}
+		}
+
+		if (template.placeholderPositions.size() != shape.getLiterals().size())
+		{
+			return null;
+		}
+
+		// the type name is the token after the first FROM keyword, which is never a placeholder
+		for (int i = 1; i < template.tokens.size() - 1; i++)
+		{
+			if (template.tokens.get(i).toLowerCase().equals("from"))
+			{
+				TypePersistenceMapping typeMapping = DALCriteriaBuilder.getTypeMappingByName(template.tokens.get(i + 1).trim(), env);
+				template.typeId = typeMapping != null ? typeMapping.getType().getKID() : null;
+				break;
+			}
+		}
+
+		return template;
+	}
+
+	/**
+	 * Creates a tokenized query from this template by replacing its placeholders with the given literals.
+	 * @param dalQuery text of the query whose literals are bound
+	 * @param literals literals returned with the shape of the query
+	 * @return
+	 * @throws KommetException
+	 */
+	public DALTokenizedQuery bind (String dalQuery, List<String> literals) throws KommetException
+	{
+		List<String> boundTokens = new ArrayList<String>(this.tokens);
+		for (int i = 0; i < this.placeholderPositions.size(); i++)
+		{
+			boundTokens.set(this.placeholderPositions.get(i), literals.get(i));
+		}
+
+		DALTokenizedQuery query = new DALTokenizedQuery(dalQuery, boundTokens);
+		query.whereKeywordPos = this.whereKeywordPos;
+		query.whereClauseEnd = this.whereClauseEnd;
+		query.groupByKeywordPos = this.groupByKeywordPos;
+		query.orderByKeywordPos = this.orderByKeywordPos;
+		query.limitKeywordPos = this.limitKeywordPos;
+		query.offsetKeywordPos = this.offsetKeywordPos;
+		query.typeId = this.typeId;
+		query.parseLimitAndOffset();
+		return query;
+	}
+
+	/**
+	 * Finds the positions of the query's clauses and makes sure they are in correct order.
+	 * @throws KommetException
+	 */
+	private void findClauses() throws KommetException
+	{
+		// find the position of the WHERE keyword
+		for (int i = 0; i < tokens.size(); i++)
+		{
+			if (tokens.get(i).toLowerCase().equals("where"))
+			{
+				whereKeywordPos = i;
+				break;
+			}
+		}
+
+		Integer whereClauseEnd = null;
+
+		// find limit, offset, group by and order by keywords
+		for (int i = (whereKeywordPos != null ? whereKeywordPos + 1 : 0); i < tokens.size(); i++)
+		{
+			String token = tokens.get(i).toLowerCase();
+			if (token.equals("limit"))
+			{
+				limitKeywordPos = i;
+				whereClauseEnd = whereClauseEnd == null ? i - 1 : whereClauseEnd;
+			}
+			else if (token.equals("offset"))
+			{
+				offsetKeywordPos = i;
+
+				// set the whereClauseEnd position only if not already set
+				whereClauseEnd = whereClauseEnd == null ? i - 1 : whereClauseEnd;
+			}
+			else if (token.equals("order"))
+			{
+				if ((i + 1) >= tokens.size())
+				{
+					throw new DALSyntaxException("Last token in query is ORDER");
+				}
+				else if (tokens.get(i + 1).toLowerCase().equals("by"))
+				{
+					orderByKeywordPos = i;
+
+					// set the whereClauseEnd position only if not already set
+					whereClauseEnd = whereClauseEnd == null ? i - 1 : whereClauseEnd;
+				}
+			}
+			else if (token.equals("group"))
+			{
+				if ((i + 1) >= tokens.size())
+				{
+					throw new DALSyntaxException("Last token in query is GROUP");
+				}
+				else if (tokens.get(i + 1).toLowerCase().equals("by"))
+				{
+					groupByKeywordPos = i;
+
+					// set the whereClauseEnd position only if not already set
+					whereClauseEnd = whereClauseEnd == null ? i - 1 : whereClauseEnd;
+				}
+			}
+		}
+
+		this.whereClauseEnd = whereClauseEnd != null ? whereClauseEnd : tokens.size() - 1;
+
+		if (hasClauses())
+		{
+			checkKeywordOrder();
+		}
+	}
+
+	/**
+	 * Reads the values of the LIMIT and OFFSET clauses.
+	 * @throws DALSyntaxException
+	 */
+	private void parseLimitAndOffset() throws DALSyntaxException
+	{
+		// handle LIMIT keyword
+		if (limitKeywordPos != null)
+		{
+			if (tokens.size() >= limitKeywordPos)
+			{
+				try
+				{
+					limit = Integer.parseInt(tokens.get(limitKeywordPos + 1));
+				}
+				catch (NumberFormatException e)
+				{
+					throw new DALSyntaxException("Expected an integer after the LIMIT keyword, encountered '" + tokens.get(limitKeywordPos + 1));
+				}
+			}
+			else
+			{
+				throw new DALSyntaxException("Row limit expected after the LIMIT keyword");
+			}
+		}
+
+		// handle OFFSET keyword
+		if (offsetKeywordPos != null)
+		{
+			if (tokens.size() >= offsetKeywordPos)
+			{
+				try
+				{
+					offset = Integer.parseInt(tokens.get(offsetKeywordPos + 1));
+				}
+				catch (NumberFormatException e)
+				{
+					throw new DALSyntaxException("Expected an integer after the OFFSET keyword, encountered '" + tokens.get(offsetKeywordPos + 1));
+				}
+			}
+			else
+			{
+				throw new DALSyntaxException("Row offset expected after the OFFSET keyword");
+			}
+		}
+	}
+
+	/**
+	 * Makes sure keywords are in correct order
+	 * @throws DALSyntaxException
+	 */
+	private void checkKeywordOrder() throws DALSyntaxException
+	{
+		List<Integer> positions = new ArrayList<Integer>();
+		positions.add(whereKeywordPos);
+		positions.add(groupByKeywordPos);
+		positions.add(orderByKeywordPos);
+		positions.add(limitKeywordPos);
+		positions.add(offsetKeywordPos);
+
+		int max = -1;
+		for (Integer pos : positions)
+		{
+			if (pos == null)
+			{
+				continue;
+			}
+
+			if (max == -1)
+			{
+				max = pos;
+			}
+			else
+			{
+				if (max >= pos)
+				{
+					throw new DALSyntaxException("Misplaced token " + tokens.get(pos) + ". Clauses in query should appear in the following order: WHERE, GROUP BY, ORDER BY, LIMIT, OFFSET");
+				}
+
+				max = pos;
+			}
+		}
+	}
+
+	/**
+	 * Tells whether the query contains any clauses after the FROM clause.
+	 * @return
+	 */
+	public boolean hasClauses()
+	{
+		return whereKeywordPos != null || limitKeywordPos != null || orderByKeywordPos != null || offsetKeywordPos != null || groupByKeywordPos != null;
+	}
+
+	/**
+	 * Returns the position of the keyword that follows the GROUP BY clause, or null if it is the last clause.
+	 * @return
+	 */
+	public Integer getGroupByClauseEnd()
+	{
+		return orderByKeywordPos != null ? orderByKeywordPos : (limitKeywordPos != null ? limitKeywordPos : offsetKeywordPos);
+	}
+
+	/**
+	 * Returns the position of the keyword that follows the ORDER BY clause, or null if it is the last clause.
+	 * @return
+	 */
+	public Integer getOrderByClauseEnd()
+	{
+		return limitKeywordPos != null ? limitKeywordPos : offsetKeywordPos;
+	}
+
+	public String getQuery()
+	{
+		return query;
+	}
+
+	public List<String> getTokens()
+	{
+		return tokens;
+	}
+
+	public Integer getWhereKeywordPos()
+	{
+		return whereKeywordPos;
+	}
+
+	public Integer getWhereClauseEnd()
+	{
+		return whereClauseEnd;
+	}
+
+	public Integer getGroupByKeywordPos()
+	{
+		return groupByKeywordPos;
+	}
+
+	public Integer getOrderByKeywordPos()
+	{
+		return orderByKeywordPos;
+	}
+
+	public Integer getLimit()
+	{
+		return limit;
+	}
+
+	public Integer getOffset()
+	{
+		return offset;
+	}
+
+	/**
+	 * Returns the ID of the type the query selects from, or null if the type has not been resolved
+	 * when the query was tokenized.
+	 * @return
+	 */
+	public KID getTypeId()
+	{
+		return typeId;
+	}
+
+	/**
+	 * Text of a DAL query with its literals replaced with placeholders, and the replaced literals.
+	 */
+	public static class Shape
+	{
+		private final String text;
+		private final List<String> literals;
+
+		public Shape (String text, List<String> literals)
+		{
+			this.text = text;
+			this.literals = literals;
+		}
+
+		public String getText()
+		{
+			return text;
+		}
+
+		public List<String> getLiterals()
+		{
+			return literals;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.dao.dal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import kommet.data.KommetException;
+import kommet.env.EnvData;
+
+/**
+ * Cache of compiled DAL queries, keyed by query shape.
+ *
+ * Literals in queries are replaced with placeholders before the query is looked up in the cache, so queries
+ * that differ only in literal values share one compiled template - its tokens, the positions of its clauses
+ * and the type it selects from. The template is then bound to the literals of each query.
+ *
+ * Templates depend on the types of the environment, so the cache has to be invalidated each time a type is created,
+ * modified, renamed or deleted. When its capacity is exceeded, the least recently used templates are removed.
+ *
+ * @author Radek Krawiec
+ */
+public class DALTokenizedQueryCache
+{
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	// access-ordered, so that the least recently used template is the first entry, guarded by this cache's lock
+	private final LinkedHashMap<String, DALTokenizedQuery> templates;
+
+	// incremented each time the cache is invalidated, guarded by this cache's lock
+	private long generation;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public DALTokenizedQueryCache()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	public DALTokenizedQueryCache (final int capacity)
+	{
+		this.templates = new LinkedHashMap<String, DALTokenizedQuery>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, DALTokenizedQuery> eldest)
+			{
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns the tokenized DAL query, compiling a template for its shape if it is not in the cache.
+	 * @param dalQuery
+	 * @param env the environment in which the query is executed
+	 * @return
+	 * @throws KommetException
+	 */
+	public DALTokenizedQuery get (String dalQuery, EnvData env) throws KommetException
+	{
+		DALTokenizedQuery.Shape shape = DALTokenizedQuery.getShape(dalQuery);
+		if (shape == null)
+		{
+			misses.incrementAndGet();
+			return DALTokenizedQuery.tokenize(dalQuery);
+		}
+
+		DALTokenizedQuery template;
+		long compiledGeneration;
+
+		synchronized (this)
+		{
+			template = templates.get(shape.getText());
+			compiledGeneration = generation;
+		}
+
+		if (template != null)
+		{
+			hits.incrementAndGet();
+			return template.bind(dalQuery, shape.getLiterals());
+		}
+
+		misses.incrementAndGet();
+
+		// compile outside of the lock - if two threads compile the same shape, they will produce equal templates
+		template = DALTokenizedQuery.compile(shape, env);
+		if (template == null)
+		{
+			return DALTokenizedQuery.tokenize(dalQuery);
+		}
+
+		synchronized (this)
+		{
+			// do not cache a template compiled against types that have changed in the meantime
+			if (compiledGeneration == generation)
+			{
+				templates.put(shape.getText(), template);
+			}
+		}
+
+		return template.bind(dalQuery, shape.getLiterals());
+	}
+
+	/**
+	 * Removes all templates from the cache. Called when types of the environment change, because templates
+	 * reference the types resolved when they were compiled.
+	 */
+	public synchronized void clear()
+	{
+		generation++;
+		templates.clear();
+	}
+
+	public synchronized int getSize()
+	{
+		return templates.size();
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+}
@@ -9,6 +9,7 @@ package kommet.dao.queries;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
@@ -32,6 +33,7 @@ import kommet.data.Record;
 import kommet.data.Type;
 import kommet.data.datatypes.AssociationDataType;
 import kommet.data.datatypes.InverseCollectionDataType;
+import kommet.data.datatypes.SpecialValue;
 import kommet.data.datatypes.TypeReference;
 import kommet.env.EnvData;
 import kommet.utils.MiscUtils;
@@ -106,6 +108,12 @@ public class Criteria
 	private Integer limit;
 	private Integer offset;
 	
+	/**
+	 * Tells whether records returned by the query should be returned in reverse order.
+	 * This is the case when records are read backwards using {@link #seekBefore(Object, KID)}.
+	 */
+	private boolean reverseResults = false;
+	
 	// counter used to give aliases consecutive numbers
 	private Integer aliasCounter = 0;
 	
@@ -387,7 +395,146 @@ public class Criteria
 	public List<Record> list() throws KommetException
 	{
 		SelectQuery query = SelectQuery.buildFromCriteria(this, this.nestedProperties, env);
-		return query.execute();
+		List<Record> records = query.execute();
+		
+		if (this.reverseResults)
+		{
+			Collections.reverse(records);
+		}
+		
+		return records;
+	}
+	
+	/**
+	 * Restricts the criteria to records that follow the given record in the order of the criteria.
+	 * <p>
+	 * This method is used for keyset pagination: the next page is read starting from the sort value and ID
+	 * of the last record of the previous page, instead of skipping all preceding records with an offset, so reading
+	 * a deep page costs the same as reading the first one. The criteria must be ordered by exactly one property, optionally
+	 * followed by ID in the same direction. If the ordering by ID is missing, it is added, so that the order of records is unique.
+	 * </p>
+	 * @param sortValue value of the sort property of the last record on the previous page
+	 * @param id ID of the last record on the previous page
+	 * @throws KommetException
+	 */
+	public void seekAfter (Object sortValue, KID id) throws KommetException
+	{
+		seek(sortValue, id, false);
+	}
+	
+	/**
+	 * Restricts the criteria to records that precede the given record in the order of the criteria.
+	 * Records nearest to the given one are read first, so with a limit this method returns the previous page.
+	 * The records are still returned by {@link #list()} in the order of the criteria.
+	 * @param sortValue value of the sort property of the first record on the next page
+	 * @param id ID of the first record on the next page
+	 * @throws KommetException
+	 */
+	public void seekBefore (Object sortValue, KID id) throws KommetException
+	{
+		seek(sortValue, id, true);
+	}
+	
+	private void seek (Object sortValue, KID id, boolean isBackward) throws KommetException
+	{
+		if (id == null)
+		{
+			throw new CriteriaException("Record ID is required to seek records");
+		}
+		
+		if (this.orderings == null || this.orderings.isEmpty() || this.orderings.size() > 2)
+		{
+			throw new CriteriaException("Seeking records requires the criteria to be ordered by exactly one property");
+		}
+		
+		OrderBy ordering = this.orderings.get(0);
+		String property = ordering.getProperty();
+		
+		if (this.orderings.size() == 2 && (!Field.ID_FIELD_NAME.equals(this.orderings.get(1).getProperty()) || !ordering.getOrder().equals(this.orderings.get(1).getOrder())))
+		{
+			throw new CriteriaException("Seeking records requires the criteria to be ordered by exactly one property, optionally followed by ID in the same direction");
+		}
+		
+		if (this.orderings.size() == 1 && !Field.ID_FIELD_NAME.equals(property))
+		{
+			// order by ID as well, so that records with the same sort value are always in the same order
+			addOrderBy(ordering.getOrder(), Field.ID_FIELD_NAME);
+		}
+		
+		if (isBackward)
+		{
+			// records preceding the given one are read by reversing the order, and then reversed again
+			// after they are retrieved
+			for (OrderBy orderBy : this.orderings)
+			{
+				orderBy.setOrder(SortDirection.ASC.equals(orderBy.getOrder()) ? SortDirection.DESC : SortDirection.ASC);
+			}
+			this.reverseResults = !this.reverseResults;
+		}
+		
+		boolean isAsc = SortDirection.ASC.equals(ordering.getOrder());
+		Restriction idRestriction = isAsc ? Restriction.gt(Field.ID_FIELD_NAME, id) : Restriction.lt(Field.ID_FIELD_NAME, id);
+		
+		if (Field.ID_FIELD_NAME.equals(property))
+		{
+			add(idRestriction);
+		}
+		// null values are sorted last in ascending order and first in descending order
+		else if (sortValue == null || SpecialValue.isNull(sortValue))
+		{
+			if (isAsc)
+			{
+				add(Restriction.and(Restriction.isNull(property), idRestriction));
+			}
+			else
+			{
+				add(Restriction.or(Restriction.and(Restriction.isNull(property), idRestriction), Restriction.not(Restriction.isNull(property))));
+			}
+		}
+		else
+		{
+			Restriction sortValueRestriction = isAsc ? Restriction.gt(property, sortValue) : Restriction.lt(property, sortValue);
+			Restriction sameSortValueRestriction = Restriction.and(Restriction.eq(property, sortValue), idRestriction);
+			
+			if (isAsc)
+			{
+				add(Restriction.or(sortValueRestriction, sameSortValueRestriction, Restriction.isNull(property)));
+			}
+			else
+			{
+				add(Restriction.or(sortValueRestriction, sameSortValueRestriction));
+			}
+		}
+	}
+	
+	/**
+	 * Streams records matching this criteria to the handler, reading them from a database cursor
+	 * in chunks of {@link SelectQuery#DEFAULT_FETCH_SIZE} rows.
+	 * @param handler
+	 * @throws KommetException
+	 */
+	public void forEach (RecordHandler handler) throws KommetException
+	{
+		forEach(handler, SelectQuery.DEFAULT_FETCH_SIZE);
+	}
+	
+	/**
+	 * Streams records matching this criteria to the handler, reading them from a database cursor
+	 * in chunks of the given size. Records are not collected in memory, so this method should be used
+	 * instead of {@link #list()} when very large numbers of records are processed.
+	 * @param handler
+	 * @param fetchSize number of rows fetched from the database in one round trip
+	 * @throws KommetException
+	 */
+	public void forEach (RecordHandler handler, int fetchSize) throws KommetException
+	{
+		if (this.reverseResults)
+		{
+			throw new CriteriaException("Records read backwards using seekBefore cannot be streamed");
+		}
+		
+		SelectQuery query = SelectQuery.buildFromCriteria(this, this.nestedProperties, env);
+		query.stream(handler, fetchSize);
 	}
 	
 	public Record singleRecord() throws KommetException
@@ -645,7 +792,61 @@ public class Criteria
 		return this.aggregateFunctions;
 	}
 
+	/**
+	 * Returns the number of records matching this criteria.
+	 * 
+	 * The criteria can contain at most one aggregate function, which must be COUNT. Unless the criteria is grouped,
+	 * the count is calculated by a native count query, so no records are retrieved or mapped.
+	 * @return
+	 * @throws KommetException
+	 */
 	public Long count() throws KommetException
+	{
+		if (isGrouped())
+		{
+			return countFromQueryResult();
+		}
+		
+		return SelectQuery.buildCountFromCriteria(this, env).executeCount();
+	}
+	
+	/**
+	 * Returns the approximate number of records matching this criteria, as estimated by the database
+	 * query planner. If the estimate is lower than {@link SelectQuery#DEFAULT_EXACT_COUNT_THRESHOLD},
+	 * the exact count is returned instead, because exact counts are cheap for small numbers of records.
+	 * @return
+	 * @throws KommetException
+	 */
+	public Long approximateCount() throws KommetException
+	{
+		return approximateCount(SelectQuery.DEFAULT_EXACT_COUNT_THRESHOLD);
+	}
+	
+	/**
+	 * Returns the approximate number of records matching this criteria, as estimated by the database
+	 * query planner. If the estimate is lower than the given threshold, the exact count is returned instead.
+	 * @param exactCountThreshold
+	 * @return
+	 * @throws KommetException
+	 */
+	public Long approximateCount(long exactCountThreshold) throws KommetException
+	{
+		if (isGrouped())
+		{
+			return countFromQueryResult();
+		}
+		
+		SelectQuery query = SelectQuery.buildCountFromCriteria(this, env);
+		Long estimate = query.estimateCount();
+		return estimate < exactCountThreshold ? query.executeCount() : estimate;
+	}
+
+	/**
+	 * Reads the count value from the single query result returned by a COUNT query.
+	 * @return
+	 * @throws KommetException
+	 */
+	private Long countFromQueryResult() throws KommetException
 	{
 		List<Record> results = list();
 		if (results.isEmpty())
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.dao.queries;
+
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import javax.sql.rowset.serial.SerialArray;
+
+import org.springframework.jdbc.InvalidResultSetAccessException;
+import org.springframework.jdbc.support.rowset.ResultSetWrappingSqlRowSet;
+
+/**
+ * Row set that reads directly from an open database cursor instead of from an in-memory copy of the result.
+ * 
+ * Array values are returned as {@link SerialArray}, exactly like they are returned by cached row sets,
+ * so that rows read from a cursor can be mapped to records by {@link kommet.dao.TypePersistenceMapping}
+ * in the same way as rows read from cached row sets.
+ * 
+ * @author Radek Krawiec
+ */
+class CursorRowSet extends ResultSetWrappingSqlRowSet
+{
+	private static final long serialVersionUID = 2301886452613085127L;
+
+	public CursorRowSet(ResultSet resultSet) throws InvalidResultSetAccessException
+	{
+		super(resultSet);
+	}
+	
+	@Override
+	public Object getObject(int columnIndex) throws InvalidResultSetAccessException
+	{
+		Object value = super.getObject(columnIndex);
+		
+		if (value instanceof Array)
+		{
+			try
+			{
+				return new SerialArray((Array)value);
+			}
+			catch (SQLException e)
+			{
+				throw new InvalidResultSetAccessException(e);
+			}
+		}
+		
+		return value;
+	}
+}
@@ -7,12 +7,14 @@
 
 package kommet.dao.queries;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
 import kommet.auth.AuthData;
 import kommet.basic.RecordProxy;
 import kommet.dao.MappedObjectQueryBuilder;
+import kommet.dao.StatementTemplate;
 import kommet.dao.TypePersistenceMapping;
 import kommet.data.KID;
 import kommet.data.KommetException;
@@ -31,20 +33,22 @@ public class DeleteQuery extends NativeDbQuery
 	
 	public Record execute (Record record, AuthData authData) throws KommetException
 	{
-		String sql = MappedObjectQueryBuilder.getDeleteQuery(getTypeMapping(), record.getKID(), authData, getEnv(), false);
-		
-		wrapUpdateDeleteQueryCall(sql, DELETE_QUERY_SUCCESS_STATUS);
+		executeDelete(record.getKID(), authData);
 		return null;
 	}
 	
 	public Record execute (KID recordId, AuthData authData) throws KommetException
 	{
-		String sql = MappedObjectQueryBuilder.getDeleteQuery(getTypeMapping(), recordId, authData, getEnv(), false);
-		
-		wrapUpdateDeleteQueryCall(sql, DELETE_QUERY_SUCCESS_STATUS);
+		executeDelete(recordId, authData);
 		return null;
 	}
 	
+	private void executeDelete (KID recordId, AuthData authData) throws KommetException
+	{
+		StatementTemplate template = MappedObjectQueryBuilder.getDeleteTemplate(getTypeMapping(), authData, getEnv(), false);
+		executeStatement(template, Arrays.asList((Object)authData.getUserId().getId(), recordId.getId(), recordId.getId()));
+	}
+	
 	public Record execute (Collection<Record> records, AuthData authData, EnvData env) throws KommetException
 	{
 		String sql = MappedObjectQueryBuilder.getBulkDeleteQuery(getTypeMapping(), records, authData, env, false);
@@ -7,9 +7,14 @@
 
 package kommet.dao.queries;
 
+import java.util.Arrays;
+import java.util.List;
+
 import kommet.basic.UniqueCheckViolationException;
 import kommet.dao.MappedObjectQueryBuilder;
+import kommet.dao.StatementTemplate;
 import kommet.dao.TypePersistenceMapping;
+import kommet.data.Field;
 import kommet.data.KID;
 import kommet.data.KommetException;
 import kommet.data.Record;
@@ -17,7 +22,17 @@ import kommet.env.EnvData;
 
 public class InsertQuery extends NativeDbQuery
 {	
-	private static final String INSERT_QUERY_SUCCESS_STATUS = "RM.STATUS.OK";
+	private static final String BULK_INSERT_SAVEPOINT = "kommet_bulk_insert";
+	
+	/**
+	 * Maximum number of records inserted by a single multi-row insert statement
+	 */
+	public static final int MAX_BULK_INSERT_SIZE = 500;
+	
+	/**
+	 * Maximum number of bind parameters in a single statement supported by the Postgres JDBC driver
+	 */
+	private static final int MAX_BIND_PARAMETERS = 32767;
 	
 	public InsertQuery (TypePersistenceMapping objMapping, EnvData envData)
 	{
@@ -26,11 +41,11 @@ public class InsertQuery extends NativeDbQuery
 	
 	public Record execute (Record record) throws KommetException
 	{
-		String sql = MappedObjectQueryBuilder.getInsertQuery(getTypeMapping(), record);
+		StatementTemplate template = MappedObjectQueryBuilder.getInsertTemplate(getTypeMapping(), record);
 		
 		try
 		{
-			String newKID = wrapInsertQueryCall(sql, INSERT_QUERY_SUCCESS_STATUS);
+			String newKID = executeStatement(template, template.getParameters(record));
 			record.setKID(KID.get(newKID));
 			return record;
 		}
@@ -39,21 +54,144 @@ public class InsertQuery extends NativeDbQuery
 			e.setRecord(record);
 			throw e;
 		}
-		catch (org.springframework.dao.DuplicateKeyException e)
+	}
+	
+	/**
+	 * Inserts multiple records of the same type using multi-row insert statements, each containing
+	 * at most {@link #MAX_BULK_INSERT_SIZE} records.
+	 * 
+	 * IDs of all records are generated with one query before the insert, so that they can be assigned
+	 * to the records without relying on the order of rows returned by the insert.
+	 * 
+	 * When run within a transaction, all statements are executed within a savepoint, so if any of them fails,
+	 * none of the records is inserted and the transaction can continue. Outside a transaction each statement
+	 * is committed on its own, so records inserted before the failing statement remain saved and keep their IDs.
+	 * 
+	 * @param records
+	 * @return
+	 * @throws KommetException
+	 */
+	public List<Record> execute (List<Record> records) throws KommetException
+	{
+		if (records.isEmpty())
+		{
+			return records;
+		}
+		
+		List<String> newKIDs = getEnv().getJdbcTemplate().queryForList(MappedObjectQueryBuilder.getNewKIDsQuery(getTypeMapping().getType(), records.size()), String.class);
+		
+		if (newKIDs.size() != records.size())
+		{
+			throw new KommetException("Expected " + records.size() + " new record IDs, got " + newKIDs.size());
+		}
+		
+		for (int i = 0; i < records.size(); i++)
+		{
+			records.get(i).setKID(KID.get(newKIDs.get(i)));
+		}
+		
+		int batchSize = getBatchSize();
+		boolean useSavepoint = setSavepoint(BULK_INSERT_SAVEPOINT);
+		
+		// number of records whose batches have been inserted
+		int insertedCount = 0;
+		
+		try
 		{
-			// we can run on different language versions of postgres, so we cannot depend on the literal
-			// error messages - this is why we only check if they contain the "unique_check_" literal which
-			// is a standard prefix for unique check constraints
-			if (e.getMessage().contains("\"unique_check_"))
+			for (int i = 0; i < records.size(); i += batchSize)
 			{
-				UniqueCheckViolationException e1 = new UniqueCheckViolationException("Unique check violated", null);
-				e1.setRecord(record);
-				throw e1;
+				List<Record> batch = records.subList(i, Math.min(i + batchSize, records.size()));
+				
+				try
+				{
+					insertBatch(batch);
+				}
+				catch (UniqueCheckViolationException e)
+				{
+					// records can only be inserted again to find the violating one if the insert can be rolled back afterwards
+					throw useSavepoint ? getViolatingRecordException(e, records.subList(0, i), batch, batchSize) : e;
+				}
+				
+				insertedCount = i + batch.size();
 			}
-			else
+			
+			if (useSavepoint)
 			{
-				throw e;
+				releaseSavepoint(BULK_INSERT_SAVEPOINT);
 			}
 		}
+		catch (KommetException e)
+		{
+			if (useSavepoint)
+			{
+				rollbackToSavepoint(BULK_INSERT_SAVEPOINT);
+				releaseSavepoint(BULK_INSERT_SAVEPOINT);
+				insertedCount = 0;
+			}
+			
+			// records that have not been saved should not have IDs
+			for (Record record : records.subList(insertedCount, records.size()))
+			{
+				record.uninitializeField(Field.ID_FIELD_NAME);
+			}
+			throw e;
+		}
+		
+		return records;
+	}
+	
+	private void insertBatch (List<Record> batch) throws KommetException
+	{
+		StatementTemplate template = MappedObjectQueryBuilder.getBulkInsertTemplate(getTypeMapping(), batch);
+		executeStatement(template, template.getParameters(batch));
+	}
+	
+	/**
+	 * Returns the number of records inserted by one statement, so that it does not exceed the maximum number
+	 * of bind parameters accepted by the database.
+	 * @return
+	 */
+	private int getBatchSize()
+	{
+		int columnCount = Math.max(1, getTypeMapping().getColumnMappings().size());
+		return Math.max(1, Math.min(MAX_BULK_INSERT_SIZE, MAX_BIND_PARAMETERS / columnCount));
+	}
+	
+	/**
+	 * Finds the record that violated a unique check during a multi-row insert. The database does not report which row
+	 * caused the violation, so all statements are first rolled back to the savepoint of the bulk insert. Then the records
+	 * inserted before the failing batch are inserted again, and the records of the failing batch are inserted one by one
+	 * until the violation occurs again. The caller rolls back to the savepoint again afterwards, so none of these records
+	 * remains inserted.
+	 * @param e the exception thrown by the multi-row insert
+	 * @param precedingRecords records inserted before the failing batch
+	 * @param batch the failing batch
+	 * @param batchSize
+	 * @return exception with the violating record, or the original exception if no single record violates the unique check
+	 * @throws KommetException
+	 */
+	private UniqueCheckViolationException getViolatingRecordException (UniqueCheckViolationException e, List<Record> precedingRecords, List<Record> batch, int batchSize) throws KommetException
+	{
+		rollbackToSavepoint(BULK_INSERT_SAVEPOINT);
+		
+		for (int i = 0; i < precedingRecords.size(); i += batchSize)
+		{
+			insertBatch(precedingRecords.subList(i, Math.min(i + batchSize, precedingRecords.size())));
+		}
+		
+		for (Record record : batch)
+		{
+			try
+			{
+				insertBatch(Arrays.asList(record));
+			}
+			catch (UniqueCheckViolationException recordException)
+			{
+				recordException.setRecord(record);
+				return recordException;
+			}
+		}
+		
+		return e;
 	}
-}
\ No newline at end of file
+}
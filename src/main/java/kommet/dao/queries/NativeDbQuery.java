@@ -7,12 +7,28 @@
 
 package kommet.dao.queries;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.List;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
 
 import org.springframework.util.StringUtils;
 
 import kommet.basic.UniqueCheck;
 import kommet.basic.UniqueCheckViolationException;
+import kommet.dao.StatementTemplate;
 import kommet.dao.TypePersistenceMapping;
 import kommet.dao.dal.CannotModifyAccessTypeException;
 import kommet.dao.dal.InsufficientPrivilegesException;
@@ -37,6 +53,12 @@ public abstract class NativeDbQuery
 	private static final String POSTGRES_FKEY_CONSTRAINT_VIOLATION_SQLSTATE = "23503";
 	private static final String UNKNOWN_TABLE_SQLSTATE = "42P01";
 	
+	private static final String STATEMENT_SUCCESS_STATUS = "RM.STATUS.OK";
+	private static final String STATEMENT_SAVEPOINT = "kommet_statement";
+	
+	// constraint and column names are quoted in Postgres error messages in all languages
+	private static final Pattern QUOTED_IDENTIFIER_PATTERN = Pattern.compile("\"([^\"]+)\"");
+	
 	public NativeDbQuery (TypePersistenceMapping typeMapping, EnvData env)
 	{
 		this.typeMapping = typeMapping;
@@ -72,45 +94,9 @@ public abstract class NativeDbQuery
 			{
 				return;
 			}
-			else if (InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_EDIT_ERRCODE.equals(result.getStatusCode()))
-			{
-				throw new InsufficientPrivilegesException(InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_EDIT_RECORD_MSG);
-			}
-			else if (InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_DELETE_ERRCODE.equals(result.getStatusCode()))
-			{
-				throw new InsufficientPrivilegesException(InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_DELETE_RECORD_MSG);
-			}
-			else if (InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_EDIT_SYSTEM_IMMUTABLE_ERRCODE.equals(result.getStatusCode()))
-			{
-				throw new InsufficientPrivilegesException(InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_EDIT_SYSTEM_IMMUTABLE_RECORD_MSG);
-			}
-			else if (InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_DELETE_SYSTEM_IMMUTABLE_ERRCODE.equals(result.getStatusCode()))
-			{
-				throw new InsufficientPrivilegesException(InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_DELETE_SYSTEM_IMMUTABLE_RECORD_MSG);
-			}
-			else if (InsufficientPrivilegesException.CANNOT_MODIFY_ACCESS_TYPE.equals(result.getStatusCode()))
-			{
-				throw new CannotModifyAccessTypeException(CannotModifyAccessTypeException.CANNOT_MODIFY_ACCESS_TYPE_MSG);
-			}
-			else if (POSTGRES_UNIQUE_CONSTRAINT_VIOLATION_SQLSTATE.equals(result.getStatusCode()))
-			{
-				throw new UniqueCheckViolationException("Unique check violation", parseFieldsFromUniqueCheck(result.getConstraintName(), env));
-			}
-			else if (POSTGRES_NOT_NULL_CONSTRAINT_VIOLATION_SQLSTATE.equals(result.getStatusCode()))
-			{
-				throw new NotNullConstraintViolationException("Not null constraint violation [table " + result.getTableName() + "][column " + result.getColumnName() + "]");
-			}
-			else if (POSTGRES_FKEY_CONSTRAINT_VIOLATION_SQLSTATE.equals(result.getStatusCode()))
-			{
-				throw new KommetException("Foreign key constraint violation [table " + result.getTableName() + "][constraint " + result.getConstraintName() + "]");
-			}
-			else if (UNKNOWN_TABLE_SQLSTATE.equals(result.getStatusCode()))
-			{
-				throw new KommetException("Unknown table [table " + result.getTableName() + "]");
-			}
 			else
 			{
-				throw new KommetException("Uncategorized exception: " + result.getStatusCode() + ". Query:\n" + query);
+				throw getOperationException(result, query);
 			}
 		}
 	}
@@ -130,46 +116,219 @@ public abstract class NativeDbQuery
 				// All we need to do is to remove the prefix from the returned string to obtain the actual ID
 				return result.getStatusCode().substring(successStatusCodePrefix.length());
 			}
-			else if (InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_EDIT_ERRCODE.equals(result.getStatusCode()))
-			{
-				throw new InsufficientPrivilegesException(InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_EDIT_RECORD_MSG);
-			}
-			else if (InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_DELETE_ERRCODE.equals(result.getStatusCode()))
-			{
-				throw new InsufficientPrivilegesException(InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_DELETE_RECORD_MSG);
-			}
-			else if (InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_EDIT_SYSTEM_IMMUTABLE_ERRCODE.equals(result.getStatusCode()))
-			{
-				throw new InsufficientPrivilegesException(InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_EDIT_SYSTEM_IMMUTABLE_RECORD_MSG);
-			}
-			else if (InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_DELETE_SYSTEM_IMMUTABLE_ERRCODE.equals(result.getStatusCode()))
-			{
-				throw new InsufficientPrivilegesException(InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_DELETE_SYSTEM_IMMUTABLE_RECORD_MSG);
-			}
-			else if (POSTGRES_UNIQUE_CONSTRAINT_VIOLATION_SQLSTATE.equals(result.getStatusCode()))
-			{
-				throw new UniqueCheckViolationException("Unique check violation", parseFieldsFromUniqueCheck(result.getConstraintName(), env));
-			}
-			else if (POSTGRES_NOT_NULL_CONSTRAINT_VIOLATION_SQLSTATE.equals(result.getStatusCode()))
-			{
-				throw new NotNullConstraintViolationException("Not null constraint violation [table " + result.getTableName() + "][column " + result.getColumnName() + "]");
-			}
-			else if (POSTGRES_FKEY_CONSTRAINT_VIOLATION_SQLSTATE.equals(result.getStatusCode()))
+			else
 			{
-				throw new KommetException("Foreign key constraint violation [table " + result.getTableName() + "][constraint " + result.getConstraintName() + "]");
+				throw getOperationException(result, query);
 			}
-			else if (UNKNOWN_TABLE_SQLSTATE.equals(result.getStatusCode()))
+		}
+		else
+		{
+			throw new KommetException("SQL query " + query + " returned no return codes");
+		}
+	}
+	
+	/**
+	 * Executes an insert/update/delete statement with bind parameters and processes its errors the same way
+	 * errors returned by the execute_update procedure are processed.
+	 * 
+	 * The procedure is not used here, because it would have to receive the query as a literal, which would make it
+	 * impossible to pass bind parameters. Instead, when run within a transaction, the statement is executed within
+	 * a savepoint, which is rolled back if the statement fails. This way a failed statement does not abort the whole
+	 * transaction and the error can be handled in Java code.
+	 * 
+	 * @param template the statement to execute
+	 * @param params values of bind parameters
+	 * @return the value of the first column of the first row returned by the statement, if any
+	 * @throws KommetException
+	 */
+	protected String executeStatement (final StatementTemplate template, final List<Object> params) throws KommetException
+	{
+		DbOperationResult result = getEnv().getJdbcTemplate().execute(new ConnectionCallback<DbOperationResult>()
+		{
+			@Override
+			public DbOperationResult doInConnection(Connection conn) throws SQLException, DataAccessException
 			{
-				throw new KommetException("Unknown table [table " + result.getTableName() + "] in query: " + query);
+				// savepoints can only be used in transaction blocks, and outside them
+				// a failed statement does not affect any other statements anyway
+				boolean useSavepoint = !conn.getAutoCommit();
+				
+				if (useSavepoint)
+				{
+					executeSavepointCommand(conn, "SAVEPOINT " + STATEMENT_SAVEPOINT);
+				}
+				
+				try (PreparedStatement stmt = conn.prepareStatement(template.getSql()))
+				{
+					for (int i = 0; i < params.size(); i++)
+					{
+						Object param = params.get(i);
+						
+						if (param == null)
+						{
+							stmt.setNull(i + 1, Types.OTHER);
+						}
+						else if (param instanceof String)
+						{
+							// strings are passed as untyped values, so that Postgres converts them to column types,
+							// e.g. to arrays for multi-enumeration fields
+							stmt.setObject(i + 1, param, Types.OTHER);
+						}
+						else if (param instanceof Timestamp)
+						{
+							// date/time values are stored in GMT
+							stmt.setTimestamp(i + 1, (Timestamp)param, Calendar.getInstance(TimeZone.getTimeZone("GMT")));
+						}
+						else if (param instanceof java.sql.Date)
+						{
+							stmt.setDate(i + 1, (java.sql.Date)param, Calendar.getInstance(TimeZone.getTimeZone("GMT")));
+						}
+						else
+						{
+							stmt.setObject(i + 1, param);
+						}
+					}
+					
+					String returnedValue = null;
+					
+					if (stmt.execute())
+					{
+						try (ResultSet rs = stmt.getResultSet())
+						{
+							if (rs.next())
+							{
+								returnedValue = rs.getString(1);
+							}
+						}
+					}
+					
+					if (useSavepoint)
+					{
+						executeSavepointCommand(conn, "RELEASE SAVEPOINT " + STATEMENT_SAVEPOINT);
+					}
+					
+					return new DbOperationResult(STATEMENT_SUCCESS_STATUS + (returnedValue != null ? returnedValue : ""));
+				}
+				catch (SQLException e)
+				{
+					if (useSavepoint)
+					{
+						executeSavepointCommand(conn, "ROLLBACK TO SAVEPOINT " + STATEMENT_SAVEPOINT);
+						executeSavepointCommand(conn, "RELEASE SAVEPOINT " + STATEMENT_SAVEPOINT);
+					}
+					
+					return new DbOperationResult(e, getTypeMapping().getTable());
+				}
 			}
-			else
+		});
+		
+		if (result.getStatusCode().startsWith(STATEMENT_SUCCESS_STATUS))
+		{
+			String returnedValue = result.getStatusCode().substring(STATEMENT_SUCCESS_STATUS.length());
+			return StringUtils.hasText(returnedValue) ? returnedValue : null;
+		}
+		else
+		{
+			throw getOperationException(result, template.getSql());
+		}
+	}
+	
+	private static void executeSavepointCommand (Connection conn, String command) throws SQLException
+	{
+		// savepoints are created with SQL commands rather than JDBC savepoint methods, because
+		// the latter are not supported by connections enlisted in JTA transactions
+		try (Statement stmt = conn.createStatement())
+		{
+			stmt.execute(command);
+		}
+	}
+	
+	/**
+	 * Creates a savepoint that spans multiple statements executed by this query. The connection is bound to the
+	 * transaction, so all statements executed by the query before the savepoint is released use the same connection.
+	 * @param name name of the savepoint
+	 * @return <tt>true</tt> if the savepoint has been created, <tt>false</tt> if the query is not run within
+	 * a transaction, in which case each statement is committed on its own
+	 */
+	protected boolean setSavepoint (final String name)
+	{
+		return getEnv().getJdbcTemplate().execute(new ConnectionCallback<Boolean>()
+		{
+			@Override
+			public Boolean doInConnection(Connection conn) throws SQLException, DataAccessException
 			{
-				throw new KommetException("Uncategorized exception: " + result.getStatusCode() + ". Query:\n" + query);
+				if (conn.getAutoCommit())
+				{
+					return false;
+				}
+				
+				executeSavepointCommand(conn, "SAVEPOINT " + name);
+				return true;
 			}
+		});
+	}
+	
+	/**
+	 * Rolls back all statements executed after the savepoint was created. The savepoint remains active.
+	 * @param name
+	 */
+	protected void rollbackToSavepoint (String name)
+	{
+		getEnv().getJdbcTemplate().execute("ROLLBACK TO SAVEPOINT " + name);
+	}
+	
+	protected void releaseSavepoint (String name)
+	{
+		getEnv().getJdbcTemplate().execute("RELEASE SAVEPOINT " + name);
+	}
+	
+	/**
+	 * Translates an error status returned by a database operation into an exception.
+	 * @param result
+	 * @param query
+	 * @return
+	 * @throws KommetException
+	 */
+	private KommetException getOperationException (DbOperationResult result, String query) throws KommetException
+	{
+		if (InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_EDIT_ERRCODE.equals(result.getStatusCode()))
+		{
+			return new InsufficientPrivilegesException(InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_EDIT_RECORD_MSG);
+		}
+		else if (InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_DELETE_ERRCODE.equals(result.getStatusCode()))
+		{
+			return new InsufficientPrivilegesException(InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_DELETE_RECORD_MSG);
+		}
+		else if (InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_EDIT_SYSTEM_IMMUTABLE_ERRCODE.equals(result.getStatusCode()))
+		{
+			return new InsufficientPrivilegesException(InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_EDIT_SYSTEM_IMMUTABLE_RECORD_MSG);
+		}
+		else if (InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_DELETE_SYSTEM_IMMUTABLE_ERRCODE.equals(result.getStatusCode()))
+		{
+			return new InsufficientPrivilegesException(InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_DELETE_SYSTEM_IMMUTABLE_RECORD_MSG);
+		}
+		else if (InsufficientPrivilegesException.CANNOT_MODIFY_ACCESS_TYPE.equals(result.getStatusCode()))
+		{
+			return new CannotModifyAccessTypeException(CannotModifyAccessTypeException.CANNOT_MODIFY_ACCESS_TYPE_MSG);
+		}
+		else if (POSTGRES_UNIQUE_CONSTRAINT_VIOLATION_SQLSTATE.equals(result.getStatusCode()))
+		{
+			return new UniqueCheckViolationException("Unique check violation", parseFieldsFromUniqueCheck(result.getConstraintName(), env));
+		}
+		else if (POSTGRES_NOT_NULL_CONSTRAINT_VIOLATION_SQLSTATE.equals(result.getStatusCode()))
+		{
+			return new NotNullConstraintViolationException("Not null constraint violation [table " + result.getTableName() + "][column " + result.getColumnName() + "]");
+		}
+		else if (POSTGRES_FKEY_CONSTRAINT_VIOLATION_SQLSTATE.equals(result.getStatusCode()))
+		{
+			return new KommetException("Foreign key constraint violation [table " + result.getTableName() + "][constraint " + result.getConstraintName() + "]");
+		}
+		else if (UNKNOWN_TABLE_SQLSTATE.equals(result.getStatusCode()))
+		{
+			return new KommetException("Unknown table [table " + result.getTableName() + "] in query: " + query);
 		}
 		else
 		{
-			throw new KommetException("SQL query " + query + " returned no return codes");
+			return new KommetException("Uncategorized exception: " + result.getStatusCode() + ". Query:\n" + query);
 		}
 	}
 	
@@ -226,6 +385,49 @@ public abstract class NativeDbQuery
 		private String tableName;
 		private String columnName;
 		
+		/**
+		 * Creates a result from an error thrown by a statement. The version of the JDBC driver we use does not expose
+		 * constraint and column names, so they are read from the error message.
+		 * @param e
+		 * @param tableName
+		 */
+		public DbOperationResult(SQLException e, String tableName)
+		{
+			this.statusCode = e.getSQLState() != null ? e.getSQLState() : e.getMessage();
+			this.tableName = tableName;
+			
+			List<String> identifiers = new ArrayList<String>();
+			Matcher m = QUOTED_IDENTIFIER_PATTERN.matcher(e.getMessage() != null ? e.getMessage() : "");
+			while (m.find())
+			{
+				identifiers.add(m.group(1));
+			}
+			
+			if (identifiers.isEmpty())
+			{
+				return;
+			}
+			
+			if (POSTGRES_UNIQUE_CONSTRAINT_VIOLATION_SQLSTATE.equals(this.statusCode))
+			{
+				for (String identifier : identifiers)
+				{
+					if (identifier.startsWith("unique_check_"))
+					{
+						this.constraintName = identifier;
+					}
+				}
+			}
+			else if (POSTGRES_NOT_NULL_CONSTRAINT_VIOLATION_SQLSTATE.equals(this.statusCode))
+			{
+				this.columnName = identifiers.get(0);
+			}
+			else if (POSTGRES_FKEY_CONSTRAINT_VIOLATION_SQLSTATE.equals(this.statusCode))
+			{
+				this.constraintName = identifiers.get(identifiers.size() - 1);
+			}
+		}
+		
 		public DbOperationResult(String resultCodes)
 		{
 			List<String> parts = MiscUtils.splitAndTrim(resultCodes, "\\:\\:\\:\\:\\:");
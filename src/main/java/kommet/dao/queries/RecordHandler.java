@@ -0,0 +1,20 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.dao.queries;
+
+import kommet.data.KommetException;
+import kommet.data.Record;
+
+/**
+ * Callback that receives records one at a time as they are read from a streaming query.
+ * @author Radek Krawiec
+ */
+public interface RecordHandler
+{
+	public void handle (Record record) throws KommetException;
+}
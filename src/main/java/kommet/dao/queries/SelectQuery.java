@@ -7,6 +7,10 @@
 
 package kommet.dao.queries;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -14,12 +18,17 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.support.rowset.SqlRowSet;
 import org.springframework.util.StringUtils;
 
 import kommet.dao.MappedObjectQueryBuilder;
 import kommet.dao.TypePersistenceMapping;
+import kommet.dao.dal.AggregateFunction;
 import kommet.dao.dal.AggregateFunctionCall;
 import kommet.dao.dal.DALSyntaxException;
 import kommet.data.Field;
@@ -36,10 +45,28 @@ public class SelectQuery extends NativeDbQuery
 {	
 	private String sqlQuery;
 	private Criteria criteria;
+	
+	/**
+	 * For count queries, this is the query selecting the counted rows. It is used to estimate
+	 * the number of rows using the query planner.
+	 */
+	private String countedRowsQuery;
 
 	private static final String SHARING_TABLE = "userrecordsharing";
 	public static final String DISTINCT_ITEMS_ALIAS_SUFFIX = "_distinct_items";
 	
+	/**
+	 * Number of rows fetched from the database cursor in one round trip when records are streamed
+	 */
+	public static final int DEFAULT_FETCH_SIZE = 500;
+	
+	/**
+	 * Approximate counts below this number are replaced with exact counts
+	 */
+	public static final long DEFAULT_EXACT_COUNT_THRESHOLD = 100000;
+	
+	private static final Pattern PLAN_ROWS_PATTERN = Pattern.compile("rows=(\\d+)");
+	
 	public String getSqlQuery()
 	{
 		return sqlQuery;
@@ -92,6 +119,217 @@ public class SelectQuery extends NativeDbQuery
 		return records;
 	}
 
+	/**
+	 * Executes the query using a server-side database cursor and passes the retrieved records to the handler
+	 * one by one, as they are read from the cursor.
+	 * 
+	 * Unlike {@link #execute()}, this method never holds the whole result set in memory, so it can be used
+	 * to process queries returning very large numbers of records.
+	 * 
+	 * @param handler handler called for each retrieved record
+	 * @param fetchSize number of rows fetched from the cursor in one round trip
+	 * @throws KommetException
+	 */
+	public void stream (final RecordHandler handler, final int fetchSize) throws KommetException
+	{
+		if (!StringUtils.hasText(this.sqlQuery))
+		{
+			throw new KommetException("SQL select query is empty");
+		}
+		
+		if (fetchSize <= 0)
+		{
+			throw new KommetException("Fetch size must be a positive number, but is " + fetchSize);
+		}
+		
+		final TypePersistenceMapping mapping = getTypeMapping();
+		final boolean isAggregateQuery = !this.criteria.getAggregateFunctions().isEmpty() || this.criteria.isGrouped();
+		
+		// exceptions thrown by the record handler cannot be rethrown from within the JDBC callback,
+		// so they are stored in this list and rethrown once the callback has finished
+		final List<KommetException> handlerErrors = new ArrayList<KommetException>();
+		
+		getEnv().getJdbcTemplate().execute(new ConnectionCallback<Void>()
+		{
+			@Override
+			public Void doInConnection(Connection conn) throws SQLException, DataAccessException
+			{
+				// Postgres JDBC driver only uses a cursor (and respects the fetch size) when the query
+				// is run within a transaction, so if the connection is in autocommit mode, we need to
+				// switch it off for the time of the query
+				boolean isAutoCommit = conn.getAutoCommit();
+				if (isAutoCommit)
+				{
+					conn.setAutoCommit(false);
+				}
+				
+				Statement stmt = null;
+				ResultSet rs = null;
+				
+				try
+				{
+					stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+					stmt.setFetchSize(fetchSize);
+					rs = stmt.executeQuery(sqlQuery);
+					
+					SqlRowSet rowSet = new CursorRowSet(rs);
+					
+					while (rowSet.next())
+					{
+						handler.handle(isAggregateQuery ? mapping.getQueryResultFromRowSet(rowSet, criteria) : mapping.getRecordFromRowSet(rowSet, criteria));
+					}
+				}
+				catch (KommetException e)
+				{
+					handlerErrors.add(e);
+				}
+				finally
+				{
+					if (rs != null)
+					{
+						rs.close();
+					}
+					if (stmt != null)
+					{
+						stmt.close();
+					}
+					
+					if (isAutoCommit)
+					{
+						// nothing has been written within the transaction opened for the cursor,
+						// so it can be safely rolled back
+						conn.rollback();
+						conn.setAutoCommit(true);
+					}
+				}
+				
+				return null;
+			}
+		});
+		
+		if (!handlerErrors.isEmpty())
+		{
+			throw handlerErrors.get(0);
+		}
+	}
+
+	/**
+	 * Executes a count query built by {@link #buildCountFromCriteria(Criteria, EnvData)}.
+	 * @return the number of rows matching the criteria
+	 * @throws KommetException
+	 */
+	public Long executeCount() throws KommetException
+	{
+		if (this.countedRowsQuery == null)
+		{
+			throw new KommetException("Method executeCount can only be called on count queries");
+		}
+		
+		return getEnv().getJdbcTemplate().queryForObject(this.sqlQuery, Long.class);
+	}
+	
+	/**
+	 * Returns the number of rows matching a count query, as estimated by the Postgres query planner
+	 * from table statistics. The query is not actually executed, so the cost of the estimate
+	 * does not depend on the number of rows in the table.
+	 * @return estimated number of rows matching the criteria
+	 * @throws KommetException
+	 */
+	public Long estimateCount() throws KommetException
+	{
+		if (this.countedRowsQuery == null)
+		{
+			throw new KommetException("Method estimateCount can only be called on count queries");
+		}
+		
+		// the first line of the plan describes the top plan node, and its "rows" attribute
+		// is the number of rows the whole query is expected to return
+		List<String> plan = getEnv().getJdbcTemplate().queryForList("EXPLAIN " + this.countedRowsQuery, String.class);
+		if (plan.isEmpty())
+		{
+			throw new KommetException("Query planner returned an empty plan for query " + this.countedRowsQuery);
+		}
+		
+		Matcher m = PLAN_ROWS_PATTERN.matcher(plan.get(0));
+		if (!m.find())
+		{
+			throw new KommetException("Could not read row estimate from query plan " + plan.get(0));
+		}
+		
+		return Long.valueOf(m.group(1));
+	}
+	
+	/**
+	 * Builds a native SQL count query from criteria. The query contains the same joins and restrictions
+	 * (including sharing restrictions) as the query built by {@link #buildFromCriteria(Criteria, Collection, EnvData)},
+	 * but it does not retrieve any properties, so its result does not need to be mapped to records.
+	 * 
+	 * Selected properties, ordering, limit and offset are ignored.
+	 * 
+	 * @param criteria
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	public static SelectQuery buildCountFromCriteria(Criteria criteria, EnvData env) throws KommetException
+	{
+		if (criteria.isGrouped())
+		{
+			throw new CriteriaException("Count query cannot be built from grouped criteria");
+		}
+		
+		String quote = criteria.isQuoteTableAndColumnNames() ? "\"" : "";
+		
+		// by default all records are counted
+		String countedExpr = "*";
+		
+		// rows can be duplicated by joins with collections, in which case only distinct records are counted
+		if (!criteria.getInverseCollectionProperties().isEmpty() || !criteria.getAssociationProperties().isEmpty())
+		{
+			countedExpr = "DISTINCT " + quote + Criteria.MAIN_TABLE_ALIAS + quote + "." + quote + Field.ID_FIELD_DB_COLUMN + quote;
+		}
+		
+		if (criteria.getAggregateFunctions().size() > 1)
+		{
+			throw new CriteriaException("Count query cannot contain more than one aggregate function");
+		}
+		else if (criteria.getAggregateFunctions().size() == 1)
+		{
+			AggregateFunctionCall function = criteria.getAggregateFunctions().iterator().next();
+			
+			if (!AggregateFunction.COUNT.equals(function.getFunction()))
+			{
+				throw new CriteriaException("Count query cannot contain aggregate function " + function.getFunction());
+			}
+			
+			// COUNT(id) is equivalent to counting all records, but counting other properties
+			// skips rows where the property is null
+			if (!Field.ID_FIELD_NAME.equals(function.getProperty()))
+			{
+				String propTypeAlias = Criteria.MAIN_TABLE_ALIAS;
+				if (function.getProperty().contains("."))
+				{
+					propTypeAlias = criteria.getPropertyAlias(function.getProperty().substring(0, function.getProperty().lastIndexOf('.')));
+				}
+				
+				Field field = criteria.getType().getField(function.getProperty(), env);
+				if (field == null)
+				{
+					throw new DALSyntaxException("No field " + function.getProperty() + " found on type " + criteria.getType().getQualifiedName());
+				}
+				
+				countedExpr = quote + propTypeAlias + quote + "." + quote + field.getDbColumn() + quote;
+			}
+		}
+		
+		String fromClause = buildFromClause(criteria, env);
+		
+		SelectQuery query = new SelectQuery(env.getTypeMapping(criteria.getType().getKID()), criteria);
+		query.sqlQuery = "SELECT count(" + countedExpr + ")" + fromClause;
+		query.countedRowsQuery = "SELECT 1" + fromClause;
+		return query;
+	}
+
 	/**
 	 * Build native SQL query from criteria.
 	 * @param criteria
@@ -364,6 +602,63 @@ public class SelectQuery extends NativeDbQuery
 			throw new CriteriaException("No properties specified to be retrieved by criteria");
 		}
 		
+		sql.append(MiscUtils.implode(columns, ", ", null));
+		sql.append(buildFromClause(criteria, env));
+		
+		if (criteria.isGrouped())
+		{
+			List<String> groupByCols = new ArrayList<String>();
+			for (String groupByProp : criteria.getGroupByProperties())
+			{
+				// TODO consider caching column definitions for properties instead of calling
+				// MappedObjectQueryBuilder.getPropertySQL multiple times for the same property
+				groupByCols.add(MappedObjectQueryBuilder.getPropertySQL(groupByProp, criteria, env.getTypeMapping(criteria.getType().getKID())));
+			}
+			// add user-defined group by properties before all system group by properties
+			groupByFields.addAll(0, groupByCols);
+		}
+		
+		if (!groupByFields.isEmpty())
+		{
+			sql.append(" GROUP BY ").append(MiscUtils.implode(groupByFields, ", "));
+		}
+		
+		if (hasCriteriaOrderings)
+		{
+			// order by clause is added only if the orderings come from the criteria (i.e. have been
+			// defined by the user), not when they are artificial orderings used for inverse collections
+			sql.append(" ORDER BY ").append(implodeOrderings(orderings));
+		}
+		
+		if (criteria.getLimit() != null)
+		{
+			sql.append(" LIMIT ");
+			sql.append(criteria.getLimit());
+		}
+		
+		if (criteria.getOffset() != null)
+		{
+			sql.append(" OFFSET ");
+			sql.append(criteria.getOffset());
+		}
+		
+		SelectQuery query = new SelectQuery(env.getTypeMapping(criteria.getType().getKID()), criteria);
+		query.sqlQuery = sql.toString(); 
+		return query;
+	}
+
+	/**
+	 * Builds the FROM clause of the query, together with all joins (including joins with sharing tables)
+	 * and the WHERE clause.
+	 * @param criteria
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	private static String buildFromClause(Criteria criteria, EnvData env) throws KommetException
+	{
+		StringBuilder sql = new StringBuilder();
+		
 		// when type tables are joined with the sharing tables, this counter will be suffixed
 		// to the sharing table alias to make it unique, since there potentially be multiple joins
 		// with the same sharing table
@@ -387,7 +682,7 @@ public class SelectQuery extends NativeDbQuery
 			throw new KommetException("Auth data not passed to criteria object");
 		}
 		
-		sql.append(MiscUtils.implode(columns, ", ", null)).append(" FROM ");
+		sql.append(" FROM ");
 		if (applyMainTypeSharings)
 		{
 			sql.append("(");
@@ -452,46 +747,7 @@ public class SelectQuery extends NativeDbQuery
 			sql.append(" WHERE ").append(MappedObjectQueryBuilder.buildCriteriaSQL(criteria, env.getTypeMapping(criteria.getType().getKID())));
 		}
 		
-		if (criteria.isGrouped())
-		{
-			List<String> groupByCols = new ArrayList<String>();
-			for (String groupByProp : criteria.getGroupByProperties())
-			{
-				// TODO consider caching column definitions for properties instead of calling
-				// MappedObjectQueryBuilder.getPropertySQL multiple times for the same property
-				groupByCols.add(MappedObjectQueryBuilder.getPropertySQL(groupByProp, criteria, env.getTypeMapping(criteria.getType().getKID())));
-			}
-			// add user-defined group by properties before all system group by properties
-			groupByFields.addAll(0, groupByCols);
-		}
-		
-		if (!groupByFields.isEmpty())
-		{
-			sql.append(" GROUP BY ").append(MiscUtils.implode(groupByFields, ", "));
-		}
-		
-		if (hasCriteriaOrderings)
-		{
-			// order by clause is added only if the orderings come from the criteria (i.e. have been
-			// defined by the user), not when they are artificial orderings used for inverse collections
-			sql.append(" ORDER BY ").append(implodeOrderings(orderings));
-		}
-		
-		if (criteria.getLimit() != null)
-		{
-			sql.append(" LIMIT ");
-			sql.append(criteria.getLimit());
-		}
-		
-		if (criteria.getOffset() != null)
-		{
-			sql.append(" OFFSET ");
-			sql.append(criteria.getOffset());
-		}
-		
-		SelectQuery query = new SelectQuery(env.getTypeMapping(criteria.getType().getKID()), criteria);
-		query.sqlQuery = sql.toString(); 
-		return query;
+		return sql.toString();
 	}
 
 	/**
@@ -7,9 +7,12 @@
 
 package kommet.dao.queries;
 
+import java.util.List;
+
 import kommet.auth.AuthData;
 import kommet.basic.UniqueCheckViolationException;
 import kommet.dao.MappedObjectQueryBuilder;
+import kommet.dao.StatementTemplate;
 import kommet.dao.TypePersistenceMapping;
 import kommet.data.KommetException;
 import kommet.data.Record;
@@ -27,6 +30,33 @@ public class UpdateQuery extends NativeDbQuery
 		super(typeMapping, env);
 	}
 	
+	/**
+	 * Updates the record with the given ID using a cached statement template.
+	 * @param record
+	 * @param authData
+	 * @param forceAllowEdit
+	 * @return
+	 * @throws KommetException
+	 */
+	public Record execute (Record record, AuthData authData, boolean forceAllowEdit) throws KommetException
+	{
+		StatementTemplate template = MappedObjectQueryBuilder.getUpdateByIdTemplate(getTypeMapping(), record, authData, getEnv(), forceAllowEdit);
+		
+		List<Object> params = template.getParameters(record);
+		params.add(record.getKID().getId());
+		
+		try
+		{
+			executeStatement(template, params);
+			return record;
+		}
+		catch (UniqueCheckViolationException e)
+		{
+			e.setRecord(record);
+			throw e;
+		}
+	}
+	
 	public Record execute (Record record, Criteria criteria, AuthData authData) throws KommetException
 	{
 		return execute(record, criteria, authData, false);
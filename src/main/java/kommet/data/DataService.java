@@ -16,6 +16,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -47,6 +48,7 @@ import kommet.basic.BusinessProcess;
 import kommet.basic.Class;
 import kommet.basic.CustomTypeRecordProxy;
 import kommet.basic.Dictionary;
+import kommet.basic.FieldHistory;
 import kommet.basic.Profile;
 import kommet.basic.RecordAccessType;
 import kommet.basic.RecordProxy;
@@ -71,8 +73,8 @@ import kommet.basic.types.SystemTypes;
 import kommet.basic.types.UniqueCheckKType;
 import kommet.basic.types.UserKType;
 import kommet.businessprocess.BusinessProcessExecutor;
+import kommet.businessprocess.ProcessQueueService;
 import kommet.config.UserSettingKeys;
-import kommet.dao.AnyRecordDao;
 import kommet.dao.ConstraintViolationException;
 import kommet.dao.DaoFacade;
 import kommet.dao.FieldDao;
@@ -104,7 +106,6 @@ import kommet.data.validationrules.ValidationRuleUtil;
 import kommet.emailing.EmailService;
 import kommet.env.EnvData;
 import kommet.errorlog.ErrorLogService;
-import kommet.filters.AnyRecordFilter;
 import kommet.koll.ClassService;
 import kommet.koll.SystemContextFactory;
 import kommet.koll.annotations.triggers.AfterDelete;
@@ -117,7 +118,9 @@ import kommet.koll.annotations.triggers.OldValues;
 import kommet.koll.annotations.triggers.Trigger;
 import kommet.koll.compiler.CompilationResult;
 import kommet.koll.compiler.KommetCompiler;
+import kommet.services.AnyRecordService;
 import kommet.services.FieldHistoryService;
+import kommet.services.ReminderService;
 import kommet.services.SharingRuleService;
 import kommet.services.SystemSettingService;
 import kommet.triggers.DatabaseTrigger;
@@ -193,7 +196,7 @@ public class DataService
 	UserRecordSharingDao userRecordSharingDao;
 	
 	@Inject
-	AnyRecordDao anyRecordDao;
+	AnyRecordService anyRecordService;
 	
 	@Inject
 	UserCascadeHierarchyDao uchDao;
@@ -204,8 +207,16 @@ public class DataService
 	@Inject
 	ErrorLogService logService;
 	
+	@Inject
+	ProcessQueueService processQueueService;
+	
+	@Inject
+	ReminderService reminderService;
+	
 	private static final Logger log = LoggerFactory.getLogger(DataService.class);
 	
+	private final TriggerProxyStats triggerProxyStats = new TriggerProxyStats();
+	
 	public Record instantiate (KID typeId, EnvData env) throws KommetException
 	{
 		if (typeId == null)
@@ -334,6 +345,25 @@ public class DataService
 	 */
 	@Transactional
 	public Record save (Record record, boolean skipTriggers, boolean skipSharing, boolean skipCreatePermissionCheck, boolean isSilentUpdate, AuthData authData, EnvData env) throws KommetException
+	{
+		return save(record, skipTriggers, skipSharing, skipCreatePermissionCheck, isSilentUpdate, null, authData, env);
+	}
+	
+	/**
+	 * Saves a record.
+	 * @param record
+	 * @param skipTriggers
+	 * @param skipSharing
+	 * @param skipCreatePermissionCheck
+	 * @param isSilentUpdate
+	 * @param historyBatch field history batch to which history of the record's fields is added, or null if field history
+	 * should be logged immediately
+	 * @param authData
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	private Record save (Record record, boolean skipTriggers, boolean skipSharing, boolean skipCreatePermissionCheck, boolean isSilentUpdate, FieldHistoryBatch historyBatch, AuthData authData, EnvData env) throws KommetException
 	{	
 		// Note that the type on the record may be different that the type on the env. In some rare situations
 		// it is possible that a type on the env has changed after the record has been created. However, records
@@ -343,26 +373,7 @@ public class DataService
 		Type type = record.getType();
 		
 		// track history
-		boolean trackHistory = false;
-		Criteria c = env.getSelectCriteria(type.getKID());
-		for (Field field : env.getType(type.getKeyPrefix()).getFields())
-		{
-			// history can only be tracked for non-collection data types
-			if (field.isTrackHistory())
-			{
-				c.addProperty(field.getApiName());
-				trackHistory = true;
-			}
-		}
-		
-		// if any fields are supposed to be tracked, fetch the old version of the object before saving
-		// (if it has already been saved before)
-		Record oldRecord = null;
-		if (trackHistory && record.attemptGetKID() != null)
-		{
-			c.add(Restriction.eq(Field.ID_FIELD_NAME, record.getKID()));
-			oldRecord = c.list().get(0);
-		}
+		List<Field> trackedFields = getHistoryTrackedFields(type, env);
 		
 		if (authData == null)
 		{
@@ -411,20 +422,23 @@ public class DataService
 		List<RecordProxy> oldProxies = null;
 		
 		// triggers are executed for all custom types and accessible standard types
+		boolean callTriggers = !skipTriggers && !SystemTypes.isInaccessibleSystemType(type) && !env.getTriggers(type.getKID()).isEmpty();
+		
 		if (!skipTriggers && !SystemTypes.isInaccessibleSystemType(type))
 		{
 			// clone the record
 			clonedRecord = MiscUtils.shallowCloneRecord(record);
 			
-			if (!env.getTriggers(type.getKID()).isEmpty())
+			if (callTriggers)
 			{
-				// generate proxy - use custom proxy since it will be used in KOLL trigger
-				proxyForTriggers = RecordProxyUtil.generateCustomTypeProxy(clonedRecord, true, env, compiler);
+				// the same proxy is passed to the @Before and @After triggers, so the record is converted only once
+				proxyForTriggers = toTriggerProxy(clonedRecord, true, env);
 				
-				// old values are injected to @before triggers only if it's an update, not insert, because insert does not have old values 
-				if (oldProxies == null && env.hasTypeBeforeTriggersWithOldProxies(type.getKID()) && !isInsert)
+				// old values are only available for updates, because insert does not have old values
+				// they are read before the record is saved and shared by @Before and @After triggers
+				if (!isInsert && (env.hasTypeBeforeTriggersWithOldProxies(type.getKID()) || env.hasTypeAfterTriggersWithOldProxies(type.getKID())))
 				{
-					log.debug("Initializing old proxies for @Before triggers");
+					log.debug("Initializing old proxies for triggers");
 					oldProxies = initOldProxies(Arrays.asList(proxyForTriggers), type, authData, env);
 				}
 				
@@ -432,8 +446,16 @@ public class DataService
 				callTriggers(MiscUtils.toList(proxyForTriggers), oldProxies, clonedRecord.getType(), isInsert, !isInsert, false, true, false, authData, env);
 				
 				// convert proxy back to record
-				clonedRecord = RecordProxyUtil.generateRecord(proxyForTriggers, clonedRecord.getType(), 100, env);
-			}			
+				clonedRecord = toRecord(proxyForTriggers, clonedRecord.getType(), env);
+			}
+		}
+		
+		// if any fields are supposed to be tracked, get the old version of the object before saving
+		// (if it has already been saved before)
+		Record oldRecord = null;
+		if (!trackedFields.isEmpty() && !isInsert)
+		{
+			oldRecord = getOldRecordForHistory(record.getKID(), trackedFields, oldProxies, historyBatch, type, env);
 		}
 		
 		// set default values on the record - only if it's an insert
@@ -442,12 +464,364 @@ public class DataService
 			clonedRecord = setDefaultValues(clonedRecord, type);
 		}
 		
+		// field validation and validation rules are run after triggers are executed and after default values are set
+		runValidation(clonedRecord, proxyForTriggers, isInsert, type, authData, env);
+		
+		// perform the save on the cloned record, because it may contain
+		// changes resulting from triggers
+		Record savedRecord = null;
+		
+		savedRecord = daoFacade.save(clonedRecord, skipSharing, authData, env);
+		
+		// set the ID of the saved record to the record passed to the save method
+		record.setKID(clonedRecord.getKID());
+		
+		// track history
+		if (!trackedFields.isEmpty())
+		{
+			List<FieldHistory> historyEntries = getFieldHistory(record, oldRecord, trackedFields, authData);
+			
+			if (historyBatch != null)
+			{
+				historyBatch.addEntries(historyEntries);
+			}
+			else
+			{
+				fieldHistoryService.logFieldUpdates(historyEntries, authData, env);
+			}
+		}
+		
+		if (!type.isBasic() && isInsert && appConfig.isCreateAnyRecords())
+		{
+			anyRecordService.recordsInserted(Arrays.asList(record.getKID()), env);
+		}
+		
+		// if a user created a record, automatically create a user-record sharing for the creating user
+		//if (!type.isBasic() || !SystemTypes.isInaccessibleSystemType(type))
+		if (!skipSharing && isInsert)
+		{
+			SharingService.shareRecord(record.getKID(), authData.getUserId(), true, true, "Record creator", false, null, null, compiler, userRecordSharingDao, this, authData, false, env);
+		}
+		
+		// Call "after" triggers
+		// Triggers are executed for all custom types and accessible standard types
+		if (callTriggers)
+		{
+			// reuse the proxy passed to the @Before triggers, updating it with the values assigned during the save
+			updateTriggerProxy(proxyForTriggers, savedRecord, isInsert, type, env);
+			
+			// pass the cloned record to trigger
+			callTriggers(MiscUtils.toList(proxyForTriggers), oldProxies, savedRecord.getType(), isInsert, !isInsert, false, false, true, authData, env);
+		}
+		
+		boolean isAvailableType = !type.isBasic() || !SystemTypes.isInaccessibleSystemType(type);
+		
+		if (isAvailableType)
+		{
+			runTriggerableProcesses(savedRecord, type, isInsert, authData, env);
+			
+			// recalculate sharings for this record
+			sharingRuleService.recalculateSharingForType(type.getKID(), savedRecord.getKID(), isInsert, this, env);
+			sharingRuleService.recalculateDependentSharingForType(type.getKID(), this, env);
+		}
+		
+		if (!isInsert)
+		{
+			// reminders referencing a date on the record are due at a different time if the date has changed
+			reminderService.recordUpdated(savedRecord, type, env);
+		}
+		
+		return savedRecord;
+	}
+
+	@Transactional
+	public List<Record> saveAll (Collection<Record> records, AuthData authData, EnvData env) throws KommetException
+	{
+		return saveAll(records, false, false, authData, env);
+	}
+	
+	/**
+	 * Saves a collection of records.
+	 * <p>
+	 * New records are grouped by type and each group is inserted using bulk insert queries, so that
+	 * the number of database round trips does not depend on the number of records. Triggers are called once
+	 * for each group, with all records of the group. Records that already have an ID are updated one by one
+	 * using the regular {@link #save(Record, boolean, boolean, boolean, boolean, AuthData, EnvData)} method,
+	 * before any records are inserted.
+	 * </p>
+	 * @param records
+	 * @param skipTriggers
+	 * @param skipSharing
+	 * @param authData
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	@Transactional
+	public List<Record> saveAll (Collection<Record> records, boolean skipTriggers, boolean skipSharing, AuthData authData, EnvData env) throws KommetException
+	{
+		return saveAll(records, skipTriggers, skipSharing, false, authData, env);
+	}
+	
+	/**
+	 * Saves a collection of records.
+	 * <p>
+	 * History of all saved records is logged at once after all records are saved. Old versions of updated records
+	 * whose field history is tracked are fetched with one query per type.
+	 * </p>
+	 * @param records
+	 * @param skipTriggers
+	 * @param skipSharing
+	 * @param skipCreatePermissionCheck
+	 * @param authData
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	@Transactional
+	public List<Record> saveAll (Collection<Record> records, boolean skipTriggers, boolean skipSharing, boolean skipCreatePermissionCheck, AuthData authData, EnvData env) throws KommetException
+	{
+		if (authData == null)
+		{
+			throw new KommetException("AuthData is null. If called manually, authData was not passed to the method. If called from a system context, authData was not injected");
+		}
+		
+		// new records grouped by type, in the order in which types first appear in the collection
+		Map<KID, List<Record>> insertedRecordsByType = new LinkedHashMap<KID, List<Record>>();
+		
+		// IDs of updated records whose field history is tracked, grouped by type
+		Map<KID, List<KID>> trackedRecordIdsByType = new LinkedHashMap<KID, List<KID>>();
+		Set<KID> untrackedTypeIds = new HashSet<KID>();
+		
+		for (Record record : records)
+		{
+			KID typeId = record.getType().getKID();
+			if (record.attemptGetKID() == null || untrackedTypeIds.contains(typeId))
+			{
+				continue;
+			}
+			
+			if (!trackedRecordIdsByType.containsKey(typeId))
+			{
+				if (getHistoryTrackedFields(record.getType(), env).isEmpty())
+				{
+					untrackedTypeIds.add(typeId);
+					continue;
+				}
+				trackedRecordIdsByType.put(typeId, new ArrayList<KID>());
+			}
+			trackedRecordIdsByType.get(typeId).add(record.getKID());
+		}
+		
+		FieldHistoryBatch historyBatch = new FieldHistoryBatch();
+		
+		// fetch old versions of all updated records of each type at once
+		for (KID typeId : trackedRecordIdsByType.keySet())
+		{
+			Type type = env.getType(typeId);
+			Criteria c = env.getSelectCriteria(typeId);
+			for (Field field : getHistoryTrackedFields(type, env))
+			{
+				c.addProperty(field.getApiName());
+			}
+			c.add(Restriction.in(Field.ID_FIELD_NAME, trackedRecordIdsByType.get(typeId)));
+			historyBatch.addOldRecords(c.list());
+		}
+		
+		for (Record record : records)
+		{
+			if (record.attemptGetKID() != null)
+			{
+				save(record, skipTriggers, skipSharing, skipCreatePermissionCheck, false, historyBatch, authData, env);
+			}
+			else
+			{
+				if (!insertedRecordsByType.containsKey(record.getType().getKID()))
+				{
+					insertedRecordsByType.put(record.getType().getKID(), new ArrayList<Record>());
+				}
+				insertedRecordsByType.get(record.getType().getKID()).add(record);
+			}
+		}
+		
+		for (List<Record> insertedRecords : insertedRecordsByType.values())
+		{
+			insertAll(insertedRecords, skipTriggers, skipSharing, skipCreatePermissionCheck, historyBatch, authData, env);
+		}
+		
+		// log history of all saved records at once
+		fieldHistoryService.logFieldUpdates(historyBatch.getEntries(), authData, env);
+		
+		return new ArrayList<Record>(records);
+	}
+	
+	/**
+	 * Inserts new records of the same type. This method performs the same steps as
+	 * {@link #save(Record, boolean, boolean, boolean, boolean, AuthData, EnvData)}, but triggers are called
+	 * once for all records and the records are inserted using bulk insert queries.
+	 * @param records
+	 * @param skipTriggers
+	 * @param skipSharing
+	 * @param skipCreatePermissionCheck
+	 * @param historyBatch field history batch to which history of the inserted records is added
+	 * @param authData
+	 * @param env
+	 * @throws KommetException
+	 */
+	private void insertAll (List<Record> records, boolean skipTriggers, boolean skipSharing, boolean skipCreatePermissionCheck, FieldHistoryBatch historyBatch, AuthData authData, EnvData env) throws KommetException
+	{
+		Type type = records.get(0).getType();
+		
+		UserKType.validateUserId(authData.getUserId());
+		
+		// make sure user has permissions to create records of this type
+		if (!skipCreatePermissionCheck && !authData.canCreateType(type.getKID(), true, env))
+		{
+			throw new InsufficientPrivilegesException(InsufficientPrivilegesException.INSUFFICIENT_PRIVILEGES_TO_INSERT_TYPE_MSG + " " + type.getQualifiedName() + " for profile " + authData.getProfile().getName());
+		}
+		
+		List<Field> trackedFields = getHistoryTrackedFields(type, env);
+		
+		Date modificationDate = new Date();
+		
+		for (Record record : records)
+		{
+			record.setLastModifiedBy(authData.getUserId(), env);
+			record.setLastModifiedDate(modificationDate);
+			record.setCreatedDate(modificationDate);
+			record.setCreatedBy(authData.getUserId(), env);
+			
+			// set default access type
+			if (!record.isSet(Field.ACCESS_TYPE_FIELD_NAME))
+			{
+				record.setAccessType(RecordAccessType.PUBLIC.getId());
+			}
+		}
+		
+		List<Record> clonedRecords = records;
+		List<RecordProxy> proxiesForTriggers = null;
+		
+		boolean callTriggers = !skipTriggers && !SystemTypes.isInaccessibleSystemType(type);
+		
+		// triggers are executed for all custom types and accessible standard types
+		if (callTriggers)
+		{
+			clonedRecords = new ArrayList<Record>();
+			for (Record record : records)
+			{
+				clonedRecords.add(MiscUtils.shallowCloneRecord(record));
+			}
+			
+			if (!env.getTriggers(type.getKID()).isEmpty())
+			{
+				// the same proxies are passed to the before-insert and after-insert triggers
+				proxiesForTriggers = new ArrayList<RecordProxy>();
+				for (Record clonedRecord : clonedRecords)
+				{
+					proxiesForTriggers.add(toTriggerProxy(clonedRecord, true, env));
+				}
+				
+				// call before-insert triggers once for all records
+				callTriggers(proxiesForTriggers, null, type, true, false, false, true, false, authData, env);
+				
+				// convert proxies back to records
+				clonedRecords = new ArrayList<Record>();
+				for (RecordProxy proxy : proxiesForTriggers)
+				{
+					clonedRecords.add(toRecord(proxy, type, env));
+				}
+			}
+		}
+		
+		for (int i = 0; i < clonedRecords.size(); i++)
+		{
+			Record clonedRecord = setDefaultValues(clonedRecords.get(i), type);
+			clonedRecords.set(i, clonedRecord);
+			
+			// field validation and validation rules are run after triggers are executed and after default values are set
+			runValidation(clonedRecord, proxiesForTriggers != null ? proxiesForTriggers.get(i) : null, true, type, authData, env);
+		}
+		
+		// perform the insert on the cloned records, because they may contain
+		// changes resulting from triggers
+		daoFacade.insert(clonedRecords, env);
+		
+		for (int i = 0; i < records.size(); i++)
+		{
+			// set the ID of the saved record to the record passed to the save method
+			records.get(i).setKID(clonedRecords.get(i).getKID());
+		}
+		
+		if (!trackedFields.isEmpty())
+		{
+			for (Record record : records)
+			{
+				historyBatch.addEntries(getFieldHistory(record, null, trackedFields, authData));
+			}
+		}
+		
+		if (!type.isBasic() && appConfig.isCreateAnyRecords())
+		{
+			List<KID> recordIds = new ArrayList<KID>();
+			for (Record record : records)
+			{
+				recordIds.add(record.getKID());
+			}
+			anyRecordService.recordsInserted(recordIds, env);
+		}
+		
+		// automatically create a user-record sharing for the creating user
+		if (!skipSharing)
+		{
+			for (Record record : records)
+			{
+				SharingService.shareRecord(record.getKID(), authData.getUserId(), true, true, "Record creator", false, null, null, compiler, userRecordSharingDao, this, authData, false, env);
+			}
+		}
+		
+		// call after-insert triggers once for all records
+		if (proxiesForTriggers != null)
+		{
+			for (int i = 0; i < proxiesForTriggers.size(); i++)
+			{
+				updateTriggerProxy(proxiesForTriggers.get(i), clonedRecords.get(i), true, type, env);
+			}
+			
+			callTriggers(proxiesForTriggers, null, type, true, false, false, false, true, authData, env);
+		}
+		
+		if (!type.isBasic() || !SystemTypes.isInaccessibleSystemType(type))
+		{
+			for (Record savedRecord : clonedRecords)
+			{
+				runTriggerableProcesses(savedRecord, type, true, authData, env);
+				
+				// recalculate sharings for this record
+				sharingRuleService.recalculateSharingForType(type.getKID(), savedRecord.getKID(), true, this, env);
+			}
+			
+			sharingRuleService.recalculateDependentSharingForType(type.getKID(), this, env);
+		}
+	}
+	
+	/**
+	 * Runs field validation and validation rules on a record that is about to be saved. Errors reported by both
+	 * are thrown together in one exception.
+	 * @param record
+	 * @param proxy proxy of the record passed to triggers, or null if it has not been created
+	 * @param isInsert
+	 * @param type
+	 * @param authData
+	 * @param env
+	 * @throws KommetException
+	 */
+	private void runValidation (Record record, RecordProxy proxy, boolean isInsert, Type type, AuthData authData, EnvData env) throws KommetException
+	{
 		FieldValidationException fieldValidationException = null;
 		
-		// field validation is run after triggers are executed and after default values are set
 		try
 		{
-			runFieldValidation(clonedRecord, env);
+			runFieldValidation(record, env);
 		}
 		catch (FieldValidationException e)
 		{
@@ -457,16 +831,16 @@ public class DataService
 		// run validation rules
 		if (env.hasValidationRules(type.getKID()))
 		{
-			if (proxyForTriggers == null)
+			if (proxy == null)
 			{
-				proxyForTriggers = RecordProxyUtil.generateCustomTypeProxy(clonedRecord, true, env, compiler);
+				proxy = toTriggerProxy(record, true, env);
 			}
 			
 			// describes how a validation rule should act if some of the fields used in its condition are not initialized on the object
 			// if it's an insert, all fields need to be initialized, otherwise we can use a value from a setting
 			String uninitializedFieldsMode = isInsert ? ValidationRuleUninitializedFieldsMode.EVALUATE.getMode() : getUserSettingValue(UserSettingKeys.KM_ROOT_SYS_VALIDATION_RULE_UNINITIALIZED_FIELDS_MODE, authData, AuthData.getRootAuthData(env), env);
 			
-			Set<ValidationRuleError> errors = ValidationRuleUtil.runValidationRules(proxyForTriggers, uninitializedFieldsMode, type.getKeyPrefix(), compiler, authData, env);
+			Set<ValidationRuleError> errors = ValidationRuleUtil.runValidationRules(proxy, uninitializedFieldsMode, type.getKeyPrefix(), compiler, authData, env);
 			
 			if (!errors.isEmpty())
 			{	
@@ -487,79 +861,135 @@ public class DataService
 		{
 			throw fieldValidationException;
 		}
-		
-		// perform the save on the cloned record, because it may contain
-		// changes resulting from triggers
-		Record savedRecord = null;
-		
-		savedRecord = daoFacade.save(clonedRecord, skipSharing, authData, env);
-		
-		// set the ID of the saved record to the record passed to the save method
-		record.setKID(clonedRecord.getKID());
-		
-		// track history
-		if (trackHistory)
+	}
+	
+	/**
+	 * Returns fields of the type whose history is tracked.
+	 * @param type
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	private static List<Field> getHistoryTrackedFields (Type type, EnvData env) throws KommetException
+	{
+		List<Field> trackedFields = new ArrayList<Field>();
+		for (Field field : env.getType(type.getKeyPrefix()).getFields())
+		{
+			// history can only be tracked for non-collection data types
+			if (field.isTrackHistory())
+			{
+				trackedFields.add(field);
+			}
+		}
+		return trackedFields;
+	}
+	
+	/**
+	 * Returns the version of an updated record from before the save, with values of history-tracked fields.
+	 * <p>
+	 * If the old version of the record has already been fetched for all records saved in a batch, or for triggers,
+	 * it is reused. Otherwise it is queried.
+	 * </p>
+	 * @param recordId
+	 * @param trackedFields
+	 * @param oldProxies old proxies initialized for triggers, or null if they have not been initialized
+	 * @param historyBatch
+	 * @param type
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	private static Record getOldRecordForHistory (KID recordId, List<Field> trackedFields, List<RecordProxy> oldProxies, FieldHistoryBatch historyBatch, Type type, EnvData env) throws KommetException
+	{
+		if (historyBatch != null)
 		{
-			for (Field field : env.getType(type.getKeyPrefix()).getFields())
+			Record oldRecord = historyBatch.removeOldRecord(recordId);
+			if (oldRecord != null)
 			{
-				if (!field.isTrackHistory() || !record.isSet(field.getApiName()))
-				{
-					continue;
-				}
-				
-				Object oldValue = oldRecord != null ? oldRecord.attemptGetField(field.getApiName()) : null; 
-				Object newValue = record.attemptGetField(field.getApiName());
-				
-				// TODO comparing string values is not optimal
-				if (!field.getDataType().getStringValue(oldValue, authData.getLocale()).equals(field.getDataType().getStringValue(newValue, authData.getLocale())))
-				{
-					// TODO optimize this - perform one save for all fields
-					fieldHistoryService.logFieldUpdate(field, record.getKID(), oldValue, record.getField(field.getApiName()), authData, env);
-				}
+				return oldRecord;
 			}
 		}
 		
-		if (!type.isBasic() && isInsert && appConfig.isCreateAnyRecords())
+		if (oldProxies != null && oldProxies.size() == 1 && recordId.equals(oldProxies.get(0).getId()))
 		{
-			Record anyRecord = new Record(env.getType(KeyPrefix.get(KID.ANY_RECORD_PREFIX)));
-			anyRecord.setField("recordId", record.getKID());
-			save(anyRecord, env);
+			// old proxies contain only fields readable by the current user, so they can be used only if all tracked fields are set
+			Record oldRecord = RecordProxyUtil.generateRecord(oldProxies.get(0), type, 1, env);
+			boolean isComplete = true;
+			for (Field field : trackedFields)
+			{
+				if (!oldRecord.isSet(field.getApiName()))
+				{
+					isComplete = false;
+					break;
+				}
+			}
+			
+			if (isComplete)
+			{
+				return oldRecord;
+			}
 		}
 		
-		// if a user created a record, automatically create a user-record sharing for the creating user
-		//if (!type.isBasic() || !SystemTypes.isInaccessibleSystemType(type))
-		if (!skipSharing && isInsert)
+		Criteria c = env.getSelectCriteria(type.getKID());
+		for (Field field : trackedFields)
 		{
-			SharingService.shareRecord(record.getKID(), authData.getUserId(), true, true, "Record creator", false, null, null, compiler, userRecordSharingDao, this, authData, false, env);
+			c.addProperty(field.getApiName());
 		}
+		c.add(Restriction.eq(Field.ID_FIELD_NAME, recordId));
+		return c.list().get(0);
+	}
+	
+	/**
+	 * Returns field history entries describing changes of history-tracked fields on a saved record.
+	 * @param record the saved record
+	 * @param oldRecord version of the record from before the save, or null if the record has been inserted
+	 * @param trackedFields
+	 * @param authData
+	 * @return
+	 * @throws KommetException
+	 */
+	private static List<FieldHistory> getFieldHistory(Record record, Record oldRecord, List<Field> trackedFields, AuthData authData) throws KommetException
+	{
+		List<FieldHistory> entries = new ArrayList<FieldHistory>();
 		
-		// Call "after" triggers
-		// Triggers are executed for all custom types and accessible standard types
-		if (!skipTriggers && !SystemTypes.isInaccessibleSystemType(type))
+		for (Field field : trackedFields)
 		{
-			// clone the record
-			clonedRecord = MiscUtils.shallowCloneRecord(savedRecord);
+			if (!record.isSet(field.getApiName()))
+			{
+				continue;
+			}
 			
-			if (!env.getTriggers(type.getKID()).isEmpty())
+			Object oldValue = oldRecord != null ? oldRecord.attemptGetField(field.getApiName()) : null;
+			if (SpecialValue.isNull(oldValue))
 			{
-				// generate proxy - use custom proxy since it will be used in KOLL trigger
-				RecordProxy proxy = RecordProxyUtil.generateCustomTypeProxy(clonedRecord, true, env, compiler);
-				
-				if (oldProxies == null && env.hasTypeAfterTriggersWithOldProxies(type.getKID()) && !isInsert)
-				{
-					log.debug("Initializing old proxies for @After triggers");
-					oldProxies = initOldProxies(Arrays.asList(proxyForTriggers), type, authData, env);
-				}
-				
-				// pass the cloned record to trigger
-				callTriggers(MiscUtils.toList(proxy), isInsert ? null : oldProxies, savedRecord.getType(), isInsert, !isInsert, false, false, true, authData, env);
-			}			
+				oldValue = null;
+			}
+			
+			Object newValue = record.attemptGetField(field.getApiName());
+			
+			// TODO comparing string values is not optimal
+			if (!field.getDataType().getStringValue(oldValue, authData.getLocale()).equals(field.getDataType().getStringValue(newValue, authData.getLocale())))
+			{
+				entries.add(FieldHistoryService.getFieldUpdate(field, record.getKID(), oldValue, record.getField(field.getApiName()), authData));
+			}
 		}
 		
-		boolean isAvailableType = !type.isBasic() || !SystemTypes.isInaccessibleSystemType(type);
-		
+		return entries;
+	}
+	
+	/**
+	 * Runs business processes triggered by the insert or update of the given record.
+	 * @param savedRecord
+	 * @param type
+	 * @param isInsert
+	 * @param authData
+	 * @param env
+	 * @throws KommetException
+	 */
+	private void runTriggerableProcesses(Record savedRecord, Type type, boolean isInsert, AuthData authData, EnvData env) throws KommetException
+	{
 		// check if among triggerable processes there are processes for this type, or for any type
-		if (isAvailableType && (env.getTriggerableBusinessProcesses().get(savedRecord.getType().getKID()) != null || env.getTriggerableBusinessProcesses().containsKey(RecordProxy.class.getName())))
+		if (env.getTriggerableBusinessProcesses().get(savedRecord.getType().getKID()) != null || env.getTriggerableBusinessProcesses().containsKey(RecordProxy.class.getName()))
 		{
 			List<BusinessProcess> processesForType = env.getTriggerableBusinessProcesses().get(savedRecord.getType().getKID());
 			List<BusinessProcess> processesForAllTypes = env.getTriggerableBusinessProcesses().get(RecordProxy.class.getName());
@@ -581,6 +1011,16 @@ public class DataService
 					// get cached process executor
 					BusinessProcessExecutor processExecutor = env.getProcessExecutor(process, compiler, logService, classService, this);
 					
+					if (ProcessQueueService.isAsync(processExecutor.getEntryPoint()))
+					{
+						if (isTriggeredBy(processExecutor.getEntryPoint().getInvokedAction(), isInsert))
+						{
+							// asynchronous processes are queued and executed with the state of the record from the time of their execution
+							processQueueService.enqueue(process, savedRecord.getKID(), authData, env);
+						}
+						continue;
+					}
+					
 					// for every process, we query the record with all its fields to make sure that
 					// 1) it has all fields initialized
 					// 2) changes made by previous processes run in this loop are reflected in the record
@@ -589,7 +1029,7 @@ public class DataService
 					BusinessAction entryPoint = processExecutor.getEntryPoint().getInvokedAction();
 				
 					// check if the action performed on the record (insert/update) should trigger this process or not
-					if ((entryPoint.getType().equals("RecordCreate") && isInsert) || ((entryPoint.getType().equals("RecordUpdate")) && !isInsert) || entryPoint.getType().equals("RecordSave"))
+					if (isTriggeredBy(entryPoint, isInsert))
 					{	
 						Map<String, Object> processInputs = new HashMap<String, Object>();
 						
@@ -601,17 +1041,19 @@ public class DataService
 				}
 			}
 		}
-		
-		if (isAvailableType)
-		{
-			// recalculate sharings for this record
-			sharingRuleService.recalculateSharingForType(type.getKID(), savedRecord.getKID(), isInsert, this, env);
-			sharingRuleService.recalculateDependentSharingForType(type.getKID(), this, env);
-		}
-		
-		return savedRecord;
 	}
-
+	
+	/**
+	 * Tells whether a process with the given entry point action is triggered by an insert or update of a record.
+	 * @param entryPoint
+	 * @param isInsert
+	 * @return
+	 */
+	private static boolean isTriggeredBy(BusinessAction entryPoint, boolean isInsert)
+	{
+		return (entryPoint.getType().equals("RecordCreate") && isInsert) || ((entryPoint.getType().equals("RecordUpdate")) && !isInsert) || entryPoint.getType().equals("RecordSave");
+	}
+	
 	/**
 	 * Sets the default values of fields.
 	 * @param record
@@ -827,11 +1269,90 @@ public class DataService
 		List<RecordProxy> oldProxies = new ArrayList<RecordProxy>();
 		for (Record r : records)
 		{
-			oldProxies.add(RecordProxyUtil.generateCustomTypeProxy(r, env, compiler));
+			oldProxies.add(toTriggerProxy(r, false, env));
 		}
 		
 		return oldProxies;
 	}
+	
+	/**
+	 * Generates a custom proxy for a record passed to triggers or validation rules.
+	 * @param record
+	 * @param ignoreUninitializedFields
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	private RecordProxy toTriggerProxy (Record record, boolean ignoreUninitializedFields, EnvData env) throws KommetException
+	{
+		long startTime = System.nanoTime();
+		
+		// use custom proxy since it will be used in KOLL trigger
+		RecordProxy proxy = ignoreUninitializedFields ? RecordProxyUtil.generateCustomTypeProxy(record, true, env, compiler) : RecordProxyUtil.generateCustomTypeProxy(record, env, compiler);
+		
+		triggerProxyStats.proxyGenerated(System.nanoTime() - startTime);
+		return proxy;
+	}
+	
+	/**
+	 * Converts a proxy returned from triggers back into a record.
+	 * @param proxy
+	 * @param type
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	private Record toRecord (RecordProxy proxy, Type type, EnvData env) throws KommetException
+	{
+		long startTime = System.nanoTime();
+		Record record = RecordProxyUtil.generateRecord(proxy, type, 100, env);
+		triggerProxyStats.recordGenerated(System.nanoTime() - startTime);
+		return record;
+	}
+	
+	/**
+	 * Updates the proxy passed to @Before triggers with the values assigned to the record during the save, so that
+	 * it can be passed to @After triggers without generating a new proxy.
+	 * <p>
+	 * The saved record is generated from the proxy, so it differs from it only in the record ID and default field values,
+	 * which are both assigned only on insert.
+	 * </p>
+	 * @param proxy
+	 * @param savedRecord
+	 * @param isInsert
+	 * @param type
+	 * @param env
+	 * @throws KommetException
+	 */
+	private void updateTriggerProxy (RecordProxy proxy, Record savedRecord, boolean isInsert, Type type, EnvData env) throws KommetException
+	{
+		if (!isInsert)
+		{
+			return;
+		}
+		
+		long startTime = System.nanoTime();
+		
+		List<String> fieldNames = new ArrayList<String>();
+		fieldNames.add(Field.ID_FIELD_NAME);
+		for (Field field : type.getFieldsWithDefaultValues().values())
+		{
+			fieldNames.add(field.getApiName());
+		}
+		
+		RecordProxyUtil.updateCustomTypeProxy(proxy, savedRecord, fieldNames, env, compiler);
+		
+		triggerProxyStats.proxyUpdated(System.nanoTime() - startTime);
+	}
+	
+	/**
+	 * Returns statistics of conversions between records and proxies made when calling triggers.
+	 * @return
+	 */
+	public TriggerProxyStats getTriggerProxyStats()
+	{
+		return triggerProxyStats;
+	}
 
 	@Transactional
 	public OperationResult deleteType (Type type, AuthData authData, EnvData env) throws KommetException
@@ -1198,13 +1719,9 @@ public class DataService
 		
 		Type type = records.iterator().next().getType();
 		
-		List<Record> clonedRecords = new ArrayList<Record>();
-		for (Record rec : records)
-		{
-			clonedRecords.add(MiscUtils.shallowCloneRecord(rec));
-		}
-		
 		// triggers are executed for all custom types and accessible standard types
+		List<RecordProxy> proxies = null;
+		
 		if (!skipTriggers && !SystemTypes.isInaccessibleSystemType(type) && !env.getTriggers(type.getKID()).isEmpty())
 		{
 			if (authData == null)
@@ -1212,57 +1729,37 @@ public class DataService
 				throw new TriggerException("Cannot call trigger when no auth data is supplied");
 			}
 			
-			// clone records
-			List<RecordProxy> proxies = new ArrayList<RecordProxy>();
-			for (Record rec : clonedRecords)
+			// generate proxies from cloned records, so that triggers do not modify the records passed to this method
+			// the same proxies are passed to the @BeforeDelete and @AfterDelete triggers
+			proxies = new ArrayList<RecordProxy>();
+			for (Record rec : records)
 			{
-				// generate proxy - use custom proxy since it will be used in KOLL trigger
-				proxies.add(RecordProxyUtil.generateCustomTypeProxy(rec, true, env, compiler));
+				proxies.add(toTriggerProxy(MiscUtils.shallowCloneRecord(rec), true, env));
 			}
 				
 			// pass the cloned record to trigger as old values
 			callTriggers(null, proxies, type, false, false, true, true, false, authData, env);
-			
-			clonedRecords.clear();
-			
-			for (RecordProxy proxy : proxies)
-			{
-				// convert proxy back to record
-				clonedRecords.add(RecordProxyUtil.generateRecord(proxy, type, 100, env));
-			}
 		}
 		
 		// delete possible entries in association linking tables for this record
 		// deleteAssociations(records, env);
-		daoFacade.delete(clonedRecords, authData, env);
+		// the delete only reads record IDs, so changes made to the proxies by triggers do not need to be converted back
+		daoFacade.delete(records, authData, env);
 		
-		if (!skipTriggers && !SystemTypes.isInaccessibleSystemType(type) && !env.getTriggers(type.getKID()).isEmpty())
+		if (proxies != null)
 		{
-			if (authData == null)
-			{
-				throw new TriggerException("Cannot call trigger when no auth data is supplied");
-			}
-			
-			// clone records
-			List<RecordProxy> proxies = new ArrayList<RecordProxy>();
-			for (Record rec : clonedRecords)
-			{
-				// generate proxy - use custom proxy since it will be used in KOLL trigger
-				proxies.add(RecordProxyUtil.generateCustomTypeProxy(rec, true, env, compiler));
-			}
-				
 			// pass the cloned record to trigger as old values
 			callTriggers(null, proxies, type, false, false, true, false, true, authData, env);
 		}
 		
 		if (!type.isBasic())
 		{
-			AnyRecordFilter anyRecordFilter = new AnyRecordFilter();
+			List<KID> recordIds = new ArrayList<KID>();
 			for (Record rec : records)
 			{
-				anyRecordFilter.addRecordId(rec.getKID());
+				recordIds.add(rec.getKID());
 			}
-			anyRecordDao.delete(anyRecordDao.get(anyRecordFilter, AuthData.getRootAuthData(env), env), AuthData.getRootAuthData(env), env); 
+			anyRecordService.recordsDeleted(recordIds, env);
 		}
 	}
 	
@@ -1759,8 +2256,8 @@ public class DataService
 			throw new KommetException("Error compiling type proxy: " + compilationResult.getDescription());
 		}
 		
-		// reset class loader so that new proxy class can be loaded
-		compiler.resetClassLoader(env);
+		// swap in the new proxy class
+		compiler.reloadClasses(compilationResult, env);
 		
 		for (Type type : types)
 		{
@@ -2426,8 +2923,8 @@ public class DataService
 			throw new KommetException("Error compiling object proxy: " + compilationResult.getDescription());
 		}
 		
-		// reset class loader so that new proxy class can be loaded
-		compiler.resetClassLoader(env);
+		// swap in the new proxy class
+		compiler.reloadClasses(compilationResult, env);
 		
 		return cls;
 	}
@@ -2444,8 +2941,8 @@ public class DataService
 			throw new KommetException("Error compiling object proxy: " + compilationResult.getDescription());
 		}
 		
-		// reset class loader so that new proxy class can be loaded
-		compiler.resetClassLoader(env);
+		// swap in the new proxy class
+		compiler.reloadClasses(compilationResult, env);
 		
 		// save controller KOLL file
 		return classService.saveSystemFile(cls, getRootAuthData(env), env);
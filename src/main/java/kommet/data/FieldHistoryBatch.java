@@ -0,0 +1,57 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import kommet.basic.FieldHistory;
+
+/**
+ * Field history collected while a collection of records is saved, so that it can be logged at once
+ * after all records are saved.
+ * @author Radek Krawiec
+ */
+class FieldHistoryBatch
+{
+	// versions of updated records from before the save, fetched in advance for all records in the batch
+	private Map<KID, Record> oldRecords = new HashMap<KID, Record>();
+	
+	private List<FieldHistory> entries = new ArrayList<FieldHistory>();
+	
+	public void addOldRecords (List<Record> records) throws KommetException
+	{
+		for (Record record : records)
+		{
+			this.oldRecords.put(record.getKID(), record);
+		}
+	}
+	
+	/**
+	 * Returns the old version of the record and removes it from the batch, because once the record
+	 * is saved, its old version is no longer valid.
+	 * @param recordId
+	 * @return
+	 */
+	public Record removeOldRecord (KID recordId)
+	{
+		return this.oldRecords.remove(recordId);
+	}
+	
+	public void addEntries (List<FieldHistory> entries)
+	{
+		this.entries.addAll(entries);
+	}
+	
+	public List<FieldHistory> getEntries()
+	{
+		return entries;
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts conversions between records and record proxies made by {@link DataService} when calling triggers
+ * and validation rules, together with the time spent on them.
+ *
+ * @author Radek Krawiec
+ */
+public class TriggerProxyStats
+{
+	private final AtomicLong proxiesGenerated = new AtomicLong();
+	private final AtomicLong proxyGenerationNanos = new AtomicLong();
+	private final AtomicLong proxiesUpdated = new AtomicLong();
+	private final AtomicLong proxyUpdateNanos = new AtomicLong();
+	private final AtomicLong recordsGenerated = new AtomicLong();
+	private final AtomicLong recordGenerationNanos = new AtomicLong();
+
+	void proxyGenerated (long nanos)
+	{
+		proxiesGenerated.incrementAndGet();
+		proxyGenerationNanos.addAndGet(nanos);
+	}
+
+	void proxyUpdated (long nanos)
+	{
+		proxiesUpdated.incrementAndGet();
+		proxyUpdateNanos.addAndGet(nanos);
+	}
+
+	void recordGenerated (long nanos)
+	{
+		recordsGenerated.incrementAndGet();
+		recordGenerationNanos.addAndGet(nanos);
+	}
+
+	public void reset()
+	{
+		proxiesGenerated.set(0);
+		proxyGenerationNanos.set(0);
+		proxiesUpdated.set(0);
+		proxyUpdateNanos.set(0);
+		recordsGenerated.set(0);
+		recordGenerationNanos.set(0);
+	}
+
+	/**
+	 * Returns the number of proxies generated from records.
+	 * @return
+	 */
+	public long getProxiesGenerated()
+	{
+		return proxiesGenerated.get();
+	}
+
+	public long getProxyGenerationNanos()
+	{
+		return proxyGenerationNanos.get();
+	}
+
+	/**
+	 * Returns the number of existing proxies updated with the values assigned to their records during a save.
+	 * @return
+	 */
+	public long getProxiesUpdated()
+	{
+		return proxiesUpdated.get();
+	}
+
+	public long getProxyUpdateNanos()
+	{
+		return proxyUpdateNanos.get();
+	}
+
+	/**
+	 * Returns the number of records generated from proxies.
+	 * @return
+	 */
+	public long getRecordsGenerated()
+	{
+		return recordsGenerated.get();
+	}
+
+	public long getRecordGenerationNanos()
+	{
+		return recordGenerationNanos.get();
+	}
+}
@@ -49,6 +49,12 @@ public class AutoNumber extends DataType
 		}
 	}
 	
+	@Override
+	public Object getPostgresBindValue (Object value) throws KommetException
+	{
+		return getStringBindValue(value, "auto number");
+	}
+	
 	@Override
 	public String getStringValue(Object value, Locale locale) throws KommetException
 	{
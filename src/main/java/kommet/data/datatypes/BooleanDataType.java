@@ -54,6 +54,31 @@ public class BooleanDataType extends DataType
 		}
 	}
 	
+	@Override
+	public Object getPostgresBindValue (Object value) throws KommetException
+	{
+		if (value instanceof Boolean)
+		{
+			return value;
+		}
+		else if (value == null || isSpecialValueNull(value))
+		{
+			return null;
+		}
+		else if ("true".equals(value) || "false".equals(value))
+		{
+			return Boolean.valueOf((String)value);
+		}
+		else if (value instanceof String)
+		{
+			throw new KommetException("Value '" + value + "' cannot be cast to boolean");
+		}
+		else
+		{
+			throw new KommetException("Value of type " + value.getClass().getName() + " cannot be cast to boolean");
+		}
+	}
+	
 	@Override
 	public String getStringValue (Object value, Locale locale) throws KommetException
 	{
@@ -193,7 +193,46 @@ public abstract class DataType
 	 * @throws KommetException
 	 */
 	public abstract String getPostgresValue (Object value) throws KommetException;
-	
+
+	/**
+	 * Returns the value of the given data type as it should be passed as a bind parameter
+	 * of a prepared statement, or null if the column should be nullified.
+	 *
+	 * Strings are passed to Postgres as they are, without quoting or escaping, and are converted to the type
+	 * of the column by Postgres. Values of other types are passed as JDBC types, e.g. dates as
+	 * {@link java.sql.Timestamp}.
+	 * @param value
+	 * @return
+	 * @throws KommetException
+	 */
+	public Object getPostgresBindValue (Object value) throws KommetException
+	{
+		throw new KommetException("Values of data type " + getName() + " cannot be saved to the database");
+	}
+
+	/**
+	 * Returns the bind value of a data type whose values are stored as strings.
+	 * @param value
+	 * @param dataTypeName name of the data type used in the error message
+	 * @return
+	 * @throws KommetException
+	 */
+	protected Object getStringBindValue (Object value, String dataTypeName) throws KommetException
+	{
+		if (value == null || isSpecialValueNull(value))
+		{
+			return null;
+		}
+		else if (value instanceof String)
+		{
+			return value;
+		}
+		else
+		{
+			throw new KommetException("Value of type " + value.getClass().getName() + " cannot be cast to " + dataTypeName);
+		}
+	}
+
 	/**
 	 * Returns the value of the given data type as string.
 	 * @param value
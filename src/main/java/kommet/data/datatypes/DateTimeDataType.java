@@ -37,27 +37,7 @@ public class DateTimeDataType extends DataType
 		}
 		else if (value instanceof String)
 		{
-			boolean isTimestamp = false;
-			
-			// check if the string value is a number
-			if (StringUtils.isNumeric((String)value))
-			{
-				value = new Date(Long.parseLong((String)value));
-				isTimestamp = true;
-			}
-			
-			// Try to parse the string to date. Use a substring of the format pattern, because the pattern
-			// includes minutes and seconds, and the input date may be just e.g. '2013-05-24'.
-			String format = "yyyy-MM-dd HH:mm:ss.SSS";
-			SimpleDateFormat sdf = new SimpleDateFormat(!isTimestamp ? format.substring(0, ((String)value).length()) : format);
-			try
-			{
-				return "'" + sdf.format(isTimestamp ? (Date)value : sdf.parse((String)value)) + "'";
-			}
-			catch (ParseException e)
-			{
-				throw new KommetException("Cannot convert value " + value + " to datetime");
-			}
+			return "'" + formatString((String)value) + "'";
 		}
 		else if (isSpecialValueNull(value))
 		{
@@ -70,6 +50,59 @@ public class DateTimeDataType extends DataType
 		}
 	}
 	
+	/**
+	 * Formats a datetime passed as a string, either as a timestamp in milliseconds or as a formatted date, in the format accepted by Postgres.
+	 * @param value
+	 * @return
+	 * @throws KommetException
+	 */
+	private static String formatString (String value) throws KommetException
+	{
+		boolean isTimestamp = false;
+		Date timestamp = null;
+		
+		// check if the string value is a number
+		if (StringUtils.isNumeric(value))
+		{
+			timestamp = new Date(Long.parseLong(value));
+			isTimestamp = true;
+		}
+		
+		// Try to parse the string to date. Use a substring of the format pattern, because the pattern
+		// includes minutes and seconds, and the input date may be just e.g. '2013-05-24'.
+		String format = "yyyy-MM-dd HH:mm:ss.SSS";
+		SimpleDateFormat sdf = new SimpleDateFormat(!isTimestamp ? format.substring(0, value.length()) : format);
+		try
+		{
+			return sdf.format(isTimestamp ? timestamp : sdf.parse(value));
+		}
+		catch (ParseException e)
+		{
+			throw new KommetException("Cannot convert value " + value + " to datetime");
+		}
+	}
+	
+	@Override
+	public Object getPostgresBindValue (Object value) throws KommetException
+	{
+		if (value instanceof Date)
+		{
+			return new java.sql.Timestamp(((Date)value).getTime());
+		}
+		else if (value instanceof String)
+		{
+			return formatString((String)value);
+		}
+		else if (value == null || isSpecialValueNull(value))
+		{
+			return null;
+		}
+		else
+		{
+			throw new KommetException("Value of type " + value.getClass().getName() + " cannot be cast to datetime");
+		}
+	}
+	
 	@Override
 	public String getStringValue (Object value, Locale locale) throws KommetException
 	{
@@ -42,7 +42,7 @@ public class EmailDataType extends DataType
 	{
 		if (value instanceof String || value == null)
 		{
-			return value != null ? "'" + (String)value + "'" : "null";
+			return value != null ? "'" + escape((String)value) + "'" : "null";
 		}
 		else if (isSpecialValueNull(value))
 		{
@@ -55,6 +55,17 @@ public class EmailDataType extends DataType
 		}
 	}
 	
+	@Override
+	public Object getPostgresBindValue (Object value) throws KommetException
+	{
+		return getStringBindValue(value, "email");
+	}
+	
+	private String escape(String value)
+	{
+		return value.replaceAll("'", "''");
+	}
+	
 	@Override
 	public String getStringValue(Object value, Locale locale) throws KommetException
 	{
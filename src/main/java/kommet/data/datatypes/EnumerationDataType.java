@@ -67,6 +67,12 @@ public class EnumerationDataType extends DataType
 		}
 	}
 	
+	@Override
+	public Object getPostgresBindValue (Object value) throws KommetException
+	{
+		return getStringBindValue(value, "enumeration");
+	}
+	
 	@Override
 	public String getStringValue (Object value, Locale locale) throws KommetException
 	{
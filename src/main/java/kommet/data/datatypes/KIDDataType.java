@@ -41,6 +41,28 @@ public class KIDDataType extends DataType
 		}
 	}
 	
+	@Override
+	public Object getPostgresBindValue (Object value) throws KommetException
+	{
+		if (value instanceof KID)
+		{
+			return ((KID)value).getId();
+		}
+		else if (value instanceof String)
+		{
+			// parse to KID to check the ID is valid
+			return KID.get((String)value).getId();
+		}
+		else if (value == null || isSpecialValueNull(value))
+		{
+			return null;
+		}
+		else
+		{
+			throw new KommetException("Value " + value + " of type " + value.getClass().getName() + " cannot be converted to KID");
+		}
+	}
+	
 	@Override
 	public String getStringValue(Object value, Locale locale) throws KommetException
 	{
@@ -7,7 +7,9 @@
 
 package kommet.data.datatypes;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import kommet.data.KommetException;
@@ -76,6 +78,29 @@ public class MultiEnumerationDataType extends DataType
 		}
 	}
 	
+	@Override
+	public Object getPostgresBindValue (Object value) throws KommetException
+	{
+		if (value == null || isSpecialValueNull(value))
+		{
+			return null;
+		}
+		else if (value instanceof Set)
+		{
+			// values are passed in the Postgres array input format, in which quotes and backslashes are escaped with backslashes
+			List<String> items = new ArrayList<String>();
+			for (Object item : (Set<?>)value)
+			{
+				items.add("\"" + String.valueOf(item).replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+			}
+			return "{" + MiscUtils.implode(items, ", ") + "}";
+		}
+		else
+		{
+			throw new KommetException("Value of type " + value.getClass().getName() + " cannot be cast to multi-enumeration");
+		}
+	}
+	
 	@Override
 	public String getStringValue (Object value, Locale locale) throws KommetException
 	{
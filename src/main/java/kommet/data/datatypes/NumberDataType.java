@@ -84,6 +84,28 @@ public class NumberDataType extends DataType
 		}
 	}
 	
+	@Override
+	public Object getPostgresBindValue (Object value) throws KommetException
+	{
+		if (value instanceof BigDecimal || value instanceof Integer || value instanceof Double || value instanceof Long)
+		{
+			return value;
+		}
+		else if (value instanceof String)
+		{
+			// convert to big decimal to make sure it is a valid number
+			return new BigDecimal((String)value);
+		}
+		else if (value == null || isSpecialValueNull(value))
+		{
+			return null;
+		}
+		else
+		{
+			throw new KommetException("Value of type " + value.getClass().getName() + " cannot be cast to number");
+		}
+	}
+	
 	@Override
 	public String getStringValue (Object value, Locale locale) throws KommetException
 	{
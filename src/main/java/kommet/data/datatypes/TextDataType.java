@@ -62,6 +62,12 @@ public class TextDataType extends DataType
 		}
 	}
 	
+	@Override
+	public Object getPostgresBindValue (Object value) throws KommetException
+	{
+		return getStringBindValue(value, "text");
+	}
+	
 	@Override
 	public String getStringValue(Object value, Locale locale) throws KommetException
 	{
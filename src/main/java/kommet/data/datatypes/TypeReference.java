@@ -91,6 +91,24 @@ public class TypeReference extends DataType
 		}
 	}
 	
+	@Override
+	public Object getPostgresBindValue (Object value) throws KommetException
+	{
+		if (value == null || isSpecialValueNull(value))
+		{
+			return null;
+		}
+		else if (value instanceof Record)
+		{
+			// only the KID of the referenced record is saved as the column value
+			return ((Record)value).getKID().getId();
+		}
+		else
+		{
+			throw new KommetException("Value of type " + value.getClass().getName() + " ('" + value + "') cannot be cast to object reference");
+		}
+	}
+	
 	@Override
 	public String getStringValue (Object value, Locale locale) throws KommetException
 	{
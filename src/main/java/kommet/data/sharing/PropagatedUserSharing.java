@@ -0,0 +1,71 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.data.sharing;
+
+import kommet.basic.GroupRecordSharing;
+import kommet.data.KID;
+
+/**
+ * A user record sharing resulting from the propagation of a group record sharing to a member of the group.
+ */
+public class PropagatedUserSharing
+{
+	private KID recordId;
+	private KID userId;
+	private boolean edit;
+	private boolean delete;
+	private String reason;
+	private KID sharingRuleId;
+	private PropagatedSharingData propagatedSharingData;
+
+	public PropagatedUserSharing (GroupRecordSharing grs, KID userId, KID sharingRuleId, PropagatedSharingData propagatedSharingData)
+	{
+		this.recordId = grs.getRecordId();
+		this.userId = userId;
+		this.edit = Boolean.TRUE.equals(grs.getEdit());
+		this.delete = Boolean.TRUE.equals(grs.getDelete());
+		this.reason = grs.getReason();
+		this.sharingRuleId = sharingRuleId;
+		this.propagatedSharingData = propagatedSharingData;
+	}
+
+	public KID getRecordId()
+	{
+		return recordId;
+	}
+
+	public KID getUserId()
+	{
+		return userId;
+	}
+
+	public boolean getEdit()
+	{
+		return edit;
+	}
+
+	public boolean getDelete()
+	{
+		return delete;
+	}
+
+	public String getReason()
+	{
+		return reason;
+	}
+
+	public KID getSharingRuleId()
+	{
+		return sharingRuleId;
+	}
+
+	public PropagatedSharingData getPropagatedSharingData()
+	{
+		return propagatedSharingData;
+	}
+}
@@ -8,12 +8,17 @@
 package kommet.data.sharing;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.ObjectUtils;
 import org.springframework.util.StringUtils;
 
 import kommet.auth.AuthData;
@@ -234,6 +239,15 @@ public class SharingService
 			sharing = existingGenericSharings.get(0);
 		}
 		
+		setUserSharingFields(sharing, edit, delete, reason, isGeneric, sharingRuleId, propagatedSharing, env);
+		
+		// create sharing record - of course do not create any sharings on sharings, this is why skipSharing is passed
+		// also skipping create permission is set because all users should be able to insert URS records
+		return (UserRecordSharing)RecordProxyUtil.generateStandardTypeProxy(dataService.save(sharing, true, true, true, false, authData, env), env, compiler);
+	}
+	
+	private static void setUserSharingFields(Record sharing, boolean edit, boolean delete, String reason, boolean isGeneric, KID sharingRuleId, PropagatedSharingData propagatedSharing, EnvData env) throws KommetException
+	{
 		sharing.setField("reason", reason);
 		sharing.setField("isGeneric", isGeneric);
 		sharing.setField(Field.ACCESS_TYPE_FIELD_NAME, isGeneric ? RecordAccessType.PUBLIC.getId() : RecordAccessType.SYSTEM.getId());
@@ -253,10 +267,121 @@ public class SharingService
 				sharing.setField("groupSharingHierarchy", MiscUtils.implode(propagatedSharing.getGroupHierarchyPath(), ";"));
 			}
 		}
+	}
+	
+	/**
+	 * Creates user record sharings resulting from the propagation of group record sharings.
+	 * <p>
+	 * Propagated sharings that already exist (i.e. have the same group record sharing, user group assignment
+	 * and group hierarchy path) are found with a single query. Those whose access rights, reason or sharing rule
+	 * have changed are updated with one update statement for each distinct set of these values. All new sharings
+	 * are inserted using bulk insert queries.
+	 * </p>
+	 * <p>
+	 * All sharings are saved in one transaction, so if any of them cannot be saved, none of them is.
+	 * </p>
+	 * @param sharings
+	 * @param authData
+	 * @param env
+	 * @throws KommetException
+	 */
+	@Transactional(rollbackFor = KommetException.class)
+	public void sharePropagated (List<PropagatedUserSharing> sharings, AuthData authData, EnvData env) throws KommetException
+	{
+		sharePropagated(sharings, userRecordSharingDao, dataService, authData, env);
+	}
+	
+	private static void sharePropagated (List<PropagatedUserSharing> sharings, UserRecordSharingDao userRecordSharingDao, DataService dataService, AuthData authData, EnvData env) throws KommetException
+	{
+		if (sharings.isEmpty())
+		{
+			return;
+		}
 		
-		// create sharing record - of course do not create any sharings on sharings, this is why skipSharing is passed
-		// also skipping create permission is set because all users should be able to insert URS records
-		return (UserRecordSharing)RecordProxyUtil.generateStandardTypeProxy(dataService.save(sharing, true, true, true, false, authData, env), env, compiler);
+		Type ursType = env.getType(KeyPrefix.get(KID.USER_RECORD_SHARING_PREFIX));
+		
+		// With propagated sharings, we always want to check if a user record sharing for this propagation does not already exist.
+		// If we didn't, this would cause new propagated URS records to be created every time a sharing
+		// is modified on a given group and propagated to its members.
+		UserRecordSharingFilter filter = new UserRecordSharingFilter();
+		filter.setIsGeneric(false);
+		for (PropagatedUserSharing sharing : sharings)
+		{
+			filter.addGroupRecordSharingId(sharing.getPropagatedSharingData().getGroupRecordSharingId());
+		}
+		
+		Map<String, UserRecordSharing> existingSharings = new HashMap<String, UserRecordSharing>();
+		for (UserRecordSharing urs : userRecordSharingDao.find(filter, env))
+		{
+			existingSharings.put(getPropagationKey(urs.getGroupRecordSharingId(), urs.getUserGroupAssignmentId(), urs.getGroupSharingHierarchy()), urs);
+		}
+		
+		// if the same propagation occurs more than once, only the last one is saved
+		Map<String, PropagatedUserSharing> sharingsByKey = new LinkedHashMap<String, PropagatedUserSharing>();
+		for (PropagatedUserSharing sharing : sharings)
+		{
+			PropagatedSharingData psd = sharing.getPropagatedSharingData();
+			String hierarchy = psd.getGroupHierarchyPath().isEmpty() ? null : MiscUtils.implode(psd.getGroupHierarchyPath(), ";");
+			sharingsByKey.put(getPropagationKey(psd.getGroupRecordSharingId(), psd.getUserGroupAssignmentId(), hierarchy), sharing);
+		}
+		
+		List<Record> newSharings = new ArrayList<Record>();
+		
+		// IDs of existing sharings to update, grouped by the values they are updated with
+		Map<String, List<KID>> updatedSharingIds = new LinkedHashMap<String, List<KID>>();
+		Map<String, PropagatedUserSharing> updatedSharingValues = new HashMap<String, PropagatedUserSharing>();
+		
+		for (Map.Entry<String, PropagatedUserSharing> entry : sharingsByKey.entrySet())
+		{
+			PropagatedUserSharing sharing = entry.getValue();
+			UserRecordSharing existingSharing = existingSharings.get(entry.getKey());
+			
+			if (existingSharing == null)
+			{
+				Record record = new Record(ursType);
+				record.setField("recordId", sharing.getRecordId());
+				record.setField("user.id", sharing.getUserId(), env);
+				setUserSharingFields(record, sharing.getEdit(), sharing.getDelete(), sharing.getReason(), false, sharing.getSharingRuleId(), sharing.getPropagatedSharingData(), env);
+				newSharings.add(record);
+			}
+			else if (isChanged(existingSharing, sharing))
+			{
+				String valuesKey = sharing.getEdit() + ":" + sharing.getDelete() + ":" + sharing.getSharingRuleId() + ":" + sharing.getReason();
+				if (!updatedSharingIds.containsKey(valuesKey))
+				{
+					updatedSharingIds.put(valuesKey, new ArrayList<KID>());
+					updatedSharingValues.put(valuesKey, sharing);
+				}
+				updatedSharingIds.get(valuesKey).add(existingSharing.getId());
+			}
+		}
+		
+		for (Map.Entry<String, List<KID>> entry : updatedSharingIds.entrySet())
+		{
+			PropagatedUserSharing values = updatedSharingValues.get(entry.getKey());
+			userRecordSharingDao.updateSharings(entry.getValue(), values.getEdit(), values.getDelete(), values.getReason(), values.getSharingRuleId(), authData.getUserId(), env);
+		}
+		
+		// do not create any sharings on sharings, this is why skipSharing is passed
+		dataService.saveAll(newSharings, true, true, authData, env);
+	}
+	
+	/**
+	 * Tells whether the access rights, reason or sharing rule of an existing propagated sharing differ from the new propagation.
+	 */
+	private static boolean isChanged (UserRecordSharing existingSharing, PropagatedUserSharing sharing)
+	{
+		KID existingSharingRuleId = existingSharing.getSharingRule() != null ? existingSharing.getSharingRule().getId() : null;
+		
+		return Boolean.TRUE.equals(existingSharing.getEdit()) != sharing.getEdit()
+				|| Boolean.TRUE.equals(existingSharing.getDelete()) != sharing.getDelete()
+				|| !ObjectUtils.nullSafeEquals(existingSharing.getReason(), sharing.getReason())
+				|| !ObjectUtils.nullSafeEquals(existingSharingRuleId, sharing.getSharingRuleId());
+	}
+	
+	private static String getPropagationKey (KID groupRecordSharingId, KID userGroupAssignmentId, String groupSharingHierarchy)
+	{
+		return groupRecordSharingId + ":" + userGroupAssignmentId + ":" + (groupSharingHierarchy != null ? groupSharingHierarchy : "");
 	}
 	
 	@Transactional
@@ -344,7 +469,7 @@ public class SharingService
 		}
 		
 		// share record with all group and subgroup members
-		propagateGroupSharing(groupId, sharingRuleId, grs, psd, compiler, userRecordSharingDao, dataService, userGroupAssignmentDao, AuthData.getRootAuthData(env), env);
+		propagateGroupSharing(groupId, sharingRuleId, grs, psd, userRecordSharingDao, dataService, userGroupAssignmentDao, AuthData.getRootAuthData(env), env);
 		
 		return grs;
 	}
@@ -354,7 +479,6 @@ public class SharingService
 	 * @param groupId
 	 * @param grs
 	 * @param propagatedSharing
-	 * @param compiler
 	 * @param userRecordSharingDao
 	 * @param dataService
 	 * @param userGroupAssignmentDao
@@ -362,44 +486,156 @@ public class SharingService
 	 * @param env
 	 * @throws KommetException
 	 */
-	private static void propagateGroupSharing(KID groupId, KID sharingRuleId, GroupRecordSharing grs, PropagatedSharingData propagatedSharing, KommetCompiler compiler, UserRecordSharingDao userRecordSharingDao, DataService dataService, UserGroupAssignmentDao userGroupAssignmentDao, AuthData authData, EnvData env) throws KommetException
+	private static void propagateGroupSharing(KID groupId, KID sharingRuleId, GroupRecordSharing grs, PropagatedSharingData propagatedSharing, UserRecordSharingDao userRecordSharingDao, DataService dataService, UserGroupAssignmentDao userGroupAssignmentDao, AuthData authData, EnvData env) throws KommetException
 	{
-		UserGroupAssignmentFilter filter = new UserGroupAssignmentFilter();
-		filter.addParentGroupId(groupId);
+		List<PropagatedUserSharing> sharings = new ArrayList<PropagatedUserSharing>();
 		
-		// find all users in group - but sure not to use current user's auth data because they may not
-		// have access to this record
+		for (GroupMember member : getGroupMembers(groupId, propagatedSharing.getGroupHierarchyPath(), userGroupAssignmentDao, env))
+		{
+			sharings.add(new PropagatedUserSharing(grs, member.userId, sharingRuleId, new PropagatedSharingData(propagatedSharing.getGroupRecordSharingId(), member.userGroupAssignmentId, member.groupHierarchyPath)));
+		}
 		
-		KID recordId = grs != null ? grs.getRecordId() : null;
+		sharePropagated(sharings, userRecordSharingDao, dataService, authData, env);
+	}
+	
+	/**
+	 * Shares records shared with a parent group with its newly assigned child group, and propagates these sharings
+	 * to all members of the child group.
+	 * <p>
+	 * Group record sharings for the child group are inserted using bulk insert queries, and the members of the child group
+	 * are found only once for all records. Group and user sharings are saved in one transaction, so a failure while
+	 * propagating them leaves no sharings of the child group behind.
+	 * </p>
+	 * @param parentSharings sharings of records with the parent group (or its supergroups)
+	 * @param groupId ID of the child group
+	 * @param userGroupAssignmentId ID of the assignment of the child group to the parent group
+	 * @param authData
+	 * @param env
+	 * @throws KommetException
+	 */
+	@Transactional(rollbackFor = KommetException.class)
+	public void propagateGroupSharingsToGroup(List<GroupRecordSharing> parentSharings, KID groupId, KID userGroupAssignmentId, AuthData authData, EnvData env) throws KommetException
+	{
+		if (parentSharings.isEmpty())
+		{
+			return;
+		}
+		
+		Type grsType = env.getType(KeyPrefix.get(KID.GROUP_RECORD_SHARING_PREFIX));
+		List<Record> groupSharings = new ArrayList<Record>();
 		
-		System.out.println("[RecordSharing][" + recordId + "] Looking for UGAs for parent " + groupId);
-		List<UserGroupAssignment> ugas = userGroupAssignmentDao.get(filter, null, env);
-		System.out.println("[RecordSharing][" + recordId + "] Found UGAs: " + ugas.size());
+		for (GroupRecordSharing parentSharing : parentSharings)
+		{
+			Record sharing = new Record(grsType);
+			sharing.setField("recordId", parentSharing.getRecordId());
+			sharing.setField("group.id", groupId, env);
+			sharing.setField("reason", parentSharing.getReason());
+			sharing.setField("isGeneric", false);
+			sharing.setField(Field.ACCESS_TYPE_FIELD_NAME, RecordAccessType.SYSTEM.getId());
+			sharing.setField("read", true);
+			sharing.setField("edit", Boolean.TRUE.equals(parentSharing.getEdit()));
+			sharing.setField("delete", Boolean.TRUE.equals(parentSharing.getDelete()));
+			sharing.setField("sharingRule.id", parentSharing.getSharingRule() != null ? parentSharing.getSharingRule().getId() : null, env);
+			groupSharings.add(sharing);
+		}
 		
-		for (UserGroupAssignment uga : ugas)
-		{	
-			if (uga.getChildGroup() != null)
+		// create sharing records - of course do not create any sharings on sharings, this is why skipSharing is passed
+		dataService.saveAll(groupSharings, true, true, AuthData.getRootAuthData(env), env);
+		
+		List<GroupMember> members = getGroupMembers(groupId, MiscUtils.toList(userGroupAssignmentId.getId()), userGroupAssignmentDao, env);
+		List<PropagatedUserSharing> sharings = new ArrayList<PropagatedUserSharing>();
+		
+		for (GroupRecordSharing parentSharing : parentSharings)
+		{
+			KID sharingRuleId = parentSharing.getSharingRule() != null ? parentSharing.getSharingRule().getId() : null;
+			
+			for (GroupMember member : members)
 			{
-				System.out.println("[RecordSharing][" + recordId + "] UGA child group = " + uga.getChildGroup().getId());
-				propagatedSharing.getGroupHierarchyPath().add(uga.getId().getId());
-				
-				// propagate sharing to subgroups
-				propagateGroupSharing(uga.getChildGroup().getId(), sharingRuleId, grs, propagatedSharing, compiler, userRecordSharingDao, dataService, userGroupAssignmentDao, authData, env);
-				
-				propagatedSharing.getGroupHierarchyPath().remove(propagatedSharing.getGroupHierarchyPath().size() - 1);
-				System.out.println("[RecordSharing][" + recordId + "] Propagation done");
+				sharings.add(new PropagatedUserSharing(parentSharing, member.userId, sharingRuleId, new PropagatedSharingData(parentSharing.getId(), member.userGroupAssignmentId, member.groupHierarchyPath)));
 			}
-			else
-			{
-				System.out.println("[RecordSharing][" + recordId + "] UGA child user = " + uga.getChildUser().getId());
-				propagatedSharing.setUserGroupAssignmentId(uga.getId());
-				
-				// share record with user
-				shareRecord(grs.getRecordId(), uga.getChildUser().getId(), grs.getEdit(), grs.getDelete(), grs.getReason(), false, sharingRuleId, propagatedSharing, compiler, userRecordSharingDao, dataService, authData, false, env);
+		}
+		
+		sharePropagated(sharings, userRecordSharingDao, dataService, AuthData.getRootAuthData(env), env);
+	}
+	
+	/**
+	 * Returns all users assigned to the given group or any of its subgroups.
+	 * <p>
+	 * The group hierarchy is traversed level by level, so the number of queries depends on the depth of the hierarchy,
+	 * not on the number of subgroups. A user assigned to the group through more than one path in the hierarchy is
+	 * returned once for each path.
+	 * </p>
+	 * @param groupId
+	 * @param groupHierarchyPath IDs of group-to-group assignments leading to the group
+	 * @param userGroupAssignmentDao
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	private static List<GroupMember> getGroupMembers(KID groupId, List<String> groupHierarchyPath, UserGroupAssignmentDao userGroupAssignmentDao, EnvData env) throws KommetException
+	{
+		List<GroupMember> members = new ArrayList<GroupMember>();
+		
+		// groups on the current level of the hierarchy, with all paths leading to them
+		Map<KID, List<List<String>>> pathsByGroup = new HashMap<KID, List<List<String>>>();
+		pathsByGroup.put(groupId, MiscUtils.toList(groupHierarchyPath));
+		
+		while (!pathsByGroup.isEmpty())
+		{
+			UserGroupAssignmentFilter filter = new UserGroupAssignmentFilter();
+			filter.setParentGroupIds(new HashSet<KID>(pathsByGroup.keySet()));
+			
+			// find assignments to all groups on this level - be sure not to use current user's auth data
+			// because they may not have access to them
+			List<UserGroupAssignment> ugas = userGroupAssignmentDao.get(filter, null, env);
+			
+			Map<KID, List<List<String>>> subgroupPaths = new HashMap<KID, List<List<String>>>();
 			
-				propagatedSharing.setUserGroupAssignmentId(null);
-				System.out.println("[RecordSharing][" + recordId + "] Sharing done");
+			for (UserGroupAssignment uga : ugas)
+			{
+				for (List<String> path : pathsByGroup.get(uga.getParentGroup().getId()))
+				{
+					if (uga.getChildGroup() != null)
+					{
+						// skip assignments that are already on the path, in case group assignments form a cycle
+						if (path.contains(uga.getId().getId()))
+						{
+							continue;
+						}
+						
+						List<String> subgroupPath = new ArrayList<String>(path);
+						subgroupPath.add(uga.getId().getId());
+						
+						if (!subgroupPaths.containsKey(uga.getChildGroup().getId()))
+						{
+							subgroupPaths.put(uga.getChildGroup().getId(), new ArrayList<List<String>>());
+						}
+						subgroupPaths.get(uga.getChildGroup().getId()).add(subgroupPath);
+					}
+					else
+					{
+						members.add(new GroupMember(uga.getChildUser().getId(), uga.getId(), path));
+					}
+				}
 			}
+			
+			pathsByGroup = subgroupPaths;
+		}
+		
+		return members;
+	}
+	
+	private static class GroupMember
+	{
+		private final KID userId;
+		private final KID userGroupAssignmentId;
+		private final List<String> groupHierarchyPath;
+		
+		public GroupMember (KID userId, KID userGroupAssignmentId, List<String> groupHierarchyPath)
+		{
+			this.userId = userId;
+			this.userGroupAssignmentId = userGroupAssignmentId;
+			this.groupHierarchyPath = groupHierarchyPath;
 		}
 	}
 
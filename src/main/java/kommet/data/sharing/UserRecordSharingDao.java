@@ -8,6 +8,7 @@
 package kommet.data.sharing;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -33,6 +34,7 @@ import kommet.filters.QueryResultOrder;
 import kommet.integration.EnvPersistenceInterface;
 import kommet.integration.LocalEnvPersistenceInterface;
 import kommet.persistence.GenericDaoImpl;
+import kommet.utils.MiscUtils;
 
 @Repository
 public class UserRecordSharingDao extends GenericDaoImpl<UserRecordSharing>
@@ -136,6 +138,44 @@ public class UserRecordSharingDao extends GenericDaoImpl<UserRecordSharing>
 		return sharings;
 	}
 	
+	/**
+	 * Sets access rights, reason and sharing rule of the given user record sharings with a single update statement.
+	 * Triggers are not run and field history is not logged, so this method is meant only for sharings maintained
+	 * by the system, e.g. propagated group sharings.
+	 * @param sharingIds
+	 * @param edit
+	 * @param delete
+	 * @param reason
+	 * @param sharingRuleId
+	 * @param modifiedBy ID of the user who is set as the last modifier of the sharings
+	 * @param env
+	 * @return the number of updated sharings
+	 * @throws KommetException
+	 */
+	public int updateSharings (List<KID> sharingIds, boolean edit, boolean delete, String reason, KID sharingRuleId, KID modifiedBy, EnvData env) throws KommetException
+	{
+		if (sharingIds.isEmpty())
+		{
+			return 0;
+		}
+		
+		Type type = env.getType(KeyPrefix.get(KID.USER_RECORD_SHARING_PREFIX));
+		
+		StringBuilder sql = new StringBuilder();
+		sql.append("UPDATE ").append(type.getDbTable()).append(" SET ");
+		sql.append(type.getField("edit").getDbColumn()).append(" = ?, ");
+		sql.append(type.getField("delete").getDbColumn()).append(" = ?, ");
+		sql.append(type.getField("reason").getDbColumn()).append(" = ?, ");
+		sql.append(type.getField("sharingRule").getDbColumn()).append(" = ?, ");
+		sql.append(Field.LAST_MODIFIED_DATE_FIELD_DB_COLUMN).append(" = ?, ");
+		sql.append(Field.LAST_MODIFIED_BY_FIELD_DB_COLUMN).append(" = ?");
+		sql.append(" WHERE ").append(Field.ID_FIELD_DB_COLUMN).append(" IN (").append(MiscUtils.implode(sharingIds, ", ", "'")).append(")");
+		
+		Object lastModifiedDate = type.getField(Field.LAST_MODIFIED_DATE_FIELD_NAME).getDataType().getPostgresBindValue(new Date());
+		
+		return env.getJdbcTemplate().update(sql.toString(), edit, delete, reason, sharingRuleId != null ? sharingRuleId.getId() : null, lastModifiedDate, modifiedBy.getId());
+	}
+	
 	public boolean canPerformActionOnRecord(KID recordId, KID userId, String action, EnvData env) throws KommetException
 	{		
 		StringBuilder sql = new StringBuilder();
@@ -259,8 +259,8 @@ public class ValidationRuleService
 			log.debug("CODE " + vre.getJavaCode());
 		}
 		
-		// reset class loader so that the new VRE can be loaded
-		compiler.resetClassLoader(env);
+		// swap in the new VRE class
+		compiler.reloadClasses(result, env);
 		
 		return result;
 	}
@@ -0,0 +1,192 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.dataimport;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kommet.data.KID;
+import kommet.data.KommetException;
+import kommet.json.JSON;
+
+/**
+ * Status of a data import run in the background by {@link ImportJobService}.
+ * @author Radek Krawiec
+ */
+public class ImportJob
+{
+	public enum Status
+	{
+		QUEUED,
+		RUNNING,
+		COMPLETED,
+		FAILED
+	}
+	
+	private String id;
+	private KID envId;
+	private KID userId;
+	private volatile Status status = Status.QUEUED;
+	private volatile String errorMessage;
+	private volatile Date startDate;
+	private volatile Date endDate;
+	private volatile String rejectFilePath;
+	private final AtomicInteger rowsRead = new AtomicInteger();
+	private final AtomicInteger rowsProcessed = new AtomicInteger();
+	private final AtomicInteger rowsRejected = new AtomicInteger();
+	private final AtomicInteger batchesProcessed = new AtomicInteger();
+	private final CountDownLatch completion = new CountDownLatch(1);
+	
+	public ImportJob (String id, KID envId, KID userId)
+	{
+		this.id = id;
+		this.envId = envId;
+		this.userId = userId;
+	}
+	
+	/**
+	 * Waits until the job is completed or has failed.
+	 * @param timeout
+	 * @param unit
+	 * @return true if the job has finished, false if the timeout elapsed
+	 * @throws InterruptedException
+	 */
+	public boolean awaitCompletion (long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return completion.await(timeout, unit);
+	}
+	
+	public boolean isFinished()
+	{
+		return status == Status.COMPLETED || status == Status.FAILED;
+	}
+	
+	void start()
+	{
+		this.startDate = new Date();
+		this.status = Status.RUNNING;
+	}
+	
+	void complete()
+	{
+		this.endDate = new Date();
+		this.status = Status.COMPLETED;
+		completion.countDown();
+	}
+	
+	void fail (String errorMessage)
+	{
+		this.errorMessage = errorMessage;
+		this.endDate = new Date();
+		this.status = Status.FAILED;
+		completion.countDown();
+	}
+	
+	void rowRead()
+	{
+		rowsRead.incrementAndGet();
+	}
+	
+	void batchProcessed (int rows, int rejectedRows)
+	{
+		rowsProcessed.addAndGet(rows);
+		rowsRejected.addAndGet(rejectedRows);
+		batchesProcessed.incrementAndGet();
+	}
+	
+	void setRejectFilePath (String rejectFilePath)
+	{
+		this.rejectFilePath = rejectFilePath;
+	}
+	
+	/**
+	 * Returns the status of the job serialized to JSON.
+	 * @return
+	 * @throws KommetException
+	 */
+	public String toJSON() throws KommetException
+	{
+		StringBuilder json = new StringBuilder();
+		json.append("{ \"id\": \"").append(id).append("\"");
+		json.append(", \"status\": \"").append(status.name()).append("\"");
+		json.append(", \"rowsRead\": ").append(rowsRead.get());
+		json.append(", \"rowsProcessed\": ").append(rowsProcessed.get());
+		json.append(", \"rowsRejected\": ").append(rowsRejected.get());
+		json.append(", \"batchesProcessed\": ").append(batchesProcessed.get());
+		json.append(", \"hasRejectFile\": ").append(rejectFilePath != null);
+		json.append(", \"errorMessage\": ").append(errorMessage != null ? "\"" + JSON.escape(errorMessage) + "\"" : "null");
+		json.append(" }");
+		return json.toString();
+	}
+	
+	public String getId()
+	{
+		return id;
+	}
+	
+	public KID getEnvId()
+	{
+		return envId;
+	}
+	
+	public KID getUserId()
+	{
+		return userId;
+	}
+	
+	public Status getStatus()
+	{
+		return status;
+	}
+	
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+	
+	public Date getStartDate()
+	{
+		return startDate;
+	}
+	
+	public Date getEndDate()
+	{
+		return endDate;
+	}
+	
+	/**
+	 * Returns the absolute path of the file to which rejected rows are written, or null if no rows have been rejected.
+	 * @return
+	 */
+	public String getRejectFilePath()
+	{
+		return rejectFilePath;
+	}
+	
+	public int getRowsRead()
+	{
+		return rowsRead.get();
+	}
+	
+	public int getRowsProcessed()
+	{
+		return rowsProcessed.get();
+	}
+	
+	public int getRowsRejected()
+	{
+		return rowsRejected.get();
+	}
+	
+	public int getBatchesProcessed()
+	{
+		return batchesProcessed.get();
+	}
+}
@@ -0,0 +1,485 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.dataimport;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import kommet.auth.AuthData;
+import kommet.data.KommetException;
+import kommet.dataimport.csv.CSVParser;
+import kommet.dataimport.csv.CsvBatchProcessor;
+import kommet.dataimport.csv.CsvLineMapProcessor;
+import kommet.dataimport.csv.CsvRow;
+import kommet.env.EnvData;
+import kommet.utils.AppConfig;
+import kommet.utils.MiscUtils;
+import kommet.utils.NamedDaemonThreadFactory;
+
+/**
+ * Runs CSV imports in the background.
+ * <p>
+ * The CSV file is read row by row and rows are grouped into batches passed to a {@link CsvBatchProcessor}, so
+ * that the file is never held in memory as a whole. Batches of a job can be processed in parallel on a worker pool
+ * shared by all jobs, in which case the number of batches waiting for processing is limited, so that a fast reader
+ * does not load the whole file into memory. Rejected rows are written to a reject file, and the progress of a job
+ * can be read from its {@link ImportJob} while it runs.
+ * </p>
+ * @author Radek Krawiec
+ */
+@Service
+public class ImportJobService
+{
+	@Inject
+	AppConfig appConfig;
+	
+	private static final Logger log = LoggerFactory.getLogger(ImportJobService.class);
+	
+	// finished jobs are kept for this long so that their status and reject files can still be read
+	private static final long FINISHED_JOB_RETENTION = 3600000;
+	
+	private static final String IMPORT_DIR = "imports";
+	
+	private Map<String, ImportJob> jobs = new ConcurrentHashMap<String, ImportJob>();
+	
+	// executor reading files, with one thread per running job
+	private ExecutorService jobExecutor;
+	
+	// executor processing batches, shared by all jobs
+	private ExecutorService batchExecutor;
+	
+	/**
+	 * Starts an import job in the background.
+	 * @param csvFile CSV file to import
+	 * @param processor Processor to which rows are passed
+	 * @param batchSize Number of rows in a batch, or null to use the <tt>kommet.dataimport.batchsize</tt> setting
+	 * @param threads Maximum number of batches processed concurrently, capped by the <tt>kommet.dataimport.workers</tt> setting.
+	 * If greater than one, the processor must be thread-safe.
+	 * @param deleteFile Whether the CSV file should be deleted when the job finishes
+	 * @param authData Auth data of the user running the import
+	 * @param env
+	 * @return the started job
+	 * @throws KommetException
+	 */
+	public ImportJob startImport (final File csvFile, CsvBatchProcessor processor, Integer batchSize, int threads, final boolean deleteFile, AuthData authData, EnvData env) throws KommetException
+	{
+		removeFinishedJobs();
+		
+		if (batchSize == null || batchSize < 1)
+		{
+			batchSize = appConfig.getDataImportBatchSize();
+		}
+		
+		threads = Math.max(1, Math.min(threads, appConfig.getDataImportWorkers()));
+		
+		ImportJob job = new ImportJob(MiscUtils.getHash(20), env.getId(), authData.getUserId());
+		final ImportJobRunner runner = new ImportJobRunner(job, processor, batchSize, threads, getImportDir() + "/" + job.getId() + "-rejected.csv", authData, env);
+		jobs.put(job.getId(), job);
+		
+		getJobExecutor().submit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					runner.run(csvFile);
+				}
+				finally
+				{
+					if (deleteFile)
+					{
+						csvFile.delete();
+					}
+				}
+			}
+		});
+		
+		return job;
+	}
+	
+	/**
+	 * Returns an import job started by the given user in the given environment.
+	 * @param jobId
+	 * @param authData
+	 * @param env
+	 * @return the job, or null if it does not exist or has been started by another user
+	 */
+	public ImportJob getJob (String jobId, AuthData authData, EnvData env)
+	{
+		ImportJob job = jobs.get(jobId);
+		if (job == null || !job.getEnvId().equals(env.getId()) || !job.getUserId().equals(authData.getUserId()))
+		{
+			return null;
+		}
+		return job;
+	}
+	
+	/**
+	 * Creates an empty file in the import directory into which an uploaded CSV file can be saved before it is imported.
+	 * @return
+	 * @throws KommetException
+	 */
+	public File createImportFile() throws KommetException
+	{
+		try
+		{
+			return File.createTempFile("import-", ".csv", new File(getImportDir()));
+		}
+		catch (IOException e)
+		{
+			throw new KommetException("Could not create import file: " + e.getMessage());
+		}
+	}
+	
+	private String getImportDir() throws KommetException
+	{
+		File dir = new File(appConfig.getFileDir() + "/" + IMPORT_DIR);
+		if (!dir.exists() && !dir.mkdirs())
+		{
+			throw new KommetException("Could not create import directory " + dir.getAbsolutePath());
+		}
+		return dir.getAbsolutePath();
+	}
+	
+	private void removeFinishedJobs()
+	{
+		long minEndTime = System.currentTimeMillis() - FINISHED_JOB_RETENTION;
+		
+		Iterator<ImportJob> iterator = jobs.values().iterator();
+		while (iterator.hasNext())
+		{
+			ImportJob job = iterator.next();
+			if (job.isFinished() && job.getEndDate().getTime() < minEndTime)
+			{
+				iterator.remove();
+				if (job.getRejectFilePath() != null)
+				{
+					new File(job.getRejectFilePath()).delete();
+				}
+			}
+		}
+	}
+	
+	private synchronized ExecutorService getJobExecutor()
+	{
+		if (this.jobExecutor == null)
+		{
+			this.jobExecutor = Executors.newCachedThreadPool(new NamedDaemonThreadFactory("data-import-job"));
+		}
+		return this.jobExecutor;
+	}
+	
+	private synchronized ExecutorService getBatchExecutor() throws KommetException
+	{
+		if (this.batchExecutor == null)
+		{
+			this.batchExecutor = Executors.newFixedThreadPool(appConfig.getDataImportWorkers(), new NamedDaemonThreadFactory("data-import-worker"));
+		}
+		return this.batchExecutor;
+	}
+	
+	/**
+	 * Stops import threads when the application is shut down.
+	 */
+	@PreDestroy
+	public synchronized void shutdown()
+	{
+		if (this.jobExecutor != null)
+		{
+			this.jobExecutor.shutdownNow();
+			this.jobExecutor = null;
+		}
+		
+		if (this.batchExecutor != null)
+		{
+			this.batchExecutor.shutdownNow();
+			this.batchExecutor = null;
+		}
+	}
+	
+	/**
+	 * Reads a CSV file and passes its rows in batches to the batch processor.
+	 */
+	private class ImportJobRunner implements CsvLineMapProcessor
+	{
+		private ImportJob job;
+		private CsvBatchProcessor processor;
+		private int batchSize;
+		private int threads;
+		private String rejectFilePath;
+		private AuthData authData;
+		private EnvData env;
+		
+		private List<String> headers;
+		private List<CsvRow> batch = new ArrayList<CsvRow>();
+		
+		// limits the number of batches submitted to the worker pool and not yet processed
+		private Semaphore pendingBatches;
+		
+		private Writer rejectWriter;
+		
+		public ImportJobRunner (ImportJob job, CsvBatchProcessor processor, int batchSize, int threads, String rejectFilePath, AuthData authData, EnvData env)
+		{
+			this.job = job;
+			this.processor = processor;
+			this.batchSize = batchSize;
+			this.threads = threads;
+			this.rejectFilePath = rejectFilePath;
+			this.authData = authData;
+			this.env = env;
+			this.pendingBatches = new Semaphore(threads);
+		}
+		
+		public void run (File csvFile)
+		{
+			// processors use the auth data of the user who started the import
+			env.addAuthData(authData);
+			job.start();
+			
+			try
+			{
+				InputStream in = new FileInputStream(csvFile);
+				try
+				{
+					new CSVParser().parse(in, this);
+				}
+				finally
+				{
+					in.close();
+				}
+				
+				job.complete();
+			}
+			catch (Exception e)
+			{
+				// let batches that are already being processed finish before the job is reported as failed
+				pendingBatches.acquireUninterruptibly(threads);
+				log.error("Import job " + job.getId() + " failed", e);
+				job.fail(e.getMessage());
+			}
+			finally
+			{
+				closeRejectWriter();
+				env.clearAuthData();
+			}
+		}
+		
+		@Override
+		public void init() throws KommetException
+		{
+			processor.init();
+		}
+		
+		@Override
+		public void processHeaders (List<String> headers) throws KommetException
+		{
+			this.headers = headers;
+			processor.processHeaders(headers);
+		}
+		
+		@Override
+		public void processLine (Map<String, String> mapByColumnName, Map<Integer, String> mapByColumnIndex, int lineNo) throws KommetException
+		{
+			job.rowRead();
+			batch.add(new CsvRow(lineNo, mapByColumnName, mapByColumnIndex));
+			
+			if (batch.size() >= batchSize)
+			{
+				submitBatch(batch);
+				batch = new ArrayList<CsvRow>();
+			}
+		}
+		
+		@Override
+		public void finish() throws KommetException
+		{
+			if (!batch.isEmpty())
+			{
+				submitBatch(batch);
+				batch = new ArrayList<CsvRow>();
+			}
+			
+			// wait for all batches to be processed
+			pendingBatches.acquireUninterruptibly(threads);
+			pendingBatches.release(threads);
+			
+			processor.finish();
+		}
+		
+		@Override
+		public char getSeparator()
+		{
+			return processor.getSeparator();
+		}
+		
+		private void submitBatch (final List<CsvRow> rows) throws KommetException
+		{
+			if (threads == 1)
+			{
+				// process batches in the order of rows, on the reading thread
+				processBatch(rows);
+				return;
+			}
+			
+			try
+			{
+				pendingBatches.acquire();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new KommetException("Import job " + job.getId() + " interrupted");
+			}
+			
+			try
+			{
+				getBatchExecutor().submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						env.addAuthData(authData);
+						try
+						{
+							processBatch(rows);
+						}
+						finally
+						{
+							env.clearAuthData();
+							pendingBatches.release();
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e)
+			{
+				pendingBatches.release();
+				throw new KommetException("Could not submit batch of import job " + job.getId() + ": " + e.getMessage());
+			}
+		}
+		
+		private void processBatch (List<CsvRow> rows)
+		{
+			try
+			{
+				processor.processBatch(rows);
+			}
+			catch (Exception e)
+			{
+				for (CsvRow row : rows)
+				{
+					if (!row.isRejected())
+					{
+						row.reject(e.getMessage());
+					}
+				}
+			}
+			
+			int rejectedRows = 0;
+			for (CsvRow row : rows)
+			{
+				if (row.isRejected())
+				{
+					writeRejectedRow(row);
+					rejectedRows++;
+				}
+			}
+			
+			job.batchProcessed(rows.size(), rejectedRows);
+		}
+		
+		/**
+		 * Writes a rejected row to the reject file, which has the same columns as the imported file, followed by
+		 * the line number and the reason of rejection.
+		 * @param row
+		 */
+		private synchronized void writeRejectedRow (CsvRow row)
+		{
+			try
+			{
+				if (rejectWriter == null)
+				{
+					rejectWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(rejectFilePath), StandardCharsets.UTF_8));
+					job.setRejectFilePath(rejectFilePath);
+					
+					List<String> rejectHeaders = new ArrayList<String>(headers);
+					rejectHeaders.add("Line");
+					rejectHeaders.add("Error");
+					writeLine(rejectHeaders);
+				}
+				
+				List<String> values = row.getValues();
+				values.add(String.valueOf(row.getLineNo()));
+				values.add(row.getRejectReason());
+				writeLine(values);
+			}
+			catch (IOException e)
+			{
+				log.error("Could not write rejected row " + row.getLineNo() + " of import job " + job.getId(), e);
+			}
+		}
+		
+		private void writeLine (List<String> values) throws IOException
+		{
+			char separator = processor.getSeparator();
+			
+			for (int i = 0; i < values.size(); i++)
+			{
+				if (i > 0)
+				{
+					rejectWriter.write(separator);
+				}
+				
+				// quote the value and escape it the way CSVParser expects
+				String value = values.get(i) != null ? values.get(i) : "";
+				rejectWriter.write("\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+			}
+			
+			rejectWriter.write("\n");
+		}
+		
+		private synchronized void closeRejectWriter()
+		{
+			if (rejectWriter != null)
+			{
+				try
+				{
+					rejectWriter.close();
+				}
+				catch (IOException e)
+				{
+					log.error("Could not close reject file of import job " + job.getId(), e);
+				}
+			}
+		}
+	}
+}
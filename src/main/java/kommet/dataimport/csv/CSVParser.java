@@ -25,10 +25,18 @@ public class CSVParser
 		// empty
 	}
 
+	/**
+	 * Parses a CSV file, passing each line to the processor. Lines are not kept in memory after they have been
+	 * processed, so files of any size can be parsed.
+	 * @param in
+	 * @param lineProcessor
+	 * @throws IOException
+	 * @throws KommetException
+	 */
 	public void parse (InputStream in, CsvLineMapProcessor lineProcessor) throws IOException, KommetException
 	{	
 		// process the file line by line
-		processFile(new BufferedReader(new InputStreamReader(in)), lineProcessor);
+		processFile(new BufferedReader(new InputStreamReader(in)), lineProcessor, null);
 	}
 
 	/**
@@ -61,13 +69,22 @@ public class CSVParser
 	 * in string literals).
 	 * @param fileReader
 	 * @param processor
-	 * @return
+	 * @return all lines of the file
 	 * @throws IOException
 	 * @throws KommetException 
 	 */
 	public List<List<String>> processFile(BufferedReader fileReader, CsvLineMapProcessor processor) throws IOException, KommetException
 	{
 		List<List<String>> lines = new ArrayList<List<String>>();
+		processFile(fileReader, processor, lines);
+		return lines;
+	}
+	
+	/**
+	 * Processes a CSV file, adding all its lines to the given list, unless it is null.
+	 */
+	private void processFile(BufferedReader fileReader, CsvLineMapProcessor processor, List<List<String>> lines) throws IOException, KommetException
+	{
 		List<String> lineTokens = new ArrayList<String>();
 		String currentToken = null;
 		int intChar;
@@ -94,33 +111,8 @@ public class CSVParser
 				if (!isInQuotes)
 				{
 					// end existing line, start a new one
-					List<String> tokens = new ArrayList<String>();
-					tokens.addAll(lineTokens);
-					lines.add(tokens);
+					columnNames = processLine(lineTokens, lineNo, columnNames, processor, lines);
 					lineTokens = new ArrayList<String>();
-					
-					if (lineNo > 0)
-					{
-						// check if this line has a correct number of columns
-						if (tokens.size() != columnNames.size())
-						{
-							throw new CSVParserException("Line " + lineNo + " has " + tokens.size() + " columns instead of expected " + columnNames.size());
-						}
-						
-						// parse this line
-						LineParseResult parsedLine = lineToMap(tokens, columnNames);
-						processor.processLine(parsedLine.getMapByColumnName(), parsedLine.getMapByColumnIndex(), lineNo);
-					}
-					else
-					{	
-						// init column name list
-						columnNames = new ArrayList<String>();
-						columnNames.addAll(tokens);
-						
-						// process headers
-						processor.processHeaders(columnNames);
-					}
-					
 					lineNo++;
 				}
 				else
@@ -178,18 +170,50 @@ public class CSVParser
 			}
 		}
 		
-		// append last line if not already appended
+		// process last line if the file does not end with a new line character
 		if (!lineTokens.isEmpty())
 		{
-			List<String> tokens = new ArrayList<String>();
-			tokens.addAll(lineTokens);
-			lines.add(tokens);
+			processLine(lineTokens, lineNo, columnNames, processor, lines);
 		}
 		
 		// call finish method
 		processor.finish();
+	}
+	
+	/**
+	 * Passes a complete line to the processor. The first line is treated as the header line.
+	 * @return names of the columns
+	 */
+	private List<String> processLine(List<String> tokens, int lineNo, List<String> columnNames, CsvLineMapProcessor processor, List<List<String>> lines) throws KommetException
+	{
+		if (lines != null)
+		{
+			lines.add(new ArrayList<String>(tokens));
+		}
 		
-		return lines;
+		if (lineNo > 0)
+		{
+			// check if this line has a correct number of columns
+			if (tokens.size() != columnNames.size())
+			{
+				throw new CSVParserException("Line " + lineNo + " has " + tokens.size() + " columns instead of expected " + columnNames.size());
+			}
+			
+			// parse this line
+			LineParseResult parsedLine = lineToMap(tokens, columnNames);
+			processor.processLine(parsedLine.getMapByColumnName(), parsedLine.getMapByColumnIndex(), lineNo);
+			return columnNames;
+		}
+		else
+		{	
+			// init column name list
+			columnNames = new ArrayList<String>();
+			columnNames.addAll(tokens);
+			
+			// process headers
+			processor.processHeaders(columnNames);
+			return columnNames;
+		}
 	}
 
 	class LineParseResult
@@ -0,0 +1,35 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.dataimport.csv;
+
+import java.util.List;
+
+import kommet.data.KommetException;
+
+/**
+ * Interface representing a processor of rows of a CSV file, which receives rows in batches.
+ * <p>
+ * Rows that cannot be imported should be marked with {@link CsvRow#reject(String)}. If
+ * {@link #processBatch(List)} throws an exception, all rows of the batch that have not been rejected are
+ * rejected with the exception message.
+ * </p>
+ * <p>
+ * When an import job runs on more than one thread, batches are processed concurrently and in no particular order,
+ * so implementations of {@link #processBatch(List)} must be thread-safe. Methods {@link #init()},
+ * {@link #processHeaders(List)} and {@link #finish()} are always called once, on the same thread.
+ * </p>
+ * @author Radek Krawiec
+ */
+public interface CsvBatchProcessor
+{
+	public void processBatch (List<CsvRow> rows) throws KommetException;
+	public void processHeaders (List<String> headers) throws KommetException;
+	public void finish() throws KommetException;
+	public void init() throws KommetException;
+	public char getSeparator();
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.dataimport.csv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single row of a CSV file passed to a {@link CsvBatchProcessor}.
+ * @author Radek Krawiec
+ */
+public class CsvRow
+{
+	private int lineNo;
+	private Map<String, String> mapByColumnName;
+	private Map<Integer, String> mapByColumnIndex;
+	private String rejectReason;
+	
+	public CsvRow (int lineNo, Map<String, String> mapByColumnName, Map<Integer, String> mapByColumnIndex)
+	{
+		this.lineNo = lineNo;
+		this.mapByColumnName = mapByColumnName;
+		this.mapByColumnIndex = mapByColumnIndex;
+	}
+	
+	/**
+	 * Marks the row as failed. Rejected rows are written to the reject file of the import job, together with the reason.
+	 * @param reason
+	 */
+	public void reject (String reason)
+	{
+		this.rejectReason = reason != null ? reason : "Unknown error";
+	}
+	
+	public boolean isRejected()
+	{
+		return rejectReason != null;
+	}
+	
+	public String getRejectReason()
+	{
+		return rejectReason;
+	}
+	
+	/**
+	 * Returns the value of the column with the given name.
+	 * @param columnName
+	 * @return
+	 */
+	public String get (String columnName)
+	{
+		return mapByColumnName.get(columnName);
+	}
+	
+	/**
+	 * Returns the values of the row in the order of columns.
+	 * @return
+	 */
+	public List<String> getValues()
+	{
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < mapByColumnIndex.size(); i++)
+		{
+			values.add(mapByColumnIndex.get(i));
+		}
+		return values;
+	}
+	
+	public int getLineNo()
+	{
+		return lineNo;
+	}
+	
+	public Map<String, String> getMapByColumnName()
+	{
+		return mapByColumnName;
+	}
+	
+	public Map<Integer, String> getMapByColumnIndex()
+	{
+		return mapByColumnIndex;
+	}
+}
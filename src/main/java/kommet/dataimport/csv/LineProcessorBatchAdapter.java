@@ -0,0 +1,70 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.dataimport.csv;
+
+import java.util.List;
+
+import kommet.data.KommetException;
+
+/**
+ * Lets a {@link CsvLineMapProcessor} be used in batched import jobs. Lines are passed to the processor one by one,
+ * and a line for which the processor throws an exception is rejected without stopping the import.
+ * <p>
+ * Line processors are not required to be thread-safe, so batches are passed to them one at a time.
+ * </p>
+ * @author Radek Krawiec
+ */
+public class LineProcessorBatchAdapter implements CsvBatchProcessor
+{
+	private CsvLineMapProcessor lineProcessor;
+	
+	public LineProcessorBatchAdapter (CsvLineMapProcessor lineProcessor)
+	{
+		this.lineProcessor = lineProcessor;
+	}
+	
+	@Override
+	public synchronized void processBatch (List<CsvRow> rows)
+	{
+		for (CsvRow row : rows)
+		{
+			try
+			{
+				lineProcessor.processLine(row.getMapByColumnName(), row.getMapByColumnIndex(), row.getLineNo());
+			}
+			catch (Exception e)
+			{
+				row.reject(e.getMessage());
+			}
+		}
+	}
+	
+	@Override
+	public void processHeaders (List<String> headers) throws KommetException
+	{
+		lineProcessor.processHeaders(headers);
+	}
+	
+	@Override
+	public void finish() throws KommetException
+	{
+		lineProcessor.finish();
+	}
+	
+	@Override
+	public void init() throws KommetException
+	{
+		lineProcessor.init();
+	}
+	
+	@Override
+	public char getSeparator()
+	{
+		return lineProcessor.getSeparator();
+	}
+}
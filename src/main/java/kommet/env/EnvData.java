@@ -14,11 +14,11 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.sql.DataSource;
 
@@ -60,6 +60,7 @@ import kommet.dao.TypeForProxyNotFoundException;
 import kommet.dao.TypePersistenceConfig;
 import kommet.dao.TypePersistenceMapping;
 import kommet.dao.dal.DALCriteriaBuilder;
+import kommet.dao.dal.DALTokenizedQueryCache;
 import kommet.dao.queries.Criteria;
 import kommet.data.DataService;
 import kommet.data.Env;
@@ -105,6 +106,7 @@ import kommet.triggers.TypeTriggerFilter;
 import kommet.utils.AppConfig;
 import kommet.utils.MiscUtils;
 import kommet.utils.PropertyUtilException;
+import kommet.web.actions.ActionRouter;
 import kommet.web.actions.ParsedURL;
 
 public class EnvData
@@ -147,6 +149,16 @@ public class EnvData
 	
 	private Map<String, Action> actionsByUrl = new HashMap<String, Action>();
 	
+	/**
+	 * Router built from the actionsByUrl map, or null if actions have changed since it was last built
+	 */
+	private volatile ActionRouter actionRouter;
+	
+	/**
+	 * Tokenized DAL queries executed in this env
+	 */
+	private DALTokenizedQueryCache dalQueryCache = new DALTokenizedQueryCache();
+	
 	private static final Logger log = LoggerFactory.getLogger(EnvData.class);
 	
 	/**
@@ -183,7 +195,7 @@ public class EnvData
 	/**
 	 * TypeTrigger assignments by type ID 
 	 */
-	private HashMap<KID, Map<KID, TypeTrigger>> triggersByTypeAndFile;
+	private Map<KID, Map<KID, TypeTrigger>> triggersByTypeAndFile;
 	
 	/**
 	 * Validation rule assignments by type ID 
@@ -195,7 +207,7 @@ public class EnvData
 	/**
 	 * Map where all text labels are stored. Each entry is a locale mapped to the text label dictionary.
 	 */
-	private TextLabelDictionary textLabelDictionary;
+	private volatile TextLabelDictionary textLabelDictionary;
 	
 	/**
 	 * Generic actions are actions not stored in the database, they are initialized on system start-up
@@ -215,27 +227,29 @@ public class EnvData
 	 */
 	private Map<String, ViewResource> viewResources;
 	
-	private Map<Long, AuthData> authDataByThread = new HashMap<Long, AuthData>();
+	// auth data is set and read by many threads at once, e.g. request threads, import jobs and business process branches
+	private Map<Long, AuthData> authDataByThread = new ConcurrentHashMap<Long, AuthData>();
 	
 	private String compileClassPath;
 	
-	private Map<KID, List<SharingRule>> sharingRulesByType = new HashMap<KID, List<SharingRule>>();
+	private Map<KID, List<SharingRule>> sharingRulesByType = new ConcurrentHashMap<KID, List<SharingRule>>();
 	
-	private Map<KID, List<SharingRule>> dependentSharingRulesByType = new HashMap<KID, List<SharingRule>>();
+	private Map<KID, List<SharingRule>> dependentSharingRulesByType = new ConcurrentHashMap<KID, List<SharingRule>>();
 	
 	/**
 	 * Processes mapped by either the KID of the type for which they can be triggered, or by the type name (if the process should be triggered for all types, i.e. for type name kommet.basic.RecordProxy)
 	 */
-	private Map<String, List<BusinessProcess>> triggerableBusinessProcesses = new HashMap<String, List<BusinessProcess>>();
+	private volatile Map<String, List<BusinessProcess>> triggerableBusinessProcesses = new HashMap<String, List<BusinessProcess>>();
 	
-	private Map<KID, BusinessProcessExecutor> businessProcessExecutors = new HashMap<KID, BusinessProcessExecutor>();
+	// prepared process executors are shared by all threads calling the process
+	private ConcurrentHashMap<KID, BusinessProcessExecutor> businessProcessExecutors = new ConcurrentHashMap<KID, BusinessProcessExecutor>();
 	
-	private Map<KID, Boolean> triggersWithBeforeOldProxiesByTypeId = new HashMap<KID, Boolean>();
-	private Map<KID, Boolean> triggersWithAfterOldProxiesByTypeId = new HashMap<KID, Boolean>();
+	private Map<KID, Boolean> triggersWithBeforeOldProxiesByTypeId = new ConcurrentHashMap<KID, Boolean>();
+	private Map<KID, Boolean> triggersWithAfterOldProxiesByTypeId = new ConcurrentHashMap<KID, Boolean>();
 	
-	private Map<KID, Dictionary> dictionaries = new HashMap<KID, Dictionary>();
+	private Map<KID, Dictionary> dictionaries = new ConcurrentHashMap<KID, Dictionary>();
 	
-	private Map<KID, List<Button>> customTypeButtons = new HashMap<KID, List<Button>>();
+	private Map<KID, List<Button>> customTypeButtons = new ConcurrentHashMap<KID, List<Button>>();
  	
 	public EnvData (Env env, DataSource dataSource) throws KommetException
 	{
@@ -251,9 +265,9 @@ public class EnvData
 		this.lastFieldPermissionsUpdate = lastPermissionUpdate;
 		this.lastTypePermissionsUpdate = lastPermissionUpdate;
 		this.lastActionPermissionsUpdate = lastPermissionUpdate;
-		this.views = new HashMap<KID, View>();
-		this.triggersByTypeAndFile = new HashMap<KID, Map<KID, TypeTrigger>>();
-		this.typesWithValidationRules = new HashSet<KID>();
+		this.views = new ConcurrentHashMap<KID, View>();
+		this.triggersByTypeAndFile = new ConcurrentHashMap<KID, Map<KID, TypeTrigger>>();
+		this.typesWithValidationRules = Collections.newSetFromMap(new ConcurrentHashMap<KID, Boolean>());
 		this.genericActions = new HashMap<String, GenericAction>();
 		this.webResourcesByName = new HashMap<String, WebResource>();
 		this.viewResources = new HashMap<String, ViewResource>();
@@ -301,6 +315,7 @@ public class EnvData
 		}
 		
 		this.typePersistenceConfig.addMapping(type.getKID(), type.getQualifiedName(), TypePersistenceMapping.get(type, this));
+		this.dalQueryCache.clear();
 	}
 	
 	public void addCustomTypeProxyMapping (java.lang.Class<? extends RecordProxy> proxyClass) throws KommetException
@@ -344,6 +359,7 @@ public class EnvData
 			throw new KommetException("Type qualified name " + type.getQualifiedName() + " is env-specific");
 		}
 		this.globalTypeStore.registerType(type);
+		this.dalQueryCache.clear();
 	}
 	
 	public void removeType (Type type) throws KommetException
@@ -354,6 +370,7 @@ public class EnvData
 		this.triggersByTypeAndFile.remove(type.getKID());
 		// remove validation rule flag
 		this.typesWithValidationRules.remove(type.getKID());
+		this.dalQueryCache.clear();
 	}
 	
 	public Type getType (KeyPrefix keyPrefix) throws KommetException
@@ -495,7 +512,12 @@ public class EnvData
 
 	public Criteria getSelectCriteriaFromDAL (String dalQuery, AuthData authData) throws KommetException
 	{
-		return DALCriteriaBuilder.getSelectCriteriaFromDAL(dalQuery, authData, this);
+		return DALCriteriaBuilder.getSelectCriteriaFromDAL(dalQueryCache.get(dalQuery, this), authData, this);
+	}
+	
+	public DALTokenizedQueryCache getDalQueryCache()
+	{
+		return dalQueryCache;
 	}
 	
 	public List<Record> select(String dalQuery, AuthData authData) throws KommetException
@@ -579,39 +601,82 @@ public class EnvData
 			throw new KommetException("Cannot add action to environment whose URL is empty");
 		}
 		
-		if (StringUtils.hasText(oldUrl))
+		synchronized (this.actionsByUrl)
 		{
-			this.actionsByUrl.remove(oldUrl.toLowerCase());
+			if (StringUtils.hasText(oldUrl))
+			{
+				this.actionsByUrl.remove(oldUrl.toLowerCase());
+			}
+			
+			this.actionsByUrl.put(url.toLowerCase(), action);
+			this.actionRouter = null;
 		}
 		
-		this.actionsByUrl.put(url.toLowerCase(), action);
 		this.addView(action.getView());
 	}
 
 	public Action getActionForUrl(String url) throws KommetException
+	{
+		ActionRouter.Match match = getActionMatchForUrl(url);
+		return match != null ? match.getAction() : null;
+	}
+	
+	/**
+	 * Returns the action matching the given URL together with the values of parameters in the URL,
+	 * or null if no action matches the URL.
+	 * @param url
+	 * @return
+	 * @throws KommetException
+	 */
+	public ActionRouter.Match getActionMatchForUrl(String url) throws KommetException
 	{
 		if (!StringUtils.hasText(url))
 		{
 			throw new KommetException("URL by which action is retrieved is empty");
 		}
 		
-		// check whether each URL matches the provided one
-		for (String existingURL : this.actionsByUrl.keySet())
+		return getActionRouter().match(url);
+	}
+	
+	private ActionRouter getActionRouter()
+	{
+		ActionRouter router = this.actionRouter;
+		
+		if (router == null)
 		{
-			if (new ParsedURL(existingURL).matchesParameterized(url))
+			synchronized (this.actionsByUrl)
 			{
-				return this.actionsByUrl.get(existingURL);
+				// the router is rebuilt lazily, so that adding many actions, e.g. when the env is initialized,
+				// does not rebuild it after each action
+				if (this.actionRouter == null)
+				{
+					// keys of the action map are lowercase, so the router is built from the original URLs,
+					// which keep the case of URL parameter names
+					Map<String, Action> actionsByOriginalUrl = new HashMap<String, Action>();
+					for (Map.Entry<String, Action> entry : this.actionsByUrl.entrySet())
+					{
+						String url = entry.getValue().getUrl();
+						actionsByOriginalUrl.put(url != null && url.equalsIgnoreCase(entry.getKey()) ? url : entry.getKey(), entry.getValue());
+					}
+					
+					this.actionRouter = new ActionRouter(actionsByOriginalUrl);
+				}
+				router = this.actionRouter;
 			}
 		}
 		
-		return null;
+		return router;
 	}
 	
 	public void removeActionForUrl(String url) throws KommetException
 	{	
 		if (this.actionsByUrl != null)
 		{
-			this.actionsByUrl.remove(url.toLowerCase());
+			synchronized (this.actionsByUrl)
+			{
+				this.actionsByUrl.remove(url.toLowerCase());
+				this.actionRouter = null;
+			}
 		}
 	}
 
@@ -745,6 +810,7 @@ public class EnvData
 	{
 		globalTypeStore.renameType(oldQualifiedName, type);
 		typePersistenceConfig.renameType(oldQualifiedName, type, this);
+		dalQueryCache.clear();
 	}
 
 	public void removeField(Type type, String apiName) throws KommetException
@@ -761,6 +827,7 @@ public class EnvData
 	{
 		globalTypeStore.updateType(type);
 		typePersistenceConfig.updateType(type, this);
+		dalQueryCache.clear();
 	}
 	
 	public void addSetting (SystemSetting setting)
@@ -976,7 +1043,7 @@ public class EnvData
 
 	public void clearValidationRuleFlags()
 	{
-		this.typesWithValidationRules = new HashSet<KID>();
+		this.typesWithValidationRules = Collections.newSetFromMap(new ConcurrentHashMap<KID, Boolean>());
 	}
 
 	/**
@@ -1338,7 +1405,15 @@ public class EnvData
 	
 	public void addAuthData (AuthData authData)
 	{
-		this.authDataByThread.put(Thread.currentThread().getId(), authData);
+		if (authData != null)
+		{
+			this.authDataByThread.put(Thread.currentThread().getId(), authData);
+		}
+		else
+		{
+			// the concurrent map does not accept null values
+			this.authDataByThread.remove(Thread.currentThread().getId());
+		}
 	}
 	
 	public AuthData currentAuthData()
@@ -1448,7 +1523,11 @@ public class EnvData
 	}
 
 	/**
-	 * Gets a cached process executor for the given process. If the executor does not exist, it is created first.
+	 * Gets a cached process executor for the given process. If the executor does not exist, or has been prepared
+	 * for an older version of the process, it is created first.
+	 * <p>
+	 * Executors keep no state of a single execution, so the returned executor can be called by many threads at the same time.
+	 * </p>
 	 * @param bp
 	 * @param compiler
 	 * @param logService
@@ -1458,14 +1537,26 @@ public class EnvData
 	 */
 	public BusinessProcessExecutor getProcessExecutor(BusinessProcess bp, KommetCompiler compiler, ErrorLogService logService, ClassService classService, DataService dataService) throws BusinessProcessException
 	{
-		if (!this.businessProcessExecutors.containsKey(bp.getId()))
+		BusinessProcessExecutor cachedExecutor = this.businessProcessExecutors.get(bp.getId());
+		if (cachedExecutor != null && cachedExecutor.getPlan().isPreparedFor(bp))
 		{
-			BusinessProcessExecutor executor = new BusinessProcessExecutor(compiler, logService, classService, dataService, this);
-			executor.prepare(bp);
-			this.businessProcessExecutors.put(bp.getId(), executor);
+			return cachedExecutor;
 		}
 		
-		return this.businessProcessExecutors.get(bp.getId());
+		// the executor is prepared before it is cached, so that other threads never see an unprepared executor
+		BusinessProcessExecutor executor = new BusinessProcessExecutor(compiler, logService, classService, dataService, this);
+		executor.prepare(bp);
+		
+		if (cachedExecutor == null)
+		{
+			BusinessProcessExecutor existingExecutor = this.businessProcessExecutors.putIfAbsent(bp.getId(), executor);
+			return existingExecutor != null ? existingExecutor : executor;
+		}
+		else
+		{
+			this.businessProcessExecutors.replace(bp.getId(), cachedExecutor, executor);
+			return executor;
+		}
 	}
 
 	/**
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.env;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import kommet.data.KID;
+import kommet.data.KommetException;
+
+/**
+ * Returns initialized environments from cache, making sure that an environment requested by many threads at the same time
+ * is initialized only once.
+ *
+ * Initialized environments are returned without locking. Different environments can be initialized at the same time,
+ * and if an environment is requested while it is being initialized by another thread, the caller waits for that
+ * initialization to finish instead of starting another one.
+ *
+ * @author Radek Krawiec
+ */
+public class EnvLoader
+{
+	// initialized envs, by env ID - shared with the owner of the loader, which puts envs there once they are initialized
+	private final Map<KID, EnvData> envs;
+
+	// envs that are currently being initialized, by env ID
+	private final Map<KID, EnvLoad> envLoads = new ConcurrentHashMap<KID, EnvLoad>();
+
+	public EnvLoader (Map<KID, EnvData> envs)
+	{
+		this.envs = envs;
+	}
+
+	/**
+	 * Returns the env from cache, or initializes it if it is not cached.
+	 * <p>
+	 * The initializer is expected to put the env in the cache if it has been fully initialized. An env returned by the
+	 * initializer without being cached is returned only to the thread that initialized it, and threads waiting for it
+	 * check the cache again and initialize the env themselves if it is not there.
+	 * </p>
+	 * @param envId
+	 * @param initializer initializes the env if it is not cached
+	 * @return
+	 * @throws KommetException if initialization failed, also thrown to threads waiting for it, or if the env is requested
+	 * by the thread that is initializing it
+	 */
+	public EnvData get (KID envId, EnvInitializer initializer) throws KommetException
+	{
+		while (true)
+		{
+			EnvData env = envs.get(envId);
+			if (env != null)
+			{
+				// if environment is already initialized, just return it
+				return env;
+			}
+
+			EnvLoad load = new EnvLoad();
+			EnvLoad existingLoad = envLoads.putIfAbsent(envId, load);
+
+			if (existingLoad != null)
+			{
+				// wait for the other thread to initialize the env and then check the cache again,
+				// because the other thread may have only partially initialized it, without caching it
+				existingLoad.await(envId);
+				continue;
+			}
+
+			try
+			{
+				// the env may have been cached after we last checked the cache, but before the load was registered
+				env = envs.get(envId);
+				if (env == null)
+				{
+					env = initializer.init();
+				}
+				load.complete();
+				return env;
+			}
+			catch (KommetException | RuntimeException e)
+			{
+				load.fail(e);
+				throw e;
+			}
+			finally
+			{
+				envLoads.remove(envId, load);
+			}
+		}
+	}
+
+	/**
+	 * Initializes an env that has not been found in cache.
+	 */
+	public interface EnvInitializer
+	{
+		public EnvData init() throws KommetException;
+	}
+
+	/**
+	 * Initialization of an env in progress.
+	 */
+	private static class EnvLoad
+	{
+		private final CompletableFuture<Void> result = new CompletableFuture<Void>();
+		private final Thread thread = Thread.currentThread();
+
+		public void complete()
+		{
+			result.complete(null);
+		}
+
+		public void fail (Exception e)
+		{
+			result.completeExceptionally(e);
+		}
+
+		/**
+		 * Waits until the env is initialized. If initialization failed, the exception that caused it is rethrown.
+		 * @param envId
+		 * @throws KommetException
+		 */
+		public void await (KID envId) throws KommetException
+		{
+			if (thread == Thread.currentThread())
+			{
+				// waiting for itself would block the thread forever
+				throw new KommetException("Env " + envId + " requested while it is being initialized");
+			}
+
+			try
+			{
+				result.get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new KommetException("Interrupted while waiting for env " + envId + " to be initialized");
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof KommetException)
+				{
+					throw (KommetException)e.getCause();
+				}
+				else if (e.getCause() instanceof RuntimeException)
+				{
+					throw (RuntimeException)e.getCause();
+				}
+				else
+				{
+					throw new KommetException("Error initializing env " + envId + ": " + e.getCause().getMessage());
+				}
+			}
+		}
+	}
+}
@@ -12,10 +12,20 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.servlet.http.HttpSession;
 import javax.sql.DataSource;
@@ -28,6 +38,7 @@ import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.util.StringUtils;
 
 import kommet.auth.AuthData;
@@ -48,8 +59,10 @@ import kommet.basic.keetle.ViewDao;
 import kommet.basic.keetle.ViewService;
 import kommet.basic.types.SystemTypes;
 import kommet.businessprocess.BusinessProcessService;
+import kommet.businessprocess.ProcessQueueService;
 import kommet.config.Constants;
 import kommet.dao.EnvDao;
+import kommet.dao.EnvTableInitializer;
 import kommet.dao.UserDao;
 import kommet.data.DataService;
 import kommet.data.Env;
@@ -78,8 +91,10 @@ import kommet.koll.compiler.KommetCompiler;
 import kommet.labels.TextLabelService;
 import kommet.scheduler.ScheduledTaskFilter;
 import kommet.scheduler.ScheduledTaskService;
+import kommet.services.AnyRecordService;
 import kommet.services.ButtonService;
 import kommet.services.DictionaryService;
+import kommet.services.FieldHistoryService;
 import kommet.services.ReminderService;
 import kommet.services.SharingRuleService;
 import kommet.services.SystemActionService;
@@ -89,6 +104,8 @@ import kommet.services.ViewResourceService;
 import kommet.services.WebResourceService;
 import kommet.triggers.TriggerService;
 import kommet.utils.AppConfig;
+import kommet.utils.MiscUtils;
+import kommet.utils.NamedDaemonThreadFactory;
 import kommet.utils.PropertyUtilException;
 
 @Service
@@ -105,6 +122,9 @@ public class EnvService
 	@Inject
 	BasicSetupService basicSetupService;
 
+	@Inject
+	EnvTableInitializer envTableInitializer;
+
 	@Inject
 	ButtonService buttonService;
 
@@ -180,12 +200,27 @@ public class EnvService
 	@Inject
 	DictionaryService dictionaryService;
 
+	@Inject
+	FieldHistoryService fieldHistoryService;
+
+	@Inject
+	AnyRecordService anyRecordService;
+
+	@Inject
+	ProcessQueueService processQueueService;
+
 	private static final Logger log = LoggerFactory.getLogger(EnvService.class);
 
-	private Map<KID, EnvData> envs = new HashMap<KID, EnvData>();
+	private Map<KID, EnvData> envs = new ConcurrentHashMap<KID, EnvData>();
+	
+	// makes sure that each env is initialized only once when requested by many threads
+	private EnvLoader envLoader = new EnvLoader(envs);
+
+	// executor on which independent env initialization stages are run, shared by all envs
+	private ExecutorService envInitExecutor;
 
 	// maps the env ID to the name of the current datasource bean
-	private Map<KID, String> dataSources = new HashMap<KID, String>();
+	private Map<KID, String> dataSources = new ConcurrentHashMap<KID, String>();
 
 	public EnvService()
 	{
@@ -270,6 +305,36 @@ public class EnvService
 		return get(id, true, true, false, true, true, true, true, true, true, true, true, true, true, true);
 	}
 
+	/**
+	 * Returns the environment if it has already been initialized. Otherwise returns an environment object that is only
+	 * connected to the environment's database, without reading in types, classes or any other metadata. Such object is not
+	 * cached and can only be used to run plain SQL queries, e.g. to check data before it is decided whether the environment
+	 * should be initialized at all.
+	 * @param envId
+	 * @return the environment, or null if an environment with the given ID does not exist
+	 * @throws KommetException
+	 */
+	public EnvData getConnected (KID envId) throws KommetException
+	{
+		EnvData env = envs.get(envId);
+		if (env != null)
+		{
+			return env;
+		}
+
+		EnvFilter filter = new EnvFilter();
+		filter.setKID(envId);
+		List<Env> envs = envDao.find(filter, getMasterEnv());
+
+		if (envs.isEmpty())
+		{
+			return null;
+		}
+
+		DataSource dataSource = dataSourceFactory.getDataSource(envId, this, appConfig.getEnvDBHost(), appConfig.getEnvDBPort(), envs.get(0).getDBName(), appConfig.getEnvDBUser(), appConfig.getEnvDBPassword(), false);
+		return new EnvData(envs.get(0), dataSource);
+	}
+
 	/**
 	 * Removes the initialized environment from cache. After this method is called, the
 	 * environment will need to be initialized again in order to be used.
@@ -283,9 +348,9 @@ public class EnvService
 	/**
 	 * Get environment data from cache, or read it in from database if it is not cached.
 	 *
-	 * Note that this method is synchronized which means only one instance of this method can fire at a time. Actually, we should allow one instance of this method
-	 * to run per each environment, but since it is simpler to synchronize it for any environment, and it is not likely to have it called at the same time for two different
-	 * environments, we implement the whole method as synchronized.
+	 * Initialized environments are returned without locking. Different environments can be initialized at the same time,
+	 * and if an environment is requested while it is being initialized by another thread, the caller waits for that
+	 * initialization to finish instead of starting another one - see {@link EnvLoader}.
 	 *
 	 * @param envId
 	 * @param initTypes
@@ -303,17 +368,24 @@ public class EnvService
 	 * @return
 	 * @throws KommetException
 	 */
-	public synchronized EnvData get (KID envId, boolean initTypes, boolean initTypeProxies, boolean ignoreTypeProxyErrors, boolean initActions, boolean initTriggers, boolean initScheduledTasks, boolean initTextLabels, boolean initValidationRules, boolean initSharingRules, boolean initBusinessProcesses, boolean recompileClasses, boolean restore, boolean initButtons, boolean initDictionaries) throws KommetException
+	public EnvData get (KID envId, boolean initTypes, boolean initTypeProxies, boolean ignoreTypeProxyErrors, boolean initActions, boolean initTriggers, boolean initScheduledTasks, boolean initTextLabels, boolean initValidationRules, boolean initSharingRules, boolean initBusinessProcesses, boolean recompileClasses, boolean restore, boolean initButtons, boolean initDictionaries) throws KommetException
 	{
 		log.debug("Looking for env " + envId);
-
-		if (envs.containsKey(envId))
+		
+		return envLoader.get(envId, new EnvLoader.EnvInitializer()
 		{
-			// if environment is already initialized, just return it
-			return envs.get(envId);
-		}
-
+			@Override
+			public EnvData init() throws KommetException
+			{
+				return initEnv(envId, initTypes, initTypeProxies, ignoreTypeProxyErrors, initActions, initTriggers, initScheduledTasks, initTextLabels, initValidationRules, initSharingRules, initBusinessProcesses, recompileClasses, restore, initButtons, initDictionaries);
+			}
+		});
+	}
+	
+	private EnvData initEnv (KID envId, boolean initTypes, boolean initTypeProxies, boolean ignoreTypeProxyErrors, boolean initActions, boolean initTriggers, boolean initScheduledTasks, boolean initTextLabels, boolean initValidationRules, boolean initSharingRules, boolean initBusinessProcesses, boolean recompileClasses, boolean restore, boolean initButtons, boolean initDictionaries) throws KommetException
+	{
 		log.debug("Initializing env " + envId);
+		long initStartTime = System.currentTimeMillis();
 
 		EnvReadResult envReadResult = readEnvConf(envId, initTypes, initTypeProxies, ignoreTypeProxyErrors, initActions, initTriggers, initTextLabels, initValidationRules, initSharingRules, initBusinessProcesses, recompileClasses, initButtons, initDictionaries);
 		EnvData env = envReadResult.getEnv();
@@ -332,6 +404,8 @@ public class EnvService
 		// they need to be compiled as well. This is why we just go on creating proxies for all types
 		if (restore)
 		{
+			long stageStartTime = System.currentTimeMillis();
+
 			log.debug("Restoring standard controllers");
 			dataService.createStandardControllers(appConfig.isGenerateControllerCodeAnew(), env.getAllTypes(), AuthData.getRootAuthData(env), env);
 
@@ -368,15 +442,21 @@ public class EnvService
 			layoutService.initLayoutDir(env, false);
 			log.debug("Restoring view resources");
 			viewResourceService.initViewResourcesOnDisk(env, true);
+
+			logStageTime("restore", stageStartTime, envId);
 		}
 
 		// read in all KOLL files into the env's class loader
 
 		log.debug("Initializing generic actions");
+		long genericActionsStartTime = System.currentTimeMillis();
 		env.initGenericActions(classes, envReadResult.getClassesWithCompileErrors(), compiler, systemActionService.getSystemActionURLs(), null, viewDao, logService);
+		logStageTime("generic actions", genericActionsStartTime, envId);
 
 		if (initScheduledTasks)
 		{
+			long stageStartTime = System.currentTimeMillis();
+
 			log.debug("Scheduling tasks");
 			List<ScheduledTask> tasks = schedulerService.get(new ScheduledTaskFilter(), env);
 			for (ScheduledTask task : tasks)
@@ -418,6 +498,44 @@ public class EnvService
 				e.printStackTrace();
 				throw new KommetException("Error scheduling sharing remover: " + e.getMessage());
 			}
+
+			if (appConfig.isFieldHistoryAsync())
+			{
+				try
+				{
+					fieldHistoryService.scheduleFieldHistoryWriter(env);
+				}
+				catch (SchedulerException e)
+				{
+					e.printStackTrace();
+					throw new KommetException("Error scheduling field history writer: " + e.getMessage());
+				}
+			}
+
+			if (appConfig.isCreateAnyRecords() && appConfig.isAnyRecordsAsync())
+			{
+				try
+				{
+					anyRecordService.scheduleAnyRecordWriter(env);
+				}
+				catch (SchedulerException e)
+				{
+					e.printStackTrace();
+					throw new KommetException("Error scheduling AnyRecord writer: " + e.getMessage());
+				}
+			}
+
+			try
+			{
+				processQueueService.scheduleQueueWorker(env);
+			}
+			catch (SchedulerException e)
+			{
+				e.printStackTrace();
+				throw new KommetException("Error scheduling process queue worker: " + e.getMessage());
+			}
+
+			logStageTime("scheduled tasks", stageStartTime, envId);
 		}
 
 		// cache view resources in the env object
@@ -429,6 +547,7 @@ public class EnvService
 		this.envs.put(env.getEnv().getKID(), env);
 
 		log.debug("Env initialization finished [" + envId + "]");
+		logStageTime("env", initStartTime, envId);
 		return env;
 	}
 
@@ -496,6 +615,9 @@ public class EnvService
 		EnvData envData = new EnvData(envs.get(0), dataSource);
 		envData.setCompileClassPath(compiler.getCompileClassPath(envId));
 
+		// hashes of the code of classes compiled before this initialization, used to tell whether compiled classes can be reused
+		Map<String, String> previousSourceHashes = recompileClasses && appConfig.isReuseCompiledClasses() ? compiler.getCompiledSourceHashes(envData) : null;
+
 		// environment may or may not be initialized when this method is run
 		boolean envInitialized = false;
 
@@ -503,6 +625,8 @@ public class EnvService
 
 		if (initTypes)
 		{
+			long stageStartTime = System.currentTimeMillis();
+
 			// TODO fix the method below because it gets unique check type only by its API name
 			// not the package, which may result in a wrong type being returned if there is another
 			// type called UniqueCheck in another package
@@ -548,8 +672,12 @@ public class EnvService
 				envData.getType(uc.getTypeId()).addUniqueCheck(uc);
 			}
 
+			logStageTime("types", stageStartTime, envId);
+
 			if (initTypeProxies)
 			{
+				stageStartTime = System.currentTimeMillis();
+
 				envData.scanForPersistenceMappings("kommet", ignoreTypeProxyErrors);
 
 				log.debug("Updating type proxies");
@@ -562,22 +690,8 @@ public class EnvService
 
 				// now generate and compile all proxies again, but this time with all properties
 				dataService.updateTypeProxy(allTypesOnEnv, AuthData.getRootAuthData(envData), envData);
-			}
-		}
-
-		if (initActions)
-		{
-			// find all pages and add them to the environment
-			List<Action> actions = actionService.getActions(null, envData);
-			for (Action action : actions)
-			{
-				envData.addAction(action.getUrl(), action);
-			}
 
-			// also, add all views to the env cache - some have already been added when addAction was called, but some not
-			for (View view : viewService.getAllViews(envData))
-			{
-				envData.addView(view);
+				logStageTime("type proxies", stageStartTime, envId);
 			}
 		}
 
@@ -603,99 +717,137 @@ public class EnvService
 			envData.setGuestUser(guestUsers.get(0));
 		}
 
-		Set<KID> classesWithCompileErrors = new HashSet<KID>();
+		final Set<KID> classesWithCompileErrors = new HashSet<KID>();
+		final EnvData initializedEnv = envData;
 
-		if (initTriggers)
-		{
-			//boolean allClassesRecompiled = false;
+		// The stages below read different parts of env configuration and do not depend on each other, so they can be run in parallel.
+		// Each of them fills different collections of the env, which are concurrent because they are also read by request threads.
+		// Triggers and validation rules are kept in one stage, because both of them load classes and compile them.
+		Map<String, EnvInitStage> stages = new LinkedHashMap<String, EnvInitStage>();
 
-			// get all trigger-type assignments
-			List<TypeTrigger> typeTriggers = triggerService.find(null, envData);
-			for (TypeTrigger typeTrigger : typeTriggers)
+		if (initActions)
+		{
+			stages.put("actions", new EnvInitStage()
 			{
-				// register trigger on the environment
-				envData.registerTrigger(typeTrigger);
-
-				String triggerName = typeTrigger.getTriggerFile().getPackageName() + "." + typeTrigger.getTriggerFile().getName();
-
-				java.lang.Class<?> triggerClass = null;
-				try
-				{
-					triggerClass = compiler.getClass(triggerName, true, envData);
-					envData.setOldProxiesOnTypeFlag(typeTrigger.getTypeId(), triggerClass, typeTrigger, envData);
-				}
-				catch (ClassNotFoundException e)
+				public void run() throws KommetException
 				{
-					classesWithCompileErrors.add(typeTrigger.getTriggerFile().getId());
+					// find all pages and add them to the environment
+					List<Action> actions = actionService.getActions(null, initializedEnv);
+					for (Action action : actions)
+					{
+						initializedEnv.addAction(action.getUrl(), action);
+					}
+
+					// also, add all views to the env cache - some have already been added when addAction was called, but some not
+					for (View view : viewService.getAllViews(initializedEnv))
+					{
+						initializedEnv.addView(view);
+					}
 				}
-			}
+			});
 		}
 
-		if (initValidationRules)
+		if (initTriggers || initValidationRules)
 		{
-			vrService.initValidationRulesOnEnv(envData);
+			final boolean isInitTriggers = initTriggers;
+			final boolean isInitValidationRules = initValidationRules;
+
+			stages.put("triggers and validation rules", new EnvInitStage()
+			{
+				public void run() throws KommetException
+				{
+					if (isInitTriggers)
+					{
+						// get all trigger-type assignments
+						List<TypeTrigger> typeTriggers = triggerService.find(null, initializedEnv);
+						for (TypeTrigger typeTrigger : typeTriggers)
+						{
+							// register trigger on the environment
+							initializedEnv.registerTrigger(typeTrigger);
+
+							String triggerName = typeTrigger.getTriggerFile().getPackageName() + "." + typeTrigger.getTriggerFile().getName();
+
+							java.lang.Class<?> triggerClass = null;
+							try
+							{
+								triggerClass = compiler.getClass(triggerName, true, initializedEnv);
+								initializedEnv.setOldProxiesOnTypeFlag(typeTrigger.getTypeId(), triggerClass, typeTrigger, initializedEnv);
+							}
+							catch (ClassNotFoundException e)
+							{
+								classesWithCompileErrors.add(typeTrigger.getTriggerFile().getId());
+							}
+						}
+					}
+
+					if (isInitValidationRules)
+					{
+						vrService.initValidationRulesOnEnv(initializedEnv);
+					}
+				}
+			});
 		}
 
 		if (initTextLabels)
 		{
-			labelService.initTextLabels(envData);
+			stages.put("text labels", new EnvInitStage()
+			{
+				public void run() throws KommetException
+				{
+					labelService.initTextLabels(initializedEnv);
+				}
+			});
 		}
 
 		if (initSharingRules)
 		{
-			srService.initSharingRules(envData);
+			stages.put("sharing rules", new EnvInitStage()
+			{
+				public void run() throws KommetException
+				{
+					srService.initSharingRules(initializedEnv);
+				}
+			});
 		}
 
 		if (initBusinessProcesses)
 		{
-			bpService.initTriggerableProcesses(envData);
-
-			// recompile business action files
-			/*List<BusinessAction> businessActions = bpService.get(new BusinessActionFilter(), AuthData.getRootAuthData(envData), envData);
-
-			for (BusinessAction action : businessActions)
+			stages.put("business processes", new EnvInitStage()
 			{
-				if (action.getFile() != null)
+				public void run() throws KommetException
 				{
-					// TODO we need to update the package in the Java code, because if the database was moved from an environment with another ID
-					// this envId will be hardcoded in the Java code package name
-					classService.updateJavaCode(classService.getClass(action.getFile().getId(), envData), dataService, AuthData.getRootAuthData(envData), envData);
+					bpService.initTriggerableProcesses(initializedEnv);
 				}
-			}*/
+			});
 		}
 
 		if (initButtons)
 		{
-			envData.initCustomTypeButtons(buttonService);
+			stages.put("buttons", new EnvInitStage()
+			{
+				public void run() throws KommetException
+				{
+					initializedEnv.initCustomTypeButtons(buttonService);
+				}
+			});
 		}
 
+		runStages(stages, envId);
+
 		if (initDictionaries)
 		{
-			// dictionaries must be initialized before types, because when we initialize enum fields, we are using the initialized dictionaries
-			envData.initDictionaries(dictionaryService);
-
-			// reinitialize dictionaries on enum fields
-			for (Type type : envData.getAllTypes())
-			{
-				for (Field field : type.getFields())
-				{
-					if (field.getDataTypeId().equals(DataType.ENUMERATION) && ((EnumerationDataType)field.getDataType()).getDictionary() != null)
-					{
-						Dictionary dict = envData.getDictionaries().get(((EnumerationDataType)field.getDataType()).getDictionary().getId());
-						if (dict == null)
-						{
-							throw new KommetException("Dictionary " + ((EnumerationDataType)field.getDataType()).getDictionary().getId() + " referenced by field " + field.getApiName() + " not found");
-						}
-						((EnumerationDataType)field.getDataType()).setDictionary(dict);
-					}
-				}
-			}
+			// dictionaries are set on enum fields of types, which are read by the other stages, so they are initialized after them
+			long stageStartTime = System.currentTimeMillis();
+			initDictionaries(envData);
+			logStageTime("dictionaries", stageStartTime, envId);
 		}
 
 		log.debug("Compiling classes");
 
 		if (recompileClasses)
 		{
+			long stageStartTime = System.currentTimeMillis();
+
 			ClassFilter classFilter = new ClassFilter();
 			classFilter.setSystemFile(false);
 
@@ -703,13 +855,24 @@ public class EnvService
 
 			log.debug("Found " + clss.size() + " classes");
 
+			// classes compiled before the restart can be reused if neither their code, nor the code of other classes compiled on the env
+			// (e.g. type proxies, which are regenerated during initialization) has changed
+			boolean isReuseCompiledClasses = previousSourceHashes != null && !isCompiledDependencyChanged(previousSourceHashes, compiler.getCompiledSourceHashes(envData), clss, envData);
+			int reusedClassCount = 0;
+
 			for (Class cls : clss)
 			{
-				log.debug("Compiling " + cls.getName());
-
 				// find only classes with public access type, because those with SYSTEM_IMMUTABLE cannot be modified and an error would be thrown
 				if (RecordAccessType.SYSTEM_IMMUTABLE.getId() != cls.getAccessType())
 				{
+					if (isReuseCompiledClasses && compiler.isCompiled(cls, envData))
+					{
+						reusedClassCount++;
+						continue;
+					}
+
+					log.debug("Compiling " + cls.getName());
+
 					try
 					{
 						classService.updateJavaCode(cls, dataService, AuthData.getRootAuthData(envData), envData);
@@ -728,6 +891,9 @@ public class EnvService
 					}
 				}
 			}
+
+			log.debug("Reused " + reusedClassCount + " compiled classes out of " + clss.size());
+			logStageTime("classes", stageStartTime, envId);
 		}
 		else if (initBusinessProcesses)
 		{
@@ -763,6 +929,256 @@ public class EnvService
 		log.debug("Env aligned");
 	}
 
+	private void initDictionaries (EnvData envData) throws KommetException
+	{
+		// dictionaries must be initialized before types, because when we initialize enum fields, we are using the initialized dictionaries
+		envData.initDictionaries(dictionaryService);
+
+		// reinitialize dictionaries on enum fields
+		for (Type type : envData.getAllTypes())
+		{
+			for (Field field : type.getFields())
+			{
+				if (field.getDataTypeId().equals(DataType.ENUMERATION) && ((EnumerationDataType)field.getDataType()).getDictionary() != null)
+				{
+					Dictionary dict = envData.getDictionaries().get(((EnumerationDataType)field.getDataType()).getDictionary().getId());
+					if (dict == null)
+					{
+						throw new KommetException("Dictionary " + ((EnumerationDataType)field.getDataType()).getDictionary().getId() + " referenced by field " + field.getApiName() + " not found");
+					}
+					((EnumerationDataType)field.getDataType()).setDictionary(dict);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tells whether the code of any class compiled on the env, other than the given user classes, has changed since the given
+	 * source hashes were read. Classes compiled against other versions of the classes they use cannot be reused.
+	 * @param previousSourceHashes
+	 * @param currentSourceHashes
+	 * @param userClasses
+	 * @param env
+	 * @return
+	 */
+	private static boolean isCompiledDependencyChanged (Map<String, String> previousSourceHashes, Map<String, String> currentSourceHashes, List<Class> userClasses, EnvData env)
+	{
+		Map<String, String> previousDependencies = new HashMap<String, String>(previousSourceHashes);
+		Map<String, String> currentDependencies = new HashMap<String, String>(currentSourceHashes);
+
+		for (Class cls : userClasses)
+		{
+			String className = MiscUtils.userToEnvPackage(cls.getQualifiedName(), env);
+			previousDependencies.remove(className);
+			currentDependencies.remove(className);
+		}
+
+		return !previousDependencies.equals(currentDependencies);
+	}
+
+	/**
+	 * Runs the given env initialization stages. If more than one thread is configured for env initialization, the stages are run in parallel,
+	 * and this method returns after all of them have finished. If any stage fails, the error of the first failed stage is rethrown.
+	 * If the calling thread is interrupted, stages that have not started are cancelled, running ones are interrupted,
+	 * and the method waits for them to finish before it throws.
+	 * <p>
+	 * Stages are run in parallel only when the env is loaded outside of a transaction, e.g. at boot. Within a transaction,
+	 * e.g. when the env is reset after a deployment, they are run on the calling thread, because they must see data
+	 * written by the transaction and take part in it.
+	 * </p>
+	 * @param stages stages by name
+	 * @param envId
+	 * @throws KommetException
+	 */
+	private void runStages (Map<String, EnvInitStage> stages, final KID envId) throws KommetException
+	{
+		int threads = appConfig.getEnvInitThreads();
+
+		if (threads <= 1 || stages.size() <= 1 || TransactionSynchronizationManager.isActualTransactionActive())
+		{
+			for (Map.Entry<String, EnvInitStage> stage : stages.entrySet())
+			{
+				runStage(stage.getKey(), stage.getValue(), envId);
+			}
+			return;
+		}
+
+		ExecutorService executor = getEnvInitExecutor(threads);
+		CountDownLatch finished = new CountDownLatch(stages.size());
+		Map<String, StageTask> tasks = new LinkedHashMap<String, StageTask>();
+
+		for (Map.Entry<String, EnvInitStage> stage : stages.entrySet())
+		{
+			StageTask task = new StageTask(stage.getKey(), stage.getValue(), envId, finished);
+			task.future = executor.submit(task);
+			tasks.put(stage.getKey(), task);
+		}
+
+		// wait for all stages, even if one of them has failed, so that none of them is still modifying the env when this method returns
+		Exception error = null;
+		String failedStage = null;
+
+		for (StageTask task : tasks.values())
+		{
+			try
+			{
+				task.future.get();
+			}
+			catch (InterruptedException e)
+			{
+				// stop the remaining stages, but do not return before the running ones have finished
+				for (StageTask remainingTask : tasks.values())
+				{
+					remainingTask.cancel();
+				}
+				awaitUninterruptibly(finished);
+
+				Thread.currentThread().interrupt();
+				throw new KommetException("Interrupted while initializing env " + envId);
+			}
+			catch (ExecutionException e)
+			{
+				if (error == null)
+				{
+					error = e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+					failedStage = task.name;
+				}
+			}
+		}
+
+		if (error instanceof KommetException)
+		{
+			throw (KommetException)error;
+		}
+		else if (error instanceof RuntimeException)
+		{
+			throw (RuntimeException)error;
+		}
+		else if (error != null)
+		{
+			throw new KommetException("Error initializing " + failedStage + " on env " + envId + ": " + error.getMessage(), error);
+		}
+	}
+
+	private void runStage (String name, EnvInitStage stage, KID envId) throws KommetException
+	{
+		long startTime = System.currentTimeMillis();
+		stage.run();
+		logStageTime(name, startTime, envId);
+	}
+
+	private static void awaitUninterruptibly (CountDownLatch latch)
+	{
+		boolean isInterrupted = false;
+		while (true)
+		{
+			try
+			{
+				latch.await();
+				break;
+			}
+			catch (InterruptedException e)
+			{
+				isInterrupted = true;
+			}
+		}
+
+		if (isInterrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * An env initialization stage run on the env init executor. A stage is run only if it has not been cancelled
+	 * before it started, and the latch is counted down once it has either finished or been cancelled.
+	 */
+	private class StageTask implements Callable<Void>
+	{
+		private final String name;
+		private final EnvInitStage stage;
+		private final KID envId;
+		private final CountDownLatch finished;
+
+		// set by whichever comes first - the start of the stage or its cancellation
+		private final AtomicBoolean isClaimed = new AtomicBoolean(false);
+
+		private Future<Void> future;
+
+		public StageTask (String name, EnvInitStage stage, KID envId, CountDownLatch finished)
+		{
+			this.name = name;
+			this.stage = stage;
+			this.envId = envId;
+			this.finished = finished;
+		}
+
+		public Void call() throws KommetException
+		{
+			if (!isClaimed.compareAndSet(false, true))
+			{
+				return null;
+			}
+
+			try
+			{
+				runStage(name, stage, envId);
+				return null;
+			}
+			finally
+			{
+				finished.countDown();
+			}
+		}
+
+		/**
+		 * Prevents the stage from starting, or interrupts it if it is already running.
+		 */
+		public void cancel()
+		{
+			if (isClaimed.compareAndSet(false, true))
+			{
+				finished.countDown();
+			}
+			future.cancel(true);
+		}
+	}
+
+	private static void logStageTime (String stage, long startTime, KID envId)
+	{
+		log.info("Env " + envId + ": initialized " + stage + " in " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+
+	private synchronized ExecutorService getEnvInitExecutor (int threads)
+	{
+		if (this.envInitExecutor == null)
+		{
+			this.envInitExecutor = Executors.newFixedThreadPool(threads, new NamedDaemonThreadFactory("env-init"));
+		}
+		return this.envInitExecutor;
+	}
+
+	/**
+	 * Stops env initialization threads when the application is shut down.
+	 */
+	@PreDestroy
+	public synchronized void shutdown()
+	{
+		if (this.envInitExecutor != null)
+		{
+			this.envInitExecutor.shutdownNow();
+			this.envInitExecutor = null;
+		}
+	}
+
+	/**
+	 * A part of env initialization that can be run independently of other parts.
+	 */
+	private interface EnvInitStage
+	{
+		public void run() throws KommetException;
+	}
+
 	@Transactional(propagation = Propagation.NOT_SUPPORTED)
 	public EnvData createEnv(String envName, KID envId, boolean isInitEnv) throws DataAccessException, KIDException, PropertyUtilException, KommetException
 	{
@@ -861,6 +1277,7 @@ public class EnvService
 		// delete the data source
 		this.dataSourceFactory.removeDataSource(envId, this);
 		this.dataSources.remove(envId);
+		this.envTableInitializer.clear(envId);
 	}
 
 	/**
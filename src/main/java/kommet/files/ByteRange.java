@@ -0,0 +1,118 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.files;
+
+/**
+ * A range of bytes of a file requested with the HTTP <tt>Range</tt> header.
+ *
+ * Only single ranges are supported. Requests for multiple ranges are answered with the whole file,
+ * which is allowed by RFC 7233.
+ *
+ * @author Radek Krawiec
+ */
+public class ByteRange
+{
+	/**
+	 * Returned by {@link #parse(String, long)} when the requested range does not overlap the file.
+	 */
+	public static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+	
+	private static final String BYTES_UNIT = "bytes=";
+	
+	private final long start;
+	private final long end;
+	
+	public ByteRange (long start, long end)
+	{
+		this.start = start;
+		this.end = end;
+	}
+	
+	/**
+	 * Parses the value of a <tt>Range</tt> header.
+	 * @param header Value of the header, e.g. <tt>bytes=0-499</tt>, <tt>bytes=500-</tt> or <tt>bytes=-500</tt>
+	 * @param length Length of the file in bytes
+	 * @return the requested range, {@link #UNSATISFIABLE} if the range does not overlap the file, or null if the
+	 * header is invalid or requests multiple ranges, in which case the whole file should be returned
+	 */
+	public static ByteRange parse (String header, long length)
+	{
+		if (header == null || !header.startsWith(BYTES_UNIT))
+		{
+			return null;
+		}
+		
+		String spec = header.substring(BYTES_UNIT.length()).trim();
+		int dashIndex = spec.indexOf('-');
+		
+		if (spec.indexOf(',') != -1 || dashIndex == -1)
+		{
+			return null;
+		}
+		
+		String startValue = spec.substring(0, dashIndex).trim();
+		String endValue = spec.substring(dashIndex + 1).trim();
+		
+		try
+		{
+			if (startValue.isEmpty())
+			{
+				// suffix range with the number of last bytes to return
+				if (endValue.isEmpty())
+				{
+					return null;
+				}
+				
+				long suffixLength = Long.parseLong(endValue);
+				if (suffixLength < 0)
+				{
+					return null;
+				}
+				else if (suffixLength == 0 || length == 0)
+				{
+					return UNSATISFIABLE;
+				}
+				
+				return new ByteRange(Math.max(0, length - suffixLength), length - 1);
+			}
+			
+			long start = Long.parseLong(startValue);
+			long end = endValue.isEmpty() ? length - 1 : Long.parseLong(endValue);
+			
+			if (start < 0 || end < start)
+			{
+				return null;
+			}
+			else if (start >= length)
+			{
+				return UNSATISFIABLE;
+			}
+			
+			return new ByteRange(start, Math.min(end, length - 1));
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+	
+	public long getStart()
+	{
+		return start;
+	}
+	
+	public long getEnd()
+	{
+		return end;
+	}
+	
+	public long getLength()
+	{
+		return end - start + 1;
+	}
+}
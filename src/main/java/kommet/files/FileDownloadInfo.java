@@ -0,0 +1,75 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.files;
+
+import kommet.data.KID;
+
+/**
+ * Information about the latest revision of a file needed to serve it for download, cached by {@link FileService}
+ * so that repeated downloads of the same file do not query the database.
+ *
+ * @author Radek Krawiec
+ */
+public class FileDownloadInfo
+{
+	private KID fileId;
+	private KID revisionId;
+	private String fileName;
+	private String path;
+	private long expirationTime;
+	
+	public FileDownloadInfo (KID fileId, KID revisionId, String fileName, String path, long expirationTime)
+	{
+		this.fileId = fileId;
+		this.revisionId = revisionId;
+		this.fileName = fileName;
+		this.path = path;
+		this.expirationTime = expirationTime;
+	}
+	
+	/**
+	 * Returns the entity tag of the downloaded content. The tag is based on the revision ID, and on the modification
+	 * time and length of the disk file, because the latest revision of a file can be overwritten in place.
+	 * @param lastModified Modification time of the disk file
+	 * @param length Length of the disk file
+	 * @return
+	 */
+	public String getETag (long lastModified, long length)
+	{
+		return "\"" + revisionId.getId() + "-" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+	}
+	
+	public KID getFileId()
+	{
+		return fileId;
+	}
+	
+	public KID getRevisionId()
+	{
+		return revisionId;
+	}
+	
+	public String getFileName()
+	{
+		return fileName;
+	}
+	
+	/**
+	 * Returns the path of the revision's disk file, relative to the file directory.
+	 * @return
+	 */
+	public String getPath()
+	{
+		return path;
+	}
+	
+	boolean isExpired (long now)
+	{
+		return expirationTime < now;
+	}
+}
@@ -13,11 +13,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.util.StringUtils;
 
 import kommet.auth.AuthData;
@@ -44,6 +47,9 @@ public class FileService
 	@Inject
 	AppConfig config;
 	
+	// download info by env and file ID, and then by user ID, because access to files depends on sharings
+	private ConcurrentHashMap<String, ConcurrentHashMap<String, FileDownloadInfo>> downloadInfoCache = new ConcurrentHashMap<String, ConcurrentHashMap<String, FileDownloadInfo>>();
+	
 	/**
 	 * Save or update file.
 	 * @param fileId ID of an existing file, or null, if new file is created.
@@ -97,6 +103,7 @@ public class FileService
 		
 		// save the file
 		file = fileDao.save(file, authData, env);
+		evictDownloadInfo(file.getId(), env);
 		
 		FileRevision revision = null;
 		Integer nextRevisionNumber = null;
@@ -166,12 +173,20 @@ public class FileService
 	@Transactional
 	public File saveFile(File file, AuthData authData, EnvData env) throws KommetException
 	{
+		if (file.getId() != null)
+		{
+			evictDownloadInfo(file.getId(), env);
+		}
 		return fileDao.save(file, authData, env);
 	}
 
 	@Transactional
 	public FileRevision saveRevision(FileRevision revision, AuthData authData, EnvData env) throws KommetException
 	{
+		if (revision.getFile() != null && revision.getFile().getId() != null)
+		{
+			evictDownloadInfo(revision.getFile().getId(), env);
+		}
 		return revisionDao.save(revision, authData, env);
 	}
 	
@@ -221,6 +236,8 @@ public class FileService
 	@Transactional
 	public void deleteFile(File file, boolean skipTriggers, AuthData authData, EnvData env) throws KommetException
 	{
+		evictDownloadInfo(file.getId(), env);
+		
 		// first delete all revisions
 		FileRevisionFilter filter = new FileRevisionFilter();
 		filter.addFileId(file.getId());
@@ -345,4 +362,110 @@ public class FileService
 	{
 		return revisionDao.get(id, authData, env);
 	}
+	
+	/**
+	 * Returns information about the latest revision of a file needed to download it. The information is cached
+	 * for each user for the time set in <tt>kommet.files.download.cache.ttl.seconds</tt>, and removed from the cache
+	 * when the file or its revisions are saved or deleted through this service. Access to the file depends on sharings,
+	 * which may change while the information is cached, so it is checked again each time cached information is returned.
+	 * @param fileId
+	 * @param authData
+	 * @param env
+	 * @return download information, or null if the file does not exist, is not accessible to the user or has no revisions
+	 * @throws KommetException
+	 */
+	@Transactional(readOnly = true)
+	public FileDownloadInfo getDownloadInfo (KID fileId, AuthData authData, EnvData env) throws KommetException
+	{
+		int ttl = config.getFileDownloadCacheTTL();
+		String fileKey = env.getId() + ":" + fileId;
+		String userKey = authData != null ? String.valueOf(authData.getUserId()) : "";
+		long now = System.currentTimeMillis();
+		
+		if (ttl > 0)
+		{
+			Map<String, FileDownloadInfo> infoByUser = downloadInfoCache.get(fileKey);
+			FileDownloadInfo info = infoByUser != null ? infoByUser.get(userKey) : null;
+			if (info != null && !info.isExpired(now))
+			{
+				return isAccessible(fileId, authData, env) ? info : null;
+			}
+		}
+		
+		FileFilter filter = new FileFilter();
+		filter.addId(fileId);
+		List<File> files = find(filter, true, true, authData, env);
+		
+		if (files.isEmpty() || files.get(0).getRevisions() == null || files.get(0).getRevisions().isEmpty())
+		{
+			return null;
+		}
+		
+		File file = files.get(0);
+		FileRevision revision = file.getLatestRevision();
+		FileDownloadInfo info = new FileDownloadInfo(fileId, revision.getId(), file.getName(), revision.getPath(), now + ttl * 1000L);
+		
+		if (ttl > 0)
+		{
+			if (downloadInfoCache.size() >= config.getFileDownloadCacheSize())
+			{
+				// the cache only saves database queries, so it is simply emptied when it grows too large
+				downloadInfoCache.clear();
+			}
+			
+			ConcurrentHashMap<String, FileDownloadInfo> infoByUser = downloadInfoCache.get(fileKey);
+			if (infoByUser == null)
+			{
+				ConcurrentHashMap<String, FileDownloadInfo> newInfoByUser = new ConcurrentHashMap<String, FileDownloadInfo>();
+				infoByUser = downloadInfoCache.putIfAbsent(fileKey, newInfoByUser);
+				if (infoByUser == null)
+				{
+					infoByUser = newInfoByUser;
+				}
+			}
+			infoByUser.put(userKey, info);
+		}
+		
+		return info;
+	}
+	
+	/**
+	 * Tells whether the file is visible to the user, without reading its revisions.
+	 * @param fileId
+	 * @param authData
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	private boolean isAccessible (KID fileId, AuthData authData, EnvData env) throws KommetException
+	{
+		FileFilter filter = new FileFilter();
+		filter.addId(fileId);
+		return !fileDao.find(filter, false, authData, env).isEmpty();
+	}
+	
+	/**
+	 * Removes cached download information for the file, for all users. If called within a transaction, the information
+	 * is removed again when the transaction is committed, because until then concurrent downloads can cache the file
+	 * as it was before the transaction.
+	 * @param fileId
+	 * @param env
+	 */
+	public void evictDownloadInfo (KID fileId, EnvData env)
+	{
+		final String fileKey = env.getId() + ":" + fileId;
+		downloadInfoCache.remove(fileKey);
+		
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+		{
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter()
+			{
+				@Override
+				public void afterCommit()
+				{
+					downloadInfoCache.remove(fileKey);
+				}
+			});
+		}
+	}
 }
\ No newline at end of file
@@ -21,7 +21,6 @@ import kommet.basic.RecordProxy;
 import kommet.basic.RecordProxyType;
 import kommet.basic.RecordProxyUtil;
 import kommet.dao.queries.Criteria;
-import kommet.dao.queries.QueryResult;
 import kommet.dao.queries.Restriction;
 import kommet.data.DataService;
 import kommet.data.Field;
@@ -101,10 +100,7 @@ public class LocalEnvPersistenceInterface implements EnvPersistenceInterface
 	public long count (Type type, EnvData env) throws KommetException
 	{
 		Criteria c = env.getSelectCriteria(type.getKID());
-		c.addProperty("count(" + Field.ID_FIELD_NAME + ")");
-		
-		List<Record> records = c.list();
-		return (Long)((QueryResult)records.get(0)).getAggregateValue("count(" + Field.ID_FIELD_NAME + ")");
+		return c.count();
 	}
 
 	@Override
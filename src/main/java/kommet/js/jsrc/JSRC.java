@@ -7,6 +7,8 @@
 
 package kommet.js.jsrc;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -15,6 +17,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 
 import kommet.auth.AuthData;
+import kommet.dao.queries.Criteria;
+import kommet.dao.queries.RecordHandler;
 import kommet.dao.queries.jcr.PIRDeserializer;
 import kommet.dao.queries.jcr.PIRSerializer;
 import kommet.dao.queries.jcr.KIDSerializer;
@@ -78,13 +82,65 @@ public class JSRC
 		}
 		
 		jsrc.setRecords(jsrRecords);
+		jsrc.setJsti(buildJSTI(type, env, authData));
 		
-		// build JSTI
+		return jsrc;
+	}
+	
+	private static JSTI buildJSTI (Type type, EnvData env, AuthData authData) throws KommetException
+	{
 		JSTI jsti = new JSTI();
 		jsti.addType(type, env, true, true, authData);
-		jsrc.setJsti(jsti);
-		
-		return jsrc;
+		return jsti;
+	}
+	
+	/**
+	 * Writes records matching the criteria in JSRC format. The output is the same as that of
+	 * {@link #serialize(JSRC, AuthData)}, but records are serialized one by one as they are read from
+	 * a database cursor, so neither the records nor the whole JSRC are held in memory.
+	 * @param criteria
+	 * @param type
+	 * @param level
+	 * @param out
+	 * @param env
+	 * @param authData
+	 * @throws KommetException
+	 */
+	public static void write (Criteria criteria, final Type type, final int level, final Writer out, final EnvData env, final AuthData authData) throws KommetException
+	{
+		try
+		{
+			out.write("{ \"jsti\": " + JSTI.serialize(buildJSTI(type, env, authData)) + ", \"records\": [");
+			
+			criteria.forEach(new RecordHandler()
+			{
+				private boolean isFirst = true;
+				
+				@Override
+				public void handle(Record record) throws KommetException
+				{
+					try
+					{
+						if (!isFirst)
+						{
+							out.write(", ");
+						}
+						out.write(JSON.serialize(JSRUtil.recordToMap(record, type, level, env), authData));
+						isFirst = false;
+					}
+					catch (IOException e)
+					{
+						throw new JSRCSerializationException("Error writing JSRC: " + e.getMessage());
+					}
+				}
+			});
+			
+			out.write("] }");
+		}
+		catch (IOException e)
+		{
+			throw new JSRCSerializationException("Error writing JSRC: " + e.getMessage());
+		}
 	}
 
 	public static String serialize(JSRC jsrc, AuthData authData) throws JSRCSerializationException
@@ -8,6 +8,7 @@
 package kommet.json;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.util.ArrayList;
@@ -29,7 +30,6 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 import kommet.auth.AuthData;
 import kommet.basic.RecordProxy;
-import kommet.dao.queries.QueryResult;
 import kommet.data.Field;
 import kommet.data.NoSuchFieldException;
 import kommet.data.KID;
@@ -71,175 +71,20 @@ public class JSON
 		return serializeObjectProxy(proxy, propertiesToSerialize, null, authData, null, new HashMap<Object, String>(), null);
 	}
 	
-	public static String serializeRecord (Record record, AuthData authData) throws JsonSerializationException
-	{
-		Set<KID> visitedRecordIds = new HashSet<KID>();
-		return serializeRecord(record, visitedRecordIds, authData);
-	}
-	
 	/**
 	 * Serializes a record to JSON string.
 	 * @param record The record to be serialized
 	 * @param authData Authentication data of the user
 	 * @return
-	 * @throws KommetException 
+	 * @throws JsonSerializationException
 	 */
-	private static String serializeRecord (Record record, Set<KID> visitedRecordIds, AuthData authData) throws JsonSerializationException
+	public static String serializeRecord (Record record, AuthData authData) throws JsonSerializationException
 	{
-		StringBuilder sb = new StringBuilder("{ ");
-		List<String> values = new ArrayList<String>();
-		
-		KID recordId = null;
-		
-		try
-		{
-			recordId = record.attemptGetKID();
-		}
-		catch (KommetException e)
-		{
-			throw new JsonSerializationException(e.getMessage());
-		}
-		
-		if (recordId != null)
-		{
-			// if this record has already been visited (because of going back and forth between parent and children in collection-type reference properties),
-			// skip it - otherwise we will get an infinite loop
-			if (visitedRecordIds.contains(recordId))
-			{
-				return "{ \"" + Field.ID_FIELD_NAME + "\": \"" + recordId + "\" }";
-			}
-			
-			visitedRecordIds.add(recordId);
-		}
-		
-		for (String fieldName : record.getFieldValues().keySet())
-		{
-			Object fieldVal;
-			try
-			{
-				fieldVal = record.getField(fieldName);
-			}
-			catch (KommetException e)
-			{
-				throw new JsonSerializationException("Error reading value of field " + fieldName + ". Nested: " + e.getMessage());
-			}
-			
-			Field field = null;
-			
-			try
-			{
-				field = record.getType().getField(fieldName);
-			}
-			catch (KommetException e)
-			{
-				throw new JsonSerializationException("Error getting field " + fieldName + ". Nested: " + e.getMessage());
-			}
-			
-			if (fieldVal == null)
-			{
-				values.add("\"" + fieldName + "\": null");
-			}
-			else if (field.getDataTypeId().equals(DataType.DATETIME))
-			{
-				try
-				{
-					fieldVal = MiscUtils.formatDateTimeByUserLocale((Date)fieldVal, authData);
-					values.add("\"" + fieldName + "\": \"" + fieldVal + "\"");
-				}
-				catch (KommetException e)
-				{
-					throw new JsonSerializationException("Error reading date/time value of field " + fieldName + ". Nested: " + e.getMessage());
-				}
-			}
-			else if (field.getDataTypeId().equals(DataType.DATE))
-			{
-				try
-				{
-					fieldVal = MiscUtils.formatDateByUserLocale((Date)fieldVal, authData);
-					values.add("\"" + fieldName + "\": \"" + fieldVal + "\"");
-				}
-				catch (KommetException e)
-				{
-					throw new JsonSerializationException("Error reading date value of field " + fieldName + ". Nested: " + e.getMessage());
-				}
-			}
-			else if (field.getDataType().isCollection())
-			{
-				@SuppressWarnings("unchecked")
-				List<Record> records = (ArrayList<Record>)fieldVal;
-				
-				List<String> recordJSON = new ArrayList<String>();
-				for (Record r : records)
-				{
-					recordJSON.add(serializeRecord(r, visitedRecordIds, authData));
-				}
-				
-				values.add("\"" + fieldName + "\": [" + MiscUtils.implode(recordJSON, ", ") + "]");
-			}
-			else if (fieldVal instanceof Record)
-			{
-				values.add("\"" + fieldName + "\": " + serializeRecord((Record)fieldVal, visitedRecordIds, authData));
-			}
-			else
-			{
-				// we know that fieldVal is not null because it has been checked earlier
-				// so we just serialize its value to string as is
-				values.add("\"" + fieldName + "\": \"" + fieldVal + "\"");
-			}
-		}
-		
-		// if its a result of a group by query
-		if (record instanceof QueryResult)
-		{
-			QueryResult qr = ((QueryResult)record);
-			for (String aggrField : qr.getAggregateValues().keySet())
-			{
-				Object fieldVal;
-				try
-				{
-					fieldVal = qr.getAggregateValue(aggrField);
-				}
-				catch (KommetException e)
-				{
-					throw new JsonSerializationException("Error reading value of aggregate field " + aggrField + ". Nested: " + e.getMessage());
-				}
-				
-				if (fieldVal == null)
-				{
-					values.add("\"" + aggrField + "\": null");
-				}
-				else
-				{
-					values.add("\"" + aggrField + "\": \"" + fieldVal + "\"");
-				}
-			}
-			
-			for (String groupByField : qr.getGroupByValues().keySet())
-			{
-				Object fieldVal;
-				try
-				{
-					fieldVal = qr.getGroupByValue(groupByField);
-				}
-				catch (KommetException e)
-				{
-					throw new JsonSerializationException("Error reading value of group by field " + groupByField + ". Nested: " + e.getMessage());
-				}
-				
-				if (fieldVal == null)
-				{
-					values.add("\"" + groupByField + "\": null");
-				}
-				else
-				{
-					values.add("\"" + groupByField + "\": \"" + fieldVal + "\"");
-				}
-			}
-		}
-		
-		sb.append(MiscUtils.implode(values, ", "));
-		
-		return sb.append(" }").toString();
+		StringWriter out = new StringWriter();
+		RecordJsonWriter writer = new RecordJsonWriter(out, authData);
+		writer.writeRecord(record);
+		writer.flush();
+		return out.toString();
 	}
 	
 	/**
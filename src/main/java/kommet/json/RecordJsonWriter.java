@@ -0,0 +1,333 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+
+import kommet.auth.AuthData;
+import kommet.dao.queries.QueryResult;
+import kommet.dao.queries.RecordHandler;
+import kommet.data.Field;
+import kommet.data.KID;
+import kommet.data.KommetException;
+import kommet.data.Record;
+import kommet.data.datatypes.DataType;
+import kommet.utils.MiscUtils;
+
+/**
+ * Writes records as JSON directly to a stream, one record at a time.
+ * <p>
+ * Records are written in the same format as by {@link JSON#serializeRecord(Record, AuthData)}, but the serialized records
+ * are never held in memory, so when the writer is passed as a handler to a streaming query, records are sent to the client
+ * as they are read from the database.
+ * </p>
+ * @author Radek Krawiec
+ */
+public class RecordJsonWriter implements RecordHandler
+{
+	// the factory is thread-safe, so it is shared by all writers
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private final JsonGenerator generator;
+	private final AuthData authData;
+
+	public RecordJsonWriter (OutputStream out, AuthData authData) throws JsonSerializationException
+	{
+		try
+		{
+			this.generator = initGenerator(jsonFactory.createGenerator(out, JsonEncoding.UTF8));
+		}
+		catch (IOException e)
+		{
+			throw new JsonSerializationException("Error creating JSON generator. Nested: " + e.getMessage());
+		}
+		this.authData = authData;
+	}
+
+	public RecordJsonWriter (Writer out, AuthData authData) throws JsonSerializationException
+	{
+		try
+		{
+			this.generator = initGenerator(jsonFactory.createGenerator(out));
+		}
+		catch (IOException e)
+		{
+			throw new JsonSerializationException("Error creating JSON generator. Nested: " + e.getMessage());
+		}
+		this.authData = authData;
+	}
+
+	private static JsonGenerator initGenerator (JsonGenerator generator)
+	{
+		// the stream belongs to the caller, e.g. it is a servlet response stream closed by the container
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		generator.setPrettyPrinter(new RecordPrettyPrinter());
+		return generator;
+	}
+
+	@Override
+	public void handle (Record record) throws KommetException
+	{
+		writeRecord(record);
+	}
+
+	public void writeStartArray() throws JsonSerializationException
+	{
+		try
+		{
+			generator.writeStartArray();
+		}
+		catch (IOException e)
+		{
+			throw new JsonSerializationException("Error writing JSON array. Nested: " + e.getMessage());
+		}
+	}
+
+	public void writeEndArray() throws JsonSerializationException
+	{
+		try
+		{
+			generator.writeEndArray();
+		}
+		catch (IOException e)
+		{
+			throw new JsonSerializationException("Error writing JSON array. Nested: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes a record as a JSON object. If the record references itself, directly or through its parents and
+	 * children, the record is written in full only once and only its ID is written for subsequent occurrences.
+	 * @param record
+	 * @throws JsonSerializationException
+	 */
+	public void writeRecord (Record record) throws JsonSerializationException
+	{
+		try
+		{
+			writeRecord(record, new HashSet<KID>());
+		}
+		catch (IOException e)
+		{
+			throw new JsonSerializationException("Error writing record JSON. Nested: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes buffered JSON to the underlying stream.
+	 * @throws JsonSerializationException
+	 */
+	public void flush() throws JsonSerializationException
+	{
+		try
+		{
+			generator.flush();
+		}
+		catch (IOException e)
+		{
+			throw new JsonSerializationException("Error flushing JSON. Nested: " + e.getMessage());
+		}
+	}
+
+	private void writeRecord (Record record, Set<KID> visitedRecordIds) throws IOException, JsonSerializationException
+	{
+		KID recordId = null;
+
+		try
+		{
+			recordId = record.attemptGetKID();
+		}
+		catch (KommetException e)
+		{
+			throw new JsonSerializationException(e.getMessage());
+		}
+
+		generator.writeStartObject();
+
+		if (recordId != null)
+		{
+			// if this record has already been visited (because of going back and forth between parent and children in collection-type reference properties),
+			// skip it - otherwise we will get an infinite loop
+			if (visitedRecordIds.contains(recordId))
+			{
+				generator.writeStringField(Field.ID_FIELD_NAME, recordId.getId());
+				generator.writeEndObject();
+				return;
+			}
+
+			visitedRecordIds.add(recordId);
+		}
+
+		for (String fieldName : record.getFieldValues().keySet())
+		{
+			Object fieldVal;
+			Field field;
+
+			try
+			{
+				fieldVal = record.getField(fieldName);
+			}
+			catch (KommetException e)
+			{
+				throw new JsonSerializationException("Error reading value of field " + fieldName + ". Nested: " + e.getMessage());
+			}
+
+			try
+			{
+				field = record.getType().getField(fieldName);
+			}
+			catch (KommetException e)
+			{
+				throw new JsonSerializationException("Error getting field " + fieldName + ". Nested: " + e.getMessage());
+			}
+
+			generator.writeFieldName(fieldName);
+
+			if (fieldVal == null)
+			{
+				generator.writeNull();
+			}
+			else if (field.getDataTypeId().equals(DataType.DATETIME))
+			{
+				try
+				{
+					generator.writeString(MiscUtils.formatDateTimeByUserLocale((Date)fieldVal, authData));
+				}
+				catch (KommetException e)
+				{
+					throw new JsonSerializationException("Error reading date/time value of field " + fieldName + ". Nested: " + e.getMessage());
+				}
+			}
+			else if (field.getDataTypeId().equals(DataType.DATE))
+			{
+				try
+				{
+					generator.writeString(MiscUtils.formatDateByUserLocale((Date)fieldVal, authData));
+				}
+				catch (KommetException e)
+				{
+					throw new JsonSerializationException("Error reading date value of field " + fieldName + ". Nested: " + e.getMessage());
+				}
+			}
+			else if (field.getDataType().isCollection())
+			{
+				@SuppressWarnings("unchecked")
+				List<Record> records = (List<Record>)fieldVal;
+
+				generator.writeStartArray();
+				for (Record r : records)
+				{
+					writeRecord(r, visitedRecordIds);
+				}
+				generator.writeEndArray();
+			}
+			else if (fieldVal instanceof Record)
+			{
+				writeRecord((Record)fieldVal, visitedRecordIds);
+			}
+			else
+			{
+				// values of all other types are written as strings
+				generator.writeString(fieldVal.toString());
+			}
+		}
+
+		// if its a result of a group by query
+		if (record instanceof QueryResult)
+		{
+			QueryResult qr = ((QueryResult)record);
+			for (String aggrField : qr.getAggregateValues().keySet())
+			{
+				try
+				{
+					writeStringOrNull(aggrField, qr.getAggregateValue(aggrField));
+				}
+				catch (KommetException e)
+				{
+					throw new JsonSerializationException("Error reading value of aggregate field " + aggrField + ". Nested: " + e.getMessage());
+				}
+			}
+
+			for (String groupByField : qr.getGroupByValues().keySet())
+			{
+				try
+				{
+					writeStringOrNull(groupByField, qr.getGroupByValue(groupByField));
+				}
+				catch (KommetException e)
+				{
+					throw new JsonSerializationException("Error reading value of group by field " + groupByField + ". Nested: " + e.getMessage());
+				}
+			}
+		}
+
+		generator.writeEndObject();
+	}
+
+	private void writeStringOrNull (String fieldName, Object value) throws IOException
+	{
+		generator.writeFieldName(fieldName);
+		if (value == null)
+		{
+			generator.writeNull();
+		}
+		else
+		{
+			generator.writeString(value.toString());
+		}
+	}
+
+	/**
+	 * Lays out JSON the same way as the string-based serializers in {@link JSON}, e.g. <tt>{ "name": "value", "age": "2" }</tt>.
+	 */
+	private static class RecordPrettyPrinter extends MinimalPrettyPrinter
+	{
+		private static final long serialVersionUID = 4470718921604735121L;
+
+		@Override
+		public void writeStartObject(JsonGenerator gen) throws IOException
+		{
+			gen.writeRaw("{ ");
+		}
+
+		@Override
+		public void writeEndObject(JsonGenerator gen, int nrOfEntries) throws IOException
+		{
+			gen.writeRaw(" }");
+		}
+
+		@Override
+		public void writeObjectEntrySeparator(JsonGenerator gen) throws IOException
+		{
+			gen.writeRaw(", ");
+		}
+
+		@Override
+		public void writeObjectFieldValueSeparator(JsonGenerator gen) throws IOException
+		{
+			gen.writeRaw(": ");
+		}
+
+		@Override
+		public void writeArrayValueSeparator(JsonGenerator gen) throws IOException
+		{
+			gen.writeRaw(", ");
+		}
+	}
+}
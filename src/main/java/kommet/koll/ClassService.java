@@ -189,7 +189,7 @@ public class ClassService
 			throw new ClassCompilationException("Compilation failed", result);
 		}
 		
-		compiler.resetClassLoader(env);
+		compiler.reloadClasses(result, env);
 		
 		// if compilation is successful, check if this class is annotated with @Trigger
 		// if so, compile again changing the Java code a little
@@ -925,7 +925,6 @@ public class ClassService
 			
 			file.setJavaCode(getKollTranslator(env).kollToJava(TriggerUtil.convertTriggerKollCode(file.getKollCode(), file.getName(), typeForTrigger, env), true, authData, env));
 			
-			compiler.resetClassLoader(env);
 			CompilationResult result = compiler.compile(file, env);
 			
 			if (!result.isSuccess())
@@ -933,6 +932,8 @@ public class ClassService
 				throw new ClassCompilationException("Compilation failed", result);
 			}
 			
+			compiler.reloadClasses(result, env);
+			
 			boolean isTriggerRegistered = TriggerService.isTriggerRegisteredWithType(file.getId(), typeForTrigger.getKID(), typeTriggerDao,  env);
 			
 			// check if the trigger is disabled
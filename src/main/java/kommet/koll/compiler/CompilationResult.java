@@ -9,6 +9,7 @@ package kommet.koll.compiler;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import javax.tools.Diagnostic;
 import javax.tools.JavaFileObject;
@@ -17,6 +18,9 @@ public class CompilationResult
 {
 	private boolean success;
 	private List<CompilationError> errors;
+	
+	// bytecode of classes produced by a successful compilation, by qualified class name
+	private Map<String, byte[]> compiledClasses;
 
 	public CompilationResult(List<Diagnostic<? extends JavaFileObject>> diagnostics)
 	{
@@ -65,6 +69,16 @@ public class CompilationResult
 		return errors;
 	}
 
+	public Map<String, byte[]> getCompiledClasses()
+	{
+		return compiledClasses;
+	}
+
+	public void setCompiledClasses(Map<String, byte[]> compiledClasses)
+	{
+		this.compiledClasses = compiledClasses;
+	}
+
 	public String getDescription()
 	{
 		StringBuilder desc = new StringBuilder();
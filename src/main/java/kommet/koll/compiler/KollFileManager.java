@@ -0,0 +1,150 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.koll.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Long-lived file manager used to compile classes of a single environment.
+ *
+ * The standard file manager keeps the jar files from the class path open and indexed between compilations,
+ * so they are not scanned anew every time a class is compiled. Class files produced by the compiler
+ * are not written to disk by the compiler, but collected in memory so that they can be passed to the
+ * class loader directly.
+ *
+ * The file manager is not thread-safe, so only one compilation can use it at a time.
+ *
+ * @author Radek Krawiec
+ */
+public class KollFileManager extends ForwardingJavaFileManager<StandardJavaFileManager>
+{
+	private JavaCompiler compiler;
+	private List<File> classPath;
+	
+	// bytecode of classes produced by the current compilation, by qualified class name
+	private Map<String, byte[]> compiledClasses = new LinkedHashMap<String, byte[]>();
+	
+	public KollFileManager (JavaCompiler compiler, String classPath, String separator)
+	{
+		super(compiler.getStandardFileManager(null, Locale.getDefault(), null));
+		this.compiler = compiler;
+		this.classPath = new ArrayList<File>();
+		
+		for (String pathPart : classPath.split(separator))
+		{
+			// jar import paths ending with "/*" are expanded, because the file manager does not support wildcards
+			if (pathPart.endsWith("/*"))
+			{
+				File[] files = new File(pathPart.substring(0, pathPart.length() - 2)).listFiles();
+				if (files != null)
+				{
+					for (File file : files)
+					{
+						if (file.isFile() && "jar".equals(FilenameUtils.getExtension(file.getName()).toLowerCase()))
+						{
+							this.classPath.add(file);
+						}
+					}
+				}
+			}
+			else if (!pathPart.isEmpty())
+			{
+				this.classPath.add(new File(pathPart));
+			}
+		}
+	}
+	
+	/**
+	 * Prepares the file manager for a new compilation.
+	 * @throws IOException
+	 */
+	public void startCompilation() throws IOException
+	{
+		this.compiledClasses = new LinkedHashMap<String, byte[]>();
+		
+		// setting the location anew makes the file manager notice packages created in the KOLL directory since
+		// the last compilation, while opened jar files are reused
+		fileManager.setLocation(StandardLocation.CLASS_PATH, this.classPath);
+	}
+	
+	/**
+	 * Returns the bytecode of classes produced by the last compilation.
+	 * @return
+	 */
+	public Map<String, byte[]> getCompiledClasses()
+	{
+		return Collections.unmodifiableMap(this.compiledClasses);
+	}
+	
+	@Override
+	public JavaFileObject getJavaFileForOutput (Location location, String className, Kind kind, FileObject sibling) throws IOException
+	{
+		if (kind == Kind.CLASS)
+		{
+			return new ClassBytecode(className);
+		}
+		else
+		{
+			return super.getJavaFileForOutput(location, className, kind, sibling);
+		}
+	}
+	
+	public JavaCompiler getCompiler()
+	{
+		return compiler;
+	}
+	
+	/**
+	 * Class file kept in memory.
+	 */
+	private class ClassBytecode extends SimpleJavaFileObject
+	{
+		private String className;
+		
+		public ClassBytecode (String className)
+		{
+			super(URI.create("bytes:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+			this.className = className;
+		}
+		
+		@Override
+		public OutputStream openOutputStream()
+		{
+			return new ByteArrayOutputStream()
+			{
+				@Override
+				public void close() throws IOException
+				{
+					super.close();
+					compiledClasses.put(className, toByteArray());
+				}
+			};
+		}
+	}
+}
@@ -7,29 +7,68 @@
 
 package kommet.koll.compiler;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import kommet.env.EnvData;
 import kommet.koll.SystemContextFactory;
 
+/**
+ * Class loader for the classes of a single environment.
+ *
+ * Classes that have been recompiled can be swapped in without recreating the whole class loader, by adding a layer
+ * on top of it with {@link #addLayer(Map)}. A layer defines the new versions of the recompiled classes from their
+ * in-memory bytecode. All layers created on top of the same base class loader share one table of loaded classes,
+ * so that each class name is resolved to the same class, no matter through which layer it is loaded. Classes not
+ * loaded by any layer yet are defined by the topmost one.
+ *
+ * Layers cannot change classes already linked to old versions of the recompiled classes, so the caller needs to check
+ * with {@link #hasLoadedDependents(Collection)} that there are no such classes before adding a layer.
+ */
 public class KommetClassLoader extends URLClassLoader
 {
 	private ClassLoader parentClassLoader;
 	private SystemContextFactory sysCtxFactory;
 	private EnvData env;
 	
+	// bytecode of classes that this layer defines in place of their previous versions, empty for the base class loader
+	private Map<String, byte[]> layerClasses;
+	
+	// number of layers below this one
+	private int layer;
+	
+	private Layers layers;
+	
 	// TODO - perhaps using a parent class loader is not necessary at all since
 	// method KommetCompiler.getClass uses method Class.forName with a class loader
 	// as param anyway
 	public KommetClassLoader (URL[] urls, ClassLoader parentClassLoader, SystemContextFactory sysCtxFactory, EnvData env)
+	{
+		this(urls, parentClassLoader, sysCtxFactory, env, Collections.<String, byte[]>emptyMap(), 0, new Layers());
+		this.layers.top = this;
+	}
+	
+	private KommetClassLoader (URL[] urls, ClassLoader parentClassLoader, SystemContextFactory sysCtxFactory, EnvData env, Map<String, byte[]> layerClasses, int layer, Layers layers)
 	{
 		super(urls);
 		this.parentClassLoader = parentClassLoader;
 		this.sysCtxFactory = sysCtxFactory;
 		this.env = env;
+		this.layerClasses = layerClasses;
+		this.layer = layer;
+		this.layers = layers;
 	}
-
+	
 	public static KommetClassLoader newInstance(final URL[] urls, ClassLoader parentClassLoader, SystemContextFactory sysCtxFactory, EnvData env)
 	{
 		return new KommetClassLoader(urls, parentClassLoader, sysCtxFactory, env);
@@ -40,7 +79,13 @@ public class KommetClassLoader extends URLClassLoader
 	{
 		try
 		{
-			Class<?> cls = super.loadClass(name);
+			Class<?> cls = this.layers.classes.get(name);
+			if (cls == null)
+			{
+				KommetClassLoader owner = this.layers.owners.get(name);
+				cls = owner != null ? owner.defineLayerClass(name) : this.layers.top.loadNewClass(name);
+			}
+			
 			KommetCompiler.injectSystemContext(cls, this.sysCtxFactory.get(null, env));
 			return cls;
 		}
@@ -55,7 +100,13 @@ public class KommetClassLoader extends URLClassLoader
 	{
 		try
 		{
-			Class<?> cls = super.findClass(name);
+			// a class can be defined only once by a class loader
+			Class<?> cls = findLoadedClass(name);
+			if (cls == null)
+			{
+				cls = super.findClass(name);
+			}
+			this.layers.classes.put(name, cls);
 			return cls;
 		}
 		catch (ClassNotFoundException e)
@@ -64,4 +115,187 @@ public class KommetClassLoader extends URLClassLoader
 			return this.parentClassLoader.loadClass(name);
 		}
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Loads a class that has not been loaded by any layer yet.
+	 */
+	private Class<?> loadNewClass (String name) throws ClassNotFoundException
+	{
+		synchronized (getClassLoadingLock(name))
+		{
+			Class<?> cls = this.layers.classes.get(name);
+			if (cls == null)
+			{
+				cls = super.loadClass(name);
+				this.layers.classes.put(name, cls);
+			}
+			return cls;
+		}
+	}
+	
+	private Class<?> defineLayerClass (String name)
+	{
+		synchronized (getClassLoadingLock(name))
+		{
+			Class<?> cls = findLoadedClass(name);
+			if (cls == null)
+			{
+				byte[] bytecode = this.layerClasses.get(name);
+				cls = defineClass(name, bytecode, 0, bytecode.length);
+			}
+			this.layers.classes.put(name, cls);
+			return cls;
+		}
+	}
+	
+	/**
+	 * Creates a new layer on top of this class loader that will define the given classes in place of their current versions.
+	 * @param classes bytecode of the classes, by qualified class name
+	 * @return the new topmost layer
+	 */
+	public KommetClassLoader addLayer (Map<String, byte[]> classes)
+	{
+		KommetClassLoader newLayer = new KommetClassLoader(getURLs(), this.parentClassLoader, this.sysCtxFactory, this.env, new HashMap<String, byte[]>(classes), this.layer + 1, this.layers);
+		
+		for (String name : classes.keySet())
+		{
+			this.layers.owners.put(name, newLayer);
+			this.layers.classes.remove(name);
+		}
+		
+		this.layers.top = newLayer;
+		return newLayer;
+	}
+	
+	/**
+	 * Tells whether any of the given classes has been loaded or is defined by one of the layers.
+	 * @param classNames
+	 * @return
+	 */
+	public boolean isAnyClassKnown (Collection<String> classNames)
+	{
+		for (String name : classNames)
+		{
+			if (this.layers.classes.containsKey(name) || this.layers.owners.containsKey(name))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Tells whether any loaded environment class, other than the given ones, references any of the given classes.
+	 * Such classes are linked to the current versions of the given classes, so they would not see their new versions.
+	 *
+	 * The check is conservative: class names are looked up in the bytecode of loaded classes, and if the bytecode
+	 * of a loaded class cannot be read, it is treated as a dependent.
+	 *
+	 * @param classNames qualified names of the classes
+	 * @return
+	 */
+	public boolean hasLoadedDependents (Collection<String> classNames)
+	{
+		List<byte[]> patterns = new ArrayList<byte[]>();
+		for (String name : classNames)
+		{
+			byte[] internalName = name.replace('.', '/').getBytes(StandardCharsets.UTF_8);
+			
+			// constant pool entry with the name of the class, preceded by its tag and length
+			byte[] entry = new byte[internalName.length + 3];
+			entry[0] = 1;
+			entry[1] = (byte)(internalName.length >> 8);
+			entry[2] = (byte)internalName.length;
+			System.arraycopy(internalName, 0, entry, 3, internalName.length);
+			patterns.add(entry);
+			
+			// type descriptors and signatures in which the class is used
+			patterns.add(("L" + name.replace('.', '/') + ";").getBytes(StandardCharsets.UTF_8));
+			patterns.add(("L" + name.replace('.', '/') + "<").getBytes(StandardCharsets.UTF_8));
+		}
+		
+		for (Map.Entry<String, Class<?>> loadedClass : this.layers.classes.entrySet())
+		{
+			String name = loadedClass.getKey();
+			if (classNames.contains(name) || !name.startsWith(KommetCompiler.KOLL_BASE_PACKAGE + ".") || !(loadedClass.getValue().getClassLoader() instanceof KommetClassLoader))
+			{
+				continue;
+			}
+			
+			byte[] bytecode = ((KommetClassLoader)loadedClass.getValue().getClassLoader()).getBytecode(name);
+			if (bytecode == null)
+			{
+				return true;
+			}
+			
+			for (byte[] pattern : patterns)
+			{
+				if (indexOf(bytecode, pattern) >= 0)
+				{
+					return true;
+				}
+			}
+		}
+		
+		return false;
+	}
+	
+	private byte[] getBytecode (String name)
+	{
+		byte[] bytecode = this.layerClasses.get(name);
+		if (bytecode != null)
+		{
+			return bytecode;
+		}
+		
+		try (InputStream is = getResourceAsStream(name.replace('.', '/') + ".class"))
+		{
+			return is != null ? is.readAllBytes() : null;
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+	
+	private static int indexOf (byte[] bytes, byte[] pattern)
+	{
+		outer:
+		for (int i = 0; i <= bytes.length - pattern.length; i++)
+		{
+			for (int j = 0; j < pattern.length; j++)
+			{
+				if (bytes[i + j] != pattern[j])
+				{
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the number of layers below this class loader.
+	 * @return
+	 */
+	public int getLayer()
+	{
+		return layer;
+	}
+	
+	/**
+	 * State shared by all layers created on top of the same base class loader.
+	 */
+	private static class Layers
+	{
+		// classes loaded through any layer, by name
+		private Map<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+		
+		// topmost layer defining each recompiled class
+		private Map<String, KommetClassLoader> owners = new ConcurrentHashMap<String, KommetClassLoader>();
+		
+		// layer that defines classes not loaded yet
+		private volatile KommetClassLoader top;
+	}
+}
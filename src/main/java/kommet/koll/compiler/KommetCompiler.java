@@ -8,25 +8,32 @@
 package kommet.koll.compiler;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 import javax.tools.DiagnosticCollector;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaCompiler.CompilationTask;
 import javax.tools.JavaFileObject;
-import javax.tools.StandardJavaFileManager;
 import javax.tools.ToolProvider;
 
 import org.apache.commons.io.FileUtils;
@@ -110,7 +117,33 @@ public class KommetCompiler
 	 * the hasAnnotation(X.class) method checks for the very same instance of class X passed as a parameter. In different classloaders
 	 * we would be checking different instances of X.class, and would get hasAnnotation(X.class) == null.
 	 */
-	private Map<KID, KommetClassLoader> classLoadersByEnvId = new HashMap<KID, KommetClassLoader>();
+	private Map<KID, KommetClassLoader> classLoadersByEnvId = new ConcurrentHashMap<KID, KommetClassLoader>();
+	
+	/**
+	 * Map of file managers used to compile classes for each environment. They are reused between compilations
+	 * so that the class path, and the jar files on it, are not read anew every time a class is compiled.
+	 */
+	private Map<KID, KollFileManager> fileManagersByEnvId = new ConcurrentHashMap<KID, KollFileManager>();
+	
+	/**
+	 * Maximum number of layers added to a class loader before it is recreated from scratch, which releases old versions of classes.
+	 */
+	private static final int MAX_CLASS_LOADER_LAYERS = 20;
+	
+	/**
+	 * Hashes of the Java code from which the class files in the KOLL dir of each environment have been compiled,
+	 * by qualified class name. They are stored in file {@link #SOURCE_HASHES_FILE} in the KOLL dir, so that classes
+	 * compiled before a restart can be reused if their code has not changed.
+	 */
+	private Map<KID, Properties> sourceHashesByEnvId = new ConcurrentHashMap<KID, Properties>();
+	
+	private static final String SOURCE_HASHES_FILE = "source-hashes.properties";
+	
+	/**
+	 * Key under which the fingerprint of the compile class path is stored among source hashes. Classes compiled against
+	 * a different class path are not reused.
+	 */
+	private static final String CLASS_PATH_HASH_KEY = "@classpath";
 	
 	private static final Logger log = LoggerFactory.getLogger(KommetCompiler.class);
 	
@@ -150,7 +183,8 @@ public class KommetCompiler
 	 */
 	private KommetClassLoader getClassLoader (EnvData env, boolean reload) throws KommetException
 	{
-		if (!this.classLoadersByEnvId.containsKey(env.getId()) || reload)
+		KommetClassLoader existingClassLoader = this.classLoadersByEnvId.get(env.getId());
+		if (existingClassLoader == null || reload)
 		{
 			File envKollRoot = new File(appConfig.getKollDir() + "/" + env.getId());
 			File libDir = new File(appConfig.getLibDir());
@@ -177,12 +211,19 @@ public class KommetCompiler
 				throw new KommetException("Error instantiating class: " + e.getMessage(), e);
 			}
 			
-			this.classLoadersByEnvId.put(env.getId(), classLoader);
-			return classLoader;
+			if (reload)
+			{
+				this.classLoadersByEnvId.put(env.getId(), classLoader);
+				return classLoader;
+			}
+			
+			// if another thread has created a class loader in the meantime, use it, so that all classes come from the same one
+			KommetClassLoader otherClassLoader = this.classLoadersByEnvId.putIfAbsent(env.getId(), classLoader);
+			return otherClassLoader != null ? otherClassLoader : classLoader;
 		}
 		else
 		{
-			return this.classLoadersByEnvId.get(env.getId());
+			return existingClassLoader;
 		}
 	}
 
@@ -309,6 +350,13 @@ public class KommetCompiler
 			{
 				deleteCompiledClass(sourceDirObj, file.getPackageName(), file.getName());
 			}
+			
+			Properties sourceHashes = getSourceHashes(env);
+			for (Class file : files)
+			{
+				sourceHashes.remove(MiscUtils.userToEnvPackage(file.getQualifiedName(), env));
+			}
+			storeSourceHashes(sourceHashes, env);
 		}
 	}
 	
@@ -332,87 +380,334 @@ public class KommetCompiler
 		}
 
 		Iterable<? extends JavaFileObject> compilationUnits = javaSources;
-		String sourceDir = null;
-		String compileClassPath = null;
+		String sourceDir = appConfig.getKollDir() + "/" + env.getId();
 		
-		try
+		// make sure a KOLL dir for this env exists
+		File sourceDirObj = new File(sourceDir);
+		if (sourceDirObj.exists())
+		{
+			if (!sourceDirObj.isDirectory())
+			{
+				throw new ClassCompilationException("KOLL file directory \"" + sourceDir + "\" for env " + env.getName() + " exists but is not a directory.");
+			}
+			
+			// remove the old version of the class (if exists)
+			for (Class file : files)
+			{
+				deleteCompiledClass(sourceDirObj, file.getPackageName(), file.getName());
+			}
+		}
+		else
 		{
-			sourceDir = appConfig.getKollDir() + "/" + env.getId();
+			// create dir
+			sourceDirObj.mkdir();
+		}
+		
+		KollFileManager fileManager = getFileManager(env);
+		Properties sourceHashes = getSourceHashes(env);
+		
+		for (Class file : files)
+		{
+			sourceHashes.remove(MiscUtils.userToEnvPackage(file.getQualifiedName(), env));
+		}
+		
+		// the file manager is reused by all compilations on the env, but it cannot be used by two of them at the same time
+		synchronized (fileManager)
+		{
+			// Create a diagnostic controller, which holds the compilation problems
+			DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+			
+			try
+			{
+				fileManager.startCompilation();
+			}
+			catch (IOException e)
+			{
+				throw new ClassCompilationException("Error preparing compilation: " + e.getMessage());
+			}
 			
-			// make sure a KOLL dir for this env exists
-			File sourceDirObj = new File(sourceDir);
-			if (sourceDirObj.exists())
+			// Create a compilation task from compiler by passing in the required input objects prepared above.
+			// The class path does not need to be passed as an option, because it is already set on the file manager.
+			CompilationTask compilerTask = fileManager.getCompiler().getTask(null, fileManager, diagnostics, null, null, compilationUnits);
+			
+			// Perform the compilation by calling the call method on compilerTask object.
+			boolean status = compilerTask.call();
+			
+			if (!status)
 			{
-				if (!sourceDirObj.isDirectory())
+				return new CompilationResult(diagnostics.getDiagnostics());
+			}
+			
+			// class files are still written to the KOLL dir, because they are read from there when the class loader is
+			// recreated and when other classes are compiled against them
+			Map<String, byte[]> compiledClasses = fileManager.getCompiledClasses();
+			writeCompiledClasses(sourceDirObj, compiledClasses);
+			
+			for (Class file : files)
+			{
+				sourceHashes.setProperty(MiscUtils.userToEnvPackage(file.getQualifiedName(), env), getSourceHash(file.getJavaCode()));
+			}
+			storeSourceHashes(sourceHashes, env);
+			
+			CompilationResult result = new CompilationResult(true);
+			result.setCompiledClasses(compiledClasses);
+			return result;
+		}
+	}
+	
+	/**
+	 * Returns the file manager used to compile classes on the given env, creating it on first use.
+	 */
+	private KollFileManager getFileManager (EnvData env) throws KommetException
+	{
+		KollFileManager fileManager = this.fileManagersByEnvId.get(env.getId());
+		if (fileManager != null)
+		{
+			return fileManager;
+		}
+		
+		synchronized (this.fileManagersByEnvId)
+		{
+			fileManager = this.fileManagersByEnvId.get(env.getId());
+			if (fileManager == null)
+			{
+				JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+				
+				if (compiler == null)
 				{
-					throw new ClassCompilationException("KOLL file directory \"" + sourceDir + "\" for env " + env.getName() + " exists but is not a directory.");
+					throw new KommetException("Compiler object is null. Perhaps using JRE instead of JDK. Java Home is: " + System.getProperty("java.home") + ", Java version: " + System.getProperty("java.version"));
 				}
 				
-				// remove the old version of the class (if exists)
-				// TODO perhaps this could be done by properly configuring the compile task or file manager?
-				for (Class file : files)
+				try
 				{
-					deleteCompiledClass(sourceDirObj, file.getPackageName(), file.getName());
+					// the compilation class path includes two elements: the basic class path for all envs and the env-specific class path
+					String compileClassPath = getCompileClassPath(env.getId());
+					
+					// make sure the compile class path exists
+					validateClassPath(compileClassPath, appConfig.getClasspathSeparator());
+					
+					fileManager = new KollFileManager(compiler, compileClassPath, appConfig.getClasspathSeparator());
 				}
+				catch (PropertyUtilException e)
+				{
+					throw new ClassCompilationException("Error reading property: " + e.getMessage());
+				}
+				
+				this.fileManagersByEnvId.put(env.getId(), fileManager);
 			}
-			else
-			{
-				// create dir
-				sourceDirObj.mkdir();
-			}
-			
-			// the compilation class path includes two elements: the basic class path for all envs and the env-specific class path
-			compileClassPath = getCompileClassPath(env.getId());
-			
-			// make sure the compile class path exists
-			validateClassPath(compileClassPath, appConfig.getClasspathSeparator());
+			return fileManager;
 		}
-		catch (PropertyUtilException e)
+	}
+	
+	/**
+	 * Tells whether the class file compiled from the current Java code of the given class exists in the KOLL dir of the env.
+	 * @param file
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	public boolean isCompiled (Class file, EnvData env) throws KommetException
+	{
+		if (file.getJavaCode() == null)
 		{
-			throw new ClassCompilationException("Error reading property: " + e.getMessage());
+			return false;
 		}
 		
-		/* Prepare any compilation options to be used during compilation */
-		// The classpath option is necessary for the compiler to see kommet.* files. 
-		String[] compileOptions = new String[] { "-d", sourceDir, "-classpath", compileClassPath };
+		String className = MiscUtils.userToEnvPackage(file.getQualifiedName(), env);
+		String hash = getSourceHashes(env).getProperty(className);
 		
-		Iterable<String> compilationOptions = Arrays.asList(compileOptions);
-
-		// Create a diagnostic controller, which holds the compilation problems
-		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
-
-		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		return hash != null && hash.equals(getSourceHash(file.getJavaCode())) && new File(appConfig.getKollDir() + "/" + env.getId() + "/" + className.replace('.', '/') + ".class").isFile();
+	}
+	
+	/**
+	 * Returns the hashes of the Java code of all classes compiled on the env, by qualified class name.
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	public Map<String, String> getCompiledSourceHashes (EnvData env) throws KommetException
+	{
+		Map<String, String> hashes = new HashMap<String, String>();
+		Properties sourceHashes = getSourceHashes(env);
 		
-		if (compiler == null)
+		for (String className : sourceHashes.stringPropertyNames())
 		{
-			throw new KommetException("Compiler object is null. Perhaps using JRE instead of JDK. Java Home is: " + System.getProperty("java.home") + ", Java version: " + System.getProperty("java.version"));
+			if (!CLASS_PATH_HASH_KEY.equals(className))
+			{
+				hashes.put(className, sourceHashes.getProperty(className));
+			}
 		}
 		
-		StandardJavaFileManager stdFileManager = compiler.getStandardFileManager(null, Locale.getDefault(), null);
+		return hashes;
+	}
+	
+	/**
+	 * Returns source hashes of classes compiled on the env, reading them from the KOLL dir on first use.
+	 * Hashes stored for a different compile class path are discarded.
+	 */
+	private Properties getSourceHashes (EnvData env) throws KommetException
+	{
+		Properties sourceHashes = this.sourceHashesByEnvId.get(env.getId());
+		if (sourceHashes != null)
+		{
+			return sourceHashes;
+		}
 		
-		// Create a compilation task from compiler by passing in the required input objects prepared above
-		CompilationTask compilerTask = compiler.getTask(null, stdFileManager, diagnostics, compilationOptions, null, compilationUnits);
+		synchronized (this.sourceHashesByEnvId)
+		{
+			sourceHashes = this.sourceHashesByEnvId.get(env.getId());
+			if (sourceHashes == null)
+			{
+				sourceHashes = new Properties();
+				String classPathHash = getClassPathHash(env);
+				File sourceHashesFile = new File(appConfig.getKollDir() + "/" + env.getId() + "/" + SOURCE_HASHES_FILE);
+				
+				if (sourceHashesFile.isFile())
+				{
+					try (InputStream is = new FileInputStream(sourceHashesFile))
+					{
+						sourceHashes.load(is);
+					}
+					catch (IOException e)
+					{
+						log.warn("Error reading source hashes for env " + env.getId() + ": " + e.getMessage());
+						sourceHashes.clear();
+					}
+					
+					if (!classPathHash.equals(sourceHashes.getProperty(CLASS_PATH_HASH_KEY)))
+					{
+						sourceHashes.clear();
+					}
+				}
+				
+				sourceHashes.setProperty(CLASS_PATH_HASH_KEY, classPathHash);
+				this.sourceHashesByEnvId.put(env.getId(), sourceHashes);
+			}
+			return sourceHashes;
+		}
+	}
+	
+	private void storeSourceHashes (Properties sourceHashes, EnvData env) throws KommetException
+	{
+		File sourceHashesFile = new File(appConfig.getKollDir() + "/" + env.getId() + "/" + SOURCE_HASHES_FILE);
+		
+		synchronized (sourceHashes)
+		{
+			try (OutputStream os = new FileOutputStream(sourceHashesFile))
+			{
+				sourceHashes.store(os, null);
+			}
+			catch (IOException e)
+			{
+				// without the file classes will be compiled anew after restart
+				log.warn("Error writing source hashes for env " + env.getId() + ": " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Returns the fingerprint of the compile class path of the env. Apart from the paths, it includes the modification time
+	 * and size of class path elements, so that classes are not reused after libraries or the application itself have been updated.
+	 */
+	private String getClassPathHash (EnvData env) throws KommetException
+	{
+		StringBuilder fingerprint = new StringBuilder(System.getProperty("java.version"));
+		String envKollDir = new File(appConfig.getKollDir() + "/" + env.getId()).getAbsolutePath();
 		
-		// Perform the compilation by calling the call method on compilerTask object.
-		boolean status = compilerTask.call();
+		for (String pathPart : getCompileClassPath(env.getId()).split(appConfig.getClasspathSeparator()))
+		{
+			fingerprint.append(";").append(pathPart);
+			
+			// the KOLL dir itself changes with every compilation
+			File file = new File(pathPart);
+			if (!file.getAbsolutePath().equals(envKollDir))
+			{
+				fingerprint.append(":").append(file.lastModified()).append(":").append(file.length());
+			}
+		}
 		
+		return getSourceHash(fingerprint.toString());
+	}
+	
+	private static String getSourceHash (String code)
+	{
 		try
 		{
-			stdFileManager.close(); // Close the file manager
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest(code.getBytes(StandardCharsets.UTF_8));
+			
+			StringBuilder hex = new StringBuilder();
+			for (byte b : hash)
+			{
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException("SHA-256 algorithm not available", e);
+		}
+	}
+	
+	private void writeCompiledClasses (File sourceDir, Map<String, byte[]> compiledClasses) throws KommetException
+	{
+		for (Map.Entry<String, byte[]> compiledClass : compiledClasses.entrySet())
+		{
+			File classFile = new File(sourceDir, compiledClass.getKey().replace('.', '/') + ".class");
+			try
+			{
+				FileUtils.writeByteArrayToFile(classFile, compiledClass.getValue());
+			}
+			catch (IOException e)
+			{
+				throw new ClassCompilationException("Error writing class file " + classFile.getAbsolutePath() + ": " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Makes the classes produced by the given compilation visible through the class loader of the env.
+	 * 
+	 * If none of the affected classes has been loaded yet, the current class loader is kept, because it will read them
+	 * from the KOLL dir. Otherwise the new versions of the classes are defined from memory in a new class loader layer,
+	 * unless some loaded classes depend on them, in which case the whole class loader is recreated like in
+	 * {@link #resetClassLoader(EnvData)}.
+	 * 
+	 * @param result result of a compilation
+	 * @param env
+	 * @return the class loader for the env
+	 * @throws KommetException
+	 */
+	public synchronized KommetClassLoader reloadClasses (CompilationResult result, EnvData env) throws KommetException
+	{
+		KommetClassLoader classLoader = this.classLoadersByEnvId.get(env.getId());
+		
+		if (classLoader == null)
+		{
+			return getClassLoader(env);
 		}
-		catch (IOException e)
+		
+		// compiled files of failed compilations have been removed, so they need to be unloaded
+		if (!result.isSuccess() || result.getCompiledClasses() == null)
 		{
-			e.printStackTrace();
+			return resetClassLoader(env);
 		}
 		
-		if (!status)
+		Set<String> classNames = result.getCompiledClasses().keySet();
+		
+		if (!classLoader.isAnyClassKnown(classNames))
 		{
-			return new CompilationResult(diagnostics.getDiagnostics());
+			return classLoader;
 		}
-		else
+		
+		if (classLoader.getLayer() >= MAX_CLASS_LOADER_LAYERS || classLoader.hasLoadedDependents(classNames))
 		{
-			return new CompilationResult(true);
+			return resetClassLoader(env);
 		}
+		
+		KommetClassLoader newLayer = classLoader.addLayer(result.getCompiledClasses());
+		this.classLoadersByEnvId.put(env.getId(), newLayer);
+		return newLayer;
 	}
 	
 	private void deleteCompiledClass(File sourceDir, String packageName, String className)
@@ -472,6 +767,23 @@ public class KommetCompiler
 			}
 		}
 		dir.mkdir();
+		
+		// the file with source hashes has been removed together with the dir
+		this.sourceHashesByEnvId.remove(env.getId());
+		
+		// the class path of the env is read anew on next compilation
+		KollFileManager fileManager = this.fileManagersByEnvId.remove(env.getId());
+		if (fileManager != null)
+		{
+			try
+			{
+				fileManager.close();
+			}
+			catch (IOException e)
+			{
+				log.warn("Error closing file manager for env " + env.getId() + ": " + e.getMessage());
+			}
+		}
 	}
 
 	public List<java.lang.Class<?>> findSubclasses(List<Class> classes, java.lang.Class<?> superclass, EnvData env) throws KommetException
@@ -28,7 +28,7 @@ public class ReminderCheckerJob implements Job
 	public void execute(JobExecutionContext ctx) throws JobExecutionException
 	{	
 		// call the job
-		log.info("Checking reminders");
+		log.debug("Checking reminders");
 		
 		ReminderCheckerJobDetail detail = (ReminderCheckerJobDetail)ctx.getJobDetail();
 		
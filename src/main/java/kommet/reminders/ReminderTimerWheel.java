@@ -0,0 +1,154 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.reminders;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import kommet.data.KID;
+
+/**
+ * Timer wheel holding reminders that are due within a near window.
+ * <p>
+ * The wheel is divided into slots, each covering a fixed period of time. A reminder is put into the slot
+ * that covers its due time, so that finding due reminders only requires looking at slots whose time has passed,
+ * regardless of the number of reminders in the wheel.
+ * </p>
+ * <p>
+ * The wheel only holds reminders due before the time up to which it has been loaded. Reminders due later
+ * are kept only in the database and are loaded when the window moves forward.
+ * </p>
+ * @author Radek Krawiec
+ */
+public class ReminderTimerWheel
+{
+	private final long slotMillis;
+	private final List<Map<KID, Long>> slots;
+
+	// slot in which each reminder has been put
+	private final Map<KID, Integer> slotsByReminder = new HashMap<KID, Integer>();
+
+	// number of the slot covering the time of the last poll, counted from the epoch
+	private long currentTick;
+
+	// reminders due before this time are held in the wheel
+	private long loadedUntil;
+
+	public ReminderTimerWheel (int slotCount, long slotMillis, long now)
+	{
+		this.slotMillis = slotMillis;
+		this.slots = new ArrayList<Map<KID, Long>>(slotCount);
+		for (int i = 0; i < slotCount; i++)
+		{
+			this.slots.add(new HashMap<KID, Long>());
+		}
+		this.currentTick = now / slotMillis;
+		this.loadedUntil = now;
+	}
+
+	/**
+	 * Returns the period covered by all slots of the wheel. Reminders can be loaded at most this far ahead.
+	 * @return
+	 */
+	public long getSpanMillis()
+	{
+		return slots.size() * slotMillis;
+	}
+
+	public synchronized long getLoadedUntil()
+	{
+		return loadedUntil;
+	}
+
+	/**
+	 * Puts reminders due before the given time into the wheel. All reminders due before this time
+	 * must be passed, because the wheel is then trusted to hold all of them.
+	 * @param reminders
+	 * @param until
+	 */
+	public synchronized void load (List<ScheduledReminder> reminders, long until)
+	{
+		// the end of the window must not be covered by the same slot as the current time
+		this.loadedUntil = Math.min(until, (currentTick + slots.size()) * slotMillis);
+
+		for (ScheduledReminder reminder : reminders)
+		{
+			schedule(reminder.getReminderId(), reminder.getNextFire() != null ? reminder.getNextFire().getTime() : null);
+		}
+	}
+
+	/**
+	 * Puts the reminder into the wheel if it is due within the loaded window, or removes it from the wheel otherwise.
+	 * @param reminderId
+	 * @param fireTime Time when the reminder is due, or null if it is not due at all
+	 */
+	public synchronized void schedule (KID reminderId, Long fireTime)
+	{
+		cancel(reminderId);
+
+		if (fireTime == null || fireTime >= loadedUntil)
+		{
+			// the reminder will be loaded from the database when the window reaches its due time
+			return;
+		}
+
+		// reminders that are already due are put into the current slot, so that they are returned by the next poll
+		int slot = (int)(Math.max(fireTime / slotMillis, currentTick) % slots.size());
+		slots.get(slot).put(reminderId, fireTime);
+		slotsByReminder.put(reminderId, slot);
+	}
+
+	public synchronized void cancel (KID reminderId)
+	{
+		Integer slot = slotsByReminder.remove(reminderId);
+		if (slot != null)
+		{
+			slots.get(slot).remove(reminderId);
+		}
+	}
+
+	/**
+	 * Removes reminders due at or before the given time from the wheel and returns their IDs.
+	 * @param now
+	 * @return
+	 */
+	public synchronized List<KID> pollDue (long now)
+	{
+		List<KID> dueReminders = new ArrayList<KID>();
+		long nowTick = now / slotMillis;
+
+		// look at all slots whose time has passed since the last poll, but at most once at each slot
+		long firstTick = Math.max(currentTick, nowTick - slots.size() + 1);
+
+		for (long tick = firstTick; tick <= nowTick; tick++)
+		{
+			Iterator<Map.Entry<KID, Long>> entries = slots.get((int)(tick % slots.size())).entrySet().iterator();
+			while (entries.hasNext())
+			{
+				Map.Entry<KID, Long> entry = entries.next();
+				if (entry.getValue() <= now)
+				{
+					dueReminders.add(entry.getKey());
+					slotsByReminder.remove(entry.getKey());
+					entries.remove();
+				}
+			}
+		}
+
+		this.currentTick = Math.max(currentTick, nowTick);
+		return dueReminders;
+	}
+
+	public synchronized int size()
+	{
+		return slotsByReminder.size();
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.reminders;
+
+import java.util.Date;
+
+import kommet.data.KID;
+
+/**
+ * Entry of the reminder schedule, telling when a reminder that has not been sent yet is due.
+ * @author Radek Krawiec
+ */
+public class ScheduledReminder
+{
+	private KID reminderId;
+	private KID recordId;
+	private KID referencedField;
+	private String intervalUnit;
+	private Integer intervalValue;
+	private Date nextFire;
+
+	public KID getReminderId()
+	{
+		return reminderId;
+	}
+
+	public void setReminderId(KID reminderId)
+	{
+		this.reminderId = reminderId;
+	}
+
+	public KID getRecordId()
+	{
+		return recordId;
+	}
+
+	public void setRecordId(KID recordId)
+	{
+		this.recordId = recordId;
+	}
+
+	public KID getReferencedField()
+	{
+		return referencedField;
+	}
+
+	public void setReferencedField(KID referencedField)
+	{
+		this.referencedField = referencedField;
+	}
+
+	public String getIntervalUnit()
+	{
+		return intervalUnit;
+	}
+
+	public void setIntervalUnit(String intervalUnit)
+	{
+		this.intervalUnit = intervalUnit;
+	}
+
+	public Integer getIntervalValue()
+	{
+		return intervalValue;
+	}
+
+	public void setIntervalValue(Integer intervalValue)
+	{
+		this.intervalValue = intervalValue;
+	}
+
+	/**
+	 * Returns the time when the reminder is due, or null if the date field referenced by the reminder is empty.
+	 * @return
+	 */
+	public Date getNextFire()
+	{
+		return nextFire;
+	}
+
+	public void setNextFire(Date nextFire)
+	{
+		this.nextFire = nextFire;
+	}
+}
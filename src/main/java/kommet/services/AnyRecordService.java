@@ -7,29 +7,555 @@
 
 package kommet.services;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
+import org.quartz.SchedulerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.quartz.SchedulerFactoryBean;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import kommet.auth.AuthData;
 import kommet.basic.AnyRecord;
+import kommet.basic.RecordAccessType;
 import kommet.dao.AnyRecordDao;
+import kommet.dao.queries.Criteria;
+import kommet.dao.queries.Restriction;
+import kommet.data.DataService;
+import kommet.data.Field;
+import kommet.data.KID;
+import kommet.data.KeyPrefix;
 import kommet.data.KommetException;
+import kommet.data.Record;
+import kommet.data.Type;
 import kommet.env.EnvData;
 import kommet.filters.AnyRecordFilter;
+import kommet.systemsettings.SystemSettingKey;
+import kommet.utils.AppConfig;
+import kommet.utils.MiscUtils;
+import kommet.writebehind.WriteBehindQueue;
+import kommet.writebehind.WriteBehindWriter;
 
+/**
+ * Maintains AnyRecord rows, which index records of all non-basic types.
+ * <p>
+ * In synchronous mode (default) AnyRecord rows are inserted and deleted in the same transaction as the records
+ * they refer to, using one bulk query per operation. In asynchronous mode (property <tt>kommet.anyrecords.consistency=async</tt>)
+ * changes are queued when the transaction is committed and applied by the AnyRecord writer job, at most
+ * <tt>kommet.anyrecords.async.maxlag.seconds</tt> seconds later, so that saving records does not wait for them.
+ * </p>
+ * <p>
+ * Queued changes are kept in memory. If they are lost, e.g. because the server has been stopped, or if applying them
+ * fails, AnyRecord rows are reconciled with records on the following runs of the writer job - rows missing for existing records
+ * are created, and rows of records that no longer exist are deleted. Reconciliation is incremental: only records modified
+ * since all queued changes were last applied (system setting {@link SystemSettingKey#ANY_RECORDS_RECONCILED_UNTIL}) are checked
+ * for missing rows, and existing rows are checked page by page, so that each run does a bounded amount of work.
+ * </p>
+ * <p>
+ * Nothing is maintained when AnyRecord rows are disabled (property <tt>kommet.anyrecords.create=false</tt>).
+ * </p>
+ * @author Radek Krawiec
+ */
 @Service
-public class AnyRecordService
+public class AnyRecordService implements WriteBehindWriter
 {
 	@Inject
 	AnyRecordDao dao;
 	
+	@Inject
+	DataService dataService;
+	
+	@Inject
+	AppConfig appConfig;
+	
+	@Inject
+	SchedulerFactoryBean schedulerFactory;
+	
+	@Inject
+	SystemSettingService systemSettingService;
+	
+	private static final Logger log = LoggerFactory.getLogger(AnyRecordService.class);
+	
+	public static final String ANY_RECORD_WRITER_JOB_PREFIX = "any-record-writer";
+	
+	/**
+	 * Changes waiting to be applied in asynchronous mode, by env ID.
+	 */
+	private final WriteBehindQueue<PendingChange> pendingChanges = new WriteBehindQueue<PendingChange>(ANY_RECORD_WRITER_JOB_PREFIX);
+	
+	/**
+	 * IDs of envs on which AnyRecord rows have been reconciled with records since the server was started,
+	 * or since applying changes last failed.
+	 */
+	private final Set<KID> recoveredEnvs = Collections.newSetFromMap(new ConcurrentHashMap<KID, Boolean>());
+	
+	/**
+	 * Time before which all changes are known to have been applied, by env ID.
+	 */
+	private final Map<KID, Long> reconciledUntil = new ConcurrentHashMap<KID, Long>();
+	
+	/**
+	 * Time last saved in the {@link SystemSettingKey#ANY_RECORDS_RECONCILED_UNTIL} setting, by env ID.
+	 */
+	private final Map<KID, Long> savedReconciledUntil = new ConcurrentHashMap<KID, Long>();
+	
+	/**
+	 * Record ID of the last AnyRecord row checked for a missing record during the current pass, by env ID.
+	 * No entry means that the next pass starts from the first row.
+	 */
+	private final Map<KID, String> staleRowCursors = new ConcurrentHashMap<KID, String>();
+	
+	/**
+	 * Records modified this long before changes were last known to be applied are checked as well, because
+	 * the modification date of a record is set when it is saved, not when the transaction is committed.
+	 * This should be longer than any transaction.
+	 */
+	private static final long RECONCILE_MARGIN_MILLIS = 60 * 60 * 1000;
+	
+	/**
+	 * Minimum interval between saving the time of the last applied changes. Changes applied after the saved time
+	 * are simply checked again after a restart.
+	 */
+	private static final long RECONCILED_UNTIL_SAVE_INTERVAL_MILLIS = 10 * 60 * 1000;
+	
 	@Transactional(readOnly = true)
 	public List<AnyRecord> get(AnyRecordFilter filter, AuthData authData, EnvData env) throws KommetException
 	{
 		return dao.get(filter, authData, env);
 	}
+	
+	/**
+	 * Creates AnyRecord rows for inserted records.
+	 * @param recordIds IDs of the inserted records
+	 * @param env
+	 * @throws KommetException
+	 */
+	@Transactional
+	public void recordsInserted (Collection<KID> recordIds, EnvData env) throws KommetException
+	{
+		if (recordIds.isEmpty())
+		{
+			return;
+		}
+		
+		if (appConfig.isAnyRecordsAsync())
+		{
+			enqueueAfterCommit(recordIds, false, env);
+		}
+		else
+		{
+			insert(recordIds, env);
+		}
+	}
+	
+	/**
+	 * Removes AnyRecord rows of deleted records.
+	 * @param recordIds IDs of the deleted records
+	 * @param env
+	 * @throws KommetException
+	 */
+	@Transactional
+	public void recordsDeleted (Collection<KID> recordIds, EnvData env) throws KommetException
+	{
+		if (recordIds.isEmpty())
+		{
+			return;
+		}
+		
+		// when AnyRecord rows are disabled, the writer job does not run, so rows that have been created
+		// before are deleted synchronously
+		if (appConfig.isCreateAnyRecords() && appConfig.isAnyRecordsAsync())
+		{
+			enqueueAfterCommit(recordIds, true, env);
+		}
+		else
+		{
+			delete(recordIds, env);
+		}
+	}
+	
+	private void enqueueAfterCommit (Collection<KID> recordIds, boolean isDelete, EnvData env) throws KommetException
+	{
+		List<PendingChange> changes = new ArrayList<PendingChange>();
+		for (KID recordId : recordIds)
+		{
+			changes.add(new PendingChange(recordId, isDelete));
+		}
+		
+		// changes are queued only if the records have actually been inserted or deleted
+		pendingChanges.addAfterCommit(changes, appConfig.getAnyRecordsBatchSize(), schedulerFactory, env);
+	}
+	
+	/**
+	 * Applies all changes queued in asynchronous mode on the given env. Each batch of changes is applied
+	 * using one bulk insert and one bulk delete.
+	 * @param env
+	 * @return the number of applied changes
+	 * @throws KommetException
+	 */
+	@Override
+	public int flush (EnvData env) throws KommetException
+	{
+		// changes committed before this time have been queued, so they are applied by this flush
+		long flushStartTime = System.currentTimeMillis();
+		boolean isFailed = false;
+		
+		if (!recoveredEnvs.contains(env.getId()))
+		{
+			reconcile(env);
+		}
+		
+		int batchSize = appConfig.getAnyRecordsBatchSize();
+		int appliedChanges = 0;
+		
+		List<PendingChange> batch;
+		while (!(batch = pendingChanges.poll(batchSize, env)).isEmpty())
+		{
+			// only the last change of each record matters
+			Map<KID, Boolean> isDeleteByRecord = new LinkedHashMap<KID, Boolean>();
+			Set<KID> insertedInBatch = new HashSet<KID>();
+			
+			for (PendingChange change : batch)
+			{
+				if (!change.isDelete())
+				{
+					insertedInBatch.add(change.getRecordId());
+				}
+				else if (insertedInBatch.contains(change.getRecordId()))
+				{
+					// the record has been inserted and deleted before its AnyRecord row was written
+					isDeleteByRecord.remove(change.getRecordId());
+					continue;
+				}
+				isDeleteByRecord.put(change.getRecordId(), change.isDelete());
+			}
+			
+			List<KID> insertedIds = new ArrayList<KID>();
+			List<KID> deletedIds = new ArrayList<KID>();
+			for (Map.Entry<KID, Boolean> change : isDeleteByRecord.entrySet())
+			{
+				(change.getValue() ? deletedIds : insertedIds).add(change.getKey());
+			}
+			
+			try
+			{
+				// rows queued by reconciliation may also have been queued by saves, so skip rows that already exist
+				insertedIds.removeAll(getIndexedRecordIds(insertedIds, env));
+				
+				insert(insertedIds, env);
+				delete(deletedIds, env);
+				appliedChanges += batch.size();
+			}
+			catch (KommetException e)
+			{
+				// the changes are not returned to the queue, where they could fail again on each run - instead
+				// the env is reconciled on the next run, which recreates the changes from the current state of records
+				log.error("Error applying " + batch.size() + " AnyRecord changes, rows will be reconciled on the next run: " + e.getMessage());
+				recoveredEnvs.remove(env.getId());
+				isFailed = true;
+			}
+		}
+		
+		if (!isFailed && recoveredEnvs.contains(env.getId()))
+		{
+			setReconciledUntil(flushStartTime, env);
+		}
+		
+		return appliedChanges;
+	}
+	
+	/**
+	 * Returns the number of changes waiting to be applied in asynchronous mode on the given env.
+	 * @param env
+	 * @return
+	 */
+	public int getPendingCount (EnvData env)
+	{
+		return pendingChanges.size(env);
+	}
+	
+	/**
+	 * Queues changes that bring AnyRecord rows in line with records of all non-basic types on the given env.
+	 * An AnyRecord row is queued for insert for each record modified since changes were last known to be applied
+	 * that does not have one, and for delete for each row whose record no longer exists. This recovers changes that
+	 * have been lost together with the in-memory queue.
+	 * <p>
+	 * At most <tt>kommet.anyrecords.async.batchsize</tt> missing rows per type and the same number of existing rows
+	 * are checked in one call. The env is marked as reconciled once no more missing rows are found and all existing
+	 * rows have been checked, otherwise reconciliation continues on the next run of the writer job.
+	 * </p>
+	 * @param env
+	 * @return the number of queued changes
+	 * @throws KommetException
+	 */
+	public int reconcile (EnvData env) throws KommetException
+	{
+		if (!appConfig.isCreateAnyRecords())
+		{
+			return 0;
+		}
+		
+		Type anyRecordType = env.getType(KeyPrefix.get(KID.ANY_RECORD_PREFIX));
+		String anyRecordTable = anyRecordType.getDbTable();
+		String recordIdColumn = anyRecordType.getField("recordId").getDbColumn();
+		int limit = appConfig.getAnyRecordsBatchSize();
+		// modification dates are stored in GMT
+		double modifiedSince = (getReconciledUntil(env) - RECONCILE_MARGIN_MILLIS) / 1000.0;
+		boolean isComplete = true;
+		
+		List<PendingChange> changes = new ArrayList<PendingChange>();
+		
+		for (Type type : env.getAllTypes())
+		{
+			if (type.isBasic())
+			{
+				continue;
+			}
+			
+			List<String> missingIds = env.getJdbcTemplate().queryForList("SELECT t." + Field.ID_FIELD_DB_COLUMN + " FROM " + type.getDbTable() + " t WHERE t." + Field.LAST_MODIFIED_DATE_FIELD_DB_COLUMN + " >= to_timestamp(?) AT TIME ZONE 'GMT' AND NOT EXISTS (SELECT 1 FROM " + anyRecordTable + " a WHERE a." + recordIdColumn + " = t." + Field.ID_FIELD_DB_COLUMN + ") LIMIT " + limit, String.class, modifiedSince);
+			for (String recordId : missingIds)
+			{
+				changes.add(new PendingChange(KID.get(recordId), false));
+			}
+			
+			// rows found now will have been inserted when reconciliation continues, so further rows will be found
+			isComplete &= missingIds.size() < limit;
+		}
+		
+		// check the next page of existing AnyRecord rows for records that no longer exist
+		String cursor = staleRowCursors.get(env.getId());
+		List<String> indexedIds = cursor == null ? env.getJdbcTemplate().queryForList("SELECT " + recordIdColumn + " FROM " + anyRecordTable + " ORDER BY " + recordIdColumn + " LIMIT " + limit, String.class) : env.getJdbcTemplate().queryForList("SELECT " + recordIdColumn + " FROM " + anyRecordTable + " WHERE " + recordIdColumn + " > ? ORDER BY " + recordIdColumn + " LIMIT " + limit, String.class, cursor);
+		
+		for (KID recordId : getStaleRecordIds(indexedIds, env))
+		{
+			changes.add(new PendingChange(recordId, true));
+		}
+		
+		if (indexedIds.size() < limit)
+		{
+			staleRowCursors.remove(env.getId());
+		}
+		else
+		{
+			staleRowCursors.put(env.getId(), indexedIds.get(indexedIds.size() - 1));
+			isComplete = false;
+		}
+		
+		if (!changes.isEmpty())
+		{
+			log.info("[AnyRecord] Reconciling " + changes.size() + " rows on env " + env.getId());
+			pendingChanges.add(changes, env);
+		}
+		
+		if (isComplete)
+		{
+			recoveredEnvs.add(env.getId());
+		}
+		
+		return changes.size();
+	}
+	
+	/**
+	 * Returns those of the given record IDs whose records no longer exist. Records are looked up in the tables of their types
+	 * with one query per type.
+	 * @param recordIds
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	private static List<KID> getStaleRecordIds (List<String> recordIds, EnvData env) throws KommetException
+	{
+		// AnyRecord rows are matched with the type of their record by key prefix
+		Map<String, List<String>> idsByPrefix = new HashMap<String, List<String>>();
+		for (String recordId : recordIds)
+		{
+			String prefix = KID.get(recordId).getKeyPrefix().getPrefix();
+			if (!idsByPrefix.containsKey(prefix))
+			{
+				idsByPrefix.put(prefix, new ArrayList<String>());
+			}
+			idsByPrefix.get(prefix).add(recordId);
+		}
+		
+		List<KID> staleIds = new ArrayList<KID>();
+		
+		for (Map.Entry<String, List<String>> ids : idsByPrefix.entrySet())
+		{
+			Type type = env.getType(KeyPrefix.get(ids.getKey()));
+			Set<String> existingIds = new HashSet<String>();
+			
+			// records of deleted types no longer exist
+			if (type != null)
+			{
+				existingIds.addAll(env.getJdbcTemplate().queryForList("SELECT " + Field.ID_FIELD_DB_COLUMN + " FROM " + type.getDbTable() + " WHERE " + Field.ID_FIELD_DB_COLUMN + " IN (" + MiscUtils.implode(ids.getValue(), ", ", "'") + ")", String.class));
+			}
+			
+			for (String recordId : ids.getValue())
+			{
+				if (!existingIds.contains(recordId))
+				{
+					staleIds.add(KID.get(recordId));
+				}
+			}
+		}
+		
+		return staleIds;
+	}
+	
+	/**
+	 * Returns the time before which all changes on the env are known to have been applied. If it has never been saved,
+	 * e.g. because AnyRecord rows have just been enabled, there are no lost changes to recover, so the current time is returned.
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	private long getReconciledUntil (EnvData env) throws KommetException
+	{
+		Long time = reconciledUntil.get(env.getId());
+		if (time != null)
+		{
+			return time;
+		}
+		
+		String savedTime = systemSettingService.getSettingValue(SystemSettingKey.ANY_RECORDS_RECONCILED_UNTIL, env);
+		if (savedTime != null)
+		{
+			time = Long.valueOf(savedTime);
+			savedReconciledUntil.put(env.getId(), time);
+		}
+		else
+		{
+			time = System.currentTimeMillis();
+			saveReconciledUntil(time, env);
+		}
+		
+		reconciledUntil.put(env.getId(), time);
+		return time;
+	}
+	
+	private void setReconciledUntil (long time, EnvData env) throws KommetException
+	{
+		reconciledUntil.put(env.getId(), time);
+		
+		Long savedTime = savedReconciledUntil.get(env.getId());
+		if (savedTime == null || time - savedTime >= RECONCILED_UNTIL_SAVE_INTERVAL_MILLIS)
+		{
+			saveReconciledUntil(time, env);
+		}
+	}
+	
+	private void saveReconciledUntil (long time, EnvData env) throws KommetException
+	{
+		systemSettingService.setSetting(SystemSettingKey.ANY_RECORDS_RECONCILED_UNTIL, String.valueOf(time), RecordAccessType.SYSTEM, AuthData.getRootAuthData(env), env);
+		savedReconciledUntil.put(env.getId(), time);
+	}
+	
+	/**
+	 * Returns IDs of those of the given records that already have AnyRecord rows.
+	 * @param recordIds
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	private static Set<KID> getIndexedRecordIds (Collection<KID> recordIds, EnvData env) throws KommetException
+	{
+		Set<KID> indexedIds = new HashSet<KID>();
+		if (recordIds.isEmpty())
+		{
+			return indexedIds;
+		}
+		
+		Criteria c = env.getSelectCriteria(env.getType(KeyPrefix.get(KID.ANY_RECORD_PREFIX)).getKID());
+		c.addProperty("recordId");
+		c.add(Restriction.in("recordId", recordIds));
+		for (Record anyRecord : c.list())
+		{
+			indexedIds.add((KID)anyRecord.getField("recordId"));
+		}
+		return indexedIds;
+	}
+	
+	/**
+	 * Inserts AnyRecord rows for the given records using bulk insert queries.
+	 * @param recordIds
+	 * @param env
+	 * @throws KommetException
+	 */
+	private void insert (Collection<KID> recordIds, EnvData env) throws KommetException
+	{
+		if (recordIds.isEmpty())
+		{
+			return;
+		}
+		
+		Type anyRecordType = env.getType(KeyPrefix.get(KID.ANY_RECORD_PREFIX));
+		
+		List<Record> anyRecords = new ArrayList<Record>();
+		for (KID recordId : recordIds)
+		{
+			Record anyRecord = new Record(anyRecordType);
+			anyRecord.setField("recordId", recordId);
+			anyRecords.add(anyRecord);
+		}
+		
+		// AnyRecord is an inaccessible system type, so there are no triggers to call and no sharings to create
+		dataService.saveAll(anyRecords, true, true, true, AuthData.getRootAuthData(env), env);
+	}
+	
+	/**
+	 * Deletes AnyRecord rows of the given records.
+	 * @param recordIds
+	 * @param env
+	 * @throws KommetException
+	 */
+	private void delete (Collection<KID> recordIds, EnvData env) throws KommetException
+	{
+		if (recordIds.isEmpty())
+		{
+			return;
+		}
+		
+		Criteria c = env.getSelectCriteria(env.getType(KeyPrefix.get(KID.ANY_RECORD_PREFIX)).getKID());
+		c.add(Restriction.in("recordId", recordIds));
+		dataService.deleteRecords(c.list(), true, AuthData.getRootAuthData(env), env);
+	}
+	
+	public void scheduleAnyRecordWriter (EnvData env) throws KommetException, SchedulerException
+	{
+		pendingChanges.scheduleWriter(this, appConfig.getAnyRecordsMaxLagSeconds(), schedulerFactory, env);
+	}
+	
+	private static class PendingChange
+	{
+		private final KID recordId;
+		private final boolean isDelete;
+		
+		public PendingChange (KID recordId, boolean isDelete)
+		{
+			this.recordId = recordId;
+			this.isDelete = isDelete;
+		}
+		
+		public KID getRecordId()
+		{
+			return recordId;
+		}
+		
+		public boolean isDelete()
+		{
+			return isDelete;
+		}
+	}
 }
\ No newline at end of file
@@ -9,7 +9,9 @@ package kommet.services;
 
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
@@ -17,6 +19,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import kommet.auth.AuthData;
 import kommet.basic.App;
@@ -47,6 +51,22 @@ public class AppService
 	
 	private static final Logger log = LoggerFactory.getLogger(AppService.class);
 	
+	/**
+	 * Domain mappings read from the shared database, by URL. Mappings are reloaded periodically, because
+	 * they can be modified by other servers in the cluster.
+	 */
+	private volatile Map<String, DomainMapping> domainMappings;
+	private volatile long domainMappingsLoadTime;
+	
+	/**
+	 * URLs for which no domain mapping was found, with the time when they were last looked up
+	 */
+	private final Map<String, Long> unmappedUrls = new ConcurrentHashMap<String, Long>();
+	
+	private static final long DOMAIN_MAPPING_RELOAD_INTERVAL = 300000;
+	private static final long UNMAPPED_URL_RECHECK_INTERVAL = 30000;
+	private static final int MAX_UNMAPPED_URLS = 10000;
+	
 	/**
 	 * Deletes an app, all its related app URLs and their domain mappings.
 	 * 
@@ -75,6 +95,7 @@ public class AppService
 		
 		// delete domain mappings
 		domainMappingDao.deleteForUrls(urls, sharedEnv);
+		clearCachedDomainMappings(urls);
 		
 		appUrlDao.delete(appUrls, authData, env);
 		
@@ -161,6 +182,8 @@ public class AppService
 			throw new KommetException("Error saving domain mapping: " + e.getMessage());
 		}
 		
+		clearCachedDomainMappings(MiscUtils.toSet(appUrl.getUrl()));
+		
 		return appUrl;
 	}
 
@@ -190,12 +213,120 @@ public class AppService
 		
 		// delete domain mappings
 		domainMappingDao.deleteForUrls(MiscUtils.toSet(appUrl.getUrl()), sharedEnv);
+		clearCachedDomainMappings(MiscUtils.toSet(appUrl.getUrl()));
 	}
 
-	@Transactional(readOnly = true)
+	/**
+	 * Returns the domain mapping for the given URL, or null if the URL is not mapped.
+	 * 
+	 * This method is called on every request, so mappings are cached in memory. Mappings are loaded all at once
+	 * and reloaded periodically. URLs not found in the cache are looked up in the database, but unmapped URLs
+	 * are looked up at most once per {@link #UNMAPPED_URL_RECHECK_INTERVAL}.
+	 * 
+	 * @param url
+	 * @param env the shared env in which domain mappings are stored
+	 * @return
+	 * @throws KommetException
+	 */
 	public DomainMapping getDomainMapping(String url, EnvData env) throws KommetException
 	{
-		return domainMappingDao.getForURL(url, env);
+		Map<String, DomainMapping> mappings = this.domainMappings;
+		
+		if (mappings == null || (System.currentTimeMillis() - this.domainMappingsLoadTime) > DOMAIN_MAPPING_RELOAD_INTERVAL)
+		{
+			mappings = loadDomainMappings(env);
+		}
+		
+		DomainMapping mapping = mappings.get(url);
+		if (mapping != null)
+		{
+			return mapping;
+		}
+		
+		Long lastLookupTime = unmappedUrls.get(url);
+		if (lastLookupTime != null && (System.currentTimeMillis() - lastLookupTime) < UNMAPPED_URL_RECHECK_INTERVAL)
+		{
+			return null;
+		}
+		
+		// the mapping may have been created on another server since mappings were loaded
+		mapping = domainMappingDao.getForURL(url, env);
+		
+		if (mapping != null)
+		{
+			mappings.put(url, mapping);
+			unmappedUrls.remove(url);
+		}
+		else
+		{
+			// do not let requests with random host names fill up memory
+			if (unmappedUrls.size() >= MAX_UNMAPPED_URLS)
+			{
+				unmappedUrls.clear();
+			}
+			unmappedUrls.put(url, System.currentTimeMillis());
+		}
+		
+		return mapping;
+	}
+	
+	private synchronized Map<String, DomainMapping> loadDomainMappings(EnvData env) throws KommetException
+	{
+		// mappings may have been loaded by another thread while this one was waiting
+		if (this.domainMappings != null && (System.currentTimeMillis() - this.domainMappingsLoadTime) <= DOMAIN_MAPPING_RELOAD_INTERVAL)
+		{
+			return this.domainMappings;
+		}
+		
+		Map<String, DomainMapping> mappings = new ConcurrentHashMap<String, DomainMapping>();
+		for (DomainMapping mapping : domainMappingDao.getAll(env))
+		{
+			mappings.put(mapping.getUrl(), mapping);
+		}
+		
+		this.domainMappingsLoadTime = System.currentTimeMillis();
+		this.domainMappings = mappings;
+		this.unmappedUrls.clear();
+		
+		return mappings;
+	}
+	
+	/**
+	 * Removes domain mappings for the given URLs from the cache, so that they are read from the database
+	 * next time they are requested. If called within a transaction, the mappings are removed again when
+	 * the transaction is committed, because until then concurrent requests can cache the mappings as they
+	 * were before the transaction.
+	 * @param urls
+	 */
+	private void clearCachedDomainMappings(final Set<String> urls)
+	{
+		removeCachedDomainMappings(urls);
+		
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+		{
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter()
+			{
+				@Override
+				public void afterCommit()
+				{
+					removeCachedDomainMappings(urls);
+				}
+			});
+		}
+	}
+	
+	private void removeCachedDomainMappings(Set<String> urls)
+	{
+		Map<String, DomainMapping> mappings = this.domainMappings;
+		
+		for (String url : urls)
+		{
+			if (mappings != null)
+			{
+				mappings.remove(url);
+			}
+			unmappedUrls.remove(url);
+		}
 	}
 
 	@Transactional(readOnly = true)
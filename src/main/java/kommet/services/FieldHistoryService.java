@@ -7,43 +7,86 @@
 
 package kommet.services;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 
+import org.quartz.SchedulerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.quartz.SchedulerFactoryBean;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
 
 import kommet.auth.AuthData;
 import kommet.basic.FieldHistory;
 import kommet.basic.FieldHistoryOperation;
+import kommet.basic.RecordProxyUtil;
+import kommet.basic.types.SystemTypes;
 import kommet.dao.FieldHistoryDao;
+import kommet.data.DataService;
 import kommet.data.Field;
 import kommet.data.KID;
 import kommet.data.KommetException;
+import kommet.data.Record;
+import kommet.data.Type;
 import kommet.data.datatypes.DataType;
 import kommet.env.EnvData;
 import kommet.filters.FieldHistoryFilter;
+import kommet.utils.AppConfig;
+import kommet.writebehind.WriteBehindQueue;
+import kommet.writebehind.WriteBehindWriter;
 
 @Service
-public class FieldHistoryService
+public class FieldHistoryService implements WriteBehindWriter
 {
 	@Inject
 	FieldHistoryDao dao;
 	
+	@Inject
+	DataService dataService;
+	
+	@Inject
+	AppConfig appConfig;
+	
+	@Inject
+	SchedulerFactoryBean schedulerFactory;
+	
+	@Inject
+	PlatformTransactionManager txManager;
+	
+	private static final Logger log = LoggerFactory.getLogger(FieldHistoryService.class);
+	
+	public static final String FIELD_HISTORY_WRITER_JOB_PREFIX = "field-history-writer";
+	
 	/**
-	 * Logs an update of a simple property.
+	 * Number of runs of the writer job in which writing a queued entry is attempted before the entry is given up.
+	 */
+	private static final int MAX_WRITE_ATTEMPTS = 10;
+	
+	/**
+	 * Field history entries waiting to be written in asynchronous mode, by env ID.
+	 */
+	private final WriteBehindQueue<PendingFieldHistory> pendingEntries = new WriteBehindQueue<PendingFieldHistory>(FIELD_HISTORY_WRITER_JOB_PREFIX);
+	
+	/**
+	 * Creates a field history entry describing an update of a simple property. The entry is not saved.
 	 * @param field
 	 * @param recordId
 	 * @param oldValue
 	 * @param newValue
 	 * @param authData
-	 * @param env
 	 * @return
 	 * @throws KommetException
 	 */
-	@Transactional
-	public FieldHistory logFieldUpdate (Field field, KID recordId, Object oldValue, Object newValue, AuthData authData, EnvData env) throws KommetException
+	public static FieldHistory getFieldUpdate (Field field, KID recordId, Object oldValue, Object newValue, AuthData authData) throws KommetException
 	{
 		FieldHistory fh = new FieldHistory();
 		fh.setFieldId(field.getKID());
@@ -53,12 +96,202 @@ public class FieldHistoryService
 		fh.setOldValue(oldValue != null ? dt.getStringValue(oldValue, authData.getLocale()) : null);
 		fh.setNewValue(dt.getStringValue(newValue, authData.getLocale()));
 		fh.setOperation(FieldHistoryOperation.UPDATE.toString());
+		return fh;
+	}
+	
+	/**
+	 * Logs an update of a simple property.
+	 * @param field
+	 * @param recordId
+	 * @param oldValue
+	 * @param newValue
+	 * @param authData
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	@Transactional
+	public FieldHistory logFieldUpdate (Field field, KID recordId, Object oldValue, Object newValue, AuthData authData, EnvData env) throws KommetException
+	{
+		FieldHistory fh = getFieldUpdate(field, recordId, oldValue, newValue, authData);
 		
 		// all users are allowed to create field history records, because all users may be saving records
 		// this is why we pass a flag to skip create permission check
 		return dao.save(fh, false, false, true, false, authData, env);
 	}
 	
+	/**
+	 * Logs a list of field history entries.
+	 * <p>
+	 * By default all entries are inserted at once using bulk insert queries. If asynchronous field history is enabled
+	 * (property <tt>kommet.fieldhistory.async</tt>), the entries are queued when the current transaction is committed
+	 * and written in the background by the field history writer job, so that saving records does not wait for them.
+	 * Entries are written at most <tt>kommet.fieldhistory.async.maxlag.seconds</tt> seconds after they have been queued.
+	 * If more than <tt>kommet.fieldhistory.async.maxqueue</tt> entries are already waiting, new entries are written
+	 * synchronously instead, so that the queue does not grow without bounds when the writer cannot keep up.
+	 * </p>
+	 * <p>
+	 * Asynchronous mode trades durability for latency. The queue is kept in memory only, so entries that have not been
+	 * written yet are lost when the server stops or crashes, even though the changes they describe have been committed.
+	 * Entries are also given up after a number of failed write attempts. Field history should be written synchronously
+	 * if it has to be complete, e.g. when it serves as an audit trail.
+	 * </p>
+	 * @param entries
+	 * @param authData user who made the changes
+	 * @param env
+	 * @throws KommetException
+	 */
+	@Transactional
+	public void logFieldUpdates (List<FieldHistory> entries, AuthData authData, EnvData env) throws KommetException
+	{
+		if (entries.isEmpty())
+		{
+			return;
+		}
+		
+		if (!appConfig.isFieldHistoryAsync() || pendingEntries.size(env) + entries.size() > appConfig.getFieldHistoryMaxQueueSize())
+		{
+			insert(entries, authData, env);
+			return;
+		}
+		
+		List<PendingFieldHistory> pending = new ArrayList<PendingFieldHistory>();
+		for (FieldHistory fh : entries)
+		{
+			pending.add(new PendingFieldHistory(fh, authData));
+		}
+		
+		// entries are queued only if the changes they describe have been committed
+		pendingEntries.addAfterCommit(pending, appConfig.getFieldHistoryBatchSize(), schedulerFactory, env);
+	}
+	
+	/**
+	 * Writes all field history entries queued in asynchronous mode on the given env.
+	 * @param env
+	 * @return the number of written entries
+	 * @throws KommetException
+	 */
+	@Override
+	public int flush (EnvData env) throws KommetException
+	{
+		int batchSize = appConfig.getFieldHistoryBatchSize();
+		int writtenEntries = 0;
+		
+		// entries that could not be written are returned to the queue after all batches have been polled,
+		// so that they are not attempted again in the same run
+		List<PendingFieldHistory> failedEntries = new ArrayList<PendingFieldHistory>();
+		
+		List<PendingFieldHistory> batch;
+		while (!(batch = pendingEntries.poll(batchSize, env)).isEmpty())
+		{
+			// entries are saved in the name of the users who made the changes
+			Map<KID, List<PendingFieldHistory>> entriesByUser = new LinkedHashMap<KID, List<PendingFieldHistory>>();
+			
+			for (PendingFieldHistory pending : batch)
+			{
+				KID userId = pending.getAuthData().getUserId();
+				if (!entriesByUser.containsKey(userId))
+				{
+					entriesByUser.put(userId, new ArrayList<PendingFieldHistory>());
+				}
+				entriesByUser.get(userId).add(pending);
+			}
+			
+			for (List<PendingFieldHistory> userEntries : entriesByUser.values())
+			{
+				List<FieldHistory> fieldHistories = new ArrayList<FieldHistory>();
+				for (PendingFieldHistory pending : userEntries)
+				{
+					fieldHistories.add(pending.getFieldHistory());
+				}
+				
+				// each batch is written in its own transaction that is either committed or rolled back as a whole,
+				// so retrying a failed batch never duplicates entries from it
+				TransactionStatus tx = txManager.getTransaction(new DefaultTransactionDefinition(TransactionDefinition.PROPAGATION_REQUIRES_NEW));
+				try
+				{
+					insert(fieldHistories, userEntries.get(0).getAuthData(), env);
+					txManager.commit(tx);
+					writtenEntries += fieldHistories.size();
+				}
+				catch (Exception e)
+				{
+					if (!tx.isCompleted())
+					{
+						txManager.rollback(tx);
+					}
+					
+					log.error("Error writing " + fieldHistories.size() + " field history entries: " + e.getMessage());
+					
+					for (PendingFieldHistory pending : userEntries)
+					{
+						// IDs assigned to entries in the rolled back transaction do not exist
+						pending.getFieldHistory().setId(null);
+						
+						if (pending.incrementAttempts() < MAX_WRITE_ATTEMPTS)
+						{
+							failedEntries.add(pending);
+						}
+						else
+						{
+							FieldHistory fh = pending.getFieldHistory();
+							log.error("Giving up field history entry after " + MAX_WRITE_ATTEMPTS + " attempts: record " + fh.getRecordId() + ", field " + fh.getFieldId() + ", old value " + fh.getOldValue() + ", new value " + fh.getNewValue());
+						}
+					}
+				}
+			}
+		}
+		
+		if (!failedEntries.isEmpty())
+		{
+			pendingEntries.add(failedEntries, env);
+		}
+		
+		return writtenEntries;
+	}
+	
+	/**
+	 * Returns the number of field history entries waiting to be written in asynchronous mode on the given env.
+	 * @param env
+	 * @return
+	 */
+	public int getPendingCount (EnvData env)
+	{
+		return pendingEntries.size(env);
+	}
+	
+	/**
+	 * Inserts field history entries using bulk insert queries.
+	 * @param entries
+	 * @param authData
+	 * @param env
+	 * @throws KommetException
+	 */
+	private void insert (List<FieldHistory> entries, AuthData authData, EnvData env) throws KommetException
+	{
+		Type fieldHistoryType = env.getType(SystemTypes.getSystemTypeQualifiedName(SystemTypes.FIELD_HISTORY_API_NAME));
+		
+		List<Record> records = new ArrayList<Record>();
+		for (FieldHistory fh : entries)
+		{
+			records.add(RecordProxyUtil.generateRecord(fh, fieldHistoryType, 1, env));
+		}
+		
+		// all users are allowed to create field history records, because all users may be saving records
+		// this is why we pass a flag to skip create permission check
+		dataService.saveAll(records, false, false, true, authData, env);
+		
+		for (int i = 0; i < entries.size(); i++)
+		{
+			entries.get(i).setId(records.get(i).getKID());
+		}
+	}
+	
+	public void scheduleFieldHistoryWriter (EnvData env) throws KommetException, SchedulerException
+	{
+		pendingEntries.scheduleWriter(this, appConfig.getFieldHistoryMaxLagSeconds(), schedulerFactory, env);
+	}
+	
 	/**
 	 * Logs an update of a collection field.
 	 * @param field
@@ -91,4 +324,36 @@ public class FieldHistoryService
 	{
 		return dao.find(filter, env);
 	}
+	
+	private static class PendingFieldHistory
+	{
+		private final FieldHistory fieldHistory;
+		private final AuthData authData;
+		private int attempts;
+		
+		public PendingFieldHistory (FieldHistory fieldHistory, AuthData authData)
+		{
+			this.fieldHistory = fieldHistory;
+			this.authData = authData;
+		}
+
+		public FieldHistory getFieldHistory()
+		{
+			return fieldHistory;
+		}
+
+		public AuthData getAuthData()
+		{
+			return authData;
+		}
+		
+		/**
+		 * Records a failed attempt to write the entry.
+		 * @return the number of failed attempts
+		 */
+		public int incrementAttempts()
+		{
+			return ++attempts;
+		}
+	}
 }
\ No newline at end of file
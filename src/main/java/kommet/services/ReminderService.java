@@ -7,10 +7,19 @@
 
 package kommet.services;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
@@ -32,6 +41,7 @@ import kommet.basic.Notification;
 import kommet.basic.Reminder;
 import kommet.basic.User;
 import kommet.dao.ReminderDao;
+import kommet.dao.ReminderScheduleDao;
 import kommet.data.DataAccessUtil;
 import kommet.data.DataService;
 import kommet.data.Field;
@@ -47,6 +57,8 @@ import kommet.filters.ReminderFilter;
 import kommet.notifications.NotificationService;
 import kommet.reminders.ReminderCheckerJob;
 import kommet.reminders.ReminderCheckerJobDetail;
+import kommet.reminders.ReminderTimerWheel;
+import kommet.reminders.ScheduledReminder;
 
 @Service
 public class ReminderService
@@ -54,6 +66,9 @@ public class ReminderService
 	@Inject
 	ReminderDao dao;
 	
+	@Inject
+	ReminderScheduleDao scheduleDao;
+	
 	@Inject
 	DataService dataService;
 	
@@ -73,20 +88,338 @@ public class ReminderService
 	
 	public static final String REMINDER_CHECKER_JOB_PREFIX = "reminder-checker";
 	
+	// reminders are due with the precision of one minute, so the timer wheel has one slot per minute
+	private static final long WHEEL_SLOT_MILLIS = 60000;
+	
+	// number of slots in the timer wheel, which determines how far ahead reminders are loaded from the database
+	private static final int WHEEL_SLOT_COUNT = 60;
+	
+	// timer wheels holding reminders due soon, by env ID
+	private final Map<KID, ReminderTimerWheel> wheels = new ConcurrentHashMap<KID, ReminderTimerWheel>();
+	
+	// types of records referenced by scheduled reminders, by env ID
+	private final Map<KID, Set<KID>> scheduledTypes = new ConcurrentHashMap<KID, Set<KID>>();
+	
+	/**
+	 * Sends reminders that are due.
+	 * <p>
+	 * Reminders are indexed by their due time in the reminder schedule. Reminders due within the near window
+	 * are loaded from the schedule into a timer wheel, so that each run only looks at reminders that are actually due,
+	 * and the schedule is queried only when the window moves forward.
+	 * </p>
+	 * @param authData
+	 * @param env
+	 * @throws KommetException
+	 */
 	@Transactional
 	public void runReminders (AuthData authData, EnvData env) throws KommetException
 	{
-		Date currentDate = new Date();
+		ReminderTimerWheel wheel = wheels.get(env.getId());
+		if (wheel == null)
+		{
+			wheel = initSchedule(authData, env);
+		}
+		
+		long now = System.currentTimeMillis();
+		Set<KID> dueReminderIds = new LinkedHashSet<KID>(wheel.pollDue(now));
+		
+		if (now + wheel.getSpanMillis() / 2 >= wheel.getLoadedUntil())
+		{
+			// move the window forward, loading reminders that will be due within its span
+			long until = now + wheel.getSpanMillis();
+			wheel.load(scheduleDao.getDue(new Date(until), env), until);
+			dueReminderIds.addAll(wheel.pollDue(now));
+		}
+		
+		if (!dueReminderIds.isEmpty())
+		{
+			sendDueReminders(dueReminderIds, new Date(now), authData, env);
+		}
+	}
+	
+	/**
+	 * Sends the given reminders, querying them and the records they reference in batches.
+	 * Reminders whose referenced date has changed since they were scheduled are scheduled anew instead.
+	 * @param reminderIds
+	 * @param currentDate
+	 * @param authData
+	 * @param env
+	 * @throws KommetException
+	 */
+	private void sendDueReminders (Collection<KID> reminderIds, Date currentDate, AuthData authData, EnvData env) throws KommetException
+	{
+		ReminderFilter filter = new ReminderFilter();
+		for (KID reminderId : reminderIds)
+		{
+			filter.addReminderId(reminderId);
+		}
+		
+		List<Reminder> reminders = get(filter, authData, env);
+		Map<KID, Record> records = getReferencedRecords(reminders, authData, env);
+		ReminderTimerWheel wheel = wheels.get(env.getId());
+		
+		// schedule entries of reminders deleted without updating the schedule
+		Set<KID> obsoleteEntries = new HashSet<KID>(reminderIds);
+		
+		for (Reminder reminder : reminders)
+		{
+			if ("sent".equals(reminder.getStatus()))
+			{
+				continue;
+			}
+			
+			obsoleteEntries.remove(reminder.getId());
+			
+			Record record = records.get(reminder.getRecordId());
+			if (record == null)
+			{
+				log.info("Record " + reminder.getRecordId() + " referenced by reminder " + reminder.getId() + " does not exist. Deleting the reminder");
+				
+				// the records for which the reminder was created have been removed, so we will remove the reminder as well
+				delete(reminder.getId(), authData, env);
+				continue;
+			}
+			
+			Date fireTime = getFireTime(reminder, record, env);
+			if (fireTime == null || fireTime.after(currentDate))
+			{
+				scheduleDao.updateNextFire(reminder.getId(), fireTime, env);
+				wheel.schedule(reminder.getId(), fireTime != null ? fireTime.getTime() : null);
+				continue;
+			}
+			
+			// sending the reminder marks it as sent, which removes it from the schedule
+			sendReminder(record, reminder, authData, env);
+		}
+		
+		scheduleDao.delete(obsoleteEntries, env);
+	}
+	
+	/**
+	 * Fills the reminder schedule with all reminders that have not been sent yet and creates the timer wheel for the env.
+	 * Reminders created before the schedule existed are thus scheduled as well.
+	 * @param authData
+	 * @param env
+	 * @return
+	 * @throws KommetException
+	 */
+	private synchronized ReminderTimerWheel initSchedule (AuthData authData, EnvData env) throws KommetException
+	{
+		ReminderTimerWheel wheel = wheels.get(env.getId());
+		if (wheel != null)
+		{
+			return wheel;
+		}
+		
+		scheduleDao.deleteAll(env);
 		
+		List<Reminder> pendingReminders = new ArrayList<Reminder>();
 		for (Reminder reminder : get(new ReminderFilter(), authData, env))
-		{	
-			Record record = isReminderToSend(reminder, currentDate, authData, env);
-			if (record != null)
+		{
+			if (!"sent".equals(reminder.getStatus()))
+			{
+				pendingReminders.add(reminder);
+			}
+		}
+		
+		Map<KID, Record> records = getReferencedRecords(pendingReminders, authData, env);
+		Set<KID> typeIds = Collections.newSetFromMap(new ConcurrentHashMap<KID, Boolean>());
+		
+		for (Reminder reminder : pendingReminders)
+		{
+			Record record = records.get(reminder.getRecordId());
+			if (record == null)
+			{
+				log.info("Record " + reminder.getRecordId() + " referenced by reminder " + reminder.getId() + " does not exist. Deleting the reminder");
+				dao.delete(reminder.getId(), authData, env);
+				continue;
+			}
+			
+			scheduleDao.save(getScheduleEntry(reminder, getFireTime(reminder, record, env)), env);
+			typeIds.add(record.getType().getKID());
+		}
+		
+		scheduledTypes.put(env.getId(), typeIds);
+		
+		wheel = new ReminderTimerWheel(WHEEL_SLOT_COUNT, WHEEL_SLOT_MILLIS, System.currentTimeMillis());
+		wheels.put(env.getId(), wheel);
+		return wheel;
+	}
+	
+	/**
+	 * Updates the due time of reminders referencing the given record, if the record's referenced date has been changed.
+	 * @param record Updated record
+	 * @param type
+	 * @param env
+	 * @throws KommetException
+	 */
+	public void recordUpdated (Record record, Type type, EnvData env) throws KommetException
+	{
+		Set<KID> typeIds = scheduledTypes.get(env.getId());
+		if (typeIds == null || !typeIds.contains(type.getKID()))
+		{
+			// no reminders reference records of this type, so there is no need to look them up
+			return;
+		}
+		
+		ReminderTimerWheel wheel = wheels.get(env.getId());
+		
+		for (ScheduledReminder entry : scheduleDao.getByRecord(record.getKID(), env))
+		{
+			Field field = type.getField(entry.getReferencedField());
+			if (field == null || !record.isSet(field.getApiName()))
+			{
+				continue;
+			}
+			
+			Date fireTime = getFireTime((Date)record.getField(field.getApiName()), entry.getIntervalUnit(), entry.getIntervalValue());
+			scheduleDao.updateNextFire(entry.getReminderId(), fireTime, env);
+			wheel.schedule(entry.getReminderId(), fireTime != null ? fireTime.getTime() : null);
+		}
+	}
+	
+	/**
+	 * Updates the schedule entry of a saved reminder.
+	 * @param reminder
+	 * @param type
+	 * @param field
+	 * @param authData
+	 * @param env
+	 * @throws KommetException
+	 */
+	private void updateSchedule (Reminder reminder, Type type, Field field, AuthData authData, EnvData env) throws KommetException
+	{
+		ReminderTimerWheel wheel = wheels.get(env.getId());
+		
+		if ("sent".equals(reminder.getStatus()))
+		{
+			unschedule(Arrays.asList(reminder.getId()), env);
+			return;
+		}
+		
+		List<Record> records = dataService.getRecords(Arrays.asList(reminder.getRecordId()), type, Arrays.asList(Field.ID_FIELD_NAME, field.getApiName()), authData, env);
+		Date fireTime = records.isEmpty() ? null : getFireTime((Date)records.get(0).getField(field.getApiName()), reminder.getIntervalUnit(), reminder.getIntervalValue());
+		
+		scheduleDao.save(getScheduleEntry(reminder, fireTime), env);
+		
+		Set<KID> typeIds = scheduledTypes.get(env.getId());
+		if (typeIds != null)
+		{
+			typeIds.add(type.getKID());
+		}
+		
+		if (wheel != null)
+		{
+			wheel.schedule(reminder.getId(), fireTime != null ? fireTime.getTime() : null);
+		}
+	}
+	
+	private void unschedule (Collection<KID> reminderIds, EnvData env) throws KommetException
+	{
+		scheduleDao.delete(reminderIds, env);
+		
+		ReminderTimerWheel wheel = wheels.get(env.getId());
+		if (wheel != null)
+		{
+			for (KID reminderId : reminderIds)
+			{
+				wheel.cancel(reminderId);
+			}
+		}
+	}
+	
+	private static ScheduledReminder getScheduleEntry (Reminder reminder, Date fireTime)
+	{
+		ScheduledReminder entry = new ScheduledReminder();
+		entry.setReminderId(reminder.getId());
+		entry.setRecordId(reminder.getRecordId());
+		entry.setReferencedField(reminder.getReferencedField());
+		entry.setIntervalUnit(reminder.getIntervalUnit());
+		entry.setIntervalValue(reminder.getIntervalValue());
+		entry.setNextFire(fireTime);
+		return entry;
+	}
+	
+	/**
+	 * Queries records referenced by the given reminders, with one query for each type, fetching only the referenced date fields.
+	 * @param reminders
+	 * @param authData
+	 * @param env
+	 * @return records by their IDs
+	 * @throws KommetException
+	 */
+	private Map<KID, Record> getReferencedRecords (Collection<Reminder> reminders, AuthData authData, EnvData env) throws KommetException
+	{
+		Map<KID, Set<KID>> recordIdsByType = new HashMap<KID, Set<KID>>();
+		Map<KID, Set<String>> fieldsByType = new HashMap<KID, Set<String>>();
+		
+		for (Reminder reminder : reminders)
+		{
+			Type type = env.getTypeByRecordId(reminder.getRecordId());
+			if (type == null)
+			{
+				throw new KommetException("Type not found by record ID " + reminder.getRecordId());
+			}
+			
+			if (!recordIdsByType.containsKey(type.getKID()))
+			{
+				recordIdsByType.put(type.getKID(), new HashSet<KID>());
+				fieldsByType.put(type.getKID(), new HashSet<String>(Arrays.asList(Field.ID_FIELD_NAME)));
+			}
+			
+			recordIdsByType.get(type.getKID()).add(reminder.getRecordId());
+			fieldsByType.get(type.getKID()).add(getReferencedField(reminder, type).getApiName());
+		}
+		
+		Map<KID, Record> records = new HashMap<KID, Record>();
+		
+		for (KID typeId : recordIdsByType.keySet())
+		{
+			Type type = env.getType(typeId);
+			for (Record record : dataService.getRecords(recordIdsByType.get(typeId), type, new ArrayList<String>(fieldsByType.get(typeId)), authData, env))
 			{
-				// send reminder
-				sendReminder(record, reminder, authData, env);
+				records.put(record.getKID(), record);
 			}
 		}
+		
+		return records;
+	}
+	
+	private static Field getReferencedField (Reminder reminder, Type type) throws KommetException
+	{
+		Field field = type.getField(reminder.getReferencedField());
+		
+		if (field == null)
+		{
+			throw new FieldValidationException("Field with ID " + reminder.getReferencedField() + " does not exist on type " + type.getQualifiedName());
+		}
+		
+		if (!field.getDataTypeId().equals(DataType.DATE) && !field.getDataTypeId().equals(DataType.DATETIME))
+		{
+			throw new FieldValidationException("Field " + field.getApiName() + " referenced by a reminder is not a date/datetime field");
+		}
+		
+		return field;
+	}
+	
+	private static Date getFireTime (Reminder reminder, Record record, EnvData env) throws KommetException
+	{
+		Field field = getReferencedField(reminder, env.getTypeByRecordId(reminder.getRecordId()));
+		return getFireTime((Date)record.getField(field.getApiName()), reminder.getIntervalUnit(), reminder.getIntervalValue());
+	}
+	
+	/**
+	 * Returns the time when a reminder is due, i.e. the time when the interval of the reminder has passed
+	 * since the referenced date.
+	 * @param referencedDate
+	 * @param intervalUnit
+	 * @param intervalValue
+	 * @return the due time, or null if the referenced date is not set
+	 * @throws KommetException
+	 */
+	private static Date getFireTime (Date referencedDate, String intervalUnit, Integer intervalValue) throws KommetException
+	{
+		return referencedDate != null ? shiftByInterval(referencedDate, intervalUnit, intervalValue, 1) : null;
 	}
 	
 	public void scheduleReminderChecker(EnvData env) throws SchedulerException
@@ -108,8 +441,8 @@ public class ReminderService
 		job.setGroup(jobGroup);
 		job.setJobClass(ReminderCheckerJob.class);
 
-		// Trigger the job to run now, and then repeat every 2 minutes
-		CronTrigger trigger = TriggerBuilder.newTrigger().withIdentity(jobName + "-trigger", jobGroup).withSchedule(CronScheduleBuilder.cronSchedule("0 */2 * * * ?")).build();
+		// Trigger the job every minute - runs only poll the timer wheel, so they are cheap unless there are reminders to send
+		CronTrigger trigger = TriggerBuilder.newTrigger().withIdentity(jobName + "-trigger", jobGroup).withSchedule(CronScheduleBuilder.cronSchedule("0 * * * * ?")).build();
 		schedulerFactory.getScheduler().scheduleJob(job, trigger);
 	}
 	
@@ -198,46 +531,60 @@ public class ReminderService
 	}
 
 	private Date getIntervalForCalendar(Date referencedDate, Reminder reminder) throws KommetException
+	{
+		return shiftByInterval(referencedDate, reminder.getIntervalUnit(), reminder.getIntervalValue(), -1);
+	}
+	
+	/**
+	 * Moves the date, truncated to full minutes, forward or back by the interval of a reminder.
+	 * @param date
+	 * @param intervalUnit
+	 * @param intervalValue
+	 * @param direction 1 to move the date forward, -1 to move it back
+	 * @return
+	 * @throws KommetException
+	 */
+	private static Date shiftByInterval(Date date, String intervalUnit, Integer intervalValue, int direction) throws KommetException
 	{
 		Calendar c = Calendar.getInstance();
-		c.setTime(referencedDate);
+		c.setTime(date);
 		c.set(Calendar.SECOND, 0);
 		c.set(Calendar.MILLISECOND, 0);
 		
-		Integer value = reminder.getIntervalValue();
+		Integer value = intervalValue;
 		Integer unit = null; 
 		
-		if ("year".equals(reminder.getIntervalUnit()))
+		if ("year".equals(intervalUnit))
 		{
 			unit = Calendar.YEAR;
 		}
-		else if ("month".equals(reminder.getIntervalUnit()))
+		else if ("month".equals(intervalUnit))
 		{
 			unit = Calendar.MONTH;
 		}
-		else if ("week".equals(reminder.getIntervalUnit()))
+		else if ("week".equals(intervalUnit))
 		{
 			unit = Calendar.DATE;
 			value = 7;
 		}
-		else if ("day".equals(reminder.getIntervalUnit()))
+		else if ("day".equals(intervalUnit))
 		{
 			unit = Calendar.DATE;
 		}
-		else if ("hour".equals(reminder.getIntervalUnit()))
+		else if ("hour".equals(intervalUnit))
 		{
 			unit = Calendar.HOUR;
 		}
-		else if ("minute".equals(reminder.getIntervalUnit()))
+		else if ("minute".equals(intervalUnit))
 		{
 			unit = Calendar.MINUTE;
 		}
 		else
 		{
-			throw new KommetException("Unsupported reminder interval unit " + reminder.getIntervalUnit());
+			throw new KommetException("Unsupported reminder interval unit " + intervalUnit);
 		}
 		
-		c.add(unit, -1 * value);
+		c.add(unit, direction * value);
 		
 		return c.getTime();
 	}
@@ -274,7 +621,9 @@ public class ReminderService
 			throw new FieldValidationException("Field " + field.getApiName() + " referenced by a reminder is not a date/datetime field");
 		}
 		
-		return dao.save(reminder, authData, env);
+		reminder = dao.save(reminder, authData, env);
+		updateSchedule(reminder, type, field, authData, env);
+		return reminder;
 	}
 	
 	@Transactional(readOnly = true)
@@ -287,6 +636,7 @@ public class ReminderService
 	public void delete(KID id, AuthData authData, EnvData env) throws KommetException
 	{
 		dao.delete(id, authData, env);
+		unschedule(Arrays.asList(id), env);
 	}
 
 	@Transactional(readOnly = true)
@@ -302,5 +652,12 @@ public class ReminderService
 	public void delete(List<Reminder> reminders, AuthData authData, EnvData env) throws KommetException
 	{
 		dao.delete(reminders, authData, env);
+		
+		List<KID> reminderIds = new ArrayList<KID>();
+		for (Reminder reminder : reminders)
+		{
+			reminderIds.add(reminder.getId());
+		}
+		unschedule(reminderIds, env);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,306 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import kommet.auth.AuthData;
+import kommet.dao.queries.Criteria;
+import kommet.dao.queries.Restriction;
+import kommet.dao.queries.SortDirection;
+import kommet.data.Field;
+import kommet.data.KommetException;
+import kommet.data.Record;
+import kommet.data.Type;
+import kommet.data.datatypes.DataType;
+import kommet.env.EnvData;
+import kommet.utils.AppConfig;
+
+/**
+ * Finds records whose field value starts with a given prefix, for lookups and autocomplete fields.
+ * <p>
+ * Matching is case-insensitive and the number of returned records is limited. Records are queried with the
+ * permissions and sharings of the searching user. Results are cached per user for a short time, and a result
+ * for a longer prefix is filtered in memory from a cached result for a shorter prefix, if the latter was complete.
+ * </p>
+ * <p>
+ * Prefix searches on large tables should be backed by a trigram index on the searched column, so that they do not
+ * scan the whole table. Searches never create indexes - they are created by administrators with
+ * {@link #createIndex(Type, String, EnvData)}.
+ * </p>
+ * @author Radek Krawiec
+ */
+@Service
+public class TypeaheadService
+{
+	@Inject
+	AppConfig appConfig;
+
+	private static final Logger log = LoggerFactory.getLogger(TypeaheadService.class);
+
+	// cached search results, by env, user, type, field and lower-case prefix
+	private Map<String, CachedResult> cache;
+
+	/**
+	 * Returns records whose field value starts with the given prefix, ignoring case.
+	 * @param type Type of the records
+	 * @param fieldApiName Name of the searched field, must be a text, email or auto-number field
+	 * @param prefix Prefix of the field value, if empty, records with any value are returned
+	 * @param limit Maximum number of records, capped by the <tt>kommet.typeahead.limit</tt> setting, or null to use the setting
+	 * @param authData
+	 * @param env
+	 * @return records with the ID and the searched field, ordered by the searched field
+	 * @throws KommetException
+	 */
+	public List<Record> search (Type type, String fieldApiName, String prefix, Integer limit, AuthData authData, EnvData env) throws KommetException
+	{
+		getSearchableField(type, fieldApiName);
+
+		int maxLimit = appConfig.getTypeaheadLimit();
+		if (limit == null || limit < 1 || limit > maxLimit)
+		{
+			limit = maxLimit;
+		}
+
+		String lowerCasePrefix = prefix != null ? prefix.toLowerCase() : "";
+		String keyBase = env.getId() + ":" + authData.getUserId() + ":" + type.getKID() + ":" + fieldApiName + ":" + limit + ":";
+
+		List<Record> records = getCachedResult(keyBase, lowerCasePrefix, fieldApiName);
+		if (records != null)
+		{
+			return records;
+		}
+
+		Criteria c = env.getSelectCriteria(type.getKID(), authData);
+		c.addProperty(Field.ID_FIELD_NAME);
+		c.addProperty(fieldApiName);
+
+		if (!lowerCasePrefix.isEmpty())
+		{
+			c.add(Restriction.ilike(fieldApiName, escapeLikePattern(prefix) + "%"));
+		}
+
+		c.addOrderBy(SortDirection.ASC, fieldApiName);
+		c.setLimit(limit);
+
+		records = Collections.unmodifiableList(c.list());
+		putCachedResult(keyBase + lowerCasePrefix, new CachedResult(records, records.size() < limit));
+		return records;
+	}
+
+	/**
+	 * Looks for a cached result for the prefix, or for a complete cached result for a shorter prefix that can be filtered.
+	 */
+	private List<Record> getCachedResult (String keyBase, String lowerCasePrefix, String fieldApiName) throws KommetException
+	{
+		if (getCache() == null)
+		{
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+
+		for (int i = lowerCasePrefix.length(); i >= 0; i--)
+		{
+			CachedResult result = null;
+			synchronized (cache)
+			{
+				result = cache.get(keyBase + lowerCasePrefix.substring(0, i));
+			}
+
+			if (result == null || result.expirationTime < now)
+			{
+				continue;
+			}
+
+			if (i == lowerCasePrefix.length())
+			{
+				return result.records;
+			}
+			else if (result.isComplete)
+			{
+				// all records matching the shorter prefix are known, so the ones matching the longer prefix can be selected from them
+				List<Record> records = new ArrayList<Record>();
+				for (Record record : result.records)
+				{
+					Object value = record.attemptGetField(fieldApiName);
+					if (value != null && String.valueOf(value).toLowerCase().startsWith(lowerCasePrefix))
+					{
+						records.add(record);
+					}
+				}
+
+				records = Collections.unmodifiableList(records);
+				putCachedResult(keyBase + lowerCasePrefix, new CachedResult(records, true, result.expirationTime));
+				return records;
+			}
+		}
+
+		return null;
+	}
+
+	private void putCachedResult (String key, CachedResult result) throws KommetException
+	{
+		if (getCache() != null)
+		{
+			synchronized (cache)
+			{
+				cache.put(key, result);
+			}
+		}
+	}
+
+	private synchronized Map<String, CachedResult> getCache() throws KommetException
+	{
+		if (this.cache == null && appConfig.getTypeaheadCacheTTL() > 0)
+		{
+			final int maxSize = appConfig.getTypeaheadCacheSize();
+
+			// access-ordered map that removes the least recently used result when the size is exceeded
+			this.cache = new LinkedHashMap<String, CachedResult>(16, 0.75f, true)
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry (Map.Entry<String, CachedResult> eldest)
+				{
+					return size() > maxSize;
+				}
+			};
+		}
+		return this.cache;
+	}
+
+	/**
+	 * Returns the field with the given name if it can be searched by prefix, i.e. it is a text, email or auto-number field.
+	 */
+	private static Field getSearchableField (Type type, String fieldApiName) throws KommetException
+	{
+		Field field = type.getField(fieldApiName);
+		if (field == null)
+		{
+			throw new KommetException("Field " + fieldApiName + " does not exist on type " + type.getQualifiedName());
+		}
+
+		if (!isSearchable(field))
+		{
+			throw new KommetException("Field " + type.getQualifiedName() + "." + fieldApiName + " cannot be searched by prefix because it is not a text field");
+		}
+
+		return field;
+	}
+
+	/**
+	 * Tells whether the field can be searched by prefix.
+	 * @param field
+	 * @return
+	 * @throws KommetException
+	 */
+	public static boolean isSearchable (Field field) throws KommetException
+	{
+		int dataTypeId = field.getDataTypeId();
+		return dataTypeId == DataType.TEXT || dataTypeId == DataType.EMAIL || dataTypeId == DataType.AUTO_NUMBER;
+	}
+
+	/**
+	 * Creates a trigram index on the column of the field, so that prefix searches on the field do not scan the whole table.
+	 * Trigram indexes can be used by case-insensitive prefix searches, unlike B-tree indexes.
+	 * <p>
+	 * The index is built concurrently so that it does not block writes to the table. This cannot be done within
+	 * a transaction, so the current transaction is suspended and the statements are executed in auto-commit mode.
+	 * A concurrent build that fails leaves behind an invalid index, which is not used by queries - such an index
+	 * is dropped and built again.
+	 * </p>
+	 * <p>
+	 * Creating the index requires the <tt>pg_trgm</tt> extension, which is installed by the env setup script.
+	 * </p>
+	 * @param type
+	 * @param fieldApiName
+	 * @param env
+	 * @return true if the index has been built, false if a valid index already existed
+	 * @throws KommetException
+	 */
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public boolean createIndex (Type type, String fieldApiName, EnvData env) throws KommetException
+	{
+		Field field = getSearchableField(type, fieldApiName);
+		String table = type.getDbTable();
+
+		// unquoted identifiers are stored in lower case, so the index is looked up by its lower-case name
+		String indexName = (table + "_" + field.getKID() + "_trgm").toLowerCase();
+
+		JdbcTemplate jdbcTemplate = env.getJdbcTemplate();
+
+		if (jdbcTemplate.queryForList("SELECT 1 FROM pg_extension WHERE extname = 'pg_trgm'").isEmpty())
+		{
+			throw new KommetException("Typeahead index cannot be created because extension pg_trgm is not installed in the database of env " + env.getId());
+		}
+
+		List<Boolean> indexValidity = jdbcTemplate.queryForList("SELECT i.indisvalid FROM pg_index i INNER JOIN pg_class c ON c.oid = i.indexrelid WHERE c.relname = ?", Boolean.class, indexName);
+		if (!indexValidity.isEmpty())
+		{
+			if (Boolean.TRUE.equals(indexValidity.get(0)))
+			{
+				return false;
+			}
+
+			log.warn("Dropping invalid typeahead index " + indexName + " left by a failed build");
+			jdbcTemplate.execute("DROP INDEX CONCURRENTLY IF EXISTS " + indexName);
+		}
+
+		log.info("Creating typeahead index " + indexName + " on " + table + "." + field.getDbColumn());
+		jdbcTemplate.execute("CREATE INDEX CONCURRENTLY " + indexName + " ON " + table + " USING gin (" + field.getDbColumn() + " gin_trgm_ops)");
+		return true;
+	}
+
+	/**
+	 * Escapes characters that have a special meaning in LIKE patterns. Quotes are not escaped here, because
+	 * the pattern is rendered as an SQL literal by the data type of the searched field, which escapes them.
+	 * @param value
+	 * @return
+	 */
+	private static String escapeLikePattern (String value)
+	{
+		return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+
+	private class CachedResult
+	{
+		private List<Record> records;
+
+		// tells whether the result contains all matching records, i.e. it was not cut off by the limit
+		private boolean isComplete;
+
+		private long expirationTime;
+
+		public CachedResult (List<Record> records, boolean isComplete) throws KommetException
+		{
+			this(records, isComplete, System.currentTimeMillis() + appConfig.getTypeaheadCacheTTL() * 1000L);
+		}
+
+		public CachedResult (List<Record> records, boolean isComplete, long expirationTime)
+		{
+			this.records = records;
+			this.isComplete = isComplete;
+			this.expirationTime = expirationTime;
+		}
+	}
+}
@@ -22,10 +22,16 @@ import org.quartz.JobDetail;
 import org.quartz.JobKey;
 import org.quartz.SchedulerException;
 import org.quartz.TriggerBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.jdbc.support.rowset.SqlRowSet;
 import org.springframework.scheduling.quartz.SchedulerFactoryBean;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
 
 import kommet.auth.AuthData;
 import kommet.basic.GroupRecordSharing;
@@ -46,6 +52,7 @@ import kommet.data.sharing.GroupHierarchyPath;
 import kommet.data.sharing.GroupRecordSharingDao;
 import kommet.data.sharing.GroupRecordSharingFilter;
 import kommet.data.sharing.PropagatedSharingData;
+import kommet.data.sharing.PropagatedUserSharing;
 import kommet.data.sharing.SharingService;
 import kommet.data.sharing.UgaApplierJob;
 import kommet.data.sharing.UgaApplierJobDetail;
@@ -60,6 +67,8 @@ import kommet.utils.ValidationUtil;
 @Service
 public class UserGroupService
 {
+	private static final Logger log = LoggerFactory.getLogger(UserGroupService.class);
+	
 	@Inject
 	UserGroupDao userGroupDao;
 	
@@ -78,6 +87,9 @@ public class UserGroupService
 	@Inject
 	SchedulerFactoryBean schedulerFactory;
 	
+	@Inject
+	PlatformTransactionManager txManager;
+	
 	// ten seconds limit
 	private static final int UGA_APPLIER_MILLIS_LIMIT = 60000;
 	
@@ -149,36 +161,52 @@ public class UserGroupService
 		
 		List<UserGroupAssignment> assignments = userGroupAssignmentDao.get(filter, null, env);
 		
-		System.out.println("[User group sharing] Found " + assignments.size() + " unapplied sharings");
+		log.debug("Found " + assignments.size() + " unapplied sharings");
 		
 		long startTime = System.currentTimeMillis();
 		int processedUgas = 0;
 		
 		for (UserGroupAssignment uga : assignments)
 		{
-			if (uga.getChildUser() != null)
+			// sharings of each assignment are propagated and the assignment is marked as applied in one transaction,
+			// so if propagation fails, the assignment remains pending and no sharings are left from the failed attempt
+			TransactionStatus tx = txManager.getTransaction(new DefaultTransactionDefinition(TransactionDefinition.PROPAGATION_REQUIRED));
+			try
 			{
-				propagateGroupSharingsToUser(uga, authData, env);
+				if (uga.getChildUser() != null)
+				{
+					propagateGroupSharingsToUser(uga, authData, env);
+				}
+				
+				if (uga.getChildGroup() != null)
+				{
+					propagateGroupSharingsToGroup(uga, authData, env);
+				}
+				
+				// mark the UGA as applied
+				uga.setIsApplyPending(false);
+				userGroupAssignmentDao.save(uga, authData, env);
+				txManager.commit(tx);
 			}
-			
-			if (uga.getChildGroup() != null)
+			catch (Exception e)
 			{
-				propagateGroupSharingsToGroup(uga, authData, env);
+				if (!tx.isCompleted())
+				{
+					txManager.rollback(tx);
+				}
+				throw e;
 			}
 			
-			// mark the UGA as applied
-			uga.setIsApplyPending(false);
-			userGroupAssignmentDao.save(uga, authData, env);
 			processedUgas++;
 			
 			if ((System.currentTimeMillis() - startTime) > UGA_APPLIER_MILLIS_LIMIT)
 			{
-				System.out.println("[User group sharing] Max time exceeded, processed " + processedUgas + " group sharings");
+				log.debug("Max time exceeded, processed " + processedUgas + " group sharings");
 				break;
 			}
 		}
 		
-		System.out.println("[User group sharing] Completed");
+		log.debug("Completed");
 	}
 	
 	public void scheduleUgaApplier (EnvData env) throws SchedulerException
@@ -237,11 +265,11 @@ public class UserGroupService
 	 */
 	private void propagateGroupSharingsToUser(UserGroupAssignment uga, AuthData authData, EnvData env) throws KommetException
 	{
-		System.out.println("[Sharing] Propagating group sharing to user " + uga.getId());
+		log.debug("Propagating group sharing to user " + uga.getId());
 		
 		Map<KID, GroupHierarchyPath> supergroups = getGroupsForUserWithHierarchy(uga.getChildUser().getId(), null, env);
 		
-		System.out.println("[Sharing] Found supergroups " + supergroups.size());
+		log.debug("Found supergroups " + supergroups.size());
 		
 		GroupRecordSharingFilter filter = new GroupRecordSharingFilter();
 		filter.setGroupIds(supergroups.keySet());
@@ -251,25 +279,14 @@ public class UserGroupService
 		// TODO is it now a problem that there can be millions of them? perhaps it should be done by a DB function?
 		List<GroupRecordSharing> groupRecordSharings = groupRecordSharingDao.find(filter, env);
 		
-		System.out.println("[Sharing] Supergroup record sharings " + groupRecordSharings.size());
-		int i = 0;
+		List<PropagatedUserSharing> sharings = new ArrayList<PropagatedUserSharing>();
+		
 		for (GroupRecordSharing grs : groupRecordSharings)
 		{
 			List<String> groupHierarchyIds = MiscUtils.idListToStringList(supergroups.get(grs.getGroup().getId()).getGroupToGroupAssignmentIds());
-			PropagatedSharingData psd = new PropagatedSharingData(grs.getId(), uga.getId(), groupHierarchyIds);
-			
-			if (i % 100 == 0)
-			{
-				System.out.println("[Sharing] Record " + i + " / " + groupRecordSharings.size());
-			}
-			
-			i++;
-			
-			sharingService.shareRecord(grs.getRecordId(), uga.getChildUser().getId(), grs.getEdit(), grs.getDelete(), grs.getReason(), false, psd, authData, env);
+			sharings.add(new PropagatedUserSharing(grs, uga.getChildUser().getId(), null, new PropagatedSharingData(grs.getId(), uga.getId(), groupHierarchyIds)));
 		}
 		
-		System.out.println("[Sharing] Querying group record sharings");
-		
 		// share with directly assigned group
 		filter = new GroupRecordSharingFilter();
 		Set<KID> groupIds = new HashSet<KID>();
@@ -277,28 +294,23 @@ public class UserGroupService
 		filter.setGroupIds(groupIds);
 		groupRecordSharings = groupRecordSharingDao.find(filter, env);
 		
-		System.out.println("[Sharing] Sharing directly associated records " + groupRecordSharings.size());
-		
-		i = 0;
 		for (GroupRecordSharing grs : groupRecordSharings)
 		{
-			PropagatedSharingData psd = new PropagatedSharingData(grs.getId(), uga.getId(), new ArrayList<String>());
-			
-			if (i % 100 == 0)
-			{
-				System.out.println("[Sharing] Record " + (i++));
-			}
-			
 			// the direct user group sharing will not have any group to group assignments, and also, no PropagatedSharingData is needed (really?)
-			sharingService.shareRecord(grs.getRecordId(), uga.getChildUser().getId(), grs.getEdit(), grs.getDelete(), grs.getReason(), false, psd, authData, env);
+			sharings.add(new PropagatedUserSharing(grs, uga.getChildUser().getId(), null, new PropagatedSharingData(grs.getId(), uga.getId(), new ArrayList<String>())));
 		}
 		
-		System.out.println("[Sharing] Propagating done");
+		log.debug("Sharing " + sharings.size() + " records");
+		
+		// all sharings are created with bulk queries
+		sharingService.sharePropagated(sharings, authData, env);
+		
+		log.debug("Propagating done");
 	}
 	
 	/*private void propagateGroupSharingsToUser(UserGroupAssignment uga, AuthData authData, EnvData env) throws KommetException
 	{
-		System.out.println("[Sharing] Propagating group sharing to user");
+		log.debug("Propagating group sharing to user");
 		Map<KID, GroupHierarchyPath> supergroups = getGroupsForUserWithHierarchy(uga.getChildUser().getId(), null, env);
 		
 		GroupRecordSharingFilter filter = new GroupRecordSharingFilter();
@@ -308,7 +320,7 @@ public class UserGroupService
 		// TODO is it now a problem that there can be millions of them? perhaps it should be done by a DB function?
 		List<GroupRecordSharing> groupRecordSharings = groupRecordSharingDao.find(filter, env);
 		
-		System.out.println("[Sharing] Group record sharings " + groupRecordSharings.size());
+		log.debug("Group record sharings " + groupRecordSharings.size());
 		
 		Map<KID, PropagatedSharingData> psdByRecord = new HashMap<KID, PropagatedSharingData>();
 		Map<KID, GroupRecordSharing> grsByRecord = new HashMap<KID, GroupRecordSharing>();
@@ -322,7 +334,7 @@ public class UserGroupService
 		
 		sharingService.shareRecordsByGRS(psdByRecord, grsByRecord, false, authData, env);
 		
-		System.out.println("[Sharing] Querying group record sharings");
+		log.debug("Querying group record sharings");
 		
 		// share with directly assigned group
 		filter = new GroupRecordSharingFilter();
@@ -331,7 +343,7 @@ public class UserGroupService
 		filter.setGroupIds(groupIds);
 		groupRecordSharings = groupRecordSharingDao.find(filter, env);
 		
-		System.out.println("[Sharing] Sharing records " + groupRecordSharings.size());
+		log.debug("Sharing records " + groupRecordSharings.size());
 		
 		for (GroupRecordSharing grs : groupRecordSharings)
 		{
@@ -341,7 +353,7 @@ public class UserGroupService
 			sharingService.shareRecord(grs.getRecordId(), uga.getChildUser().getId(), grs.getEdit(), grs.getDelete(), grs.getReason(), false, psd, authData, env);
 		}
 		
-		System.out.println("[Sharing] Propagating done");
+		log.debug("Propagating done");
 	}*/
 	
 	/**
@@ -461,8 +473,8 @@ public class UserGroupService
 		childGroup.setId(childGroupId);
 		uga.setChildGroup(childGroup);
 		
-		// this sharing will be propagated later by a scheduled job UgaApplierJob
-		uga.setIsApplyPending(true);
+		// unless it is applied immediately, this sharing will be propagated later by a scheduled job UgaApplierJob
+		uga.setIsApplyPending(!isApplyImmediately);
 		
 		try
 		{
@@ -491,7 +503,7 @@ public class UserGroupService
 	
 	private void propagateGroupSharingsToGroup(UserGroupAssignment uga, AuthData authData, EnvData env) throws KommetException
 	{
-		System.out.println("[Sharing] Propagating group sharing to group " + uga.getId());
+		log.debug("Propagating group sharing to group " + uga.getId());
 		
 		// find all supergroups of the parent group
 		Map<KID, GroupHierarchyPath> supergroups = new HashMap<KID, GroupHierarchyPath>();
@@ -507,25 +519,12 @@ public class UserGroupService
 		// TODO is it now a problem that there can be millions of them? perhaps it should be done by a DB function?
 		List<GroupRecordSharing> groupRecordSharings = groupRecordSharingDao.find(filter, env);
 		
-		System.out.println("[Sharing] Supergroup record sharings " + groupRecordSharings.size());
+		log.debug("Supergroup record sharings " + groupRecordSharings.size());
 		
-		int i = 0;
-		for (GroupRecordSharing groupRecordSharing : groupRecordSharings)
-		{
-			PropagatedSharingData psd = new PropagatedSharingData(groupRecordSharing.getId(), null, MiscUtils.toList(uga.getId().getId()));
-			
-			if (i % 100 == 0)
-			{
-				System.out.println("[Sharing] Record " + i + " / " + groupRecordSharings.size());
-			}
-			
-			i++;
-			
-			// share each record with the child group
-			sharingService.shareRecordWithGroup(groupRecordSharing.getRecordId(), uga.getChildGroup().getId(), groupRecordSharing.getEdit(), groupRecordSharing.getDelete(), groupRecordSharing.getReason(), false, groupRecordSharing.getSharingRule() != null ? groupRecordSharing.getSharingRule().getId() : null, psd, authData, env);
-		}
+		// share all records with the child group and its members at once
+		sharingService.propagateGroupSharingsToGroup(groupRecordSharings, uga.getChildGroup().getId(), uga.getId(), authData, env);
 		
-		System.out.println("[Sharing] Propagating done");
+		log.debug("Propagating done");
 	}
 
 	@Transactional
@@ -537,7 +536,7 @@ public class UserGroupService
 		
 		List<UserGroupAssignment> assignments = userGroupAssignmentDao.get(filter, null, env);
 		
-		System.out.println("[sharing] Removing " + assignments.size() + " user group assignments");
+		log.debug("Removing " + assignments.size() + " user group assignments");
 		
 		if (!assignments.isEmpty())
 		{
@@ -551,7 +550,7 @@ public class UserGroupService
 			
 			List<UserRecordSharing> urss = userRecordSharingDao.find(ursFilter, env);
 			
-			System.out.println("[sharing] Deleting " + urss.size() + " URS");
+			log.debug("Deleting " + urss.size() + " URS");
 			
 			userRecordSharingDao.delete(urss, null, env);
 			
@@ -585,17 +584,17 @@ public class UserGroupService
 			}
 			else
 			{
-				System.out.println("[sharing] Looking for URS");
+				log.debug("Looking for URS");
 				
 				userRecordSharingDao.deleteSharingsForHierarchy(assignments.get(0).getId().getId(), env);
 				
-				System.out.println("[sharing] Sharings deleted");
+				log.debug("Sharings deleted");
 				
 				// delete to group-to-group assignment
 				// TODO can we use user's authData here?
 				userGroupAssignmentDao.delete(assignments.get(0).getId(), authData, env);
 				
-				System.out.println("[sharing] UGA deleted");
+				log.debug("UGA deleted");
 			}
 		}
 	}
@@ -603,9 +602,9 @@ public class UserGroupService
 	@Transactional
 	public int propagateDeleteUserGroupAssignment (KID ugaId, int limit, EnvData env) throws KommetException
 	{
-		System.out.println("[sharing] Deleting assignments for UGA " + ugaId);
+		log.debug("Deleting assignments for UGA " + ugaId);
 		int itemsRemaining = userRecordSharingDao.deleteSharingsForHierarchy(ugaId.getId(), limit, env);
-		System.out.println("[sharing] Deleted some assignments for UGA " + ugaId);
+		log.debug("Deleted some assignments for UGA " + ugaId);
 		return itemsRemaining;
 	}
 	
@@ -24,7 +24,10 @@ public enum SystemSettingKey
 	BLANK_LAYOUT_ID,
 	MIN_PASSWORD_LENGTH,
 	IGNORE_NON_EXISTING_FIELD_LABELS,
-	DEFAULT_ERROR_VIEW_ID;
+	DEFAULT_ERROR_VIEW_ID,
+	// Time in milliseconds before which all AnyRecord changes queued in asynchronous mode are known to have been applied.
+	// Records modified after this time are checked for missing AnyRecord rows after a restart or a failed flush.
+	ANY_RECORDS_RECONCILED_UNTIL;
 	
 	@Override
 	public String toString()
@@ -53,6 +53,17 @@ public class AppConfig extends PropertySet
 		return getProperty(SERVER_CONFIG_FILE, name);
 	}
 
+	/**
+	 * Overrides the value of a server property until {@link #clearCachedProperties()} is called.
+	 * @param name - the name of the property
+	 * @param value
+	 * @throws PropertyUtilException
+	 */
+	public void overrideProperty (String name, String value) throws PropertyUtilException
+	{
+		overrideProperty(SERVER_CONFIG_FILE, name, value);
+	}
+
 	/**
 	 * Tells whether by default only required fields should be rendered on the object details tag.
 	 * @return
@@ -289,6 +300,591 @@ public class AppConfig extends PropertySet
 		return "true".equals(getProperty("kommet.anyrecords.create"));
 	}
 
+	/**
+	 * Tells whether AnyRecord rows are maintained asynchronously, after the transaction in which records were inserted
+	 * or deleted has been committed.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public boolean isAnyRecordsAsync() throws PropertyUtilException
+	{
+		String mode = getProperty("kommet.anyrecords.consistency");
+		if (mode == null || "sync".equals(mode))
+		{
+			return false;
+		}
+		else if ("async".equals(mode))
+		{
+			return true;
+		}
+		else
+		{
+			throw new PropertyUtilException("Invalid value " + mode + " for setting kommet.anyrecords.consistency. Allowed values are sync and async");
+		}
+	}
+
+	/**
+	 * Maximum time in seconds after which AnyRecord changes are applied in asynchronous mode.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public int getAnyRecordsMaxLagSeconds() throws PropertyUtilException
+	{
+		String maxLag = getProperty("kommet.anyrecords.async.maxlag.seconds");
+		if (maxLag == null)
+		{
+			return 5;
+		}
+		
+		try
+		{
+			int seconds = Integer.parseInt(maxLag);
+			if (seconds < 1 || seconds > 59)
+			{
+				throw new PropertyUtilException("Value for setting kommet.anyrecords.async.maxlag.seconds must be between 1 and 59");
+			}
+			return seconds;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.anyrecords.async.maxlag.seconds is not an integer");
+		}
+	}
+
+	/**
+	 * Maximum number of AnyRecord changes applied in one flush in asynchronous mode.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public int getAnyRecordsBatchSize() throws PropertyUtilException
+	{
+		String batchSize = getProperty("kommet.anyrecords.async.batchsize");
+		if (batchSize == null)
+		{
+			return 1000;
+		}
+		
+		try
+		{
+			return Integer.parseInt(batchSize);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.anyrecords.async.batchsize is not an integer");
+		}
+	}
+
+	/**
+	 * Tells whether field history entries are written asynchronously, after the transaction in which the changes were made
+	 * has been committed.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public boolean isFieldHistoryAsync() throws PropertyUtilException
+	{
+		return "true".equals(getProperty("kommet.fieldhistory.async"));
+	}
+
+	/**
+	 * Maximum time in seconds after which asynchronously logged field history entries are written to the database.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public int getFieldHistoryMaxLagSeconds() throws PropertyUtilException
+	{
+		String maxLag = getProperty("kommet.fieldhistory.async.maxlag.seconds");
+		if (maxLag == null)
+		{
+			return 5;
+		}
+		
+		try
+		{
+			int seconds = Integer.parseInt(maxLag);
+			if (seconds < 1 || seconds > 59)
+			{
+				throw new PropertyUtilException("Value for setting kommet.fieldhistory.async.maxlag.seconds must be between 1 and 59");
+			}
+			return seconds;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.fieldhistory.async.maxlag.seconds is not an integer");
+		}
+	}
+
+	/**
+	 * Maximum number of field history entries written in one bulk insert in asynchronous mode.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public int getFieldHistoryBatchSize() throws PropertyUtilException
+	{
+		String batchSize = getProperty("kommet.fieldhistory.async.batchsize");
+		if (batchSize == null)
+		{
+			return 500;
+		}
+		
+		try
+		{
+			return Integer.parseInt(batchSize);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.fieldhistory.async.batchsize is not an integer");
+		}
+	}
+
+	/**
+	 * Maximum number of field history entries waiting to be written in asynchronous mode on one env. When the queue is full,
+	 * entries are written synchronously.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public int getFieldHistoryMaxQueueSize() throws PropertyUtilException
+	{
+		String maxQueue = getProperty("kommet.fieldhistory.async.maxqueue");
+		if (maxQueue == null)
+		{
+			return 10000;
+		}
+		
+		try
+		{
+			return Integer.parseInt(maxQueue);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.fieldhistory.async.maxqueue is not an integer");
+		}
+	}
+
+	/**
+	 * Number of threads on which independent stages of env initialization are run. The threads are shared by all
+	 * environments initialized at the same time. If set to 1, stages are run one after another on the calling thread,
+	 * which is also the case when an env is initialized within a transaction.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public int getEnvInitThreads() throws PropertyUtilException
+	{
+		String threads = getProperty("kommet.env.init.threads");
+		if (threads == null)
+		{
+			return 4;
+		}
+		
+		try
+		{
+			int threadCount = Integer.parseInt(threads);
+			if (threadCount < 1)
+			{
+				throw new PropertyUtilException("Value for setting kommet.env.init.threads must be a positive integer");
+			}
+			return threadCount;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.env.init.threads is not an integer");
+		}
+	}
+	
+	/**
+	 * Tells whether classes compiled before a restart can be reused during env initialization if their code has not changed.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public boolean isReuseCompiledClasses() throws PropertyUtilException
+	{
+		return !"false".equals(getProperty("kommet.env.init.reusecompiledclasses"));
+	}
+	
+	/**
+	 * Tells whether OAuth2 access tokens are saved in the environment database, so that they survive restarts
+	 * and can be validated on all nodes. If set to false, tokens are only kept in memory.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public boolean isPersistOAuthTokens() throws PropertyUtilException
+	{
+		return !"false".equals(getProperty("kommet.oauth.tokens.persistent"));
+	}
+	
+	/**
+	 * Maximum number of OAuth2 access tokens kept in memory.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public int getOAuthTokenCacheSize() throws PropertyUtilException
+	{
+		String size = getProperty("kommet.oauth.tokens.cachesize");
+		if (size == null)
+		{
+			return 10000;
+		}
+		
+		try
+		{
+			int cacheSize = Integer.parseInt(size);
+			if (cacheSize < 1)
+			{
+				throw new PropertyUtilException("Value for setting kommet.oauth.tokens.cachesize must be a positive integer");
+			}
+			return cacheSize;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.oauth.tokens.cachesize is not an integer");
+		}
+	}
+	
+	/**
+	 * Maximum number of records returned by a typeahead search.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public int getTypeaheadLimit() throws PropertyUtilException
+	{
+		String setting = getProperty("kommet.typeahead.limit");
+		if (setting == null)
+		{
+			return 20;
+		}
+		
+		try
+		{
+			int value = Integer.parseInt(setting);
+			if (value < 1)
+			{
+				throw new PropertyUtilException("Value for setting kommet.typeahead.limit must be a positive integer");
+			}
+			return value;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.typeahead.limit is not an integer");
+		}
+	}
+	
+	/**
+	 * Number of seconds for which typeahead search results are cached. If set to 0, results are not cached.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public int getTypeaheadCacheTTL() throws PropertyUtilException
+	{
+		String setting = getProperty("kommet.typeahead.cache.ttl.seconds");
+		if (setting == null)
+		{
+			return 10;
+		}
+		
+		try
+		{
+			int value = Integer.parseInt(setting);
+			if (value < 0)
+			{
+				throw new PropertyUtilException("Value for setting kommet.typeahead.cache.ttl.seconds must be a non-negative integer");
+			}
+			return value;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.typeahead.cache.ttl.seconds is not an integer");
+		}
+	}
+	
+	/**
+	 * Maximum number of typeahead search results kept in the cache.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public int getTypeaheadCacheSize() throws PropertyUtilException
+	{
+		String setting = getProperty("kommet.typeahead.cache.size");
+		if (setting == null)
+		{
+			return 1000;
+		}
+		
+		try
+		{
+			int value = Integer.parseInt(setting);
+			if (value < 1)
+			{
+				throw new PropertyUtilException("Value for setting kommet.typeahead.cache.size must be a positive integer");
+			}
+			return value;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.typeahead.cache.size is not an integer");
+		}
+	}
+	
+	/**
+	 * Number of seconds for which file metadata used by file downloads is cached. If set to 0, metadata is not cached.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public int getFileDownloadCacheTTL() throws PropertyUtilException
+	{
+		String setting = getProperty("kommet.files.download.cache.ttl.seconds");
+		if (setting == null)
+		{
+			return 30;
+		}
+		
+		try
+		{
+			int value = Integer.parseInt(setting);
+			if (value < 0)
+			{
+				throw new PropertyUtilException("Value for setting kommet.files.download.cache.ttl.seconds must be a non-negative integer");
+			}
+			return value;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.files.download.cache.ttl.seconds is not an integer");
+		}
+	}
+	
+	/**
+	 * Maximum number of files whose download metadata is cached.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public int getFileDownloadCacheSize() throws PropertyUtilException
+	{
+		String setting = getProperty("kommet.files.download.cache.size");
+		if (setting == null)
+		{
+			return 10000;
+		}
+		
+		try
+		{
+			int value = Integer.parseInt(setting);
+			if (value < 1)
+			{
+				throw new PropertyUtilException("Value for setting kommet.files.download.cache.size must be a positive integer");
+			}
+			return value;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.files.download.cache.size is not an integer");
+		}
+	}
+	
+	/**
+	 * Default number of rows passed to a CSV import handler in one batch.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public int getDataImportBatchSize() throws PropertyUtilException
+	{
+		String setting = getProperty("kommet.dataimport.batchsize");
+		if (setting == null)
+		{
+			return 500;
+		}
+		
+		try
+		{
+			int value = Integer.parseInt(setting);
+			if (value < 1)
+			{
+				throw new PropertyUtilException("Value for setting kommet.dataimport.batchsize must be a positive integer");
+			}
+			return value;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.dataimport.batchsize is not an integer");
+		}
+	}
+	
+	/**
+	 * Number of threads processing batches of CSV imports, shared by all import jobs.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public int getDataImportWorkers() throws PropertyUtilException
+	{
+		String setting = getProperty("kommet.dataimport.workers");
+		if (setting == null)
+		{
+			return 4;
+		}
+		
+		try
+		{
+			int value = Integer.parseInt(setting);
+			if (value < 1)
+			{
+				throw new PropertyUtilException("Value for setting kommet.dataimport.workers must be a positive integer");
+			}
+			return value;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.dataimport.workers is not an integer");
+		}
+	}
+	
+	/**
+	 * Number of threads executing branches of business processes run in parallel mode, shared by all processes.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public int getBusinessProcessBranchThreads() throws PropertyUtilException
+	{
+		String setting = getProperty("kommet.bp.branch.threads");
+		if (setting == null)
+		{
+			return 8;
+		}
+		
+		try
+		{
+			int value = Integer.parseInt(setting);
+			if (value < 1)
+			{
+				throw new PropertyUtilException("Value for setting kommet.bp.branch.threads must be a positive integer");
+			}
+			return value;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.bp.branch.threads is not an integer");
+		}
+	}
+
+	public int getBusinessProcessQueueWorkers() throws PropertyUtilException
+	{
+		String setting = getProperty("kommet.bp.queue.workers");
+		if (setting == null)
+		{
+			return 4;
+		}
+		
+		try
+		{
+			int value = Integer.parseInt(setting);
+			if (value < 1)
+			{
+				throw new PropertyUtilException("Value for setting kommet.bp.queue.workers must be a positive integer");
+			}
+			return value;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.bp.queue.workers is not an integer");
+		}
+	}
+
+	public int getBusinessProcessQueueMaxAttempts() throws PropertyUtilException
+	{
+		String setting = getProperty("kommet.bp.queue.maxattempts");
+		if (setting == null)
+		{
+			return 5;
+		}
+		
+		try
+		{
+			int value = Integer.parseInt(setting);
+			if (value < 1)
+			{
+				throw new PropertyUtilException("Value for setting kommet.bp.queue.maxattempts must be a positive integer");
+			}
+			return value;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.bp.queue.maxattempts is not an integer");
+		}
+	}
+
+	public int getBusinessProcessQueueRetryDelay() throws PropertyUtilException
+	{
+		String setting = getProperty("kommet.bp.queue.retrydelay.seconds");
+		if (setting == null)
+		{
+			return 10;
+		}
+		
+		try
+		{
+			int value = Integer.parseInt(setting);
+			if (value < 1)
+			{
+				throw new PropertyUtilException("Value for setting kommet.bp.queue.retrydelay.seconds must be a positive integer");
+			}
+			return value;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.bp.queue.retrydelay.seconds is not an integer");
+		}
+	}
+
+	public int getBusinessProcessQueuePollInterval() throws PropertyUtilException
+	{
+		String setting = getProperty("kommet.bp.queue.poll.seconds");
+		if (setting == null)
+		{
+			return 5;
+		}
+		
+		try
+		{
+			int value = Integer.parseInt(setting);
+			if (value < 1 || value > 59)
+			{
+				throw new PropertyUtilException("Value for setting kommet.bp.queue.poll.seconds must be an integer between 1 and 59");
+			}
+			return value;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.bp.queue.poll.seconds is not an integer");
+		}
+	}
+
+	/**
+	 * Time in seconds for which a claimed execution of a queued process is reserved for the worker that claimed it.
+	 * The worker renews the lease while the execution is running, so this only limits how long an execution of a crashed
+	 * worker waits before it is retried.
+	 * @return
+	 * @throws PropertyUtilException
+	 */
+	public int getBusinessProcessQueueLeaseSeconds() throws PropertyUtilException
+	{
+		String setting = getProperty("kommet.bp.queue.lease.seconds");
+		if (setting == null)
+		{
+			return 600;
+		}
+		
+		try
+		{
+			int value = Integer.parseInt(setting);
+			if (value < 2)
+			{
+				throw new PropertyUtilException("Value for setting kommet.bp.queue.lease.seconds must be an integer greater than 1");
+			}
+			return value;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new PropertyUtilException("Value for setting kommet.bp.queue.lease.seconds is not an integer");
+		}
+	}
+
 	public int getBreadcrumbMax() throws PropertyUtilException
 	{
 		try
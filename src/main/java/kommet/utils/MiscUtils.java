@@ -565,6 +565,28 @@ public class MiscUtils
 	    return sha1;
 	}
 
+	/**
+	 * Returns the hex-encoded SHA-256 hash of the given string.
+	 * @param value
+	 * @return
+	 */
+	public static String getSHA256Hash(String value)
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return byteToHex(digest.digest(value.getBytes("UTF-8")));
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException("SHA-256 algorithm not available", e);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new RuntimeException("UTF-8 encoding not available", e);
+		}
+	}
+
 	private static String byteToHex(final byte[] hash)
 	{
 	    Formatter formatter = new Formatter();
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.utils;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named with a common prefix and a sequence number, e.g. <tt>env-init-1</tt>.
+ * <p>
+ * Used by the application's background executors. Their threads are daemons so that they do not keep the application
+ * from shutting down, and the executors are shut down explicitly when the services owning them are destroyed.
+ * </p>
+ * @author Radek Krawiec
+ */
+public class NamedDaemonThreadFactory implements ThreadFactory
+{
+	private final String namePrefix;
+	private final AtomicInteger threadCount = new AtomicInteger();
+	
+	public NamedDaemonThreadFactory (String namePrefix)
+	{
+		this.namePrefix = namePrefix;
+	}
+	
+	@Override
+	public Thread newThread (Runnable r)
+	{
+		Thread thread = new Thread(r, namePrefix + "-" + threadCount.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -31,6 +31,20 @@ public class PropertySet
 		return properties.getProperty(name);
 	}
 	
+	/**
+	 * Overrides the value of a property until cached properties are cleared.
+	 * @param propertiesFile
+	 * @param name
+	 * @param value
+	 * @throws PropertyUtilException
+	 */
+	public void overrideProperty (String propertiesFile, String name, String value) throws PropertyUtilException
+	{
+		// make sure properties are loaded, so that the overridden value is not replaced when they are
+		getProperty(propertiesFile, name);
+		properties.setProperty(name, value);
+	}
+	
 	public void clearCachedProperties()
 	{
 		this.properties = null;
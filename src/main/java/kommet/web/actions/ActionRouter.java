@@ -0,0 +1,203 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.web.actions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import kommet.basic.Action;
+import kommet.utils.MiscUtils;
+
+/**
+ * Finds actions matching request URLs.
+ *
+ * Action URLs are stored in a trie of URL segments, in which each node has children for literal segments
+ * and one child for parameter segments, e.g. <tt>{id}</tt>. Matching a URL takes time proportional to the number
+ * of its segments, not to the number of actions. Literal segments take precedence over parameters, so URL
+ * <tt>users/new</tt> is matched by action <tt>users/new</tt> rather than by action <tt>users/{id}</tt>.
+ *
+ * Literal segments are matched case-insensitively, while names of parameters and their values in matched URLs
+ * keep their case.
+ *
+ * The router is immutable and is rebuilt when actions change.
+ *
+ * @author Radek Krawiec
+ */
+public class ActionRouter
+{
+	private final Node root = new Node();
+
+	public ActionRouter (Map<String, Action> actionsByUrl)
+	{
+		for (Map.Entry<String, Action> entry : actionsByUrl.entrySet())
+		{
+			add(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private void add (String url, Action action)
+	{
+		String[] segments = split(url);
+		List<String> paramNames = new ArrayList<String>();
+		List<Integer> paramPositions = new ArrayList<Integer>();
+
+		Node node = root;
+		for (int i = 0; i < segments.length; i++)
+		{
+			if (isParam(segments[i]))
+			{
+				if (node.paramChild == null)
+				{
+					node.paramChild = new Node();
+				}
+				node = node.paramChild;
+				paramNames.add(segments[i].substring(1, segments[i].length() - 1));
+				paramPositions.add(i);
+			}
+			else
+			{
+				String literal = segments[i].toLowerCase();
+				Node child = node.literalChildren.get(literal);
+				if (child == null)
+				{
+					child = new Node();
+					node.literalChildren.put(literal, child);
+				}
+				node = child;
+			}
+		}
+
+		node.action = action;
+		node.paramNames = paramNames.toArray(new String[paramNames.size()]);
+		node.paramPositions = new int[paramPositions.size()];
+		for (int i = 0; i < paramPositions.size(); i++)
+		{
+			node.paramPositions[i] = paramPositions.get(i);
+		}
+	}
+
+	/**
+	 * Returns the action matching the given URL, or null if no action matches it.
+	 *
+	 * The URL can itself contain parameters, e.g. <tt>users/{userId}</tt>, in which case parameter segments
+	 * match any segment of action URLs. This is used to check whether a new action URL collides with an existing one.
+	 *
+	 * @param url
+	 * @return
+	 */
+	public Match match (String url)
+	{
+		String[] segments = split(url);
+		Node node = find(root, segments, 0);
+
+		if (node == null)
+		{
+			return null;
+		}
+
+		Map<String, String> params = new HashMap<String, String>();
+		for (int i = 0; i < node.paramNames.length; i++)
+		{
+			params.put(node.paramNames[i], segments[node.paramPositions[i]]);
+		}
+
+		return new Match(node.action, params);
+	}
+
+	private static Node find (Node node, String[] segments, int index)
+	{
+		if (index == segments.length)
+		{
+			return node.action != null ? node : null;
+		}
+
+		String segment = segments[index];
+
+		// empty segments are not matched by anything, just like they are not matched by URL parameters
+		if (segment.isEmpty())
+		{
+			return null;
+		}
+
+		if (isParam(segment))
+		{
+			for (Node child : node.literalChildren.values())
+			{
+				Node result = find(child, segments, index + 1);
+				if (result != null)
+				{
+					return result;
+				}
+			}
+		}
+		else
+		{
+			Node child = node.literalChildren.get(segment.toLowerCase());
+			if (child != null)
+			{
+				Node result = find(child, segments, index + 1);
+				if (result != null)
+				{
+					return result;
+				}
+			}
+		}
+
+		return node.paramChild != null ? find(node.paramChild, segments, index + 1) : null;
+	}
+
+	private static String[] split (String url)
+	{
+		String trimmedUrl = MiscUtils.trim(url, '/').trim();
+		return trimmedUrl.isEmpty() ? new String[0] : trimmedUrl.split("/");
+	}
+
+	private static boolean isParam (String segment)
+	{
+		return segment.length() > 2 && segment.startsWith("{") && segment.endsWith("}");
+	}
+
+	private static class Node
+	{
+		private Map<String, Node> literalChildren = new HashMap<String, Node>();
+		private Node paramChild;
+
+		// action whose URL ends at this node, with the names and positions of its URL parameters
+		private Action action;
+		private String[] paramNames;
+		private int[] paramPositions;
+	}
+
+	/**
+	 * An action matched by a URL, together with the values of URL parameters.
+	 */
+	public static class Match
+	{
+		private Action action;
+		private Map<String, String> params;
+
+		public Match (Action action, Map<String, String> params)
+		{
+			this.action = action;
+			this.params = Collections.unmodifiableMap(params);
+		}
+
+		public Action getAction()
+		{
+			return action;
+		}
+
+		public Map<String, String> getParams()
+		{
+			return params;
+		}
+	}
+}
@@ -75,6 +75,8 @@ public abstract class BasicRestController extends CommonKommetController
 		}
 		
 		EnvData env = null;
+		AuthData authData = AuthUtil.getAuthData(session);
+		AccessToken apiToken = null;
 		
 		if (StringUtils.hasText(sEnvId))
 		{
@@ -88,6 +90,17 @@ public abstract class BasicRestController extends CommonKommetController
 				return new RestInitInfo(null, null, out, "Environment ID '" + sEnvId + "' is not a valid Kommet ID", HttpServletResponse.SC_BAD_REQUEST);
 			}
 			
+			// if no auth data was found in the session and access token was passed with the request,
+			// validate the token before the env is initialized
+			if (authData == null && StringUtils.hasText(accessToken))
+			{
+				apiToken = tokenStore.getToken(accessToken, envKID);
+				if (apiToken == null)
+				{
+					return new RestInitInfo(null, null, out, "Access Denied", HttpServletResponse.SC_FORBIDDEN);
+				}
+			}
+			
 			env = envService.get(envKID);
 		}
 		else
@@ -100,21 +113,19 @@ public abstract class BasicRestController extends CommonKommetController
 			return new RestInitInfo(null, null, out, "Environment not specified. Environment ID is '" + sEnvId + "', and getting env from session failed as well", HttpServletResponse.SC_BAD_REQUEST);
 		}
 		
-		AuthData authData = AuthUtil.getAuthData(session);
-		// if no auth data was found in the session and access token was
-		// passed with the request, try to get auth data for this token
-		if (authData == null && StringUtils.hasText(accessToken))
+		if (authData == null && apiToken == null && StringUtils.hasText(accessToken))
 		{
-			// try to get auth data from access_token
-			AccessToken apiToken = tokenStore.getToken(accessToken);
-			if (apiToken != null)
-			{	
-				// get user
-				// TODO is it not too time consuming to fetch user auth data each time they make an API call?
-				authData = userService.getAuthData(userService.getUser(apiToken.getUserId(), env), env);
-				authData.initUserPermissions(env);
-				authData.initUserCascadeSettings(uchService, env);
-			}
+			apiToken = tokenStore.getToken(accessToken, env.getId());
+		}
+		
+		// if the access token is valid, get auth data for this token
+		if (authData == null && apiToken != null)
+		{
+			// get user
+			// TODO is it not too time consuming to fetch user auth data each time they make an API call?
+			authData = userService.getAuthData(userService.getUser(apiToken.getUserId(), env), env);
+			authData.initUserPermissions(env);
+			authData.initUserCascadeSettings(uchService, env);
 		}
 		
 		if (authData == null)
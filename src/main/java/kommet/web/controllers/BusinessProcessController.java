@@ -41,6 +41,7 @@ import kommet.businessprocess.BusinessProcessSaveResult;
 import kommet.businessprocess.BusinessProcessService;
 import kommet.businessprocess.ProcessBlock;
 import kommet.businessprocess.ProcessDeserializer;
+import kommet.businessprocess.ProcessQueueService;
 import kommet.data.DataService;
 import kommet.data.Field;
 import kommet.data.KID;
@@ -74,6 +75,9 @@ public class BusinessProcessController extends CommonKommetController
 	@Inject
 	ClassService classService;
 	
+	@Inject
+	ProcessQueueService processQueueService;
+	
 	@Inject
 	DataService dataService;
 	
@@ -150,10 +154,80 @@ public class BusinessProcessController extends CommonKommetController
 		
 		BusinessProcess process = bpService.getBusinessProcess(KID.get(sProcessId), authData, env);
 		mv.addObject("process", process);
+		mv.addObject("queueStats", processQueueService.getStats(process.getId(), env));
+		mv.addObject("queuedCount", processQueueService.getQueuedCount(process.getId(), env));
+		mv.addObject("deadLetters", processQueueService.getDeadLetters(process.getId(), 100, env));
 		
 		return mv;
 	}
 	
+	@RestrictedAccess(profiles = { Profile.ROOT_NAME, Profile.SYSTEM_ADMINISTRATOR_NAME })
+	@RequestMapping(value = UrlUtil.SYSTEM_ACTION_URL_PREFIX + "/bp/queue/retry", method = RequestMethod.POST)
+	@ResponseBody
+	public void retryDeadLetter(@RequestParam(required = false, value = "id") String sId,
+									HttpSession session, HttpServletResponse resp) throws KommetException, IOException
+	{
+		PrintWriter out = resp.getWriter();
+		
+		Long id = getDeadLetterId(sId);
+		if (id == null)
+		{
+			out.write(RestUtil.getRestErrorResponse("Invalid execution ID '" + sId + "'"));
+			return;
+		}
+		
+		if (processQueueService.retryDeadLetter(id, envService.getCurrentEnv(session)))
+		{
+			out.write(RestUtil.getRestSuccessResponse("Execution queued"));
+		}
+		else
+		{
+			out.write(RestUtil.getRestErrorResponse("Execution with ID " + id + " not found among dead letters"));
+		}
+	}
+	
+	@RestrictedAccess(profiles = { Profile.ROOT_NAME, Profile.SYSTEM_ADMINISTRATOR_NAME })
+	@RequestMapping(value = UrlUtil.SYSTEM_ACTION_URL_PREFIX + "/bp/queue/delete", method = RequestMethod.POST)
+	@ResponseBody
+	public void deleteDeadLetter(@RequestParam(required = false, value = "id") String sId,
+									HttpSession session, HttpServletResponse resp) throws KommetException, IOException
+	{
+		PrintWriter out = resp.getWriter();
+		
+		Long id = getDeadLetterId(sId);
+		if (id == null)
+		{
+			out.write(RestUtil.getRestErrorResponse("Invalid execution ID '" + sId + "'"));
+			return;
+		}
+		
+		if (processQueueService.deleteDeadLetter(id, envService.getCurrentEnv(session)))
+		{
+			out.write(RestUtil.getRestSuccessResponse("Execution deleted"));
+		}
+		else
+		{
+			out.write(RestUtil.getRestErrorResponse("Execution with ID " + id + " not found among dead letters"));
+		}
+	}
+	
+	private static Long getDeadLetterId(String sId)
+	{
+		if (!StringUtils.hasText(sId))
+		{
+			return null;
+		}
+		
+		try
+		{
+			return Long.valueOf(sId);
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+	
 	@RequestMapping(value = UrlUtil.SYSTEM_ACTION_URL_PREFIX + "/bp/builder/{id}", method = RequestMethod.GET)
 	public ModelAndView openProcessBuilder(@PathVariable("id") String sProcessId, HttpSession session) throws KommetException
 	{
@@ -238,10 +238,9 @@ public class ClassController extends CommonKommetController
 		}
 		else
 		{
-			// after a class has been successfully compiled, we need to reset the class loader
-			// for the env so that it reloads the class definition (there seems to be no other
-			// simple way to update a class that has already been loaded to a class loader)
-			compiler.resetClassLoader(env);
+			// after a class has been successfully compiled, the class loader for the env
+			// needs to pick up the new class definition
+			compiler.reloadClasses(result, env);
 		}
 		
 		return msgs;
@@ -7,7 +7,10 @@
 
 package kommet.web.controllers;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
@@ -16,9 +19,11 @@ import javax.inject.Inject;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
+import org.apache.commons.io.IOUtils;
 import org.springframework.stereotype.Controller;
 import org.springframework.util.StringUtils;
 import org.springframework.validation.BindingResult;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
@@ -29,8 +34,11 @@ import org.springframework.web.servlet.ModelAndView;
 import kommet.auth.AuthData;
 import kommet.auth.AuthUtil;
 import kommet.data.KommetException;
-import kommet.dataimport.csv.CSVParser;
+import kommet.dataimport.ImportJob;
+import kommet.dataimport.ImportJobService;
+import kommet.dataimport.csv.CsvBatchProcessor;
 import kommet.dataimport.csv.CsvLineMapProcessor;
+import kommet.dataimport.csv.LineProcessorBatchAdapter;
 import kommet.env.EnvData;
 import kommet.env.EnvService;
 import kommet.koll.ClassService;
@@ -55,6 +63,9 @@ public class DataImportController extends CommonKommetController
 	@Inject
 	ClassService classService;
 	
+	@Inject
+	ImportJobService importJobService;
+	
 	@RequestMapping(value = UrlUtil.SYSTEM_ACTION_URL_PREFIX + "/dataimport", method = RequestMethod.GET)
 	public ModelAndView showDataImport(HttpSession session) throws KommetException
 	{
@@ -63,7 +74,9 @@ public class DataImportController extends CommonKommetController
 		ModelAndView mv = new ModelAndView("dataimport/import");
 		mv.addObject("uploadItem", new UploadItem());
 		
-		List<Class<?>> rowHandlers = compiler.findSubclasses(classService.getClasses(null, env), CsvLineMapProcessor.class, env);
+		List<kommet.basic.Class> classes = classService.getClasses(null, env);
+		List<Class<?>> rowHandlers = compiler.findSubclasses(classes, CsvLineMapProcessor.class, env);
+		rowHandlers.addAll(compiler.findSubclasses(classes, CsvBatchProcessor.class, env));
 		List<String> handlerNames = new ArrayList<String>();
 		for (Class<?> handler : rowHandlers)
 		{
@@ -80,16 +93,30 @@ public class DataImportController extends CommonKommetController
 		return mv;
 	}
 	
+	/**
+	 * Saves the uploaded CSV file and starts an import job for it. The response contains the status of the job,
+	 * whose progress can then be polled with {@link #jobStatus(String, HttpServletResponse, HttpSession)}.
+	 * @param uploadItem
+	 * @param result
+	 * @param rowHandler Name of a class implementing {@link CsvBatchProcessor} or {@link CsvLineMapProcessor}
+	 * @param batchSize Number of rows passed to the handler in one batch
+	 * @param threads Number of batches processed concurrently, only used for batch processors
+	 * @param response
+	 * @param session
+	 * @throws KommetException
+	 * @throws IOException
+	 */
 	@RequestMapping(value = UrlUtil.SYSTEM_ACTION_URL_PREFIX + "/dataimport/upload", method = RequestMethod.POST)
 	@ResponseBody
 	public void upload (UploadItem uploadItem, BindingResult result,
 			@RequestParam(value = "rowHandler", required = false) String rowHandler,
+			@RequestParam(value = "batchSize", required = false) Integer batchSize,
+			@RequestParam(value = "threads", required = false) Integer threads,
             HttpServletResponse response, HttpSession session) throws KommetException, IOException
 	{
 		PrintWriter out = response.getWriter();
 		
 		MultipartFile file = uploadItem.getFileData();
-		CSVParser parser = new CSVParser();
 		
 		if (!StringUtils.hasText(rowHandler))
 		{
@@ -141,16 +168,90 @@ public class DataImportController extends CommonKommetController
 			return;
 		}
 		
+		CsvBatchProcessor processor = null;
+		if (handlerClassInstance instanceof CsvBatchProcessor)
+		{
+			processor = (CsvBatchProcessor)handlerClassInstance;
+		}
+		else if (handlerClassInstance instanceof CsvLineMapProcessor)
+		{
+			// line processors are not required to be thread-safe
+			processor = new LineProcessorBatchAdapter((CsvLineMapProcessor)handlerClassInstance);
+			threads = 1;
+		}
+		else
+		{
+			out.write(RestUtil.getRestErrorResponse("Handler class is not a CSV row processor"));
+			return;
+		}
+		
+		ImportJob job = null;
 		try
 		{
-			parser.parse(file.getInputStream(), (CsvLineMapProcessor)handlerClassInstance);
+			// save the uploaded file, because it is read after the request has finished
+			File importFile = importJobService.createImportFile();
+			file.transferTo(importFile);
+			
+			job = importJobService.startImport(importFile, processor, batchSize, threads != null ? threads : 1, true, authData, env);
 		}
 		catch (Exception e)
 		{
-			out.write(RestUtil.getRestErrorResponse("Error calling handler: " + e.getMessage()));
+			out.write(RestUtil.getRestErrorResponse("Error starting import: " + e.getMessage()));
+			return;
+		}
+		
+		out.write(RestUtil.getRestSuccessDataResponse(job.toJSON()));
+	}
+	
+	@RequestMapping(value = UrlUtil.SYSTEM_ACTION_URL_PREFIX + "/dataimport/jobs/{jobId}", method = RequestMethod.GET)
+	@ResponseBody
+	public void jobStatus (@PathVariable("jobId") String jobId, HttpServletResponse response, HttpSession session) throws KommetException, IOException
+	{
+		response.setContentType("application/json; charset=UTF-8");
+		PrintWriter out = response.getWriter();
+		
+		ImportJob job = importJobService.getJob(jobId, AuthUtil.getAuthData(session), envService.getCurrentEnv(session));
+		if (job == null)
+		{
+			out.write(RestUtil.getRestErrorResponse("Import job " + jobId + " not found"));
 			return;
 		}
 		
-		out.write(RestUtil.getRestSuccessResponse("Data import successful"));
+		out.write(RestUtil.getRestSuccessDataResponse(job.toJSON()));
+	}
+	
+	@RequestMapping(value = UrlUtil.SYSTEM_ACTION_URL_PREFIX + "/dataimport/jobs/{jobId}/rejects", method = RequestMethod.GET)
+	public void downloadRejects (@PathVariable("jobId") String jobId, HttpServletResponse response, HttpSession session) throws KommetException
+	{
+		ImportJob job = importJobService.getJob(jobId, AuthUtil.getAuthData(session), envService.getCurrentEnv(session));
+		if (job == null || job.getRejectFilePath() == null)
+		{
+			throw new KommetException("Reject file for import job " + jobId + " not found");
+		}
+		
+		if (!job.isFinished())
+		{
+			throw new KommetException("Reject file is not available until the import job has finished");
+		}
+		
+		try
+		{
+			InputStream is = new FileInputStream(job.getRejectFilePath());
+			try
+			{
+				response.setContentType("text/csv; charset=UTF-8");
+				response.setHeader("Content-Disposition", "attachment; filename=\"rejected-" + jobId + ".csv\"");
+				IOUtils.copy(is, response.getOutputStream());
+				response.flushBuffer();
+			}
+			finally
+			{
+				is.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new KommetException("IOError writing reject file to output stream");
+		}
 	}
 }
\ No newline at end of file
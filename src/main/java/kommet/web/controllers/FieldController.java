@@ -72,6 +72,7 @@ import kommet.env.EnvData;
 import kommet.env.EnvService;
 import kommet.json.JSON;
 import kommet.rest.RestUtil;
+import kommet.services.TypeaheadService;
 import kommet.uch.UserCascadeHierarchyContext;
 import kommet.uch.UserCascadeHierarchyService;
 import kommet.utils.AppConfig;
@@ -101,6 +102,9 @@ public class FieldController extends CommonKommetController
 	@Inject
 	AppConfig appConfig;
 	
+	@Inject
+	TypeaheadService typeaheadService;
+	
 	@RequestMapping(value = UrlUtil.SYSTEM_ACTION_URL_PREFIX + "/field/{rid}", method = RequestMethod.GET)
 	public ModelAndView details (@PathVariable("rid") String sFieldId, HttpSession session) throws KommetException
 	{
@@ -151,6 +155,7 @@ public class FieldController extends CommonKommetController
 		mv.addObject("canEdit", !Field.isSystemField(field.getApiName()));
 		mv.addObject("isRequired", field.getDataTypeId().equals(DataType.FORMULA) ? FormulaParser.isFormulaNonNullable((FormulaDataType)field.getDataType(), type) : field.isRequired());
 		mv.addObject("isCascadeDelete", field.getDataTypeId().equals(DataType.TYPE_REFERENCE) ? ((TypeReference)field.getDataType()).isCascadeDelete() : false);
+		mv.addObject("isTypeaheadSearchable", TypeaheadService.isSearchable(field));
 		
 		if (field.getDataType().isCollection())
 		{
@@ -223,6 +228,66 @@ public class FieldController extends CommonKommetController
 		return;
 	}
 	
+	/**
+	 * Creates a trigram index used by typeahead searches on the field. Building the index may take long
+	 * on large tables, so it is never done by the searches themselves.
+	 */
+	@RequestMapping(value = UrlUtil.SYSTEM_ACTION_URL_PREFIX + "/field/createtypeaheadindex", method = RequestMethod.POST)
+	@ResponseBody
+	public void createTypeaheadIndex (@RequestParam("id") String id, @RequestParam("typePrefix") String prefix, HttpSession session, HttpServletResponse resp) throws KommetException, IOException
+	{
+		PrintWriter out = resp.getWriter();
+		EnvData env = envService.getCurrentEnv(session);
+		AuthData authData = AuthUtil.getAuthData(session);
+		
+		KID fieldId = null;
+		try
+		{
+			fieldId = KID.get(id);
+		}
+		catch (KIDException e)
+		{
+			out.write(RestUtil.getRestErrorResponse("Invalid field ID " + id));
+			return;
+		}
+		
+		Type type = env.getType(KeyPrefix.get(prefix));
+		if (type == null)
+		{
+			out.write(RestUtil.getRestErrorResponse("Type not found"));
+			return;
+		}
+		
+		if (!authData.canEditType(type.getKID(), true, env))
+		{
+			out.write(RestUtil.getRestErrorResponse("Cannot create index due to insufficient permissions"));
+			return;
+		}
+		
+		Field field = type.getField(fieldId);
+		if (field == null)
+		{
+			out.write(RestUtil.getRestErrorResponse("Field not found"));
+			return;
+		}
+		
+		try
+		{
+			if (typeaheadService.createIndex(type, field.getApiName(), env))
+			{
+				out.write(RestUtil.getRestSuccessResponse("Search index has been created"));
+			}
+			else
+			{
+				out.write(RestUtil.getRestSuccessResponse("Search index already exists"));
+			}
+		}
+		catch (KommetException e)
+		{
+			out.write(RestUtil.getRestErrorResponse("Search index could not be created: " + e.getMessage()));
+		}
+	}
+	
 	@RequestMapping(value = UrlUtil.SYSTEM_ACTION_URL_PREFIX + "/field/edit/{rid}", method = RequestMethod.GET)
 	public ModelAndView edit (@PathVariable("rid") String rid, HttpSession session) throws KommetException
 	{
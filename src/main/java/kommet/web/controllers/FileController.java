@@ -7,14 +7,21 @@
 
 package kommet.web.controllers;
 
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
@@ -22,7 +29,6 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
 import org.springframework.stereotype.Controller;
 import org.springframework.util.StringUtils;
 import org.springframework.validation.BindingResult;
@@ -49,6 +55,8 @@ import kommet.data.KommetException;
 import kommet.data.ValidationMessage;
 import kommet.env.EnvData;
 import kommet.env.EnvService;
+import kommet.files.ByteRange;
+import kommet.files.FileDownloadInfo;
 import kommet.files.FileFilter;
 import kommet.files.FileRecordAssignmentFilter;
 import kommet.files.FileService;
@@ -87,8 +95,16 @@ public class FileController extends CommonKommetController
 	 */
 	private Integer DEFAULT_MAX_FILE_SIZE = 5000000;
 	
+	// request attributes through which Tomcat serves files with sendfile
+	private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+	
+	private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+	
 	@RequestMapping(value = UrlUtil.SYSTEM_ACTION_URL_PREFIX + "/download/{fileId}", method = RequestMethod.GET)
-	public void download(@PathVariable("fileId") String sFileId, HttpServletResponse response, HttpSession session) throws PropertyUtilException, KommetException
+	public void download(@PathVariable("fileId") String sFileId, HttpServletRequest request, HttpServletResponse response, HttpSession session) throws PropertyUtilException, KommetException
 	{
 		// TODO add a check for valid file ID
 		KID fileId = KID.get(sFileId);
@@ -96,41 +112,176 @@ public class FileController extends CommonKommetController
 		
 		EnvData env = envService.getCurrentEnv(session);
 		
-		try
-	    {
-			// get file from database
-			FileFilter filter = new FileFilter();
-			filter.addId(fileId);
-			List<File> files = fileService.find(filter, true, true, authData, env);
+		// get file info, usually from cache
+		FileDownloadInfo file = fileService.getDownloadInfo(fileId, authData, env);
+		if (file == null)
+		{
+			// TODO add a check for valid file ID
+			throw new KommetException("File not found");
+		}
+		
+		java.io.File systemFile = new java.io.File(config.getFileDir() + "/" + file.getPath());
+		if (!systemFile.exists())
+		{
+			// the cached path may be out of date if the file has been replaced, so read it again from the database
+			fileService.evictDownloadInfo(fileId, env);
+			file = fileService.getDownloadInfo(fileId, authData, env);
 			
-			if (files.isEmpty())
+			systemFile = file != null ? new java.io.File(config.getFileDir() + "/" + file.getPath()) : null;
+			if (systemFile == null || !systemFile.exists())
 			{
-				// TODO add a check for valid file ID
-				throw new KommetException("File not found");
+				throw new KommetException("File not found on server");
 			}
+		}
+		
+		long length = systemFile.length();
+		long lastModified = systemFile.lastModified();
+		String etag = file.getETag(lastModified, length);
+		
+		response.setHeader("ETag", etag);
+		response.setDateHeader("Last-Modified", lastModified);
+		response.setHeader("Accept-Ranges", "bytes");
+		
+		if (isNotModified(request, etag, lastModified))
+		{
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		
+		ByteRange range = new ByteRange(0, length - 1);
+		
+		String rangeHeader = request.getHeader("Range");
+		if (rangeHeader != null && isRangeValid(request.getHeader("If-Range"), etag, lastModified))
+		{
+			ByteRange requestedRange = ByteRange.parse(rangeHeader, length);
 			
-			File file = files.get(0);
-			java.io.File systemFile = new java.io.File(config.getFileDir() + "/" + file.getLatestRevision().getPath());
-			if (!systemFile.exists())
+			if (requestedRange == ByteRange.UNSATISFIABLE)
 			{
-				throw new KommetException("File not found on server");
+				response.setHeader("Content-Range", "bytes */" + length);
+				response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return;
 			}
+			else if (requestedRange != null)
+			{
+				range = requestedRange;
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				response.setHeader("Content-Range", "bytes " + range.getStart() + "-" + range.getEnd() + "/" + length);
+			}
+		}
+		
+		response.setHeader("Content-Disposition", "attachment; filename=\"" + file.getFileName() + "\"");
+		response.setContentType("application/octet-stream");
+		response.setHeader("Content-Length", String.valueOf(range.getLength()));
+		
+		if (range.getLength() <= 0)
+		{
+			return;
+		}
+		
+		if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR)))
+		{
+			// let the container write the file directly from disk to the socket after the request is processed
+			request.setAttribute(SENDFILE_FILENAME_ATTR, systemFile.getAbsolutePath());
+			request.setAttribute(SENDFILE_START_ATTR, range.getStart());
+			request.setAttribute(SENDFILE_END_ATTR, range.getEnd() + 1);
+			return;
+		}
+		
+		try (FileChannel fileChannel = FileChannel.open(systemFile.toPath(), StandardOpenOption.READ))
+		{
+			WritableByteChannel out = Channels.newChannel(response.getOutputStream());
 			
-			// get your file as InputStream
-			InputStream is = new FileInputStream(systemFile);
-			
-			response.setHeader("Content-Disposition", "attachment; filename=\"" + file.getName() + "\""); 
-			
-			// copy it to response's OutputStream
-			IOUtils.copy(is, response.getOutputStream());
+			// only sendfile above copies the file without passing it through the heap - the servlet output stream is not
+			// a file or socket channel, so transferTo falls back to copying through a buffer here, which still avoids
+			// reading the whole range into memory. transferTo may transfer fewer bytes than requested.
+			long position = range.getStart();
+			long remaining = range.getLength();
+			while (remaining > 0)
+			{
+				long transferred = fileChannel.transferTo(position, remaining, out);
+				if (transferred <= 0)
+				{
+					break;
+				}
+				position += transferred;
+				remaining -= transferred;
+			}
 			
-			//response.setContentType("application/rtf");
 			response.flushBuffer();
-	    }
+		}
 		catch (IOException ex)
 		{
 			throw new KommetException("IOError writing file to output stream");
-	    }
+		}
+	}
+	
+	/**
+	 * Tells whether the client's cached copy of the file, identified by the <tt>If-None-Match</tt> or
+	 * <tt>If-Modified-Since</tt> header, is up to date.
+	 */
+	private static boolean isNotModified (HttpServletRequest request, String etag, long lastModified)
+	{
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null)
+		{
+			// If-Modified-Since is ignored when If-None-Match is present
+			for (String tag : ifNoneMatch.split(","))
+			{
+				tag = tag.trim();
+				if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+		
+		// HTTP dates have a precision of one second
+		return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+	
+	/**
+	 * Tells whether a range request should be honoured, i.e. if the <tt>If-Range</tt> header is absent
+	 * or matches the current version of the file.
+	 */
+	private static boolean isRangeValid (String ifRange, String etag, long lastModified)
+	{
+		if (ifRange == null)
+		{
+			return true;
+		}
+		
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+		{
+			return ifRange.equals(etag);
+		}
+		
+		try
+		{
+			SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return format.parse(ifRange).getTime() / 1000 == lastModified / 1000;
+		}
+		catch (ParseException e)
+		{
+			return false;
+		}
+	}
+	
+	private static long getDateHeader (HttpServletRequest request, String name)
+	{
+		try
+		{
+			return request.getDateHeader(name);
+		}
+		catch (IllegalArgumentException e)
+		{
+			// invalid dates are ignored
+			return -1;
+		}
 	}
 	
 	/**
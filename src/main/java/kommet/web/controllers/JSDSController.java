@@ -211,22 +211,6 @@ public class JSDSController extends BasicRestController
 			type = dalCriteria.getType();
 		}
 		
-		List<Record> records = null;
-		
-		try
-		{
-			// execute query
-			records = dalCriteria.list();
-		}
-		catch (Exception e)
-		{
-			e.printStackTrace();
-			restInfo.getEnv().clearAuthData();
-			returnRestError("Error running query: " + e.getMessage(), out);
-			resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-			return;
-		}
-		
 		// set default format to JSON, if not passed explicitly in the call
 		if (format == null)
 		{
@@ -237,39 +221,40 @@ public class JSDSController extends BasicRestController
 			format = format.toLowerCase();
 		}
 		
-		if ("json".equals(format))
+		List<Record> records = null;
+		
+		// records returned as JSON are streamed from the database as they are serialized, so they are not queried up front
+		if (!"json".equals(format))
 		{
-			JSRC jsrc = JSRC.build(records, type, 2, restInfo.getEnv(), restInfo.getAuthData());
-			out = resp.getWriter();
-			resp.setContentType("text/json; charset=UTF-8");
-			
-			String serializedJSRC = null;
-	
 			try
 			{
-				// convert JSRC to JSON and return
-				serializedJSRC = JSRC.serialize(jsrc, restInfo.getAuthData());
+				// execute query
+				records = dalCriteria.list();
 			}
 			catch (Exception e)
 			{
+				e.printStackTrace();
 				restInfo.getEnv().clearAuthData();
-				returnRestError("Error serializing records to JSRC: " + e.getMessage(), out);
+				returnRestError("Error running query: " + e.getMessage(), resp.getWriter());
 				resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
 				return;
 			}
+		}
+		
+		if ("json".equals(format))
+		{
+			resp.setContentType("text/json; charset=UTF-8");
+			out = resp.getWriter();
+			
+			Long recordCount = null;
 			
-			if (!"datasource".equals(mode))
+			if ("datasource".equals(mode))
 			{
-				out.write(serializedJSRC);
-			}
-			else
-			{	
 				// in addition  to JSRC data, also find out the total size of the collection
 				// for the given query so that this information can be used by a km.js.table
 				try
 				{
-					Long recordCount = getRecordCount(jcr, type, restInfo.getAuthData(), restInfo.getEnv());
-					out.write("{ \"jsrc\": " + serializedJSRC + ", \"recordCount\": " + recordCount + " }");
+					recordCount = getRecordCount(jcr, type, restInfo.getAuthData(), restInfo.getEnv());
 				}
 				catch (Exception e)
 				{
@@ -278,6 +263,33 @@ public class JSDSController extends BasicRestController
 					resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 					return;
 				}
+				
+				out.write("{ \"jsrc\": ");
+			}
+			
+			try
+			{
+				// convert records to JSRC as they are read from the database
+				JSRC.write(dalCriteria, type, 2, out, restInfo.getEnv(), restInfo.getAuthData());
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+				restInfo.getEnv().clearAuthData();
+				
+				// an error can only be returned if no part of the records has been sent yet
+				if (!resp.isCommitted())
+				{
+					resp.resetBuffer();
+					returnRestError("Error serializing records to JSRC: " + e.getMessage(), out);
+					resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+				}
+				return;
+			}
+			
+			if (recordCount != null)
+			{
+				out.write(", \"recordCount\": " + recordCount + " }");
 			}
 		}
 		else if ("xlsx".equals(format))
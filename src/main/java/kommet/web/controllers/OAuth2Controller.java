@@ -141,7 +141,7 @@ public class OAuth2Controller extends CommonKommetController
 				String refreshToken = MiscUtils.getHash(30);
 				
 				// store token in token store
-				tokenStore.store(accessToken, refreshToken, 3600, user.getId());
+				tokenStore.store(accessToken, refreshToken, 3600, user.getId(), env);
 				
 				out.write(getAccessTokenJSON(accessToken, refreshToken, 3600));
 				return;
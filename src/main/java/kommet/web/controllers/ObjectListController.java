@@ -162,6 +162,7 @@ public class ObjectListController extends CommonKommetController
 			
 			// in search mode, the first page will always be displayed by default
 			config.setPageNo(1);
+			config.clearSeek();
 			String searchCondition = getSearchCondition(config.getType(), params);
 			if (StringUtils.hasText(searchCondition))
 			{
@@ -52,6 +52,7 @@ import kommet.env.EnvData;
 import kommet.env.EnvService;
 import kommet.koll.SystemContextFactory;
 import kommet.koll.compiler.KommetCompiler;
+import kommet.services.TypeaheadService;
 import kommet.utils.AppConfig;
 import kommet.utils.MiscUtils;
 import kommet.utils.UrlUtil;
@@ -85,28 +86,28 @@ public class RecordController extends CommonKommetController
 	@Inject
 	SystemContextFactory sysContextFactory;
 	
+	@Inject
+	TypeaheadService typeaheadService;
+	
 	@RequestMapping(value = UrlUtil.SYSTEM_ACTION_URL_PREFIX + "/searchrecords", method = RequestMethod.POST)
 	@ResponseBody
 	public void searchRecord (@RequestParam("typeId") String sTypeId,
 								@RequestParam(value = "keyword", required = false) String keyword,
 								@RequestParam(value = "searchField", required = false) String searchField,
+								@RequestParam(value = "limit", required = false) Integer limit,
 								HttpServletResponse resp, HttpSession session) throws KommetException, IOException
 	{
 		EnvData env = envService.getCurrentEnv(session);
 		Type type = env.getType(KID.get(sTypeId));
+		AuthData authData = AuthUtil.getAuthData(session);
 		
 		if (!StringUtils.hasText(searchField))
 		{
 			searchField = type.getDefaultFieldApiName();
 		}
 		
-		String query = "select id, " + searchField + " from " + type.getQualifiedName();
-		if (StringUtils.hasText(keyword))
-		{
-			query += " where " + searchField + " like '" + keyword + "%'";
-		}
-		
-		List<Record> records = env.getSelectCriteriaFromDAL(query, AuthUtil.getAuthData(session)).list();
+		// the number of returned records is limited, because this method is called on each keystroke
+		List<Record> records = typeaheadService.search(type, searchField, keyword, limit, authData, env);
 		PrintWriter out = resp.getWriter();
 		out.write("[");
 		
@@ -114,7 +115,7 @@ public class RecordController extends CommonKommetController
 		
 		for (Record record : records)
 		{
-			values.add(record.getFieldStringValue(searchField, AuthUtil.getAuthData(session).getLocale()));
+			values.add(record.getFieldStringValue(searchField, authData.getLocale()));
 		}
 		
 		out.write(MiscUtils.implode(values, ", ", "\"", null));
@@ -7,7 +7,8 @@
 
 package kommet.web.controllers;
 
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -17,6 +18,8 @@ import javax.inject.Inject;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Controller;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -30,6 +33,7 @@ import kommet.basic.Class;
 import kommet.basic.UniqueCheckViolationException;
 import kommet.basic.View;
 import kommet.basic.keetle.ViewService;
+import kommet.dao.queries.Criteria;
 import kommet.data.DataService;
 import kommet.data.Field;
 import kommet.data.FieldValidationException;
@@ -48,6 +52,7 @@ import kommet.env.EnvService;
 import kommet.errorlog.ErrorLogService;
 import kommet.errorlog.ErrorLogSeverity;
 import kommet.json.JSON;
+import kommet.json.RecordJsonWriter;
 import kommet.koll.ClassCompilationException;
 import kommet.koll.ClassService;
 import kommet.rest.RestUtil;
@@ -76,6 +81,8 @@ public class RestServiceController extends BasicRestController
 	@Inject
 	TestService testService;
 	
+	private static final Logger log = LoggerFactory.getLogger(RestServiceController.class);
+	
 	@RequestMapping(value = UrlUtil.SYSTEM_ACTION_URL_PREFIX + UrlUtil.REST_API_DAL_URL, method = RequestMethod.GET)
 	@ResponseBody
 	public void dalQuery(@RequestParam(value = "q", required = true) String dalQuery,
@@ -83,27 +90,26 @@ public class RestServiceController extends BasicRestController
 						@RequestParam(value = "access_token", required = false) String accessToken,
 						HttpServletResponse resp, HttpSession session) throws KommetException
 	{
-		RestInitInfo restInfo = prepareRest(envId, accessToken, session, resp);
+		// records are written to the output stream, so the writer is not initialized
+		RestInitInfo restInfo = prepareRest(envId, accessToken, session, resp, false);
 		if (!restInfo.isSuccess())
 		{
-			if (restInfo.getOut() != null)
-			{
-				returnRestError(restInfo.getError(), restInfo.getOut());
-				resp.setStatus(restInfo.getRespCode());
-				return;
-			}
-			else
-			{
-				throw new KommetException(restInfo.getError());
-			}
+			returnStreamedRestError(restInfo.getError(), restInfo.getRespCode(), resp);
+			return;
 		}
 		
 		try
 		{
-			List<Record> records = restInfo.getEnv().getSelectCriteriaFromDAL(dalQuery).list();
+			Criteria criteria = restInfo.getEnv().getSelectCriteriaFromDAL(dalQuery);
 			resp.setContentType("text/json; charset=UTF-8");
 			
-			returnRestRecords(records, restInfo.getAuthData(), restInfo.getOut());
+			// records are serialized as they are read from the database cursor, so neither the query result
+			// nor the serialized records are held in memory
+			RecordJsonWriter writer = new RecordJsonWriter(resp.getOutputStream(), restInfo.getAuthData());
+			writer.writeStartArray();
+			criteria.forEach(writer);
+			writer.writeEndArray();
+			writer.flush();
 			return;
 		}
 		catch (Exception e)
@@ -114,11 +120,39 @@ public class RestServiceController extends BasicRestController
 			{
 				errorLogService.logException(e, ErrorLogSeverity.ERROR, this.getClass().getName(), -1, restInfo.getAuthData().getUserId(), restInfo.getAuthData(), restInfo.getEnv());
 			}
-			returnRestError("Error executing DAL query" + (e.getMessage() != null ? ": " + JSON.escape(e.getMessage()) : ""), restInfo.getOut());
-			//returnRestError("Error executing DAL query''", restInfo.getOut());
-			resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			returnStreamedRestError("Error executing DAL query" + (e.getMessage() != null ? ": " + JSON.escape(e.getMessage()) : ""), HttpServletResponse.SC_BAD_REQUEST, resp);
+			return;
+		}
+	}
+	
+	/**
+	 * Returns an error from a method that writes its response to the output stream instead of the writer.
+	 * If part of the response has already been sent, the error cannot be returned, so the response is left incomplete.
+	 * @param err
+	 * @param respCode
+	 * @param resp
+	 * @throws KommetException
+	 */
+	private void returnStreamedRestError(String err, int respCode, HttpServletResponse resp) throws KommetException
+	{
+		if (resp.isCommitted())
+		{
+			log.warn("Error occurred after the response has been committed: " + err);
 			return;
 		}
+		
+		// discard records that have been written but not sent
+		resp.resetBuffer();
+		resp.setStatus(respCode);
+		
+		try
+		{
+			resp.getOutputStream().write(RestUtil.getRestErrorResponse(err).getBytes(StandardCharsets.UTF_8));
+		}
+		catch (IOException e)
+		{
+			throw new KommetException("Error writing to page: " + e.getMessage());
+		}
 	}
 	
 	// TODO write unit tests for this method
@@ -890,21 +924,5 @@ public class RestServiceController extends BasicRestController
 			restInfo.getEnv().clearAuthData();
 		}
 		
-	}
-
-	private void returnRestRecords(List<Record> records, AuthData authData, PrintWriter out) throws KommetException
-	{
-		StringBuilder sb = new StringBuilder();
-		sb.append("[ ");
-		
-		List<String> recordList = new ArrayList<String>();
-		for (Record r : records)
-		{
-			recordList.add(JSON.serializeRecord(r, authData));
 		}
-		
-		sb.append(MiscUtils.implode(recordList, ", "));
-		sb.append(" ]");
-		out.write(sb.toString());
-	}
 }
\ No newline at end of file
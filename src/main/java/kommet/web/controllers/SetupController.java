@@ -109,9 +109,11 @@ public class SetupController extends CommonKommetController
 	
 	@RestrictedAccess(profiles = { Profile.ROOT_NAME })
 	@RequestMapping(value = UrlUtil.SYSTEM_ACTION_URL_PREFIX + "/adminpanel", method = RequestMethod.GET)
-	public ModelAndView adminPanel() throws KommetException
+	public ModelAndView adminPanel(HttpSession session) throws KommetException
 	{
-		return new ModelAndView("setup/adminpanel");
+		ModelAndView mv = new ModelAndView("setup/adminpanel");
+		mv.addObject("dalQueryCache", envService.getCurrentEnv(session).getDalQueryCache());
+		return mv;
 	}
 	
 	@RestrictedAccess(profiles = Profile.ROOT_NAME)
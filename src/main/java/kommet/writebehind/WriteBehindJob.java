@@ -0,0 +1,51 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.writebehind;
+
+import org.quartz.DisallowConcurrentExecution;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import kommet.data.KommetException;
+
+/**
+ * Writes items queued in a write-behind queue, using the writer passed in the job detail.
+ * @author Radek Krawiec
+ */
+@DisallowConcurrentExecution
+public class WriteBehindJob implements Job
+{	
+	private static final Logger log = LoggerFactory.getLogger(WriteBehindJob.class);
+	
+	public WriteBehindJob()
+	{
+		// empty
+	}
+	
+	public void execute(JobExecutionContext ctx) throws JobExecutionException
+	{	
+		WriteBehindJobDetail detail = (WriteBehindJobDetail)ctx.getJobDetail();
+		
+		try
+		{
+			int writtenItems = detail.getWriter().flush(detail.getEnv());
+			if (writtenItems > 0)
+			{
+				log.debug("[" + detail.getName() + "] Written " + writtenItems + " items");
+			}
+		}
+		catch (KommetException e)
+		{
+			e.printStackTrace();
+			throw new JobExecutionException("Error writing queued items in job " + detail.getName() + ": " + e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.writebehind;
+
+import org.quartz.impl.JobDetailImpl;
+
+import kommet.env.EnvData;
+
+public class WriteBehindJobDetail extends JobDetailImpl
+{
+	private static final long serialVersionUID = 6285470923154413906L;
+	private EnvData env;
+	private WriteBehindWriter writer;
+	
+	public WriteBehindJobDetail(WriteBehindWriter writer, EnvData env)
+	{
+		super();
+		this.env = env;
+		this.writer = writer;
+	}
+	
+	public WriteBehindWriter getWriter()
+	{
+		return writer;
+	}
+
+	public EnvData getEnv()
+	{
+		return env;
+	}
+}
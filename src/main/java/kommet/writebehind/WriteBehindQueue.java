@@ -0,0 +1,224 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.writebehind;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.quartz.CronScheduleBuilder;
+import org.quartz.CronTrigger;
+import org.quartz.JobDetail;
+import org.quartz.JobKey;
+import org.quartz.SchedulerException;
+import org.quartz.TriggerBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.quartz.SchedulerFactoryBean;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import kommet.data.KID;
+import kommet.env.EnvData;
+
+/**
+ * In-memory queue of items written to the database in the background, after the transaction in which they
+ * were created has been committed.
+ * <p>
+ * Items are kept in a separate queue for each env. They are written by a {@link WriteBehindWriter}, which is called
+ * by a {@link WriteBehindJob} scheduled on each env. The job runs every few seconds, so that items are written
+ * within a bounded time after they have been queued, and is also triggered as soon as a full batch is waiting.
+ * </p>
+ * <p>
+ * Queued items are lost if the server is stopped before they are written, so services using this queue
+ * must be able to recover them from the database.
+ * </p>
+ * @author Radek Krawiec
+ * @param <T> type of queued items
+ */
+public class WriteBehindQueue<T>
+{
+	private static final Logger log = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+	/**
+	 * Name of the queue, used as the prefix of the names of writer jobs.
+	 */
+	private final String name;
+
+	private final Map<KID, EnvQueue<T>> queues = new ConcurrentHashMap<KID, EnvQueue<T>>();
+
+	public WriteBehindQueue (String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * Adds items to the queue when the current transaction is committed, so that items describing changes that
+	 * have been rolled back are never written. If there is no transaction, items are added immediately.
+	 * @param items
+	 * @param batchSize number of queued items after which the writer job is triggered
+	 * @param schedulerFactory
+	 * @param env
+	 */
+	public void addAfterCommit (List<T> items, final int batchSize, final SchedulerFactoryBean schedulerFactory, final EnvData env)
+	{
+		final List<T> queuedItems = new ArrayList<T>(items);
+
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+		{
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter()
+			{
+				@Override
+				public void afterCommit()
+				{
+					add(queuedItems, batchSize, schedulerFactory, env);
+				}
+			});
+		}
+		else
+		{
+			add(queuedItems, batchSize, schedulerFactory, env);
+		}
+	}
+
+	private void add (List<T> items, int batchSize, SchedulerFactoryBean schedulerFactory, EnvData env)
+	{
+		int queueSize = add(items, env);
+
+		try
+		{
+			if (queueSize >= batchSize)
+			{
+				// do not wait for the next scheduled run if a full batch is waiting to be written
+				JobKey jobKey = getJobKey(env);
+				if (schedulerFactory.getScheduler().checkExists(jobKey))
+				{
+					schedulerFactory.getScheduler().triggerJob(jobKey);
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			// items will be written by the next scheduled run of the job
+			log.warn("Could not trigger " + name + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Adds items to the end of the queue.
+	 * @param items
+	 * @param env
+	 * @return the number of items in the queue
+	 */
+	public int add (List<T> items, EnvData env)
+	{
+		return getQueue(env).add(items);
+	}
+
+	/**
+	 * Removes at most the given number of items from the head of the queue and returns them.
+	 * @param max
+	 * @param env
+	 * @return
+	 */
+	public List<T> poll (int max, EnvData env)
+	{
+		EnvQueue<T> queue = queues.get(env.getId());
+		return queue != null ? queue.poll(max) : new ArrayList<T>();
+	}
+
+	/**
+	 * Returns the number of items waiting in the queue on the given env.
+	 * @param env
+	 * @return
+	 */
+	public int size (EnvData env)
+	{
+		EnvQueue<T> queue = queues.get(env.getId());
+		return queue != null ? queue.size() : 0;
+	}
+
+	private EnvQueue<T> getQueue (EnvData env)
+	{
+		EnvQueue<T> queue = queues.get(env.getId());
+		if (queue == null)
+		{
+			queues.putIfAbsent(env.getId(), new EnvQueue<T>());
+			queue = queues.get(env.getId());
+		}
+		return queue;
+	}
+
+	/**
+	 * Schedules the job writing items queued on the given env, replacing the job if it has already been scheduled.
+	 * @param writer
+	 * @param maxLagSeconds interval in seconds between runs of the job, between 1 and 59
+	 * @param schedulerFactory
+	 * @param env
+	 * @throws SchedulerException
+	 */
+	public void scheduleWriter (WriteBehindWriter writer, int maxLagSeconds, SchedulerFactoryBean schedulerFactory, EnvData env) throws SchedulerException
+	{
+		JobKey jobKey = getJobKey(env);
+
+		// check if a job for this task does not already exist
+		JobDetail jobDetail = schedulerFactory.getScheduler().getJobDetail(jobKey);
+
+		if (jobDetail != null)
+		{
+			// be sure to use method deleteJob instead of unscheduleJob
+			schedulerFactory.getScheduler().deleteJob(jobKey);
+		}
+
+		WriteBehindJobDetail job = new WriteBehindJobDetail(writer, env);
+		job.setName(jobKey.getName());
+		job.setGroup(jobKey.getGroup());
+		job.setJobClass(WriteBehindJob.class);
+
+		// run the job as often as the allowed lag requires
+		CronTrigger trigger = TriggerBuilder.newTrigger().withIdentity(jobKey.getName() + "-trigger", jobKey.getGroup()).withSchedule(CronScheduleBuilder.cronSchedule("*/" + maxLagSeconds + " * * * * ?")).build();
+		schedulerFactory.getScheduler().scheduleJob(job, trigger);
+	}
+
+	private JobKey getJobKey (EnvData env)
+	{
+		return JobKey.jobKey(name + "-" + env.getId(), name + "s-" + env.getId());
+	}
+
+	private static class EnvQueue<T>
+	{
+		private final ConcurrentLinkedQueue<T> items = new ConcurrentLinkedQueue<T>();
+		private final AtomicInteger size = new AtomicInteger();
+
+		public int add (List<T> newItems)
+		{
+			items.addAll(newItems);
+			return size.addAndGet(newItems.size());
+		}
+
+		public List<T> poll (int max)
+		{
+			List<T> polledItems = new ArrayList<T>();
+			T item;
+			while (polledItems.size() < max && (item = items.poll()) != null)
+			{
+				polledItems.add(item);
+				size.decrementAndGet();
+			}
+			return polledItems;
+		}
+
+		public int size()
+		{
+			return size.get();
+		}
+	}
+}
@@ -0,0 +1,26 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.writebehind;
+
+import kommet.data.KommetException;
+import kommet.env.EnvData;
+
+/**
+ * Writes items queued in a {@link WriteBehindQueue}. Called periodically by {@link WriteBehindJob}.
+ * @author Radek Krawiec
+ */
+public interface WriteBehindWriter
+{
+	/**
+	 * Writes all items queued on the given env.
+	 * @param env
+	 * @return the number of written items
+	 * @throws KommetException
+	 */
+	public int flush (EnvData env) throws KommetException;
+}
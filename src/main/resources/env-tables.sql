@@ -0,0 +1,53 @@
+-- Tables that are accessed with plain JDBC rather than as types.
+-- The script is run at env setup, and on existing envs when the tables are first used, so every statement must be repeatable.
+
+-- OAuth access tokens, identified by SHA-256 hashes of the token strings
+CREATE TABLE IF NOT EXISTS oauthtokens (
+	tokenhash character varying(64) PRIMARY KEY,
+	refreshtokenhash character varying(64),
+	userid character varying(13) NOT NULL,
+	expirationdate timestamp NOT NULL
+);
+
+-- expired tokens are removed by expiration date
+CREATE INDEX IF NOT EXISTS oauthtokens_expirationdate_idx ON oauthtokens (expirationdate);
+
+-- queue of asynchronous business process executions
+CREATE TABLE IF NOT EXISTS bpqueue (
+	id bigserial PRIMARY KEY,
+	processid character varying(13) NOT NULL,
+	recordid character varying(13) NOT NULL,
+	userid character varying(13) NOT NULL,
+	status character varying(10) NOT NULL,
+	attempts integer NOT NULL,
+	nextattempt timestamp NOT NULL,
+	createddate timestamp NOT NULL,
+	lasterror text
+);
+
+-- workers look for executions that are due
+CREATE INDEX IF NOT EXISTS bpqueue_status_nextattempt_idx ON bpqueue (status, nextattempt);
+CREATE INDEX IF NOT EXISTS bpqueue_processid_idx ON bpqueue (processid);
+
+-- due times of reminders that have not been sent yet
+CREATE TABLE IF NOT EXISTS reminderschedule (
+	reminderid character varying(13) PRIMARY KEY,
+	recordid character varying(13) NOT NULL,
+	referencedfield character varying(13) NOT NULL,
+	intervalunit character varying(10) NOT NULL,
+	intervalvalue integer NOT NULL,
+	nextfire timestamp
+);
+
+-- reminders are looked up by due time when loaded into the timer wheel, and by record when the record changes
+CREATE INDEX IF NOT EXISTS reminderschedule_nextfire_idx ON reminderschedule (nextfire);
+CREATE INDEX IF NOT EXISTS reminderschedule_recordid_idx ON reminderschedule (recordid);
+
+-- trigram matching used by typeahead indexes, which are not created if the database user is not allowed to install the extension
+DO $$
+BEGIN
+	CREATE EXTENSION IF NOT EXISTS pg_trgm;
+EXCEPTION WHEN OTHERS THEN
+	RAISE NOTICE 'Extension pg_trgm could not be installed: %', SQLERRM;
+END
+$$;
@@ -1,4 +1,5 @@
 <%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
+<%@ taglib prefix="fmt" uri="http://java.sun.com/jsp/jstl/fmt" %>
 <%@ taglib prefix="ko" tagdir="/WEB-INF/tags" %>
 <%@ taglib prefix="kolmu" uri="/WEB-INF/tld/kolmu-tags.tld" %>
 <%@ taglib prefix="km" uri="/WEB-INF/tld/km-tags.tld" %>
@@ -32,6 +33,73 @@
 					</tr>
 				</tbody>
 			</table>
+			
+			<div class="section-title">Asynchronous executions</div>
+			
+			<table class="kdetails" style="margin: 15px 0 30px 0">
+				<tbody>
+					<tr>
+						<td class="label">Queued</td>
+						<td class="value">${queuedCount}</td>
+						<td class="sep"></td>
+						<td class="label">Completed</td>
+						<td class="value">${queueStats.completed}</td>
+					</tr>
+					<tr>
+						<td class="label">Failed attempts</td>
+						<td class="value">${queueStats.failedAttempts}</td>
+						<td class="sep"></td>
+						<td class="label">Dead letters</td>
+						<td class="value">${queueStats.dead}</td>
+					</tr>
+					<tr>
+						<td class="label">Throughput (per minute)</td>
+						<td class="value"><fmt:formatNumber value="${queueStats.throughputPerMinute}" maxFractionDigits="2" /></td>
+						<td class="sep"></td>
+						<td class="label">Average execution time (ms)</td>
+						<td class="value">${queueStats.averageExecutionMillis}</td>
+					</tr>
+					<tr>
+						<td class="label">Average latency (ms)</td>
+						<td class="value">${queueStats.averageLatencyMillis}</td>
+						<td class="sep"></td>
+						<td class="label">Maximum latency (ms)</td>
+						<td class="value">${queueStats.maxLatencyMillis}</td>
+					</tr>
+				</tbody>
+			</table>
+			
+			<c:if test="${not empty deadLetters}">
+				<div class="section-title">Dead letters</div>
+				
+				<div id="deadLetterMsgs"></div>
+				
+				<table class="std-table" id="dead-letters" style="margin-top: 15px">
+					<thead>
+						<tr class="cols">
+							<th>Record</th>
+							<th>Queued</th>
+							<th>Attempts</th>
+							<th>Last error</th>
+							<th>Action</th>
+						</tr>
+					</thead>
+					<tbody>
+						<c:forEach var="deadLetter" items="${deadLetters}">
+							<tr id="dead-letter-${deadLetter.id}">
+								<td>${deadLetter.recordId}</td>
+								<td><km:dateTime value="${deadLetter.createdDate}" format="dd-MM-yyyy HH:mm:ss" /></td>
+								<td>${deadLetter.attempts}</td>
+								<td><c:out value="${deadLetter.lastError}" /></td>
+								<td>
+									<a href="javascript:;" onclick="handleDeadLetter('retry', '${deadLetter.id}')">Retry</a>
+									<a href="javascript:;" onclick="handleDeadLetter('delete', '${deadLetter.id}')">Delete</a>
+								</td>
+							</tr>
+						</c:forEach>
+					</tbody>
+				</table>
+			</c:if>
 		
 		</div>
 		
@@ -50,6 +118,20 @@
 					}
 				}, "json");
 			}
+			
+			function handleDeadLetter(action, id)
+			{
+				$.post("${pageContext.request.contextPath}/km/bp/queue/" + action, { id: id }, function(data) {
+					if (data.success === true)
+					{
+						$("#dead-letter-" + id).remove();
+					}
+					else
+					{
+						showMsg("deadLetterMsgs", data.messages, "error");
+					}
+				}, "json");
+			}
 		
 		</script>
 		
@@ -29,7 +29,8 @@
 	
 					if (data.success === true)
 					{
-						km.js.ui.statusbar.show("Upload complete");   
+						km.js.ui.statusbar.show("Upload complete, importing data");
+						pollImportJob(data.data.id);
 					}
 					else
 					{
@@ -37,6 +38,37 @@
 					}
 	            });
 			}
+			
+			// check the status of the import job until it finishes
+			function pollImportJob(jobId)
+			{
+				$.get("${pageContext.request.contextPath}/km/dataimport/jobs/" + jobId, function(data) {
+					
+					if (data.success !== true)
+					{
+						km.js.ui.statusbar.show(data.messages);
+						return;
+					}
+					
+					var job = data.data;
+					var progress = job.rowsProcessed + " of " + job.rowsRead + " rows processed, " + job.rowsRejected + " rejected";
+					
+					if (job.status === "COMPLETED" || job.status === "FAILED")
+					{
+						var msg = (job.status === "COMPLETED" ? "Data import successful: " : "Data import failed: " + job.errorMessage + ". ") + progress;
+						if (job.hasRejectFile)
+						{
+							msg += " <a href=\"${pageContext.request.contextPath}/km/dataimport/jobs/" + jobId + "/rejects\">Download rejected rows</a>";
+						}
+						km.js.ui.statusbar.show(msg);
+					}
+					else
+					{
+						km.js.ui.statusbar.show("Importing data: " + progress);
+						setTimeout(function() { pollImportJob(jobId); }, 1000);
+					}
+				}, "json");
+			}
 		
 		</script>
 	
@@ -66,6 +98,18 @@
 							</select>
 						</ko:propertyValue>
 					</ko:propertyRow>
+					<ko:propertyRow>
+						<ko:propertyLabel value="Batch size"></ko:propertyLabel>
+						<ko:propertyValue>
+							<input type="text" name="batchSize" />
+						</ko:propertyValue>
+					</ko:propertyRow>
+					<ko:propertyRow>
+						<ko:propertyLabel value="Threads"></ko:propertyLabel>
+						<ko:propertyValue>
+							<input type="text" name="threads" value="1" />
+						</ko:propertyValue>
+					</ko:propertyRow>
 				</ko:propertyTable>
 				<ko:buttonPanel>
 					<input type="button" onclick="importData()" class="sbtn" value="Import" />
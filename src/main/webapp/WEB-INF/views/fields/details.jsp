@@ -53,6 +53,24 @@
 			}, "json");
 		}
 		
+		function createTypeaheadIndex()
+		{
+			km.js.ui.statusbar.show("Creating search index...");
+			
+			$.post("${pageContext.request.contextPath}/km/field/createtypeaheadindex", { id: "${field.KID}", typePrefix: "${field.type.keyPrefix}" }, function(data) {
+				
+				if (data.success)
+				{
+					km.js.ui.statusbar.show(data.message, 5000);
+				}
+				else
+				{
+					km.js.ui.statusbar.err(data.message);
+				}
+				
+			}, "json");
+		}
+		
 		</script>
 		
 		<km:breadcrumbs isAlwaysVisible="true" />
@@ -71,6 +89,9 @@
 			<c:if test="${canEdit == true}">
 				<a href="${pageContext.request.contextPath}/km/field/edit/${field.KID}" class="sbtn">Edit</a>
 				<a href="javascript:;" onclick="ask('Are you sure you want to delete this field?', 'warnPrompt', function() { deleteField(); })" id="deleteFieldBtn" class="sbtn">Delete</a>
+				<c:if test="${isTypeaheadSearchable == true}">
+					<a href="javascript:;" onclick="createTypeaheadIndex()" id="createTypeaheadIndexBtn" class="sbtn">Create Search Index</a>
+				</c:if>
 			</c:if>
 			<a href="${pageContext.request.contextPath}/km/fieldpermissions/${field.KID}" class="sbtn">Permissions</a>
 			
@@ -107,6 +107,31 @@
 				</li>
 			</ul>
 			
+			<div class="section-title" style="margin: 2em 0 0.5em 0">Tokenized DAL query cache</div>
+			
+			<table class="std-table" id="dal-cache-stats">
+				<thead>
+					<tr class="cols">
+						<th>Statistic</th>
+						<th>Value</th>
+					</tr>
+				</thead>
+				<tbody>
+					<tr>
+						<td>Cached queries</td>
+						<td>${dalQueryCache.size}</td>
+					</tr>
+					<tr>
+						<td>Hits</td>
+						<td>${dalQueryCache.hits}</td>
+					</tr>
+					<tr>
+						<td>Misses</td>
+						<td>${dalQueryCache.misses}</td>
+					</tr>
+				</tbody>
+			</table>
+			
 		</div>
 	
 	</jsp:body>
@@ -11,22 +11,31 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.inject.Inject;
 
 import org.junit.Test;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
 
 import kommet.auth.AuthData;
 import kommet.basic.AnyRecord;
 import kommet.data.DataService;
+import kommet.data.Field;
+import kommet.data.KID;
+import kommet.data.KeyPrefix;
 import kommet.data.KommetException;
 import kommet.data.Record;
 import kommet.data.Type;
 import kommet.env.EnvData;
 import kommet.env.EnvService;
 import kommet.services.AnyRecordService;
+import kommet.utils.AppConfig;
 
 public class AnyRecordTest extends BaseUnitTest
 {
@@ -42,6 +51,9 @@ public class AnyRecordTest extends BaseUnitTest
 	@Inject
 	AnyRecordService anyRecordService;
 	
+	@Inject
+	AppConfig appConfig;
+	
 	@SuppressWarnings("deprecation")
 	@Test
 	public void testAnyRecord() throws KommetException
@@ -85,6 +97,119 @@ public class AnyRecordTest extends BaseUnitTest
 		anyRecords = anyRecordService.get(null, authData, env);
 		assertEquals(1, anyRecords.size());
 		assertEquals(oldPigeon.getKID(), anyRecords.get(0).getRecordId());
+		
+		// insert records in bulk
+		List<Record> pigeons = new ArrayList<Record>();
+		for (int i = 0; i < 3; i++)
+		{
+			Record pigeon = dataService.instantiate(pigeonType.getKID(), env);
+			pigeon.setField("name", "Pigeon " + i);
+			pigeon.setField("age", 2);
+			pigeon.setField("birthdate", new Date (112, 3, 4));
+			pigeons.add(pigeon);
+		}
+		dataService.saveAll(pigeons, authData, env);
+		
+		anyRecords = anyRecordService.get(null, authData, env);
+		assertEquals(4, anyRecords.size());
+		
+		// delete records in bulk
+		dataService.deleteRecords(pigeons, false, authData, env);
+		
+		anyRecords = anyRecordService.get(null, authData, env);
+		assertEquals(1, anyRecords.size());
+		assertEquals(oldPigeon.getKID(), anyRecords.get(0).getRecordId());
+		assertEquals(0, anyRecordService.getPendingCount(env));
+	}
+	
+	/**
+	 * Tests maintaining AnyRecord rows in asynchronous mode. Changes are queued only after the transaction in which
+	 * records were saved has been committed, so the test runs outside of the test transaction on a separately created env.
+	 */
+	@SuppressWarnings("deprecation")
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void testAsyncAnyRecords() throws KommetException
+	{
+		KID envId = KID.get("0010000000125");
+		EnvData env = envService.createEnv("asyncanyrecordtestenv", envId, true);
+		
+		try
+		{
+			appConfig.overrideProperty("kommet.anyrecords.create", "true");
+			appConfig.overrideProperty("kommet.anyrecords.consistency", "async");
+			
+			AuthData authData = dataHelper.getRootAuthData(env);
+			Type pigeonType = dataService.createType(dataHelper.getFullPigeonType(env), env);
+			
+			// the first flush reconciles rows with records, but there are no records yet
+			assertEquals(0, anyRecordService.flush(env));
+			
+			List<Record> pigeons = new ArrayList<Record>();
+			for (int i = 0; i < 3; i++)
+			{
+				Record pigeon = dataService.instantiate(pigeonType.getKID(), env);
+				pigeon.setField("name", "Pigeon " + i);
+				pigeon.setField("age", 2);
+				pigeon.setField("birthdate", new Date (112, 3, 4));
+				pigeons.add(dataService.save(pigeon, env));
+			}
+			
+			// rows are not written when records are saved, but queued
+			assertEquals(3, anyRecordService.getPendingCount(env));
+			assertTrue(anyRecordService.get(null, authData, env).isEmpty());
+			
+			// a record inserted and deleted before the queue is flushed never gets a row
+			dataService.deleteRecord(pigeons.get(2), env);
+			assertEquals(4, anyRecordService.getPendingCount(env));
+			
+			assertEquals(4, anyRecordService.flush(env));
+			assertEquals(0, anyRecordService.getPendingCount(env));
+			
+			List<AnyRecord> anyRecords = anyRecordService.get(null, authData, env);
+			assertEquals(2, anyRecords.size());
+			Set<KID> indexedIds = new HashSet<KID>();
+			for (AnyRecord anyRecord : anyRecords)
+			{
+				indexedIds.add(anyRecord.getRecordId());
+			}
+			assertTrue(indexedIds.contains(pigeons.get(0).getKID()));
+			assertTrue(indexedIds.contains(pigeons.get(1).getKID()));
+			
+			// simulate changes lost together with the queue - the row of the first pigeon is missing,
+			// and the second pigeon is deleted without its row being deleted
+			Type anyRecordType = env.getType(KeyPrefix.get(KID.ANY_RECORD_PREFIX));
+			env.getJdbcTemplate().update("DELETE FROM " + anyRecordType.getDbTable() + " WHERE " + anyRecordType.getField("recordId").getDbColumn() + " = ?", pigeons.get(0).getKID().getId());
+			env.getJdbcTemplate().update("DELETE FROM " + pigeonType.getDbTable() + " WHERE " + Field.ID_FIELD_DB_COLUMN + " = ?", pigeons.get(1).getKID().getId());
+			
+			// reconciliation restores the missing row and removes the stale one
+			assertEquals(2, anyRecordService.reconcile(env));
+			assertEquals(2, anyRecordService.flush(env));
+			
+			anyRecords = anyRecordService.get(null, authData, env);
+			assertEquals(1, anyRecords.size());
+			assertEquals(pigeons.get(0).getKID(), anyRecords.get(0).getRecordId());
+			
+			// rows are in line with records, so there is nothing more to reconcile
+			assertEquals(0, anyRecordService.reconcile(env));
+			
+			// only records modified since changes were last applied are checked for missing rows
+			env.getJdbcTemplate().update("DELETE FROM " + anyRecordType.getDbTable() + " WHERE " + anyRecordType.getField("recordId").getDbColumn() + " = ?", pigeons.get(0).getKID().getId());
+			env.getJdbcTemplate().update("UPDATE " + pigeonType.getDbTable() + " SET " + Field.LAST_MODIFIED_DATE_FIELD_DB_COLUMN + " = " + Field.LAST_MODIFIED_DATE_FIELD_DB_COLUMN + " - interval '1 day' WHERE " + Field.ID_FIELD_DB_COLUMN + " = ?", pigeons.get(0).getKID().getId());
+			assertEquals(0, anyRecordService.reconcile(env));
+			
+			// rows are not reconciled when they are disabled
+			env.getJdbcTemplate().update("UPDATE " + pigeonType.getDbTable() + " SET " + Field.LAST_MODIFIED_DATE_FIELD_DB_COLUMN + " = " + Field.LAST_MODIFIED_DATE_FIELD_DB_COLUMN + " + interval '1 day' WHERE " + Field.ID_FIELD_DB_COLUMN + " = ?", pigeons.get(0).getKID().getId());
+			appConfig.overrideProperty("kommet.anyrecords.create", "false");
+			assertEquals(0, anyRecordService.reconcile(env));
+			
+			appConfig.overrideProperty("kommet.anyrecords.create", "true");
+			assertEquals(1, anyRecordService.reconcile(env));
+		}
+		finally
+		{
+			appConfig.clearCachedProperties();
+			envService.deleteEnv(envId);
+		}
 	}
-
 }
@@ -113,6 +113,12 @@ public class AppTest extends BaseUnitTest
 		assertNotNull(mapping1);
 		assertEquals(env.getId(), mapping1.getEnv().getKID());
 		
+		// make sure cached domain mappings are used
+		assertEquals(env.getId(), appService.getDomainMapping(appUrl1.getUrl(), sharedEnv).getEnv().getKID());
+		
+		// look up a URL that is not mapped yet, so that it is cached as unmapped
+		assertNull(appService.getDomainMapping("my.app2.kommet.io", sharedEnv));
+		
 		// now create another mapping
 		AppUrl appUrl2 = new AppUrl();
 		appUrl2.setApp(app);
@@ -120,6 +126,7 @@ public class AppTest extends BaseUnitTest
 		appUrl2 = appService.save(appUrl2, authData, env, sharedEnv);
 		assertNotNull(appUrl2.getId());
 		assertNotNull("Domain mapping not created for AppURL", domainMappingDao.getForURL(appUrl2.getUrl(), sharedEnv));
+		assertNotNull("Cached domain mapping not refreshed when AppURL was created", appService.getDomainMapping(appUrl2.getUrl(), sharedEnv));
 		
 		// delete app URL
 		appService.deleteAppUrl(appUrl2.getId(), authData, env, sharedEnv);
@@ -129,6 +136,7 @@ public class AppTest extends BaseUnitTest
 		
 		// make sure domain mapping has also been deleted
 		assertNull("Domain mapping not deleted when AppURL was deleted", domainMappingDao.getForURL(appUrl2.getUrl(), sharedEnv));
+		assertNull("Cached domain mapping not removed when AppURL was deleted", appService.getDomainMapping(appUrl2.getUrl(), sharedEnv));
 		
 		// try to create a duplicate app URL and make sure it fails
 		AppUrl duplicateAppUrl = new AppUrl();
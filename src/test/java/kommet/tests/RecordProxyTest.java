@@ -32,6 +32,8 @@ import kommet.basic.BasicSetupService;
 import kommet.basic.Class;
 import kommet.basic.Profile;
 import kommet.basic.RecordProxy;
+import kommet.basic.RecordProxyAccessors;
+import kommet.basic.RecordProxyAccessors.PropertyAccessor;
 import kommet.basic.RecordProxyException;
 import kommet.basic.RecordProxyUtil;
 import kommet.basic.User;
@@ -357,7 +359,42 @@ public class RecordProxyTest extends BaseUnitTest
 		assertTrue(properties.containsKey("kollCode"));
 		assertTrue(properties.get("kollCode") == null);
 	}
-	
+
+	@Test
+	public void testProxyAccessors() throws KommetException
+	{
+		RecordProxyAccessors accessors = RecordProxyAccessors.get(Class.class);
+
+		// accessor table is built once per proxy class
+		assertTrue(accessors == RecordProxyAccessors.get(Class.class));
+		assertFalse(accessors == RecordProxyAccessors.get(Action.class));
+
+		Class file = new Class();
+		PropertyAccessor nameAccessor = null;
+		for (PropertyAccessor accessor : accessors.getInitializedProperties())
+		{
+			if (accessor.getField().equals("name"))
+			{
+				nameAccessor = accessor;
+			}
+		}
+
+		assertNotNull(nameAccessor);
+		nameAccessor.set(file, "test name");
+		assertEquals("test name", file.getName());
+		assertEquals("test name", nameAccessor.get(file));
+
+		try
+		{
+			nameAccessor.set(file, 1);
+			fail("Setting value of incorrect type should fail");
+		}
+		catch (RecordProxyException e)
+		{
+			assertTrue(e.getMessage().startsWith("Error calling setter setName"));
+		}
+	}
+
 	
 	@Test
 	public void testInitEmptyPropertiesOnObjectStub() throws KommetException
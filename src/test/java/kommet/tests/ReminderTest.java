@@ -10,7 +10,9 @@ package kommet.tests;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 
@@ -31,6 +33,8 @@ import kommet.data.KID;
 import kommet.data.KommetException;
 import kommet.data.Record;
 import kommet.env.EnvData;
+import kommet.reminders.ReminderTimerWheel;
+import kommet.reminders.ScheduledReminder;
 import kommet.services.ReminderService;
 import kommet.services.TaskService;
 import kommet.utils.AppConfig;
@@ -136,4 +140,46 @@ public class ReminderTest extends BaseUnitTest
 		assertEquals(user.getId(), reminder.getAssignedUser().getId());
 	
 	}
+	
+	@Test
+	public void testTimerWheel() throws KommetException
+	{
+		long now = 1000000L * 60000;
+		ReminderTimerWheel wheel = new ReminderTimerWheel(10, 60000, now);
+		assertEquals(600000, wheel.getSpanMillis());
+		
+		KID overdueId = KID.get("0040000000001");
+		KID dueSoonId = KID.get("0040000000002");
+		KID dueLaterId = KID.get("0040000000003");
+		
+		ScheduledReminder overdue = new ScheduledReminder();
+		overdue.setReminderId(overdueId);
+		overdue.setNextFire(new Date(now - 3600000));
+		
+		ScheduledReminder dueSoon = new ScheduledReminder();
+		dueSoon.setReminderId(dueSoonId);
+		dueSoon.setNextFire(new Date(now + 120000));
+		
+		wheel.load(Arrays.asList(overdue, dueSoon), now + 300000);
+		
+		// reminders due after the loaded window are not held in the wheel
+		wheel.schedule(dueLaterId, now + 400000);
+		assertEquals(2, wheel.size());
+		
+		// overdue reminders are returned by the first poll
+		assertEquals(Arrays.asList(overdueId), wheel.pollDue(now));
+		assertTrue(wheel.pollDue(now + 60000).isEmpty());
+		assertEquals(Arrays.asList(dueSoonId), wheel.pollDue(now + 120000));
+		assertEquals(0, wheel.size());
+		
+		// a rescheduled reminder is only returned at its new time
+		wheel.schedule(dueSoonId, now + 180000);
+		wheel.schedule(dueSoonId, now + 240000);
+		assertTrue(wheel.pollDue(now + 180000).isEmpty());
+		assertEquals(Arrays.asList(dueSoonId), wheel.pollDue(now + 240000));
+		
+		wheel.schedule(overdueId, now + 270000);
+		wheel.cancel(overdueId);
+		assertTrue(wheel.pollDue(now + 300000).isEmpty());
+	}
 }
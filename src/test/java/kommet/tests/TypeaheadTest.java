@@ -0,0 +1,186 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import javax.inject.Inject;
+
+import org.junit.Test;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import kommet.auth.AuthData;
+import kommet.data.DataService;
+import kommet.data.Field;
+import kommet.data.KID;
+import kommet.data.KommetException;
+import kommet.data.Record;
+import kommet.data.Type;
+import kommet.data.datatypes.EmailDataType;
+import kommet.env.EnvData;
+import kommet.env.EnvService;
+import kommet.services.TypeaheadService;
+
+public class TypeaheadTest extends BaseUnitTest
+{
+	@Inject
+	TestDataCreator dataHelper;
+	
+	@Inject
+	DataService dataService;
+	
+	@Inject
+	TypeaheadService typeaheadService;
+	
+	@Inject
+	EnvService envService;
+	
+	@Test
+	public void testPrefixSearch() throws KommetException
+	{
+		EnvData env = dataHelper.configureFullTestEnv();
+		AuthData authData = dataHelper.getRootAuthData(env);
+		
+		Type pigeonType = dataService.createType(dataHelper.getFullPigeonType(env), env);
+		
+		for (String name : new String[] { "Albert", "alfred", "Al_x", "Bob" })
+		{
+			Record pigeon = dataService.instantiate(pigeonType.getKID(), env);
+			pigeon.setField("name", name);
+			pigeon.setField("age", 2);
+			dataService.save(pigeon, env);
+		}
+		
+		// matching is case-insensitive
+		List<Record> pigeons = typeaheadService.search(pigeonType, "name", "AL", null, authData, env);
+		assertEquals(3, pigeons.size());
+		
+		// result for a longer prefix is filtered from the cached result for the shorter one
+		pigeons = typeaheadService.search(pigeonType, "name", "alb", null, authData, env);
+		assertEquals(1, pigeons.size());
+		assertEquals("Albert", pigeons.get(0).getField("name"));
+		
+		// wildcard characters in the prefix are matched literally
+		pigeons = typeaheadService.search(pigeonType, "name", "al_", null, authData, env);
+		assertEquals(1, pigeons.size());
+		assertEquals("Al_x", pigeons.get(0).getField("name"));
+		
+		// the number of results is limited
+		pigeons = typeaheadService.search(pigeonType, "name", "a", 2, authData, env);
+		assertEquals(2, pigeons.size());
+		
+		pigeons = typeaheadService.search(pigeonType, "name", null, null, authData, env);
+		assertEquals(4, pigeons.size());
+		
+		try
+		{
+			typeaheadService.search(pigeonType, "age", "2", null, authData, env);
+			fail("Searching non-text field by prefix should fail");
+		}
+		catch (KommetException e)
+		{
+			// expected
+		}
+	}
+	
+	@Test
+	public void testPrefixSearchWithQuote() throws KommetException
+	{
+		EnvData env = dataHelper.configureFullTestEnv();
+		AuthData authData = dataHelper.getRootAuthData(env);
+		
+		Type pigeonType = dataHelper.getFullPigeonType(env);
+		
+		Field emailField = new Field();
+		emailField.setApiName("email");
+		emailField.setLabel("Email");
+		emailField.setDataType(new EmailDataType());
+		pigeonType.addField(emailField);
+		
+		pigeonType = dataService.createType(pigeonType, env);
+		
+		for (String email : new String[] { "obrien@kommet.io", "oscar@kommet.io" })
+		{
+			Record pigeon = dataService.instantiate(pigeonType.getKID(), env);
+			pigeon.setField("name", "Pigeon");
+			pigeon.setField("age", 2);
+			pigeon.setField("email", email);
+			dataService.save(pigeon, env);
+		}
+		
+		// quotes in the prefix are matched literally and do not break the query
+		List<Record> pigeons = typeaheadService.search(pigeonType, "email", "o'b", null, authData, env);
+		assertEquals(0, pigeons.size());
+		
+		pigeons = typeaheadService.search(pigeonType, "email", "o' OR '1'='1", null, authData, env);
+		assertEquals(0, pigeons.size());
+		
+		pigeons = typeaheadService.search(pigeonType, "email", "o", null, authData, env);
+		assertEquals(2, pigeons.size());
+	}
+	
+	/**
+	 * Tests creating trigram indexes for typeahead searches. Indexes are built concurrently, which cannot be done
+	 * within a transaction, so the test runs outside of the test transaction on a separately created env.
+	 */
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void testCreateIndex() throws KommetException
+	{
+		KID envId = KID.get("0010000000129");
+		EnvData env = envService.createEnv("typeaheadindextestenv", envId, true);
+		
+		try
+		{
+			AuthData authData = dataHelper.getRootAuthData(env);
+			Type pigeonType = dataService.createType(dataHelper.getFullPigeonType(env), env);
+			String indexName = (pigeonType.getDbTable() + "_" + pigeonType.getField("name").getKID() + "_trgm").toLowerCase();
+			
+			// searches do not create indexes
+			typeaheadService.search(pigeonType, "name", "al", null, authData, env);
+			assertEquals(0, getIndexCount(indexName, env));
+			
+			assertTrue(typeaheadService.createIndex(pigeonType, "name", env));
+			assertEquals(1, getIndexCount(indexName, env));
+			
+			// a valid index is not built again
+			assertFalse(typeaheadService.createIndex(pigeonType, "name", env));
+			
+			// an index left invalid by a failed concurrent build is dropped and built again
+			env.getJdbcTemplate().update("UPDATE pg_index SET indisvalid = false WHERE indexrelid = '" + indexName + "'::regclass");
+			assertTrue(typeaheadService.createIndex(pigeonType, "name", env));
+			assertEquals(1, getIndexCount(indexName, env));
+			assertTrue(env.getJdbcTemplate().queryForObject("SELECT indisvalid FROM pg_index WHERE indexrelid = '" + indexName + "'::regclass", Boolean.class));
+			
+			try
+			{
+				typeaheadService.createIndex(pigeonType, "age", env);
+				fail("Creating index on non-text field should fail");
+			}
+			catch (KommetException e)
+			{
+				// expected
+			}
+		}
+		finally
+		{
+			envService.deleteEnv(envId);
+		}
+	}
+	
+	private static int getIndexCount (String indexName, EnvData env)
+	{
+		return env.getJdbcTemplate().queryForObject("SELECT count(*) FROM pg_class WHERE relname = ?", Integer.class, indexName);
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html 
+ */
+
+package kommet.tests.actions;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import kommet.basic.Action;
+import kommet.data.KommetException;
+import kommet.web.actions.ActionRouter;
+
+public class ActionRouterTest
+{
+	@Test
+	public void testRouting() throws KommetException
+	{
+		Action usersAction = new Action();
+		Action newUserAction = new Action();
+		Action userAction = new Action();
+		Action userTaskAction = new Action();
+		
+		Map<String, Action> actionsByUrl = new HashMap<String, Action>();
+		actionsByUrl.put("users", usersAction);
+		actionsByUrl.put("users/new", newUserAction);
+		actionsByUrl.put("users/{id}", userAction);
+		actionsByUrl.put("users/{userId}/tasks/{taskId}", userTaskAction);
+		
+		ActionRouter router = new ActionRouter(actionsByUrl);
+		
+		assertSame(usersAction, router.match("users").getAction());
+		assertSame(usersAction, router.match("/users/").getAction());
+		assertTrue(router.match("users").getParams().isEmpty());
+		
+		// literal segments take precedence over parameters
+		assertSame(newUserAction, router.match("users/new").getAction());
+		
+		ActionRouter.Match match = router.match("users/0040000000001");
+		assertSame(userAction, match.getAction());
+		assertEquals("0040000000001", match.getParams().get("id"));
+		
+		match = router.match("users/0040000000001/tasks/123");
+		assertSame(userTaskAction, match.getAction());
+		assertEquals(2, match.getParams().size());
+		assertEquals("0040000000001", match.getParams().get("userId"));
+		assertEquals("123", match.getParams().get("taskId"));
+		
+		assertNull(router.match("user"));
+		assertNull(router.match("users/1/tasks"));
+		assertNull(router.match("users/1/tasks/123/456"));
+		assertNull(router.match("users//tasks/123"));
+		
+		// parameterized URLs match action URLs with any values of the parameters
+		assertSame(userAction, router.match("users/{anything}").getAction());
+		assertSame(userTaskAction, router.match("{a}/{b}/tasks/{c}").getAction());
+		assertNull(router.match("users/{anything}/tasks"));
+		
+		// literal segments are matched regardless of case, while parameter values keep their case
+		match = router.match("Users/AbC/TASKS/dEf");
+		assertSame(userTaskAction, match.getAction());
+		assertEquals("AbC", match.getParams().get("userId"));
+		assertEquals("dEf", match.getParams().get("taskId"));
+	}
+}
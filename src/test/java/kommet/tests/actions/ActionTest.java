@@ -11,6 +11,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -32,6 +33,7 @@ import kommet.basic.Profile;
 import kommet.basic.RecordProxyUtil;
 import kommet.basic.StandardAction;
 import kommet.basic.TypeInfo;
+import kommet.basic.View;
 import kommet.basic.actions.ActionCreationException;
 import kommet.basic.actions.ActionDao;
 import kommet.basic.actions.ActionFilter;
@@ -62,6 +64,7 @@ import kommet.tests.BaseUnitTest;
 import kommet.tests.TestDataCreator;
 import kommet.tests.types.TypeManipulationTest;
 import kommet.utils.AppConfig;
+import kommet.web.actions.ActionRouter;
 import kommet.web.actions.ActionUtil;
 
 public class ActionTest extends BaseUnitTest
@@ -334,6 +337,31 @@ public class ActionTest extends BaseUnitTest
 		assertEquals(action.getId(), foundAction.getId());
 	}
 	
+	@Test
+	public void testActionUrlParamsAddedToEnv() throws KommetException
+	{
+		EnvData env = dataHelper.getTestEnvData(false);
+		
+		View view = new View();
+		view.setId(KID.get(KID.VIEW_PREFIX + "0000000001"));
+		
+		Action action = new Action();
+		action.setUrl("projects/{projectId}/Tasks/{taskId}");
+		action.setView(view);
+		env.addAction(action.getUrl(), action);
+		
+		// action URLs are case-insensitive, but URL parameters keep the names with which they were declared
+		ActionRouter.Match match = env.getActionMatchForUrl("projects/0010000000001/tasks/Abc");
+		assertNotNull(match);
+		assertSame(action, match.getAction());
+		assertEquals(2, match.getParams().size());
+		assertEquals("0010000000001", match.getParams().get("projectId"));
+		assertEquals("Abc", match.getParams().get("taskId"));
+		
+		assertSame(action, env.getActionForUrl("PROJECTS/1/TASKS/2"));
+		assertNull(env.getActionForUrl("projects/1/tasks"));
+	}
+	
 	@Test
 	public void testDeletePagedReferencedByStandardPage() throws KommetException
 	{
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.tests.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import javax.inject.Inject;
+
+import org.junit.Test;
+
+import kommet.auth.oauth2.AccessToken;
+import kommet.auth.oauth2.TokenStore;
+import kommet.data.KommetException;
+import kommet.env.EnvData;
+import kommet.env.EnvService;
+import kommet.tests.BaseUnitTest;
+import kommet.tests.TestDataCreator;
+import kommet.utils.MiscUtils;
+
+public class TokenStoreTest extends BaseUnitTest
+{
+	@Inject
+	TokenStore tokenStore;
+	
+	@Inject
+	TestDataCreator dataHelper;
+	
+	@Inject
+	EnvService envService;
+	
+	@Test
+	public void testStoreAndRetrieveTokens() throws KommetException
+	{
+		EnvData env = dataHelper.configureFullTestEnv();
+		EnvData env2 = dataHelper.getTestEnv2Data(false);
+		
+		// tokens are looked up in the backing store of the env with the given ID
+		envService.add(env);
+		envService.add(env2);
+		
+		String tokenString = MiscUtils.getHash(30);
+		tokenStore.store(tokenString, MiscUtils.getHash(30), 3600, env.getRootUser().getKID(), env);
+		
+		// only the hash of the token is saved
+		assertEquals((Integer)0, env.getJdbcTemplate().queryForObject("SELECT count(*) FROM oauthtokens WHERE tokenhash = ?", Integer.class, tokenString));
+		assertEquals((Integer)1, env.getJdbcTemplate().queryForObject("SELECT count(*) FROM oauthtokens WHERE tokenhash = ?", Integer.class, MiscUtils.getSHA256Hash(tokenString)));
+		
+		AccessToken token = tokenStore.getToken(tokenString, env.getId());
+		assertNotNull(token);
+		assertEquals(env.getRootUser().getKID(), token.getUserId());
+		
+		// token issued in one env cannot be used in another
+		assertNull(tokenStore.getToken(tokenString, env2.getId()));
+		
+		assertNull(tokenStore.getToken(MiscUtils.getHash(30), env.getId()));
+		
+		// after the cache is cleared, the token is read from the backing store
+		tokenStore.clearCache();
+		token = tokenStore.getToken(tokenString, env.getId());
+		assertNotNull(token);
+		assertEquals(env.getRootUser().getKID(), token.getUserId());
+		
+		// expired tokens are not returned, neither from the cache nor from the backing store
+		String expiredTokenString = MiscUtils.getHash(30);
+		tokenStore.store(expiredTokenString, MiscUtils.getHash(30), 0, env.getRootUser().getKID(), env);
+		assertNull(tokenStore.getToken(expiredTokenString, env.getId()));
+		
+		tokenStore.clearCache();
+		assertNull(tokenStore.getToken(expiredTokenString, env.getId()));
+	}
+}
@@ -1002,6 +1002,23 @@ public class BusinessProcessTest extends BaseUnitTest
 		assertEquals(1, processResult.getOutputValues().size());
 		assertTrue(processResult.getOutputValues().containsKey("createdTask"));
 		
+		// execute the prepared executor with another input and make sure the values from the previous execution are not used
+		Record pigeon2 = new Record(pigeonType);
+		pigeon2.setField("name", "Zenek");
+		pigeon2.setField("age", 2);
+		pigeon2 = dataService.save(pigeon2, env);
+		
+		Map<String, Object> otherInputValues = new HashMap<String, Object>();
+		otherInputValues.put("newRecord", RecordProxyUtil.generateCustomTypeProxy(pigeon2, env, compiler));
+		ProcessResult otherProcessResult = processExecutor.execute(otherInputValues, authData);
+		assertTrue(otherProcessResult.isSuccess());
+		assertTrue(otherProcessResult.getOutputValues().containsKey("createdTask"));
+		assertEquals(1, env.getSelectCriteriaFromDAL("select id from Task where title = '" + pigeon2.getKID() + "'").list().size());
+		assertEquals(2, env.getSelectCriteriaFromDAL("select id from Task where title = '" + pigeon1.getKID() + "'").list().size());
+		
+		// results of one execution must not be shared with other executions
+		assertFalse(otherProcessResult.getOutputValues().get("createdTask") == processResult.getOutputValues().get("createdTask"));
+		
 		recordCreateCall = taskCreationProcess.getInvocation(recordCreateCall.getName());
 		
 		// now restrict the process entry point to only some types and make sure the process does not execute
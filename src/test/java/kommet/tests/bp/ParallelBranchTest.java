@@ -0,0 +1,379 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.tests.bp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import kommet.auth.AuthData;
+import kommet.basic.BusinessAction;
+import kommet.basic.BusinessActionInvocation;
+import kommet.basic.BusinessProcess;
+import kommet.basic.BusinessProcessInput;
+import kommet.basic.BusinessProcessOutput;
+import kommet.businessprocess.BusinessProcessExecutor;
+import kommet.businessprocess.ProcessResult;
+import kommet.businessprocess.annotations.Execute;
+import kommet.businessprocess.annotations.Input;
+import kommet.businessprocess.annotations.Output;
+import kommet.data.Env;
+import kommet.data.KID;
+import kommet.data.KommetException;
+import kommet.env.EnvData;
+import kommet.koll.compiler.KommetCompiler;
+
+/**
+ * Tests executing independent branches of a business process in parallel. Actions are plain Java classes
+ * returned by a stub compiler, so the process is executed without a database.
+ */
+public class ParallelBranchTest
+{
+	// names of executed actions, in the order in which they were completed
+	private static final List<String> executedActions = Collections.synchronizedList(new ArrayList<String>());
+
+	private static final AtomicInteger joinCount = new AtomicInteger();
+
+	// released when all branches forked at the fan-out are running at the same time
+	private static CountDownLatch branchesStarted;
+
+	private static long sequence = 1;
+
+	private ExecutorService branchExecutor;
+	private EnvData env;
+	private Map<String, java.lang.Class<?>> actionClasses;
+
+	@Before
+	public void setUp() throws KommetException
+	{
+		executedActions.clear();
+		joinCount.set(0);
+		branchesStarted = new CountDownLatch(3);
+		branchExecutor = Executors.newFixedThreadPool(4);
+		actionClasses = new HashMap<String, java.lang.Class<?>>();
+
+		Env envInfo = new Env();
+		envInfo.setKID(KID.get("0010000000001"));
+		env = new EnvData(envInfo, new DriverManagerDataSource());
+	}
+
+	@After
+	public void tearDown()
+	{
+		branchExecutor.shutdownNow();
+	}
+
+	@Test
+	public void testFanOutAndJoin() throws KommetException
+	{
+		BusinessProcess process = new BusinessProcess();
+		process.setName("com.bp.FanOutProcess");
+
+		BusinessActionInvocation entryPoint = addEntryPoint(process);
+		BusinessActionInvocation a = process.addAction(getAction("A", ConcurrentAction.class, false), "A");
+		BusinessActionInvocation b = process.addAction(getAction("B", ConcurrentAction.class, false), "B");
+		BusinessActionInvocation c = process.addAction(getAction("C", ConcurrentAction.class, false), "C");
+
+		BusinessAction joinAction = getAction("Join", JoinAction.class, false);
+		joinAction.addInput(getInput("a"));
+		joinAction.addInput(getInput("b"));
+		joinAction.addInput(getInput("c"));
+		BusinessActionInvocation join = process.addAction(joinAction, "Join");
+
+		for (BusinessActionInvocation branch : new BusinessActionInvocation[] { a, b, c })
+		{
+			process.addTransition(entryPoint, branch);
+			process.addTransition(branch, join);
+		}
+
+		process.assignParam(a, a.getInvokedAction().getOutput("result"), join, joinAction.getInput("a"));
+		process.assignParam(b, b.getInvokedAction().getOutput("result"), join, joinAction.getInput("b"));
+		process.assignParam(c, c.getInvokedAction().getOutput("result"), join, joinAction.getInput("c"));
+		process.addOutput("result", "Result", String.class.getName(), "result", join);
+
+		setIds(process);
+
+		ProcessResult result = execute(process, "x");
+
+		assertTrue(result.getErrors() != null ? result.getErrors().toString() : "", result.isSuccess());
+
+		// all branches were running at the same time, and the join was executed only once, after all of them
+		assertEquals(4, executedActions.size());
+		assertEquals("Join", executedActions.get(3));
+		assertTrue(executedActions.subList(0, 3).containsAll(java.util.Arrays.asList("A", "B", "C")));
+		assertEquals(1, joinCount.get());
+		assertEquals("A+B+C", result.getOutputValues().get("result"));
+	}
+
+	@Test
+	public void testBranchErrorOrder() throws KommetException
+	{
+		BusinessProcess process = new BusinessProcess();
+		process.setName("com.bp.FailingBranchesProcess");
+
+		BusinessActionInvocation entryPoint = addEntryPoint(process);
+
+		// the invocation that appears later in the process fails first
+		BusinessActionInvocation slowFailure = process.addAction(getAction("SlowFailure", SlowFailingAction.class, true), "SlowFailure");
+		BusinessActionInvocation success = process.addAction(getAction("Success", ConcurrentAction.class, false), "Success");
+		BusinessActionInvocation fastFailure = process.addAction(getAction("FastFailure", FastFailingAction.class, true), "FastFailure");
+
+		for (BusinessActionInvocation branch : new BusinessActionInvocation[] { slowFailure, success, fastFailure })
+		{
+			process.addTransition(entryPoint, branch);
+		}
+
+		setIds(process);
+
+		for (int i = 0; i < 5; i++)
+		{
+			branchesStarted = new CountDownLatch(3);
+			executedActions.clear();
+
+			ProcessResult result = execute(process, "x");
+
+			// the failure of one branch does not stop the other ones, and errors are ordered by invocation position
+			assertFalse(result.isSuccess());
+			assertTrue(executedActions.contains("Success"));
+			assertEquals(2, result.getErrors().size());
+			assertTrue(result.getErrors().get(0), result.getErrors().get(0).startsWith("{SlowFailure}: "));
+			assertTrue(result.getErrors().get(1), result.getErrors().get(1).startsWith("{FastFailure}: "));
+		}
+	}
+
+	private ProcessResult execute(BusinessProcess process, String input) throws KommetException
+	{
+		KommetCompiler compiler = new KommetCompiler()
+		{
+			@Override
+			public java.lang.Class<?> getClass (kommet.basic.Class cls, boolean reload, EnvData env) throws ClassNotFoundException, MalformedURLException, KommetException
+			{
+				java.lang.Class<?> actionClass = actionClasses.get(cls.getName());
+				if (actionClass == null)
+				{
+					throw new ClassNotFoundException(cls.getName());
+				}
+				return actionClass;
+			}
+		};
+
+		BusinessProcessExecutor executor = new BusinessProcessExecutor(compiler, null, null, null, env);
+		executor.prepare(process);
+
+		Map<String, Object> inputs = new HashMap<String, Object>();
+		inputs.put("input", input);
+
+		return executor.execute(inputs, new AuthData(), false, branchExecutor);
+	}
+
+	private BusinessActionInvocation addEntryPoint(BusinessProcess process) throws KommetException
+	{
+		BusinessAction entryAction = new BusinessAction();
+		entryAction.setId(KID.get(KID.BUSINESS_ACTION_PREFIX, sequence++));
+		entryAction.setName("Record Create");
+		entryAction.setType("RecordCreate");
+		entryAction.setIsEntryPoint(true);
+		entryAction.addInput(getInput("record"));
+		entryAction.addOutput(getOutput("record"));
+
+		BusinessActionInvocation entryPoint = process.addAction(entryAction, "Entry");
+		process.addInput("input", "Input", String.class.getName(), "record", entryPoint);
+		return entryPoint;
+	}
+
+	private BusinessAction getAction(String name, java.lang.Class<?> actionClass, boolean isFailing) throws KommetException
+	{
+		kommet.basic.Class file = new kommet.basic.Class();
+		file.setName(name + "Action");
+		actionClasses.put(file.getName(), actionClass);
+
+		BusinessAction action = new BusinessAction();
+		action.setId(KID.get(KID.BUSINESS_ACTION_PREFIX, sequence++));
+		action.setName(name);
+		action.setType("Action");
+		action.setIsEntryPoint(false);
+		action.setFile(file);
+		action.addInput(getInput("value"));
+
+		if (!isFailing)
+		{
+			action.addOutput(getOutput("result"));
+		}
+
+		return action;
+	}
+
+	private static BusinessProcessInput getInput(String name) throws KommetException
+	{
+		BusinessProcessInput input = new BusinessProcessInput();
+		input.setName(name);
+		return input;
+	}
+
+	private static BusinessProcessOutput getOutput(String name) throws KommetException
+	{
+		BusinessProcessOutput output = new BusinessProcessOutput();
+		output.setName(name);
+		return output;
+	}
+
+	/**
+	 * Assigns IDs to invocations, which would be assigned when the process is saved, and passes the name
+	 * of each invocation to its action as the value of the <tt>value</tt> input.
+	 * @param process
+	 * @throws KommetException
+	 */
+	private static void setIds(BusinessProcess process) throws KommetException
+	{
+		for (BusinessActionInvocation inv : process.getInvocations())
+		{
+			inv.setId(KID.get(KID.BUSINESS_ACTION_INVOCATION_PREFIX, sequence++));
+			
+			if (!Boolean.TRUE.equals(inv.getInvokedAction().getIsEntryPoint()))
+			{
+				inv.setAttribute("value", inv.getName());
+			}
+		}
+	}
+
+	/**
+	 * Waits until all three branches of the fan-out are running, which can only happen if they are executed in parallel.
+	 */
+	private static void awaitOtherBranches() throws InterruptedException
+	{
+		branchesStarted.countDown();
+		if (!branchesStarted.await(10, TimeUnit.SECONDS))
+		{
+			throw new IllegalStateException("Branches are not executed in parallel");
+		}
+	}
+
+	public static class ConcurrentAction
+	{
+		private String value;
+		private String result;
+
+		@Input(name = "value")
+		public void setValue(String value)
+		{
+			this.value = value;
+		}
+
+		@Execute
+		public void execute() throws InterruptedException
+		{
+			awaitOtherBranches();
+			this.result = value;
+			executedActions.add(value);
+		}
+
+		@Output(name = "result")
+		public String getResult()
+		{
+			return result;
+		}
+	}
+
+	public static class JoinAction
+	{
+		private String a;
+		private String b;
+		private String c;
+		private String result;
+
+		@Input(name = "value")
+		public void setValue(String value)
+		{
+			// not used
+		}
+
+		@Input(name = "a")
+		public void setA(String a)
+		{
+			this.a = a;
+		}
+
+		@Input(name = "b")
+		public void setB(String b)
+		{
+			this.b = b;
+		}
+
+		@Input(name = "c")
+		public void setC(String c)
+		{
+			this.c = c;
+		}
+
+		@Execute
+		public void execute()
+		{
+			joinCount.incrementAndGet();
+			this.result = a + "+" + b + "+" + c;
+			executedActions.add("Join");
+		}
+
+		@Output(name = "result")
+		public String getResult()
+		{
+			return result;
+		}
+	}
+
+	public static class SlowFailingAction
+	{
+		@Input(name = "value")
+		public void setValue(String value)
+		{
+			// not used
+		}
+
+		@Execute
+		public void execute() throws InterruptedException
+		{
+			awaitOtherBranches();
+
+			// fail after the other failing branch
+			Thread.sleep(200);
+			throw new IllegalStateException("slow failure");
+		}
+	}
+
+	public static class FastFailingAction
+	{
+		@Input(name = "value")
+		public void setValue(String value)
+		{
+			// not used
+		}
+
+		@Execute
+		public void execute() throws InterruptedException
+		{
+			awaitOtherBranches();
+			throw new IllegalStateException("fast failure");
+		}
+	}
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.tests.bp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import javax.inject.Inject;
+
+import org.junit.Test;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import kommet.auth.AuthData;
+import kommet.basic.BusinessAction;
+import kommet.basic.BusinessActionInvocation;
+import kommet.basic.BusinessProcess;
+import kommet.basic.RecordProxy;
+import kommet.businessprocess.BusinessProcessSaveResult;
+import kommet.businessprocess.BusinessProcessService;
+import kommet.businessprocess.ProcessQueueService;
+import kommet.businessprocess.QueuedProcessExecution;
+import kommet.data.DataService;
+import kommet.data.KID;
+import kommet.data.KommetException;
+import kommet.data.Record;
+import kommet.data.Type;
+import kommet.env.EnvData;
+import kommet.env.EnvService;
+import kommet.koll.ClassService;
+import kommet.tests.BaseUnitTest;
+import kommet.tests.TestDataCreator;
+import kommet.utils.AppConfig;
+
+public class ProcessQueueTest extends BaseUnitTest
+{
+	@Inject
+	TestDataCreator dataHelper;
+
+	@Inject
+	DataService dataService;
+
+	@Inject
+	ClassService classService;
+
+	@Inject
+	BusinessProcessService bpService;
+
+	@Inject
+	ProcessQueueService queueService;
+
+	@Inject
+	AppConfig appConfig;
+
+	@Inject
+	EnvService envService;
+
+	/**
+	 * Tests draining the process queue. Executions run in their own transactions on worker threads and are only
+	 * queued when the save that triggers them is committed, so the test runs outside of the test transaction
+	 * on a separately created env.
+	 */
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void testDrainQueue() throws KommetException
+	{
+		KID envId = KID.get("0010000000127");
+		EnvData env = envService.createEnv("processqueuetestenv", envId, true);
+
+		try
+		{
+			testDrainQueue(env);
+		}
+		finally
+		{
+			envService.deleteEnv(envId);
+		}
+	}
+
+	private void testDrainQueue (EnvData env) throws KommetException
+	{
+		AuthData authData = dataHelper.getRootAuthData(env);
+
+		Type pigeonType = dataService.createType(dataHelper.getFullPigeonType(env), env);
+		BusinessProcess process = createAsyncSetAgeProcess(pigeonType, authData, env);
+
+		// the process is queued when the record is saved, but not executed
+		Record pigeon1 = new Record(pigeonType);
+		pigeon1.setField("name", "Grzegorz");
+		pigeon1.setField("age", 1);
+		pigeon1 = dataService.save(pigeon1, env);
+
+		assertEquals(1, getAge(pigeon1, pigeonType, env));
+		assertEquals(1, queueService.getQueuedCount(process.getId(), env));
+
+		// the process is executed when the queue is drained, and its execution is removed from the queue
+		assertEquals(1, queueService.drain(env));
+		assertEquals(100, getAge(pigeon1, pigeonType, env));
+		assertEquals(0, queueService.getQueuedCount(process.getId(), env));
+		assertEquals(0, queueService.drain(env));
+
+		// queue an execution that will fail, because the record will have been deleted by the time it is executed
+		Record pigeon2 = new Record(pigeonType);
+		pigeon2.setField("name", "Helena");
+		pigeon2.setField("age", 2);
+		pigeon2 = dataService.save(pigeon2, env);
+		dataService.deleteRecord(pigeon2, env);
+
+		// a failed execution is rescheduled
+		assertEquals(1, queueService.drain(env));
+		assertEquals(1, queueService.getQueuedCount(process.getId(), env));
+		assertTrue(queueService.getDeadLetters(process.getId(), 10, env).isEmpty());
+		assertEquals((Integer)1, env.getJdbcTemplate().queryForObject("SELECT attempts FROM bpqueue", Integer.class));
+
+		// the retry is not due yet
+		assertEquals(0, queueService.drain(env));
+
+		// after all attempts fail, the execution is moved to dead letters
+		for (int attempt = 2; attempt <= appConfig.getBusinessProcessQueueMaxAttempts(); attempt++)
+		{
+			makeQueueDue(env);
+			assertEquals(1, queueService.drain(env));
+		}
+
+		assertEquals(0, queueService.getQueuedCount(process.getId(), env));
+		List<QueuedProcessExecution> deadLetters = queueService.getDeadLetters(process.getId(), 10, env);
+		assertEquals(1, deadLetters.size());
+		assertEquals(appConfig.getBusinessProcessQueueMaxAttempts(), deadLetters.get(0).getAttempts());
+		assertNotNull(deadLetters.get(0).getLastError());
+
+		// dead letters are not executed
+		makeQueueDue(env);
+		assertEquals(0, queueService.drain(env));
+
+		Long deadLetterId = deadLetters.get(0).getId();
+
+		// queue a pending execution, which cannot be retried or deleted as a dead letter
+		Record pigeon3 = new Record(pigeonType);
+		pigeon3.setField("name", "Pete");
+		pigeon3.setField("age", 3);
+		pigeon3 = dataService.save(pigeon3, env);
+
+		Long pendingId = env.getJdbcTemplate().queryForObject("SELECT id FROM bpqueue WHERE recordid = ?", Long.class, pigeon3.getKID().getId());
+		assertFalse(queueService.retryDeadLetter(pendingId, env));
+		assertFalse(queueService.deleteDeadLetter(pendingId, env));
+		assertEquals(1, queueService.getQueuedCount(process.getId(), env));
+
+		// a retried dead letter is queued again with its attempts reset
+		assertTrue(queueService.retryDeadLetter(deadLetterId, env));
+		assertTrue(queueService.getDeadLetters(process.getId(), 10, env).isEmpty());
+		assertEquals(2, queueService.getQueuedCount(process.getId(), env));
+		assertEquals((Integer)0, env.getJdbcTemplate().queryForObject("SELECT attempts FROM bpqueue WHERE id = ?", Integer.class, deadLetterId));
+
+		// a retried execution that is no longer dead cannot be deleted as a dead letter
+		assertFalse(queueService.deleteDeadLetter(deadLetterId, env));
+
+		// the pending execution succeeds, while the retried one fails and is rescheduled
+		assertEquals(2, queueService.drain(env));
+		assertEquals(100, getAge(pigeon3, pigeonType, env));
+		assertEquals(1, queueService.getQueuedCount(process.getId(), env));
+
+		for (int attempt = 2; attempt <= appConfig.getBusinessProcessQueueMaxAttempts(); attempt++)
+		{
+			makeQueueDue(env);
+			queueService.drain(env);
+		}
+
+		assertEquals(1, queueService.getDeadLetters(process.getId(), 10, env).size());
+
+		// deleted dead letters are removed from the queue
+		assertTrue(queueService.deleteDeadLetter(deadLetterId, env));
+		assertTrue(queueService.getDeadLetters(process.getId(), 10, env).isEmpty());
+		assertEquals((Integer)0, env.getJdbcTemplate().queryForObject("SELECT count(*) FROM bpqueue", Integer.class));
+		assertFalse(queueService.retryDeadLetter(deadLetterId, env));
+
+		testExpiredLeases(pigeonType, process, env);
+	}
+
+	/**
+	 * Simulates executions claimed by workers that crashed before completing them.
+	 */
+	private void testExpiredLeases (Type pigeonType, BusinessProcess process, EnvData env) throws KommetException
+	{
+		int maxAttempts = appConfig.getBusinessProcessQueueMaxAttempts();
+
+		// an expired attempt that was not the last one counts as an attempt, and the execution is claimed again
+		Record pigeon1 = new Record(pigeonType);
+		pigeon1.setField("name", "Jurek");
+		pigeon1.setField("age", 4);
+		pigeon1 = dataService.save(pigeon1, env);
+		Long executionId = env.getJdbcTemplate().queryForObject("SELECT id FROM bpqueue WHERE recordid = ?", Long.class, pigeon1.getKID().getId());
+		expireLease(executionId, 1, env);
+
+		assertEquals(1, queueService.drain(env));
+		assertEquals(100, getAge(pigeon1, pigeonType, env));
+		assertEquals(0, queueService.getQueuedCount(process.getId(), env));
+
+		// an execution whose last attempt expired is moved to dead letters instead of being executed again
+		Record pigeon2 = new Record(pigeonType);
+		pigeon2.setField("name", "Kazik");
+		pigeon2.setField("age", 5);
+		pigeon2 = dataService.save(pigeon2, env);
+		executionId = env.getJdbcTemplate().queryForObject("SELECT id FROM bpqueue WHERE recordid = ?", Long.class, pigeon2.getKID().getId());
+		expireLease(executionId, maxAttempts, env);
+
+		assertEquals(0, queueService.drain(env));
+		assertEquals(5, getAge(pigeon2, pigeonType, env));
+		assertEquals(0, queueService.getQueuedCount(process.getId(), env));
+
+		List<QueuedProcessExecution> deadLetters = queueService.getDeadLetters(process.getId(), 10, env);
+		assertEquals(1, deadLetters.size());
+		assertEquals(executionId, deadLetters.get(0).getId());
+		assertEquals(maxAttempts, deadLetters.get(0).getAttempts());
+		assertNotNull(deadLetters.get(0).getLastError());
+	}
+
+	/**
+	 * Marks an execution as claimed with the given number of attempts by a worker whose lease has expired.
+	 */
+	private void expireLease (Long executionId, int attempts, EnvData env)
+	{
+		env.getJdbcTemplate().update("UPDATE bpqueue SET status = ?, attempts = ?, nextattempt = now() WHERE id = ?", QueuedProcessExecution.STATUS_RUNNING, attempts, executionId);
+	}
+
+	/**
+	 * Makes all rescheduled executions due, so that the next attempt does not have to wait for the retry delay.
+	 * @param env
+	 */
+	private void makeQueueDue (EnvData env)
+	{
+		env.getJdbcTemplate().update("UPDATE bpqueue SET nextattempt = now()");
+	}
+
+	private int getAge (Record pigeon, Type pigeonType, EnvData env) throws KommetException
+	{
+		return (Integer)env.getSelectCriteriaFromDAL("select id, age from " + pigeonType.getQualifiedName() + " where id = '" + pigeon.getKID() + "'").singleRecord().getField("age");
+	}
+
+	/**
+	 * Creates a process triggered asynchronously by the creation of a pigeon, that sets the pigeon's age to 100.
+	 */
+	private BusinessProcess createAsyncSetAgeProcess (Type pigeonType, AuthData authData, EnvData env) throws KommetException
+	{
+		BusinessProcess process = new BusinessProcess();
+		process.setName("com.bp.AsyncSetAgeProcess");
+		process.setLabel("Process that sets age asynchronously");
+		process.setIsTriggerable(true);
+		process.setIsCallable(false);
+		process.setIsActive(true);
+		process.setIsDraft(false);
+
+		BusinessAction recordCreate = bpService.getRecordCreateAction(env);
+		BusinessActionInvocation recordCreateCall = process.addAction(recordCreate, "On pigeon created");
+		recordCreateCall.setAttribute("acceptedTypes", pigeonType.getKID().getId());
+		recordCreateCall.setAttribute(ProcessQueueService.ASYNC_ATTRIBUTE, "true");
+
+		process.addInput("newRecord", "Updated Record", RecordProxy.class.getName(), "record", recordCreateCall);
+
+		BusinessAction fieldUpdateAction = bpService.getFieldUpdateAction(env);
+		BusinessActionInvocation setAgeCall = process.addAction(fieldUpdateAction, "Set pigeon age");
+		setAgeCall.setAttribute("age", "100");
+
+		process.assignParam(recordCreateCall, recordCreate.getOutput("record"), setAgeCall, fieldUpdateAction.getInput("record"));
+		process.addTransition(recordCreateCall, setAgeCall);
+
+		BusinessProcessSaveResult result = bpService.save(process, classService, dataService, authData, env);
+		assertTrue(result.isSuccess());
+
+		return process;
+	}
+}
@@ -10,6 +10,7 @@ package kommet.tests.dal;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 import java.util.List;
 
@@ -19,9 +20,14 @@ import org.junit.Test;
 
 import kommet.auth.AuthData;
 import kommet.dao.dal.DALCriteriaBuilder;
+import kommet.dao.dal.DALTokenizedQuery;
+import kommet.dao.dal.DALTokenizedQueryCache;
+import kommet.dao.dal.DALSyntaxException;
 import kommet.dao.queries.Restriction;
 import kommet.dao.queries.RestrictionOperator;
+import kommet.data.DataService;
 import kommet.data.KommetException;
+import kommet.data.Type;
 import kommet.env.EnvData;
 import kommet.tests.BaseUnitTest;
 import kommet.tests.TestDataCreator;
@@ -35,6 +41,9 @@ public class DALCriteriaBuilderTest extends BaseUnitTest
 	@Inject
 	TestDataCreator dataHelper;
 	
+	@Inject
+	DataService dataService;
+	
 	@Test
 	public void testCriteria() throws KommetException
 	{
@@ -47,6 +56,74 @@ public class DALCriteriaBuilderTest extends BaseUnitTest
 		testBracketQuery(authData, env);
 	}
 	
+	@Test
+	public void testTokenizedQueryCache() throws KommetException
+	{
+		DALTokenizedQuery query = DALTokenizedQuery.tokenize("select id, name from Pigeon where age > 2 order by name desc limit 10 offset 5");
+		assertEquals(Integer.valueOf(10), query.getLimit());
+		assertEquals(Integer.valueOf(5), query.getOffset());
+		assertEquals(Integer.valueOf(6), query.getWhereKeywordPos());
+		assertEquals(Integer.valueOf(9), query.getWhereClauseEnd());
+		assertNull(query.getGroupByKeywordPos());
+		
+		try
+		{
+			DALTokenizedQuery.tokenize("select id from Pigeon where age > 2 offset 5 order by name");
+			fail("Tokenizing query with misplaced ORDER BY clause should fail");
+		}
+		catch (DALSyntaxException e)
+		{
+			// expected
+		}
+		
+		// literals are replaced with placeholders in the query shape
+		DALTokenizedQuery.Shape shape = DALTokenizedQuery.getShape("select id from Pigeon where name = 'O\\'Hara' and age > 2 and field2 = 3.5");
+		assertEquals("select id from Pigeon where name = '?' and age > ? and field2 = ?", shape.getText());
+		assertEquals(3, shape.getLiterals().size());
+		assertEquals("'O\\'Hara'", shape.getLiterals().get(0));
+		assertEquals("2", shape.getLiterals().get(1));
+		assertEquals("3.5", shape.getLiterals().get(2));
+		assertNull(DALTokenizedQuery.getShape("select id from Pigeon where name = ?"));
+		
+		EnvData env = dataHelper.configureFullTestEnv();
+		
+		DALTokenizedQueryCache cache = new DALTokenizedQueryCache(2);
+		DALTokenizedQuery query1 = cache.get("select id from Pigeon where age > 1 and name = 'Zenek' limit 10", env);
+		
+		// queries that differ only in literals share one template
+		DALTokenizedQuery query2 = cache.get("select id from Pigeon where age > 25 and name = 'Heniek' limit 5", env);
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getSize());
+		assertEquals(Integer.valueOf(10), query1.getLimit());
+		assertEquals(Integer.valueOf(5), query2.getLimit());
+		assertEquals("25", query2.getTokens().get(7));
+		assertEquals("'Heniek'", query2.getTokens().get(11));
+		assertEquals("select id from Pigeon where age > 25 and name = 'Heniek' limit 5", query2.getQuery());
+		assertEquals(DALTokenizedQuery.tokenize(query2.getQuery()).getTokens(), query2.getTokens());
+		
+		// the type did not exist when the template was compiled
+		assertNull(query2.getTypeId());
+		
+		// creating a type invalidates the cache
+		Type pigeonType = dataService.createType(dataHelper.getFullPigeonType(env), env);
+		assertEquals(0, cache.getSize());
+		assertEquals(pigeonType.getKID(), cache.get("select id from Pigeon where age > 3 and name = 'Zenek' limit 1", env).getTypeId());
+		assertEquals(2, cache.getMisses());
+		
+		cache.get("select id from Pigeon", env);
+		cache.get("select id from Pigeon where age > 4 and name = 'Zenek' limit 1", env);
+		assertEquals(2, cache.getHits());
+		
+		// the least recently used template should be evicted
+		cache.get("select name from Pigeon", env);
+		assertEquals(2, cache.getSize());
+		cache.get("select id from Pigeon where age > 5 and name = 'Zenek' limit 1", env);
+		assertEquals(3, cache.getHits());
+		cache.get("select id from Pigeon", env);
+		assertEquals(5, cache.getMisses());
+	}
+	
 	private void testParseSimpleQuery(AuthData authData, EnvData env) throws KommetException
 	{	
 		String query = "age > 2";
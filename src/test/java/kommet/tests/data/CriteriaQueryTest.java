@@ -8,11 +8,17 @@
 package kommet.tests.data;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -20,11 +26,14 @@ import javax.inject.Inject;
 import org.junit.Test;
 
 import kommet.dao.MappedObjectQueryBuilder;
+import kommet.dao.StatementTemplate;
 import kommet.dao.TypePersistenceMapping;
 import kommet.dao.dal.AggregateFunction;
 import kommet.dao.dal.AggregateFunctionCall;
 import kommet.dao.queries.Criteria;
+import kommet.dao.queries.CriteriaException;
 import kommet.dao.queries.QueryResult;
+import kommet.dao.queries.RecordHandler;
 import kommet.dao.queries.Restriction;
 import kommet.dao.queries.SelectQuery;
 import kommet.dao.queries.SortDirection;
@@ -34,6 +43,7 @@ import kommet.data.KommetException;
 import kommet.data.Record;
 import kommet.data.Type;
 import kommet.data.datatypes.NumberDataType;
+import kommet.data.datatypes.SpecialValue;
 import kommet.env.EnvData;
 import kommet.tests.BaseUnitTest;
 import kommet.tests.TestDataCreator;
@@ -91,9 +101,56 @@ public class CriteriaQueryTest extends BaseUnitTest
 		assertTrue(updateSQL.contains(Field.TRIGGER_FLAG_DB_COLUMN + " = ''EDITALL''"));
 		assertTrue(updateSQL.endsWith("WHERE ((\"kid\" = ''" + oldPigeon.getKID() + "''))')"));
 		
+		testStatementTemplates(oldPigeon, mapping, env);
 		testGroupByQuery(pigeonType, env);
 	}
 
+	private void testStatementTemplates(Record pigeon, TypePersistenceMapping mapping, EnvData env) throws KommetException
+	{
+		StatementTemplate updateTemplate = MappedObjectQueryBuilder.getUpdateByIdTemplate(mapping, pigeon, dataHelper.getRootAuthData(env), env, false);
+		assertTrue(updateTemplate.getSql().startsWith("UPDATE obj_" + pigeon.getType().getKeyPrefix() + " SET "));
+		assertTrue(updateTemplate.getSql().contains("name = ?"));
+		assertTrue(updateTemplate.getSql().contains(Field.TRIGGER_FLAG_DB_COLUMN + " = 'EDITALL'"));
+		assertTrue(updateTemplate.getSql().endsWith("WHERE kid = ?"));
+		assertFalse(updateTemplate.getSql().contains("Bronek"));
+		
+		// template is reused for records with the same set of fields
+		pigeon.setField("name", "Bro'nek");
+		assertSame(updateTemplate, MappedObjectQueryBuilder.getUpdateByIdTemplate(mapping, pigeon, dataHelper.getRootAuthData(env), env, false));
+		assertTrue(updateTemplate.getParameters(pigeon).contains("Bro'nek"));
+		
+		// make sure values with quotes are saved correctly when passed as bind parameters
+		dataService.save(pigeon, env);
+		Record savedPigeon = env.getSelectCriteriaFromDAL("select id, name from " + pigeon.getType().getQualifiedName() + " where id = '" + pigeon.getKID() + "'").singleRecord();
+		assertEquals("Bro'nek", savedPigeon.getField("name"));
+		
+		// values are bound as they are, so strings that look like escaped literals are not changed
+		pigeon.setField("name", "Bro''nek \\");
+		Date birthdate = new Date(1368000000000L);
+		pigeon.setField("birthdate", birthdate);
+		dataService.save(pigeon, env);
+		savedPigeon = env.getSelectCriteriaFromDAL("select id, name, birthdate from " + pigeon.getType().getQualifiedName() + " where id = '" + pigeon.getKID() + "'").singleRecord();
+		assertEquals("Bro''nek \\", savedPigeon.getField("name"));
+		assertEquals(MiscUtils.formatPostgresDateTime(birthdate), MiscUtils.formatPostgresDateTime((Date)savedPigeon.getField("birthdate")));
+		
+		// values other than strings are bound as JDBC types
+		assertEquals(Integer.valueOf(3), pigeon.getType().getField("age").getDataType().getPostgresBindValue(3));
+		assertEquals(new Timestamp(birthdate.getTime()), pigeon.getType().getField("birthdate").getDataType().getPostgresBindValue(birthdate));
+		assertNull(pigeon.getType().getField("name").getDataType().getPostgresBindValue(SpecialValue.NULL));
+		
+		Record newPigeon = dataService.instantiate(pigeon.getType().getKID(), env);
+		newPigeon.setField("name", "Mirek");
+		newPigeon.setField("age", 3);
+		newPigeon.setField("length", 15);
+		StatementTemplate insertTemplate = MappedObjectQueryBuilder.getInsertTemplate(mapping, newPigeon);
+		assertTrue(insertTemplate.getSql().endsWith("RETURNING kid"));
+		assertSame(insertTemplate, MappedObjectQueryBuilder.getInsertTemplate(mapping, newPigeon));
+		
+		dataService.save(newPigeon, env);
+		assertNotNull(newPigeon.attemptGetKID());
+		dataService.deleteRecord(newPigeon, env);
+	}
+
 	private void testGroupByQuery(Type pigeonType, EnvData env) throws KommetException
 	{
 		Record pigeon1 = dataService.instantiate(pigeonType.getKID(), env);
@@ -205,4 +262,169 @@ public class CriteriaQueryTest extends BaseUnitTest
 		records = env.getSelectCriteriaFromDAL("select avg(father.length) from " + TestDataCreator.PIGEON_TYPE_QUALIFIED_NAME + " group by age").list();
 		assertEquals(4, records.size());
 	}
+	
+	@Test
+	public void testStreamRecords() throws KommetException
+	{
+		EnvData env = dataHelper.configureFullTestEnv();
+		Type pigeonType = dataService.createType(dataHelper.getFullPigeonType(env), env);
+		
+		for (int i = 0; i < 25; i++)
+		{
+			Record pigeon = dataService.instantiate(pigeonType.getKID(), env);
+			pigeon.setField("name", "Pigeon " + i);
+			pigeon.setField("age", i);
+			dataService.save(pigeon, env);
+		}
+		
+		final List<Record> streamedRecords = new ArrayList<Record>();
+		
+		// use fetch size smaller than the number of records so that the cursor is read in several chunks
+		Criteria criteria = env.getSelectCriteriaFromDAL("select id, name, age from " + TestDataCreator.PIGEON_TYPE_QUALIFIED_NAME + " order by age asc");
+		criteria.forEach(new RecordHandler()
+		{
+			@Override
+			public void handle(Record record) throws KommetException
+			{
+				streamedRecords.add(record);
+			}
+		}, 10);
+		
+		assertEquals(25, streamedRecords.size());
+		for (int i = 0; i < 25; i++)
+		{
+			assertEquals("Pigeon " + i, streamedRecords.get(i).getField("name"));
+			assertNotNull(streamedRecords.get(i).getKID());
+		}
+		
+		// make sure exceptions thrown by the handler are propagated to the caller
+		try
+		{
+			env.getSelectCriteriaFromDAL("select id from " + TestDataCreator.PIGEON_TYPE_QUALIFIED_NAME).forEach(new RecordHandler()
+			{
+				@Override
+				public void handle(Record record) throws KommetException
+				{
+					throw new KommetException("Handler error");
+				}
+			});
+			fail("Exception thrown by record handler should be propagated");
+		}
+		catch (KommetException e)
+		{
+			assertEquals("Handler error", e.getMessage());
+		}
+	}
+	
+	@Test
+	public void testNativeCount() throws KommetException
+	{
+		EnvData env = dataHelper.configureFullTestEnv();
+		Type pigeonType = dataService.createType(dataHelper.getFullPigeonType(env), env);
+		
+		for (int i = 0; i < 5; i++)
+		{
+			Record pigeon = dataService.instantiate(pigeonType.getKID(), env);
+			pigeon.setField("name", "Pigeon " + i);
+			pigeon.setField("age", i);
+			dataService.save(pigeon, env);
+		}
+		
+		assertEquals(Long.valueOf(5), env.getSelectCriteriaFromDAL("select count(id) from " + TestDataCreator.PIGEON_TYPE_QUALIFIED_NAME).count());
+		assertEquals(Long.valueOf(2), env.getSelectCriteriaFromDAL("select count(id) from " + TestDataCreator.PIGEON_TYPE_QUALIFIED_NAME + " where age > 2").count());
+		
+		// criteria without aggregate functions can also be counted
+		assertEquals(Long.valueOf(3), env.getSelectCriteriaFromDAL("select id, name from " + TestDataCreator.PIGEON_TYPE_QUALIFIED_NAME + " where age < 3 order by name limit 1").count());
+		
+		// counting a nullable field skips nulls
+		assertEquals(Long.valueOf(0), env.getSelectCriteriaFromDAL("select count(colour) from " + TestDataCreator.PIGEON_TYPE_QUALIFIED_NAME).count());
+		
+		// for small tables approximate count falls back to exact count
+		assertEquals(Long.valueOf(5), env.getSelectCriteriaFromDAL("select count(id) from " + TestDataCreator.PIGEON_TYPE_QUALIFIED_NAME).approximateCount());
+		
+		try
+		{
+			env.getSelectCriteriaFromDAL("select max(age) from " + TestDataCreator.PIGEON_TYPE_QUALIFIED_NAME).count();
+			fail("Calling count() on criteria with aggregate function other than COUNT should fail");
+		}
+		catch (CriteriaException e)
+		{
+			// expected
+		}
+	}
+	
+	@Test
+	public void testSeek() throws KommetException
+	{
+		EnvData env = dataHelper.configureFullTestEnv();
+		Type pigeonType = dataService.createType(dataHelper.getFullPigeonType(env), env);
+		
+		// use repeated ages, so that records with the same sort value are split between pages
+		for (int i = 0; i < 12; i++)
+		{
+			Record pigeon = dataService.instantiate(pigeonType.getKID(), env);
+			pigeon.setField("name", "Pigeon " + i);
+			pigeon.setField("age", i % 4);
+			dataService.save(pigeon, env);
+		}
+		
+		String query = "select id, name, age from " + TestDataCreator.PIGEON_TYPE_QUALIFIED_NAME + " order by age asc, id asc";
+		List<Record> allPigeons = env.getSelectCriteriaFromDAL(query).list();
+		assertEquals(12, allPigeons.size());
+		
+		// read all pages moving forward
+		List<Record> readPigeons = new ArrayList<Record>();
+		Record lastPigeon = null;
+		while (true)
+		{
+			Criteria c = env.getSelectCriteriaFromDAL(query);
+			if (lastPigeon != null)
+			{
+				c.seekAfter(lastPigeon.getField("age"), lastPigeon.getKID());
+			}
+			c.setLimit(5);
+			List<Record> page = c.list();
+			if (page.isEmpty())
+			{
+				break;
+			}
+			readPigeons.addAll(page);
+			lastPigeon = page.get(page.size() - 1);
+		}
+		
+		assertEquals(allPigeons.size(), readPigeons.size());
+		for (int i = 0; i < allPigeons.size(); i++)
+		{
+			assertEquals(allPigeons.get(i).getKID(), readPigeons.get(i).getKID());
+		}
+		
+		// read the page preceding the last record - records should be returned in the original order
+		Criteria c = env.getSelectCriteriaFromDAL(query);
+		c.seekBefore(allPigeons.get(11).getField("age"), allPigeons.get(11).getKID());
+		c.setLimit(5);
+		List<Record> page = c.list();
+		assertEquals(5, page.size());
+		for (int i = 0; i < 5; i++)
+		{
+			assertEquals(allPigeons.get(6 + i).getKID(), page.get(i).getKID());
+		}
+		
+		// the ID ordering is added if it is missing
+		c = env.getSelectCriteriaFromDAL("select id, name, age from " + TestDataCreator.PIGEON_TYPE_QUALIFIED_NAME + " order by age asc");
+		c.seekAfter(allPigeons.get(4).getField("age"), allPigeons.get(4).getKID());
+		page = c.list();
+		assertEquals(7, page.size());
+		assertEquals(allPigeons.get(5).getKID(), page.get(0).getKID());
+		
+		try
+		{
+			c = env.getSelectCriteriaFromDAL("select id from " + TestDataCreator.PIGEON_TYPE_QUALIFIED_NAME + " order by age asc, name asc");
+			c.seekAfter(1, allPigeons.get(0).getKID());
+			fail("Seeking should fail for criteria ordered by more than one property other than ID");
+		}
+		catch (CriteriaException e)
+		{
+			// expected
+		}
+	}
 }
@@ -23,6 +23,9 @@ import org.junit.Test;
 
 import kommet.auth.AuthData;
 import kommet.basic.BasicSetupService;
+import kommet.basic.UniqueCheck;
+import kommet.basic.UniqueCheckViolationException;
+import kommet.basic.ValidationRule;
 import kommet.basic.types.SystemTypes;
 import kommet.dao.DaoFacade;
 import kommet.dao.KommetPersistenceException;
@@ -37,14 +40,19 @@ import kommet.data.FieldValidationException;
 import kommet.data.GlobalSettings;
 import kommet.data.KID;
 import kommet.data.KIDException;
+import kommet.data.KeyPrefix;
 import kommet.data.KommetException;
 import kommet.data.Record;
 import kommet.data.Type;
 import kommet.data.TypeFilter;
+import kommet.data.UniqueCheckService;
+import kommet.data.ValidationErrorType;
+import kommet.data.ValidationMessage;
 import kommet.data.datatypes.DataType;
 import kommet.data.datatypes.InverseCollectionDataType;
 import kommet.data.datatypes.TextDataType;
 import kommet.data.datatypes.TypeReference;
+import kommet.data.validationrules.ValidationRuleService;
 import kommet.env.EnvData;
 import kommet.integration.LocalEnvPersistenceInterface;
 import kommet.koll.compiler.KommetCompiler;
@@ -83,6 +91,12 @@ public class DataServiceTest extends BaseUnitTest
 	@Inject
 	KommetCompiler compiler;
 	
+	@Inject
+	UniqueCheckService uniqueCheckService;
+	
+	@Inject
+	ValidationRuleService vrService;
+	
 	//private static final Logger log = LoggerFactory.getLogger(UpdateQuery.class);
 	
 	private void testIllegalPackageName(EnvData env) throws KommetException
@@ -863,5 +877,132 @@ public class DataServiceTest extends BaseUnitTest
 		assertEquals(1, pigeons.size());
 		assertEquals(oldPigeon.getKID(), pigeons.get(0).getKID());
 	}
+	
+	@Test
+	public void testSaveAll() throws KommetException
+	{
+		EnvData env = dataHelper.configureFullTestEnv();
+		AuthData authData = dataHelper.getRootAuthData(env);
+		Type pigeonType = dataService.createType(dataHelper.getFullPigeonType(env), env);
+		
+		List<Record> pigeons = new ArrayList<Record>();
+		for (int i = 0; i < 12; i++)
+		{
+			Record pigeon = dataService.instantiate(pigeonType.getKID(), env);
+			pigeon.setField("name", "Pigeon " + i);
+			pigeon.setField("age", i);
+			
+			// leave the colour unset on some records so that the bulk insert needs to use column defaults
+			if (i % 2 == 0)
+			{
+				pigeon.setField("colour", "blue");
+			}
+			pigeons.add(pigeon);
+		}
+		
+		// add a record that already exists so that it is updated
+		Record existingPigeon = dataService.instantiate(pigeonType.getKID(), env);
+		existingPigeon.setField("name", "Existing");
+		existingPigeon.setField("age", 30);
+		dataService.save(existingPigeon, env);
+		existingPigeon.setField("age", 31);
+		pigeons.add(existingPigeon);
+		
+		List<Record> savedPigeons = dataService.saveAll(pigeons, authData, env);
+		assertEquals(13, savedPigeons.size());
+		
+		for (Record pigeon : savedPigeons)
+		{
+			assertNotNull(pigeon.getKID());
+			assertNotNull(pigeon.getCreatedDate());
+		}
+		
+		// make sure each record got the ID of the row that contains its values
+		for (int i = 0; i < 12; i++)
+		{
+			List<Record> records = env.getSelectCriteriaFromDAL("select id, name, age, colour from " + TestDataCreator.PIGEON_TYPE_QUALIFIED_NAME + " where id = '" + pigeons.get(i).getKID() + "'").list();
+			assertEquals(1, records.size());
+			assertEquals("Pigeon " + i, records.get(0).getField("name"));
+			assertEquals(i % 2 == 0 ? "blue" : null, records.get(0).getField("colour"));
+		}
+		
+		assertEquals(Long.valueOf(1), env.getSelectCriteriaFromDAL("select count(id) from " + TestDataCreator.PIGEON_TYPE_QUALIFIED_NAME + " where age = 31").count());
+		
+		// make sure creator sharings have been created for the inserted records
+		assertEquals(Long.valueOf(12), env.getSelectCriteriaFromDAL("select count(id) from " + env.getType(KeyPrefix.get(KID.USER_RECORD_SHARING_PREFIX)).getQualifiedName() + " where recordId IN (" + MiscUtils.implode(MiscUtils.getKIDList(pigeons.subList(0, 12)), ", ", "'") + ")").count());
+		
+		testSaveAllErrors(pigeonType, authData, env);
+	}
+	
+	private void testSaveAllErrors(Type pigeonType, AuthData authData, EnvData env) throws KommetException
+	{
+		UniqueCheck nameCheck = new UniqueCheck();
+		nameCheck.setName("PigeonNameCheck");
+		nameCheck.setIsSystem(false);
+		nameCheck.setTypeId(pigeonType.getKID());
+		nameCheck.setFieldIds(pigeonType.getField("name").getKID().getId());
+		uniqueCheckService.save(nameCheck, authData, env);
+		
+		Record newPigeon = dataService.instantiate(pigeonType.getKID(), env);
+		newPigeon.setField("name", "New pigeon");
+		newPigeon.setField("age", 1);
+		
+		Record duplicatePigeon = dataService.instantiate(pigeonType.getKID(), env);
+		duplicatePigeon.setField("name", "Pigeon 3");
+		duplicatePigeon.setField("age", 2);
+		
+		// the exception should point to the record that violated the unique check
+		try
+		{
+			dataService.saveAll(MiscUtils.toList(newPigeon, duplicatePigeon), authData, env);
+			fail("Inserting a record with a duplicate name should fail");
+		}
+		catch (UniqueCheckViolationException e)
+		{
+			assertNotNull(e.getRecord());
+			assertEquals("Pigeon 3", e.getRecord().getField("name"));
+		}
+		
+		// the failed insert is rolled back as a whole, including records inserted while looking for the violating one
+		assertEquals(Long.valueOf(0), env.getSelectCriteriaFromDAL("select count(id) from " + TestDataCreator.PIGEON_TYPE_QUALIFIED_NAME + " where name = 'New pigeon'").count());
+		
+		// the transaction can continue after the failed insert
+		newPigeon = dataService.instantiate(pigeonType.getKID(), env);
+		newPigeon.setField("name", "New pigeon");
+		newPigeon.setField("age", 1);
+		dataService.saveAll(MiscUtils.toList(newPigeon), authData, env);
+		assertEquals(Long.valueOf(1), env.getSelectCriteriaFromDAL("select count(id) from " + TestDataCreator.PIGEON_TYPE_QUALIFIED_NAME + " where name = 'New pigeon'").count());
+		
+		ValidationRule vr = new ValidationRule();
+		vr.setActive(true);
+		vr.setCode("name <> 'mike'");
+		vr.setTypeId(pigeonType.getKID());
+		vr.setName("PigeonNameRule");
+		vr.setIsSystem(false);
+		vr.setErrorMessage("Invalid name");
+		vrService.save(vr, authData, env);
+		
+		Record invalidPigeon = dataService.instantiate(pigeonType.getKID(), env);
+		invalidPigeon.setField("name", "mike");
+		
+		// missing required fields and validation rule violations are reported together, like by save()
+		try
+		{
+			dataService.saveAll(MiscUtils.toList(invalidPigeon), authData, env);
+			fail("Inserting an invalid record should fail");
+		}
+		catch (FieldValidationException e)
+		{
+			boolean isRequiredFieldError = false;
+			boolean isValidationRuleError = false;
+			for (ValidationMessage msg : e.getMessages())
+			{
+				isRequiredFieldError |= ValidationErrorType.FIELD_REQUIRED.equals(msg.getErrorType());
+				isValidationRuleError |= ValidationErrorType.VALIDATION_RULE_VIOLATION.equals(msg.getErrorType());
+			}
+			assertTrue(isRequiredFieldError);
+			assertTrue(isValidationRuleError);
+		}
+	}
 }
 
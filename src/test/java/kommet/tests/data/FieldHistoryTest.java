@@ -19,6 +19,8 @@ import java.util.List;
 import javax.inject.Inject;
 
 import org.junit.Test;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
 
 import kommet.auth.AuthData;
 import kommet.auth.PermissionService;
@@ -27,8 +29,10 @@ import kommet.basic.FieldHistory;
 import kommet.basic.FieldHistoryOperation;
 import kommet.basic.Profile;
 import kommet.basic.User;
+import kommet.basic.types.SystemTypes;
 import kommet.data.DataService;
 import kommet.data.Field;
+import kommet.data.KID;
 import kommet.data.KommetException;
 import kommet.data.Record;
 import kommet.data.Type;
@@ -36,6 +40,7 @@ import kommet.data.datatypes.DateDataType;
 import kommet.data.datatypes.DateTimeDataType;
 import kommet.data.datatypes.InverseCollectionDataType;
 import kommet.env.EnvData;
+import kommet.env.EnvService;
 import kommet.filters.FieldHistoryFilter;
 import kommet.services.FieldHistoryService;
 import kommet.tests.BaseUnitTest;
@@ -63,6 +68,9 @@ public class FieldHistoryTest extends BaseUnitTest
 	@Inject
 	PermissionService permissionService;
 	
+	@Inject
+	EnvService envService;
+	
 	@SuppressWarnings("deprecation")
 	@Test
 	public void testLogFieldHistory() throws KommetException
@@ -207,6 +215,67 @@ public class FieldHistoryTest extends BaseUnitTest
 		// TODO test field history log for associations as well
 	}
 
+	@SuppressWarnings("deprecation")
+	@Test
+	public void testLogFieldHistoryForSavedCollection() throws KommetException
+	{
+		EnvData env = dataHelper.configureFullTestEnv();
+		Type pigeonType = dataHelper.getFullPigeonType(env);
+		
+		Field lastSeenField = new Field();
+		lastSeenField.setApiName("lastSeen");
+		lastSeenField.setLabel("Last Seen");
+		lastSeenField.setDataType(new DateTimeDataType());
+		lastSeenField.setRequired(false);
+		lastSeenField.setTrackHistory(true);
+		pigeonType.addField(lastSeenField);
+		
+		pigeonType = dataService.createType(pigeonType, env);
+		
+		Date lastSeenDate = new Date(115, 1, 1);
+		
+		List<Record> pigeons = new ArrayList<Record>();
+		for (int i = 0; i < 3; i++)
+		{
+			Record pigeon = new Record(pigeonType);
+			pigeon.setField("name", "Pigeon " + i);
+			pigeon.setField("age", BigDecimal.valueOf(3));
+			pigeon.setField("lastSeen", lastSeenDate);
+			pigeons.add(pigeon);
+		}
+		
+		// history of all inserted records should be logged
+		dataService.saveAll(pigeons, dataHelper.getRootAuthData(env), env);
+		assertEquals(3, fieldHistoryService.get(null, env).size());
+		
+		// update two of the records and assign the same value to the third one
+		pigeons.get(0).setField("lastSeen", new Date(114, 1, 6));
+		pigeons.get(1).setField("lastSeen", new Date(114, 1, 7));
+		pigeons.get(2).setField("lastSeen", lastSeenDate);
+		dataService.saveAll(pigeons, dataHelper.getRootAuthData(env), env);
+		
+		FieldHistoryFilter filter = new FieldHistoryFilter();
+		filter.addRecordId(pigeons.get(0).getKID());
+		List<FieldHistory> fhs = fieldHistoryService.get(filter, env);
+		assertEquals(2, fhs.size());
+		
+		filter = new FieldHistoryFilter();
+		filter.addRecordId(pigeons.get(2).getKID());
+		assertEquals(1, fieldHistoryService.get(filter, env).size());
+		
+		// old values should be read from the version of the record from before the update
+		int updatesWithOldValue = 0;
+		for (FieldHistory fh : fieldHistoryService.get(null, env))
+		{
+			if (fh.getOldValue() != null)
+			{
+				assertEquals(lastSeenField.getDataType().getStringValue(lastSeenDate, dataHelper.getRootAuthData(env).getLocale()), fh.getOldValue());
+				updatesWithOldValue++;
+			}
+		}
+		assertEquals(2, updatesWithOldValue);
+	}
+
 	@Test
 	public void testFieldHistoryOperation()
 	{
@@ -214,4 +283,82 @@ public class FieldHistoryTest extends BaseUnitTest
 		assertEquals("Add", FieldHistoryOperation.ADD.toString());
 		assertEquals("Remove", FieldHistoryOperation.REMOVE.toString());
 	}
+	
+	/**
+	 * Tests writing field history entries in asynchronous mode. Entries are queued only after the transaction in which
+	 * records were saved has been committed, so the test runs outside of the test transaction on a separately created env.
+	 */
+	@SuppressWarnings("deprecation")
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void testAsyncFieldHistory() throws KommetException
+	{
+		KID envId = KID.get("0010000000126");
+		EnvData env = envService.createEnv("asyncfieldhistorytestenv", envId, true);
+		
+		try
+		{
+			config.overrideProperty("kommet.fieldhistory.async", "true");
+			
+			Type pigeonType = dataHelper.getFullPigeonType(env);
+			Field lastSeenField = new Field();
+			lastSeenField.setApiName("lastSeen");
+			lastSeenField.setLabel("Last Seen");
+			lastSeenField.setDataType(new DateTimeDataType());
+			lastSeenField.setRequired(false);
+			lastSeenField.setTrackHistory(true);
+			pigeonType.addField(lastSeenField);
+			pigeonType = dataService.createType(pigeonType, env);
+			
+			Record pigeon = new Record(pigeonType);
+			pigeon.setField("name", "Ziutek");
+			pigeon.setField("age", BigDecimal.valueOf(3));
+			pigeon.setField("lastSeen", new Date(115, 1, 1));
+			pigeon = dataService.save(pigeon, env);
+			
+			// the entry is not written when the record is saved, but queued
+			assertEquals(1, fieldHistoryService.getPendingCount(env));
+			assertEquals(0, fieldHistoryService.get(null, env).size());
+			
+			assertEquals(1, fieldHistoryService.flush(env));
+			assertEquals(0, fieldHistoryService.getPendingCount(env));
+			assertEquals(1, fieldHistoryService.get(null, env).size());
+			
+			// make writing entries fail for a while by renaming the field history table
+			String fieldHistoryTable = env.getType(SystemTypes.getSystemTypeQualifiedName(SystemTypes.FIELD_HISTORY_API_NAME)).getDbTable();
+			env.getJdbcTemplate().execute("ALTER TABLE " + fieldHistoryTable + " RENAME TO " + fieldHistoryTable + "_renamed");
+			
+			try
+			{
+				pigeon.setField("lastSeen", new Date(115, 1, 2));
+				pigeon = dataService.save(pigeon, env);
+				
+				// the entry that could not be written is returned to the queue
+				assertEquals(0, fieldHistoryService.flush(env));
+				assertEquals(1, fieldHistoryService.getPendingCount(env));
+			}
+			finally
+			{
+				env.getJdbcTemplate().execute("ALTER TABLE " + fieldHistoryTable + "_renamed RENAME TO " + fieldHistoryTable);
+			}
+			
+			// the entry is written on the next run
+			assertEquals(1, fieldHistoryService.flush(env));
+			assertEquals(0, fieldHistoryService.getPendingCount(env));
+			assertEquals(2, fieldHistoryService.get(null, env).size());
+			
+			// when the queue is full, entries are written synchronously
+			config.overrideProperty("kommet.fieldhistory.async.maxqueue", "0");
+			pigeon.setField("lastSeen", new Date(115, 1, 3));
+			pigeon = dataService.save(pigeon, env);
+			
+			assertEquals(0, fieldHistoryService.getPendingCount(env));
+			assertEquals(3, fieldHistoryService.get(null, env).size());
+		}
+		finally
+		{
+			config.clearCachedProperties();
+			envService.deleteEnv(envId);
+		}
+	}
 }
@@ -21,6 +21,9 @@ import java.util.List;
 import javax.inject.Inject;
 
 import org.junit.Test;
+import org.quartz.JobKey;
+import org.quartz.SchedulerException;
+import org.springframework.scheduling.quartz.SchedulerFactoryBean;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -38,6 +41,8 @@ import kommet.basic.UserRecordSharing;
 import kommet.basic.types.SystemTypes;
 import kommet.comments.CommentService;
 import kommet.dao.FieldFilter;
+import kommet.dao.UserGroupAssignmentDao;
+import kommet.dao.UserGroupAssignmentFilter;
 import kommet.dao.dal.InsufficientPrivilegesException;
 import kommet.data.DataService;
 import kommet.data.Field;
@@ -51,10 +56,12 @@ import kommet.data.Type;
 import kommet.data.datatypes.InverseCollectionDataType;
 import kommet.data.datatypes.TypeReference;
 import kommet.data.sharing.GroupRecordSharingDao;
+import kommet.data.sharing.GroupRecordSharingFilter;
 import kommet.data.sharing.SharingService;
 import kommet.data.sharing.UserRecordSharingDao;
 import kommet.data.sharing.UserRecordSharingFilter;
 import kommet.env.EnvData;
+import kommet.env.EnvService;
 import kommet.koll.compiler.KommetCompiler;
 import kommet.services.UserGroupService;
 import kommet.tests.BaseUnitTest;
@@ -105,6 +112,15 @@ public class SharingTest extends BaseUnitTest
 	@Inject
 	CommentService commentService;
 	
+	@Inject
+	UserGroupAssignmentDao ugaDao;
+	
+	@Inject
+	EnvService envService;
+	
+	@Inject
+	SchedulerFactoryBean schedulerFactory;
+	
 	@Test
 	public void testSharingOnNestedProperties() throws KommetException
 	{
@@ -1292,4 +1308,89 @@ public class SharingTest extends BaseUnitTest
 		
 		assertFalse(sharingService.canViewRecord(pigeon.getKID(), geometryStudent.getKID(), env));
 	}
+	
+	/**
+	 * Makes sure that when propagating group sharings to a newly assigned group fails after some of the sharings
+	 * have been saved, none of them remain and the assignment stays pending, so that it is propagated completely
+	 * on the next run. Each assignment is propagated in its own transaction, so the test runs outside of the test
+	 * transaction on a separately created env.
+	 */
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void testFailedGroupSharingPropagation() throws KommetException, SchedulerException
+	{
+		KID envId = KID.get("0010000000128");
+		EnvData env = envService.createEnv("sharingpropagationtestenv", envId, true);
+		
+		try
+		{
+			// stop the applier job scheduled for the env, so that pending assignments are applied only by the test
+			schedulerFactory.getScheduler().deleteJob(JobKey.jobKey(UserGroupService.UGA_APPLIER_JOB_PREFIX + "-" + env.getId(), "uga-appliers-" + env.getId()));
+			
+			AuthData authData = dataHelper.getRootAuthData(env);
+			Type pigeonType = dataService.createType(dataHelper.getFullPigeonType(env), env);
+			UserGroupHierarchyDataSet dataSet = dataHelper.createUserGroupHierarchy(authData, env);
+			userGroupService.batchPropagatePendingUserGroupSharings(authData, env);
+			
+			Record pigeon = new Record(pigeonType);
+			pigeon.setField("name", "Rolek");
+			pigeon.setField("age", BigDecimal.valueOf(3));
+			pigeon = dataService.save(pigeon, env);
+			sharingService.shareRecordWithGroup(pigeon.getKID(), dataSet.getStudentGroup().getId(), false, false, "Some Reason", true, authData, env);
+			
+			// create a group with one member and assign it to the group with which the pigeon is shared
+			UserGroup chessStudentGroup = new UserGroup();
+			chessStudentGroup.setName("ChessStudents");
+			chessStudentGroup = userGroupService.save(chessStudentGroup, authData, env);
+			userGroupService.assignUserToGroup(dataSet.getTeacher1().getKID(), chessStudentGroup.getId(), authData, env, true);
+			userGroupService.assignGroupToGroup(chessStudentGroup.getId(), dataSet.getStudentGroup().getId(), authData, env);
+			
+			GroupRecordSharingFilter grsFilter = new GroupRecordSharingFilter();
+			grsFilter.addRecordId(pigeon.getKID());
+			grsFilter.addGroupId(chessStudentGroup.getId());
+			
+			UserGroupAssignmentFilter pendingFilter = new UserGroupAssignmentFilter();
+			pendingFilter.setApplyPending(true);
+			assertEquals(1, ugaDao.get(pendingFilter, null, env).size());
+			
+			// make saving user sharings fail by renaming their table - group sharings of the new group
+			// are saved before user sharings, so propagation fails after they have been inserted
+			String ursTable = env.getType(KeyPrefix.get(KID.USER_RECORD_SHARING_PREFIX)).getDbTable();
+			env.getJdbcTemplate().execute("ALTER TABLE " + ursTable + " RENAME TO " + ursTable + "_renamed");
+			
+			try
+			{
+				userGroupService.batchPropagatePendingUserGroupSharings(authData, env);
+				fail("Propagating sharings should fail when user sharings cannot be saved");
+			}
+			catch (Exception e)
+			{
+				// expected
+			}
+			finally
+			{
+				env.getJdbcTemplate().execute("ALTER TABLE " + ursTable + "_renamed RENAME TO " + ursTable);
+			}
+			
+			// group sharings inserted before the failure have been rolled back and the assignment is still pending
+			assertTrue(grsDao.find(grsFilter, env).isEmpty());
+			assertEquals(1, ugaDao.get(pendingFilter, null, env).size());
+			assertFalse(sharingService.canViewRecord(pigeon.getKID(), dataSet.getTeacher1().getKID(), env));
+			
+			// the next run propagates the sharing completely, without duplicating any sharings
+			userGroupService.batchPropagatePendingUserGroupSharings(authData, env);
+			assertEquals(1, grsDao.find(grsFilter, env).size());
+			assertTrue(ugaDao.get(pendingFilter, null, env).isEmpty());
+			assertTrue(sharingService.canViewRecord(pigeon.getKID(), dataSet.getTeacher1().getKID(), env));
+			
+			UserRecordSharingFilter ursFilter = new UserRecordSharingFilter();
+			ursFilter.addRecordId(pigeon.getKID());
+			ursFilter.addUserId(dataSet.getTeacher1().getKID());
+			assertEquals(1, ursDao.find(ursFilter, env).size());
+		}
+		finally
+		{
+			envService.deleteEnv(envId);
+		}
+	}
 }
@@ -602,6 +602,57 @@ public class TriggerTest extends BaseUnitTest
 		assertEquals("Malin", logs.get(0).getField("message"));
 	}
 	
+	@Test
+	public void testTriggerProxyConversions() throws KommetException
+	{
+		EnvData env = dataHelper.configureFullTestEnv();
+		Type pigeonType = dataService.createType(dataHelper.getFullPigeonType(env), env);
+		
+		List<String> imports = new ArrayList<String>();
+		imports.add(MiscUtils.userToEnvPackage(pigeonType.getQualifiedName(), env));
+		
+		List<String> annotations = new ArrayList<String>();
+		annotations.add("@BeforeInsert");
+		annotations.add("@AfterInsert");
+		annotations.add("@BeforeDelete");
+		annotations.add("@AfterDelete");
+		
+		AuthData authData = dataHelper.getRootAuthData(env);
+		
+		// the name set by the @BeforeInsert trigger and the ID assigned during insert must be visible to @AfterInsert triggers
+		String code = "if (isInsert() && isBefore()) { for (" + pigeonType.getApiName() + " proxy : getNewValues()) { proxy.setName(\"Renamed\"); } }\n";
+		code += "if (isInsert() && isAfter()) { for (" + pigeonType.getApiName() + " proxy : getNewValues()) { if (proxy.getId() == null || !\"Renamed\".equals(proxy.getName())) { throw new RuntimeException(\"Proxy not updated\"); } } }";
+		
+		Class file = getTriggerFile(pigeonType, code, imports, annotations, classService, authData, env, false);
+		file = classService.fullSave(file, dataService, authData, env);
+		assertTrue(triggerService.isTriggerRegisteredWithType(file.getId(), pigeonType.getKID(), env));
+		
+		dataService.getTriggerProxyStats().reset();
+		
+		Record pigeon = new Record(pigeonType);
+		pigeon.setField("age", BigDecimal.valueOf(2));
+		pigeon.setField("name", "Malin");
+		pigeon = dataService.save(pigeon, authData, env);
+		assertNotNull(pigeon.getKID());
+		
+		// the record is converted into a proxy and back only once, and the proxy is reused for @AfterInsert triggers
+		assertEquals(1, dataService.getTriggerProxyStats().getProxiesGenerated());
+		assertEquals(1, dataService.getTriggerProxyStats().getRecordsGenerated());
+		assertEquals(1, dataService.getTriggerProxyStats().getProxiesUpdated());
+		
+		List<Record> pigeons = env.getSelectCriteriaFromDAL("select id, name from " + pigeonType.getQualifiedName() + " where id = '" + pigeon.getKID() + "'").list();
+		assertEquals(1, pigeons.size());
+		assertEquals("Renamed", pigeons.get(0).getField("name"));
+		
+		dataService.getTriggerProxyStats().reset();
+		dataService.deleteRecord(pigeon, authData, env);
+		
+		// proxies are shared by @BeforeDelete and @AfterDelete triggers and not converted back into records
+		assertEquals(1, dataService.getTriggerProxyStats().getProxiesGenerated());
+		assertEquals(0, dataService.getTriggerProxyStats().getRecordsGenerated());
+		assertTrue(env.getSelectCriteriaFromDAL("select id from " + pigeonType.getQualifiedName() + " where id = '" + pigeon.getKID() + "'").list().isEmpty());
+	}
+	
 	@Test
 	public void testTriggerWithOldValues() throws KommetException
 	{
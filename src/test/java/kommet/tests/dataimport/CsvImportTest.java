@@ -9,25 +9,60 @@ package kommet.tests.dataimport;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
 
 import org.junit.Test;
 
+import kommet.auth.AuthData;
+import kommet.data.DataService;
+import kommet.data.KID;
+import kommet.data.KeyPrefix;
 import kommet.data.KommetException;
+import kommet.data.Record;
+import kommet.data.Type;
+import kommet.dataimport.ImportJob;
+import kommet.dataimport.ImportJobService;
 import kommet.dataimport.csv.CSVParser;
 import kommet.dataimport.csv.CSVParserException;
+import kommet.dataimport.csv.CsvBatchProcessor;
+import kommet.dataimport.csv.CsvRow;
 import kommet.dataimport.csv.RowListCsvProcessor;
+import kommet.env.EnvData;
+import kommet.env.EnvService;
 import kommet.tests.BaseUnitTest;
+import kommet.tests.TestDataCreator;
 
 public class CsvImportTest extends BaseUnitTest
 {
 	//private static final Logger log = LoggerFactory.getLogger(CsvImportTest.class);
 	
+	@Inject
+	ImportJobService importJobService;
+	
+	@Inject
+	TestDataCreator dataHelper;
+	
+	@Inject
+	EnvService envService;
+	
+	@Inject
+	DataService dataService;
+	
 	@Test
 	public void testCSV() throws IOException, KommetException
 	{
@@ -73,4 +108,212 @@ public class CsvImportTest extends BaseUnitTest
 			assertEquals("Line 4 has 4 columns instead of expected 5", e.getMessage());
 		}
 	}
-}
+	
+	@Test
+	public void testLastLineWithoutNewLine() throws IOException, KommetException
+	{
+		String csvFile = "\"one\";\"two\"\n\"a1\";\"b1\"\n\"a2\";\"b2\"";
+		
+		RowListCsvProcessor processor = new RowListCsvProcessor();
+		new CSVParser().parse(new ByteArrayInputStream(csvFile.getBytes()), processor);
+		
+		// the last line should be processed even though it does not end with a new line character
+		assertEquals(2, processor.getRows().size());
+		assertEquals("a2", processor.getRows().get(1).get(0));
+	}
+	
+	@Test
+	public void testBatchImportJob() throws IOException, KommetException, InterruptedException
+	{
+		EnvData env = dataHelper.getTestEnvData(false);
+		
+		int rowCount = 1050;
+		
+		java.io.File csvFile = importJobService.createImportFile();
+		FileWriter fw = new FileWriter(csvFile);
+		fw.write("\"name\";\"age\"\n");
+		for (int i = 0; i < rowCount; i++)
+		{
+			fw.write("\"name" + i + "\";\"" + (i % 10 == 0 ? "invalid" : String.valueOf(i)) + "\"\n");
+		}
+		fw.close();
+		
+		TestBatchProcessor processor = new TestBatchProcessor();
+		ImportJob job = importJobService.startImport(csvFile, processor, 100, 4, true, dataHelper.getRootAuthData(env), env);
+		assertNotNull(job.getId());
+		assertTrue("Import job did not finish in time", job.awaitCompletion(30, TimeUnit.SECONDS));
+		
+		assertEquals(ImportJob.Status.COMPLETED, job.getStatus());
+		assertNull(job.getErrorMessage());
+		assertEquals(rowCount, job.getRowsRead());
+		assertEquals(rowCount, job.getRowsProcessed());
+		assertEquals(11, job.getBatchesProcessed());
+		assertEquals(rowCount / 10, job.getRowsRejected());
+		assertEquals(rowCount - rowCount / 10, processor.importedNames.size());
+		assertTrue(processor.isFinished);
+		assertTrue("Job file should be deleted after import", !csvFile.exists());
+		
+		// make sure the job can be found by its ID
+		assertNotNull(importJobService.getJob(job.getId(), dataHelper.getRootAuthData(env), env));
+		
+		// read rejected rows from the reject file
+		assertNotNull(job.getRejectFilePath());
+		RowListCsvProcessor rejectProcessor = new RowListCsvProcessor();
+		InputStream in = new FileInputStream(job.getRejectFilePath());
+		new CSVParser().parse(in, rejectProcessor);
+		in.close();
+		
+		assertEquals("Error", rejectProcessor.getHeaders().get(3));
+		assertEquals(rowCount / 10, rejectProcessor.getRows().size());
+		for (Map<Integer, String> row : rejectProcessor.getRows())
+		{
+			assertEquals("invalid", row.get(1));
+			assertEquals("Invalid age", row.get(3));
+		}
+	}
+	
+	@Test
+	public void testImportJobSavingRecords() throws IOException, KommetException, InterruptedException
+	{
+		// records saved by job threads are committed in their own transactions, so they are saved on an env
+		// created outside of the test transaction
+		KID envId = KID.get("0010000000124");
+		EnvData env = envService.createEnv("importjobtestenv", envId, true);
+		
+		try
+		{
+			int rowCount = 400;
+			
+			java.io.File csvFile = importJobService.createImportFile();
+			FileWriter fw = new FileWriter(csvFile);
+			fw.write("\"text\"\n");
+			for (int i = 0; i < rowCount; i++)
+			{
+				fw.write("\"label" + i + "\"\n");
+			}
+			fw.close();
+			
+			LabelSavingProcessor processor = new LabelSavingProcessor(env);
+			ImportJob job = importJobService.startImport(csvFile, processor, 20, 4, true, dataHelper.getRootAuthData(env), env);
+			assertTrue("Import job did not finish in time", job.awaitCompletion(60, TimeUnit.SECONDS));
+			
+			assertNull(job.getErrorMessage());
+			assertEquals(ImportJob.Status.COMPLETED, job.getStatus());
+			assertEquals(0, job.getRowsRejected());
+			
+			// each job thread saved records with the auth data of the user who started the import
+			assertEquals((Integer)rowCount, env.getJdbcTemplate().queryForObject("SELECT count(*) FROM " + processor.labelType.getDbTable() + " WHERE labeltext LIKE 'label%'", Integer.class));
+		}
+		finally
+		{
+			envService.deleteEnv(envId);
+		}
+	}
+	
+	/**
+	 * Batch processor that saves a label for each row, using the auth data set on the thread by the import job.
+	 */
+	private class LabelSavingProcessor implements CsvBatchProcessor
+	{
+		private EnvData env;
+		private Type labelType;
+		
+		public LabelSavingProcessor (EnvData env) throws KommetException
+		{
+			this.env = env;
+			this.labelType = env.getType(KeyPrefix.get(KID.LABEL_PREFIX));
+		}
+		
+		@Override
+		public void processBatch(List<CsvRow> rows) throws KommetException
+		{
+			AuthData authData = env.currentAuthData();
+			
+			for (CsvRow row : rows)
+			{
+				if (authData == null)
+				{
+					row.reject("Auth data not set on thread");
+					continue;
+				}
+				
+				Record label = new Record(labelType);
+				label.setField("text", row.get("text"));
+				dataService.save(label, authData, env);
+			}
+		}
+
+		@Override
+		public void processHeaders(List<String> headers)
+		{
+			// empty
+		}
+
+		@Override
+		public void finish()
+		{
+			// empty
+		}
+
+		@Override
+		public void init()
+		{
+			// empty
+		}
+
+		@Override
+		public char getSeparator()
+		{
+			return ';';
+		}
+	}
+	
+	/**
+	 * Batch processor that rejects rows with non-numeric ages.
+	 */
+	private class TestBatchProcessor implements CsvBatchProcessor
+	{
+		private List<String> importedNames = Collections.synchronizedList(new ArrayList<String>());
+		private boolean isFinished = false;
+		
+		@Override
+		public void processBatch(List<CsvRow> rows) throws KommetException
+		{
+			for (CsvRow row : rows)
+			{
+				if (!row.get("age").matches("\\d+"))
+				{
+					row.reject("Invalid age");
+				}
+				else
+				{
+					importedNames.add(row.get("name"));
+				}
+			}
+		}
+
+		@Override
+		public void processHeaders(List<String> headers)
+		{
+			// empty
+		}
+
+		@Override
+		public void finish()
+		{
+			this.isFinished = true;
+		}
+
+		@Override
+		public void init()
+		{
+			// empty
+		}
+
+		@Override
+		public char getSeparator()
+		{
+			return ';';
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,258 @@
+/**
+ * Copyright 2022, Radosław Krawiec
+ * Licensed under the GNU Affera General Public License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at https://www.gnu.org/licenses/agpl-3.0.en.html
+ */
+
+package kommet.tests.envs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import kommet.data.Env;
+import kommet.data.KID;
+import kommet.data.KommetException;
+import kommet.env.EnvData;
+import kommet.env.EnvLoader;
+
+/**
+ * Tests initializing an env requested by many threads at the same time. Envs are created by stub initializers,
+ * so the tests run without a database.
+ */
+public class EnvLoaderTest
+{
+	private Map<KID, EnvData> envs;
+	private EnvLoader loader;
+	private ExecutorService executor;
+	private KID envId;
+
+	private AtomicInteger initCount;
+
+	// released when the first initialization has started
+	private CountDownLatch initStarted;
+
+	// released by the test to let the initialization finish
+	private CountDownLatch initReleased;
+
+	@Before
+	public void setUp() throws KommetException
+	{
+		envs = new ConcurrentHashMap<KID, EnvData>();
+		loader = new EnvLoader(envs);
+		executor = Executors.newFixedThreadPool(2);
+		envId = KID.get("0010000000001");
+		initCount = new AtomicInteger();
+		initStarted = new CountDownLatch(1);
+		initReleased = new CountDownLatch(1);
+	}
+
+	@After
+	public void tearDown()
+	{
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testConcurrentGet() throws Exception
+	{
+		EnvLoader.EnvInitializer initializer = new EnvLoader.EnvInitializer()
+		{
+			@Override
+			public EnvData init() throws KommetException
+			{
+				awaitRelease();
+				EnvData env = createEnv();
+				envs.put(envId, env);
+				return env;
+			}
+		};
+
+		Future<EnvData> first = submitGet(initializer, null);
+		assertTrue(initStarted.await(10, TimeUnit.SECONDS));
+
+		// the second thread requests the env while it is being initialized by the first one
+		AtomicReference<Thread> waitingThread = new AtomicReference<Thread>();
+		Future<EnvData> second = submitGet(initializer, waitingThread);
+		awaitWaiting(waitingThread);
+
+		initReleased.countDown();
+
+		EnvData env = first.get(10, TimeUnit.SECONDS);
+		assertSame(env, second.get(10, TimeUnit.SECONDS));
+		assertEquals(1, initCount.get());
+
+		// initialized env is returned from cache
+		assertSame(env, loader.get(envId, initializer));
+		assertEquals(1, initCount.get());
+	}
+
+	@Test
+	public void testFailedGet() throws Exception
+	{
+		final KommetException initError = new KommetException("Test init error");
+
+		EnvLoader.EnvInitializer initializer = new EnvLoader.EnvInitializer()
+		{
+			@Override
+			public EnvData init() throws KommetException
+			{
+				awaitRelease();
+				throw initError;
+			}
+		};
+
+		Future<EnvData> first = submitGet(initializer, null);
+		assertTrue(initStarted.await(10, TimeUnit.SECONDS));
+
+		AtomicReference<Thread> waitingThread = new AtomicReference<Thread>();
+		Future<EnvData> second = submitGet(initializer, waitingThread);
+		awaitWaiting(waitingThread);
+
+		initReleased.countDown();
+
+		// the error of the failed initialization is thrown to the waiting thread, which does not initialize the env again
+		assertSame(initError, getError(first));
+		assertSame(initError, getError(second));
+		assertEquals(1, initCount.get());
+		assertTrue(envs.isEmpty());
+
+		// a failed initialization is not remembered, so the env can be requested again
+		initReleased = new CountDownLatch(0);
+		try
+		{
+			loader.get(envId, initializer);
+			fail("Initialization should fail again");
+		}
+		catch (KommetException e)
+		{
+			assertSame(initError, e);
+		}
+		assertEquals(2, initCount.get());
+	}
+
+	@Test
+	public void testReentrantGet() throws KommetException
+	{
+		final AtomicReference<KommetException> reentryError = new AtomicReference<KommetException>();
+
+		EnvLoader.EnvInitializer initializer = new EnvLoader.EnvInitializer()
+		{
+			@Override
+			public EnvData init() throws KommetException
+			{
+				initCount.incrementAndGet();
+				try
+				{
+					// the thread initializing the env requests it again, which would block it forever if it waited
+					loader.get(envId, this);
+					fail("Requesting env while it is being initialized by the same thread should fail");
+				}
+				catch (KommetException e)
+				{
+					reentryError.set(e);
+				}
+
+				EnvData env = createEnv();
+				envs.put(envId, env);
+				return env;
+			}
+		};
+
+		EnvData env = loader.get(envId, initializer);
+
+		assertTrue(reentryError.get().getMessage(), reentryError.get().getMessage().contains("requested while it is being initialized"));
+		assertEquals(1, initCount.get());
+		assertSame(env, loader.get(envId, initializer));
+	}
+
+	/**
+	 * Requests the env on another thread. If a thread reference is passed, the requesting thread is stored in it.
+	 */
+	private Future<EnvData> submitGet (final EnvLoader.EnvInitializer initializer, final AtomicReference<Thread> thread)
+	{
+		return executor.submit(new Callable<EnvData>()
+		{
+			@Override
+			public EnvData call() throws KommetException
+			{
+				if (thread != null)
+				{
+					thread.set(Thread.currentThread());
+				}
+				return loader.get(envId, initializer);
+			}
+		});
+	}
+
+	/**
+	 * Waits until the thread requesting the env is blocked waiting for the initialization by another thread.
+	 */
+	private static void awaitWaiting (AtomicReference<Thread> thread) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (thread.get() == null || thread.get().getState() != Thread.State.WAITING)
+		{
+			if (System.currentTimeMillis() > deadline)
+			{
+				fail("Thread did not start waiting for env initialization");
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	private void awaitRelease() throws KommetException
+	{
+		initCount.incrementAndGet();
+		initStarted.countDown();
+		try
+		{
+			initReleased.await();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new KommetException("Interrupted while waiting for test");
+		}
+	}
+
+	private static Throwable getError (Future<EnvData> result) throws Exception
+	{
+		try
+		{
+			result.get(10, TimeUnit.SECONDS);
+			fail("Env initialization should fail");
+			return null;
+		}
+		catch (ExecutionException e)
+		{
+			return e.getCause();
+		}
+	}
+
+	private EnvData createEnv() throws KommetException
+	{
+		Env envInfo = new Env();
+		envInfo.setKID(envId);
+		return new EnvData(envInfo, new DriverManagerDataSource());
+	}
+}
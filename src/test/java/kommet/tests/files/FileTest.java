@@ -10,6 +10,8 @@ package kommet.tests.files;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -41,7 +43,10 @@ import kommet.data.KommetException;
 import kommet.data.Record;
 import kommet.data.Type;
 import kommet.data.ValidationMessage;
+import kommet.data.sharing.SharingService;
 import kommet.env.EnvData;
+import kommet.files.ByteRange;
+import kommet.files.FileDownloadInfo;
 import kommet.files.FileException;
 import kommet.files.FileFilter;
 import kommet.files.FileRecordAssignmentFilter;
@@ -82,6 +87,9 @@ public class FileTest extends BaseUnitTest
 	@Inject
 	AppConfig appConfig;
 	
+	@Inject
+	SharingService sharingService;
+	
 	@Inject
 	ProfileService profileService;
 	
@@ -222,6 +230,7 @@ public class FileTest extends BaseUnitTest
 		
 		testFileRecordAssignments(env);
 		testSaveFile(env);
+		testDownloadInfo(testUserAuthData, env);
 		
 		// the method below has to be called at the end of the test because it causes the transaction to
 		// fail completely
@@ -291,6 +300,89 @@ public class FileTest extends BaseUnitTest
 		assertFalse("Disk file not removed", (new java.io.File(diskFile.getAbsolutePath())).exists());
 	}
 
+	private void testDownloadInfo(AuthData testUserAuthData, EnvData env) throws IOException, KommetException
+	{
+		java.io.File diskFile = new java.io.File(appConfig.getFileDir() + "/downloadfile.txt");
+		FileWriter fw = new FileWriter(diskFile);
+		fw.write("download text");
+		fw.close();
+		
+		File file = fileService.saveFile(null, "download.txt", diskFile.getName(), File.PUBLIC_ACCESS, true, dataHelper.getRootAuthData(env), env);
+		
+		FileDownloadInfo info = fileService.getDownloadInfo(file.getId(), dataHelper.getRootAuthData(env), env);
+		assertNotNull(info);
+		assertEquals("download.txt", info.getFileName());
+		assertEquals(diskFile.getName(), info.getPath());
+		
+		// repeated calls should return cached info
+		assertSame(info, fileService.getDownloadInfo(file.getId(), dataHelper.getRootAuthData(env), env));
+		
+		// the entity tag should change when the disk file changes
+		assertFalse(info.getETag(1000, 10).equals(info.getETag(2000, 10)));
+		assertFalse(info.getETag(1000, 10).equals(info.getETag(1000, 11)));
+		
+		// replace the latest revision with another disk file and make sure cached info is discarded
+		java.io.File newDiskFile = new java.io.File(appConfig.getFileDir() + "/downloadfile2.txt");
+		fw = new FileWriter(newDiskFile);
+		fw.write("download text 2");
+		fw.close();
+		
+		fileService.saveFile(file.getId(), "download.txt", newDiskFile.getName(), File.PUBLIC_ACCESS, false, dataHelper.getRootAuthData(env), env);
+		FileDownloadInfo newInfo = fileService.getDownloadInfo(file.getId(), dataHelper.getRootAuthData(env), env);
+		assertEquals(newDiskFile.getName(), newInfo.getPath());
+		assertEquals(info.getRevisionId(), newInfo.getRevisionId());
+		
+		// access depends on sharings, so it is checked even when download info is cached
+		sharingService.shareRecord(file.getId(), testUserAuthData.getUserId(), dataHelper.getRootAuthData(env), "File download test", false, env);
+		FileDownloadInfo userInfo = fileService.getDownloadInfo(file.getId(), testUserAuthData, env);
+		assertNotNull(userInfo);
+		assertSame(userInfo, fileService.getDownloadInfo(file.getId(), testUserAuthData, env));
+		
+		sharingService.unshareRecord(file.getId(), testUserAuthData.getUserId(), dataHelper.getRootAuthData(env), env);
+		assertNull(fileService.getDownloadInfo(file.getId(), testUserAuthData, env));
+		
+		FileFilter fileFilter = new FileFilter();
+		fileFilter.addId(file.getId());
+		fileService.deleteFiles(fileService.find(fileFilter, true, false, dataHelper.getRootAuthData(env), env), true, true, dataHelper.getRootAuthData(env), env);
+		assertNull(fileService.getDownloadInfo(file.getId(), dataHelper.getRootAuthData(env), env));
+	}
+	
+	@Test
+	public void testByteRangeParsing()
+	{
+		ByteRange range = ByteRange.parse("bytes=0-99", 1000);
+		assertEquals(0, range.getStart());
+		assertEquals(99, range.getEnd());
+		assertEquals(100, range.getLength());
+		
+		// open-ended range
+		range = ByteRange.parse("bytes=900-", 1000);
+		assertEquals(900, range.getStart());
+		assertEquals(999, range.getEnd());
+		
+		// suffix range
+		range = ByteRange.parse("bytes=-100", 1000);
+		assertEquals(900, range.getStart());
+		assertEquals(999, range.getEnd());
+		
+		// suffix longer than the file
+		range = ByteRange.parse("bytes=-2000", 1000);
+		assertEquals(0, range.getStart());
+		
+		// end past the end of the file
+		range = ByteRange.parse("bytes=500-5000", 1000);
+		assertEquals(999, range.getEnd());
+		
+		assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=1000-", 1000));
+		assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-0", 1000));
+		
+		// invalid and multiple ranges are ignored
+		assertNull(ByteRange.parse("bytes=0-10,20-30", 1000));
+		assertNull(ByteRange.parse("bytes=10-5", 1000));
+		assertNull(ByteRange.parse("bytes=a-b", 1000));
+		assertNull(ByteRange.parse("items=0-10", 1000));
+	}
+
 	private void testFileRecordAssignments(EnvData env) throws KommetException
 	{
 		Type pigeonType = dataHelper.getFullPigeonType(env);
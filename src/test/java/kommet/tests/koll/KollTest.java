@@ -491,6 +491,87 @@ public class KollTest extends BaseUnitTest
 		assertFalse("Compilation succeeded though it should have failed", result.isSuccess());
 	}
 	
+	@Test
+	public void testReloadRecompiledClasses() throws Exception
+	{
+		EnvData env = dataHelper.configureFullTestEnv();
+		
+		Class greeter = getReloadTestClass("ReloadGreeter", "public String greet() { return \"first\"; }", env);
+		CompilationResult result = compiler.compile(greeter, env);
+		assertTrue("Compilation failed: " + result.getDescription(), result.isSuccess());
+		assertTrue(result.getCompiledClasses().containsKey(MiscUtils.userToEnvPackage(greeter.getQualifiedName(), env)));
+		compiler.reloadClasses(result, env);
+		assertEquals("first", callGreet(greeter, env));
+		
+		int layer = compiler.getClassLoader(env).getLayer();
+		
+		// recompile the loaded class, which is not referenced by any other loaded class
+		greeter.setJavaCode(getReloadTestClass("ReloadGreeter", "public String greet() { return \"second\"; }", env).getJavaCode());
+		result = compiler.compile(greeter, env);
+		assertTrue("Compilation failed: " + result.getDescription(), result.isSuccess());
+		compiler.reloadClasses(result, env);
+		
+		// the new version of the class should be loaded in a new layer of the class loader
+		assertEquals(layer + 1, compiler.getClassLoader(env).getLayer());
+		assertEquals("second", callGreet(greeter, env));
+		
+		// load a class that references the greeter
+		Class caller = getReloadTestClass("ReloadCaller", "public String greet() { return new ReloadGreeter().greet(); }", env);
+		result = compiler.compile(caller, env);
+		assertTrue("Compilation failed: " + result.getDescription(), result.isSuccess());
+		compiler.reloadClasses(result, env);
+		assertEquals("second", callGreet(caller, env));
+		
+		// now the greeter cannot be swapped in a layer, because the loaded caller is linked to its current version
+		greeter.setJavaCode(getReloadTestClass("ReloadGreeter", "public String greet() { return \"third\"; }", env).getJavaCode());
+		result = compiler.compile(greeter, env);
+		assertTrue("Compilation failed: " + result.getDescription(), result.isSuccess());
+		compiler.reloadClasses(result, env);
+		
+		assertEquals(0, compiler.getClassLoader(env).getLayer());
+		assertEquals("third", callGreet(greeter, env));
+		assertEquals("third", callGreet(caller, env));
+	}
+	
+	@Test
+	public void testCompiledClassReuse() throws Exception
+	{
+		EnvData env = dataHelper.configureFullTestEnv();
+		
+		Class greeter = getReloadTestClass("CachedGreeter", "public String greet() { return \"first\"; }", env);
+		assertFalse(compiler.isCompiled(greeter, env));
+		
+		assertTrue(compiler.compile(greeter, env).isSuccess());
+		assertTrue(compiler.isCompiled(greeter, env));
+		assertTrue(compiler.getCompiledSourceHashes(env).containsKey(MiscUtils.userToEnvPackage(greeter.getQualifiedName(), env)));
+		
+		// changed code cannot be served by the compiled class
+		greeter.setJavaCode(getReloadTestClass("CachedGreeter", "public String greet() { return \"second\"; }", env).getJavaCode());
+		assertFalse(compiler.isCompiled(greeter, env));
+		
+		assertTrue(compiler.compile(greeter, env).isSuccess());
+		assertTrue(compiler.isCompiled(greeter, env));
+		
+		// compiled classes are removed together with the KOLL dir
+		compiler.clearKollCache(env);
+		assertFalse(compiler.isCompiled(greeter, env));
+	}
+	
+	private Class getReloadTestClass (String name, String body, EnvData env)
+	{
+		Class file = new Class();
+		file.setName(name);
+		file.setPackageName("kommet.tests.reload");
+		file.setJavaCode("package " + MiscUtils.userToEnvPackage("kommet.tests.reload", env) + ";\npublic class " + name + " { " + body + " }");
+		return file;
+	}
+	
+	private Object callGreet (Class file, EnvData env) throws Exception
+	{
+		Object instance = classService.instantiate(file, env);
+		return instance.getClass().getMethod("greet").invoke(instance);
+	}
+	
 	@Test
 	public void testUsingClassesFromDifferentClassloaders() throws KommetException, SecurityException, NoSuchMethodException, IllegalArgumentException, IllegalAccessException, InvocationTargetException
 	{
@@ -36,19 +36,24 @@ import kommet.tests.SystemContextTest;
 import kommet.tests.SystemSettingsTest;
 import kommet.tests.TaskTest;
 import kommet.tests.TestingTest;
+import kommet.tests.TypeaheadTest;
 import kommet.tests.UserCascadeHierarchyTest;
 import kommet.tests.UserGroupTest;
 import kommet.tests.ViewResourceTest;
 import kommet.tests.WebResourceTest;
+import kommet.tests.actions.ActionRouterTest;
 import kommet.tests.actions.ActionTest;
 import kommet.tests.actions.ParsedURLTest;
 import kommet.tests.auth.AuthTest;
 import kommet.tests.auth.AuthUtilTest;
 import kommet.tests.auth.ProfileTest;
 import kommet.tests.auth.SystemAdministratorTest;
+import kommet.tests.auth.TokenStoreTest;
 import kommet.tests.basic.BasicSetupTest;
 import kommet.tests.basic.UserTest;
 import kommet.tests.bp.BusinessProcessTest;
+import kommet.tests.bp.ParallelBranchTest;
+import kommet.tests.bp.ProcessQueueTest;
 import kommet.tests.dal.DALCriteriaBuilderTest;
 import kommet.tests.dal.DALTest;
 import kommet.tests.dal.DalUtilTest;
@@ -75,6 +80,7 @@ import kommet.tests.deployment.LibraryTest;
 import kommet.tests.docs.DocTemplateTest;
 import kommet.tests.emailing.EmailTest;
 import kommet.tests.envs.EnvCreationTest;
+import kommet.tests.envs.EnvLoaderTest;
 import kommet.tests.envs.EnvServiceTest;
 import kommet.tests.files.FileTest;
 import kommet.tests.http.HttpTest;
@@ -114,6 +120,7 @@ import kommet.tests.vendorapis.MsExcelApiTest;
 @Rollback
 @SuiteClasses({ AuthTest.class,
 	AuthUtilTest.class,
+	TokenStoreTest.class,
 	ProfileTest.class,
 	BasicSetupTest.class,
 	UserTest.class,
@@ -159,6 +166,7 @@ import kommet.tests.vendorapis.MsExcelApiTest;
 	ConfigTest.class,
 	DataSourceFactoryTest.class,
 	EnvServiceTest.class,
+	EnvLoaderTest.class,
 	FieldManipulationTest.class,
 	GlobalSettingsTest.class,
 	I18nTest.class,
@@ -198,16 +206,20 @@ import kommet.tests.vendorapis.MsExcelApiTest;
 	EventTest.class,
 	JSONUtilTest.class,
 	AnyRecordTest.class,
+	TypeaheadTest.class,
 	RecordAccessTypeTest.class,
 	TypeCodeDeclarationTest.class,
 	SharingRuleTest.class,
 	BusinessProcessTest.class,
+	ProcessQueueTest.class,
+	ParallelBranchTest.class,
 	AutoNumberTest.class,
 	GenericActionTest.class,
 	ButtonTest.class,
 	ReminderTest.class,
 	DictionaryTest.class,
 	ParsedURLTest.class,
+	ActionRouterTest.class,
 	TestingTest.class
 })
 public class BackendSuite
@@ -13,13 +13,16 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.math.BigDecimal;
 import java.sql.Date;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 
@@ -27,6 +30,8 @@ import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.junit.Test;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import kommet.auth.AuthData;
 import kommet.basic.Notification;
 import kommet.basic.RecordProxyUtil;
@@ -38,12 +43,15 @@ import kommet.data.Field;
 import kommet.data.KeyPrefix;
 import kommet.data.KID;
 import kommet.data.KommetException;
+import kommet.data.PIR;
 import kommet.data.Record;
 import kommet.data.Type;
 import kommet.data.datatypes.InverseCollectionDataType;
 import kommet.env.EnvData;
 import kommet.env.GenericAction;
+import kommet.js.jsrc.JSRC;
 import kommet.json.JSON;
+import kommet.json.RecordJsonWriter;
 import kommet.koll.compiler.KommetCompiler;
 import kommet.services.UserGroupService;
 import kommet.tests.BaseUnitTest;
@@ -290,4 +298,98 @@ public class JSONUtilTest extends BaseUnitTest
 			JSON.serializeRecord(pigeon, dataHelper.getRootAuthData(env));
 		}
 	}
-}
\ No newline at end of file
+	
+	@Test
+	public void testStreamRecords() throws KommetException, IOException
+	{
+		EnvData env = dataHelper.configureFullTestEnv();
+		Type type = dataHelper.getFullPigeonType(env);
+		
+		// add children collection field
+		Field field = new Field();
+		field.setApiName("children");
+		field.setLabel("Children");
+		field.setDataType(new InverseCollectionDataType(type, "father"));
+		field.setRequired(false);
+		type.addField(field);
+		
+		type = dataService.createType(type, dataHelper.getRootAuthData(env), env);
+		
+		Record oldPigeon = dataService.instantiate(type.getKID(), env);
+		oldPigeon.setField("name", "Bronek \"the old\"");
+		oldPigeon.setField("age", 8);
+		oldPigeon = dataService.save(oldPigeon, env);
+		
+		Record youngPigeon = dataService.instantiate(type.getKID(), env);
+		youngPigeon.setField("name", "Zenek");
+		youngPigeon.setField("age", 2);
+		youngPigeon.setField("father", oldPigeon);
+		youngPigeon = dataService.save(youngPigeon, env);
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RecordJsonWriter writer = new RecordJsonWriter(out, dataHelper.getRootAuthData(env));
+		writer.writeStartArray();
+		env.getSelectCriteriaFromDAL("select id, name from " + type.getQualifiedName() + " order by age desc").forEach(writer);
+		writer.writeEndArray();
+		writer.flush();
+		
+		// records are written in the format used by JSON.serializeRecord, with string values escaped
+		String expectedJSON = "[{ \"name\": \"Bronek \\\"the old\\\"\", \"id\": \"" + oldPigeon.getKID() + "\" }, { \"name\": \"Zenek\", \"id\": \"" + youngPigeon.getKID() + "\" }]";
+		assertEquals(expectedJSON, new String(out.toByteArray(), "UTF-8"));
+		
+		// streamed records must be valid JSON
+		List<?> streamedRecords = new ObjectMapper().readValue(out.toByteArray(), List.class);
+		assertEquals(2, streamedRecords.size());
+		assertEquals("Bronek \"the old\"", ((Map<?, ?>)streamedRecords.get(0)).get("name"));
+		
+		// write a record with a collection of children
+		out = new ByteArrayOutputStream();
+		writer = new RecordJsonWriter(out, dataHelper.getRootAuthData(env));
+		env.getSelectCriteriaFromDAL("select id, name, children.id, children.name from " + type.getQualifiedName() + " where id = '" + oldPigeon.getKID() + "'").forEach(writer);
+		writer.flush();
+		
+		expectedJSON = "{ \"children\": [{ \"name\": \"Zenek\", \"id\": \"" + youngPigeon.getKID() + "\" }], \"name\": \"Bronek \\\"the old\\\"\", \"id\": \"" + oldPigeon.getKID() + "\" }";
+		assertEquals(expectedJSON, new String(out.toByteArray(), "UTF-8"));
+		assertEquals(expectedJSON, JSON.serializeRecord(env.getSelectCriteriaFromDAL("select id, name, children.id, children.name from " + type.getQualifiedName() + " where id = '" + oldPigeon.getKID() + "'").singleRecord(), dataHelper.getRootAuthData(env)));
+	}
+	
+	@Test
+	public void testWriteJSRC() throws KommetException, IOException
+	{
+		EnvData env = dataHelper.configureFullTestEnv();
+		AuthData authData = dataHelper.getRootAuthData(env);
+		Type type = dataService.createType(dataHelper.getFullPigeonType(env), authData, env);
+		
+		Record pigeon1 = dataService.instantiate(type.getKID(), env);
+		pigeon1.setField("name", "Bronek \"the old\"");
+		pigeon1.setField("age", 8);
+		dataService.save(pigeon1, env);
+		
+		Record pigeon2 = dataService.instantiate(type.getKID(), env);
+		pigeon2.setField("name", "Zenek");
+		pigeon2.setField("age", 2);
+		dataService.save(pigeon2, env);
+		
+		String query = "select id, name, age from " + type.getQualifiedName() + " order by age desc";
+		
+		StringWriter out = new StringWriter();
+		JSRC.write(env.getSelectCriteriaFromDAL(query), type, 2, out, env, authData);
+		String streamedJSRC = out.toString();
+		
+		// streamed JSRC is the same as JSRC serialized from a list of records
+		assertEquals(JSRC.serialize(JSRC.build(env.getSelectCriteriaFromDAL(query).list(), type, 2, env, authData), authData), streamedJSRC);
+		assertTrue(streamedJSRC.startsWith("{ \"jsti\": "));
+		assertTrue(streamedJSRC.endsWith("] }"));
+		
+		JSRC jsrc = JSRC.deserialize(streamedJSRC);
+		assertNotNull(jsrc.getJsti());
+		assertEquals(2, jsrc.getRecords().size());
+		assertEquals("Bronek \"the old\"", jsrc.getRecords().get(0).get(PIR.get("name", type, env).getValue()));
+		assertEquals("Zenek", jsrc.getRecords().get(1).get(PIR.get("name", type, env).getValue()));
+		
+		// no records are written as an empty collection
+		out = new StringWriter();
+		JSRC.write(env.getSelectCriteriaFromDAL("select id, name, age from " + type.getQualifiedName() + " where name = 'Heniek'"), type, 2, out, env, authData);
+		assertTrue(out.toString().endsWith(", \"records\": [] }"));
+	}
+}
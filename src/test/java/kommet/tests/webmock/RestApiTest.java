@@ -42,6 +42,7 @@ import kommet.comments.CommentFilter;
 import kommet.comments.CommentService;
 import kommet.data.KeyPrefix;
 import kommet.data.KID;
+import kommet.data.PIR;
 import kommet.data.Record;
 import kommet.data.Type;
 import kommet.env.EnvData;
@@ -135,6 +136,81 @@ public class RestApiTest extends BasicWebMockTest
 		testGetViews(env, accessToken);
 	}
 
+	@Test
+	public void testStreamedQueries() throws Exception
+	{
+		EnvData env = dataHelper.getTestEnvData(false);
+		basicSetupService.runBasicSetup(env);
+		envService.add(env);
+		
+		String accessToken = obtainAccessToken(true, env);
+		
+		Type pigeonType = dataService.createType(dataHelper.getFullPigeonType(env), env);
+		
+		Record pigeon1 = new Record(pigeonType);
+		pigeon1.setField("name", "Bronek \"the old\"");
+		pigeon1.setField("age", 8);
+		pigeon1 = dataService.save(pigeon1, env);
+		
+		Record pigeon2 = new Record(pigeonType);
+		pigeon2.setField("name", "Zenek");
+		pigeon2.setField("age", 2);
+		pigeon2 = dataService.save(pigeon2, env);
+		
+		String query = "select id, name from " + pigeonType.getQualifiedName() + " order by age desc";
+		
+		// records returned by the DAL endpoint are streamed as a JSON array
+		MvcResult result = this.mockMvc.perform(get("/" + UrlUtil.SYSTEM_ACTION_URL_PREFIX + UrlUtil.REST_API_DAL_URL)
+				.param("access_token", accessToken)
+				.param("env", env.getId().getId())
+				.param("q", query))
+				.andExpect(status().isOk())
+				.andReturn();
+		
+		String expectedJSON = "[{ \"name\": \"Bronek \\\"the old\\\"\", \"id\": \"" + pigeon1.getKID() + "\" }, { \"name\": \"Zenek\", \"id\": \"" + pigeon2.getKID() + "\" }]";
+		assertEquals(expectedJSON, result.getResponse().getContentAsString());
+		
+		// an invalid query is returned as an error, since no records have been sent yet
+		result = this.mockMvc.perform(get("/" + UrlUtil.SYSTEM_ACTION_URL_PREFIX + UrlUtil.REST_API_DAL_URL)
+				.param("access_token", accessToken)
+				.param("env", env.getId().getId())
+				.param("q", "select id, nonExistingField from " + pigeonType.getQualifiedName()))
+				.andExpect(status().is(HttpServletResponse.SC_BAD_REQUEST))
+				.andReturn();
+		
+		assertTrue(result.getResponse().getContentAsString().contains("Error executing DAL query"));
+		
+		// records returned by the JSDS endpoint are streamed as JSRC
+		result = this.mockMvc.perform(post("/" + UrlUtil.SYSTEM_ACTION_URL_PREFIX + UrlUtil.REST_API_QUERY_DS_URL)
+				.param("access_token", accessToken)
+				.param("env", env.getId().getId())
+				.param("query", query))
+				.andExpect(status().isOk())
+				.andReturn();
+		
+		String jsrcJSON = result.getResponse().getContentAsString();
+		assertTrue("Invalid JSRC: " + jsrcJSON, jsrcJSON.startsWith("{ \"jsti\": "));
+		assertTrue("Invalid JSRC: " + jsrcJSON, jsrcJSON.contains(", \"records\": [{"));
+		assertTrue("Invalid JSRC: " + jsrcJSON, jsrcJSON.endsWith("}] }"));
+		
+		JSRC jsrc = JSRC.deserialize(jsrcJSON);
+		assertNotNull(jsrc.getJsti());
+		assertEquals(2, jsrc.getRecords().size());
+		assertEquals("Bronek \"the old\"", jsrc.getRecords().get(0).get(PIR.get("name", pigeonType, env).getValue()));
+		assertEquals("Zenek", jsrc.getRecords().get(1).get(PIR.get("name", pigeonType, env).getValue()));
+		
+		// in datasource mode, JSRC is wrapped together with the total number of records
+		result = this.mockMvc.perform(post("/" + UrlUtil.SYSTEM_ACTION_URL_PREFIX + UrlUtil.REST_API_QUERY_DS_URL)
+				.param("access_token", accessToken)
+				.param("env", env.getId().getId())
+				.param("query", query)
+				.param("mode", "datasource"))
+				.andExpect(status().isOk())
+				.andReturn();
+		
+		assertEquals("{ \"jsrc\": " + jsrcJSON + ", \"recordCount\": 2 }", result.getResponse().getContentAsString());
+	}
+	
 	private void testGetControllerClasses(EnvData env, String accessToken) throws Exception
 	{
 		MvcResult result = this.mockMvc.perform(get("/" + UrlUtil.SYSTEM_ACTION_URL_PREFIX + UrlUtil.REST_API_GET_CONTROLLER_CLASSES)